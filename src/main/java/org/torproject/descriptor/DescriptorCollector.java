@@ -10,9 +10,10 @@ import java.io.File;
  * service to a given local directory.
  *
  * <p>This type is not a descriptor source in the proper sense, because it
- * does not produce descriptors by itself.  But it often creates the
- * prerequisites for reading descriptors from disk using
- * {@link DescriptorReader}.</p>
+ * does not produce descriptors by itself, except when using
+ * {@link #collectAndParseDescriptors(String, String[], long, File,
+ * boolean)}.  But it often creates the prerequisites for reading
+ * descriptors from disk using {@link DescriptorReader}.</p>
  *
  * <p>Code sample:</p>
  * <pre>{@code
@@ -60,5 +61,123 @@ public interface DescriptorCollector {
   void collectDescriptors(String collecTorBaseUrl,
       String[] remoteDirectories, long minLastModified,
       File localDirectory, boolean deleteExtraneousLocalFiles);
-}
 
+  /**
+   * Fetch remote files from a CollecTor instance like
+   * {@link #collectDescriptors(String, String[], long, File, boolean)}
+   * does, and return descriptors contained in fetched files while other
+   * files are still being fetched.
+   *
+   * <p>Fetched files are written to the local directory as usual. Plain
+   * descriptor files are parsed from the fetched bytes without reading them
+   * from disk again, unless too many fetched bytes are still waiting to be
+   * parsed, whereas tarballs and compressed files are read from disk after
+   * fetching them. Descriptors in files that already existed
+   * locally and were not fetched again are not returned. Collecting happens
+   * in a background thread, and the returned descriptors are provided in
+   * no particular order.</p>
+   *
+   * <p>Fetching files, deleting extraneous local files, and updating the
+   * local directory's manifest do not wait for returned descriptors to be
+   * consumed. If the caller stops iterating over the returned descriptors
+   * before reaching the end, collecting completes regardless, but the
+   * background thread that parses fetched files stays blocked until the
+   * application exits, so callers should iterate to the end where
+   * possible.</p>
+   *
+   * @param collecTorBaseUrl CollecTor base URL without trailing slash,
+   *     e.g., {@code "https://collector.torproject.org"}
+   * @param remoteDirectories Remote directories to collect descriptors
+   *     from, e.g.,
+   *     {@code "recent/relay-descriptors/server-descriptors"}, without
+   *     processing subdirectories unless they are explicitly listed.
+   * @param minLastModified Minimum last-modified time in milliseconds of
+   *     files to be collected, or 0 for collecting all files
+   * @param localDirectory Directory where collected files will be written
+   * @param deleteExtraneousLocalFiles Whether to delete all local files
+   *     that do not exist remotely anymore
+   * @return Descriptors parsed from fetched files, which may be iterated
+   *     over while files are still being fetched.
+   *
+   * @since 2.16.0
+   */
+  Iterable<Descriptor> collectAndParseDescriptors(String collecTorBaseUrl,
+      String[] remoteDirectories, long minLastModified,
+      File localDirectory, boolean deleteExtraneousLocalFiles);
+
+  /**
+   * Fetch up to this number of remote files concurrently (default: 1).
+   *
+   * <p>Fetching many small files, like those in CollecTor's
+   * {@code recent/} directories, is mostly limited by round trips rather
+   * than by bandwidth, which is why fetching several files at once can
+   * speed up collecting descriptors considerably. The number of concurrent
+   * connections to a single host can be further limited using
+   * {@link #setMaxDownloadsPerHost(int)}.</p>
+   *
+   * @param downloadThreads Number of threads for fetching remote files,
+   *     which must be at least 1.
+   * @throws IllegalArgumentException Thrown if the number of threads is
+   *     smaller than 1.
+   *
+   * @since 2.16.0
+   */
+  void setDownloadThreads(int downloadThreads);
+
+  /**
+   * Don't fetch more than this number of remote files concurrently from the
+   * same host (default: 4).
+   *
+   * @param maxDownloadsPerHost Maximum number of concurrent downloads per
+   *     host, which must be at least 1.
+   * @throws IllegalArgumentException Thrown if the maximum number of
+   *     downloads is smaller than 1.
+   *
+   * @since 2.16.0
+   */
+  void setMaxDownloadsPerHost(int maxDownloadsPerHost);
+
+  /**
+   * Walk the whole local directory to find out which files exist locally
+   * rather than relying on the manifest of local files written by the
+   * previous collection (default: false).
+   *
+   * <p>The manifest is stored in the index cache directory set using
+   * {@link #setIndexCacheDirectory(File)} and updated whenever files are
+   * fetched or deleted. Reading it only requires looking at local
+   * directories that have changed since it was written, which is much
+   * faster than walking the whole local directory, but which does not
+   * notice files that have been modified in place by other processes. The
+   * local directory is always walked if no index cache directory is set or
+   * if there is no manifest yet.</p>
+   *
+   * @param scanLocalDirectory Whether to walk the whole local directory.
+   *
+   * @since 2.16.0
+   */
+  void setScanLocalDirectory(boolean scanLocalDirectory);
+
+  /**
+   * Keep a copy of the last fetched index and a manifest of local files in
+   * the given directory, and only fetch the index again if it has changed
+   * since (default: null, which fetches the index and walks the whole local
+   * directory on every run).
+   *
+   * <p>For HTTP URLs, the request contains the {@code ETag} and
+   * {@code Last-Modified} values of the previous response, and a
+   * {@code 304 Not Modified} response makes the collector parse the cached
+   * copy rather than fetching the index again.</p>
+   *
+   * <p>The index cache directory must not be located inside the local
+   * directory, where its contents would be mistaken for descriptors by a
+   * {@link DescriptorReader} reading that directory. Each local directory
+   * needs its own index cache directory.</p>
+   *
+   * @param indexCacheDirectory Directory for storing the last fetched
+   *     index and the manifest of local files, or null for not storing
+   *     them.
+   *
+   * @since 2.16.0
+   */
+  void setIndexCacheDirectory(File indexCacheDirectory);
+}
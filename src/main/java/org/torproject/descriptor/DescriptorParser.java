@@ -4,6 +4,7 @@
 package org.torproject.descriptor;
 
 import java.io.File;
+import java.util.Set;
 
 /**
  * Descriptor source that parses descriptors from raw descriptor contents.
@@ -40,4 +41,23 @@ public interface DescriptorParser {
    */
   Iterable<Descriptor> parseDescriptors(byte[] rawDescriptorBytes,
       File sourceFile, String fileName);
+
+  /**
+   * Only include descriptors and network status entries of relays or bridges
+   * with the given fingerprints (default: include all).
+   *
+   * <p>Status entries in network statuses are skipped based on the identity in
+   * their {@code r} line before parsing the rest of the entry, and server and
+   * extra-info descriptors are skipped based on their {@code fingerprint} or
+   * {@code extra-info} line before parsing the descriptor. Other descriptor
+   * types, including microdescriptors, are not affected by this option.</p>
+   *
+   * @param fingerprints Hex-encoded relay or bridge fingerprints, or
+   *     {@code null} to include all descriptors and status entries.
+   * @throws IllegalArgumentException Thrown if any of the given fingerprints
+   *     is not a 40-character hex string.
+   *
+   * @since 2.16.0
+   */
+  void setFingerprints(Set<String> fingerprints);
 }
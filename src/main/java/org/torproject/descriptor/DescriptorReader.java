@@ -4,6 +4,8 @@
 package org.torproject.descriptor;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Set;
 import java.util.SortedMap;
 
 /**
@@ -21,10 +23,13 @@ import java.util.SortedMap;
  * <pre>{@code
  * DescriptorReader descriptorReader =
  *     DescriptorSourceFactory.createDescriptorReader();
+ * // Only process network status consensuses, skip the rest without
+ * // parsing it.
+ * descriptorReader.setDescriptorTypes(
+ *     Collections.singleton(RelayNetworkStatusConsensus.class));
  * // Read descriptors from local directory called in/.
  * for (Descriptor descriptor :
  *     descriptorReader.readDescriptors(new File("in")) {
- *   // Only process network status consensuses, ignore the rest.
  *   if ((descriptor instanceof RelayNetworkStatusConsensus)) {
  *     RelayNetworkStatusConsensus consensus =
  *         (RelayNetworkStatusConsensus) descriptor;
@@ -61,6 +66,53 @@ public interface DescriptorReader {
    */
   void saveHistoryFile(File historyFile);
 
+  /**
+   * Set a binary history store to load before reading descriptors, exclude
+   * descriptor files and tarballs that haven't changed since they have last
+   * been read, and update the store after reading descriptors, creating the
+   * file if it does not exist yet (default: don't use a history store).
+   *
+   * <p>Unlike a history file set with {@link #setHistoryFile(File)}, a
+   * history store is updated automatically by appending only new, changed,
+   * or removed files, which makes it more suitable for input directories
+   * containing millions of files. The store file is only rewritten in full
+   * when at least half of its records are outdated. History stores and
+   * history files can be used together, in which case a file is excluded if
+   * it is unchanged according to either of them.</p>
+   *
+   * @param historyStoreFile File containing the history store.
+   *
+   * @since 2.16.0
+   */
+  void setHistoryStoreFile(File historyStoreFile);
+
+  /**
+   * Write checkpoints of partially read tarballs to the given file while
+   * reading descriptors, and resume reading tarballs from the checkpoints
+   * contained in that file if it exists (default: don't write
+   * checkpoints).
+   *
+   * <p>A checkpoint consists of the tarball path, the number of tarball
+   * entries whose descriptors have all been returned, and the number of
+   * descriptors that have been returned from the next entry. Checkpoints
+   * are written every few seconds while returning descriptors and once all
+   * descriptors have been returned, at which point the file only contains
+   * checkpoints of tarballs that have not been read completely. A reader
+   * that is started with the same checkpoint file after a crash or restart
+   * skips consumed tarball entries without parsing them and leaves out
+   * descriptors that have been returned before, as long as tarballs have
+   * not been modified in the meantime.</p>
+   *
+   * <p>Checkpoints are exact when using a single parsing thread. When
+   * using more than one parsing thread, resuming may return some
+   * descriptors again that have been returned before.</p>
+   *
+   * @param checkpointFile File containing checkpoints.
+   *
+   * @since 2.16.0
+   */
+  void setCheckpointFile(File checkpointFile);
+
   /**
    * Exclude files if they haven't changed since the corresponding last
    * modified timestamps.
@@ -104,6 +156,244 @@ public interface DescriptorReader {
    */
   void setMaxDescriptorsInQueue(int maxDescriptorsInQueue);
 
+  /**
+   * Walk input directories and read descriptor files using up to this
+   * number of threads (default: 1).
+   *
+   * <p>Using more than one thread makes the reader walk different
+   * directories concurrently, which speeds up traversing large directory
+   * trees, and may change the order in which descriptors are returned. See
+   * {@link #setDecompressionThreads(int)} for the stages of reading
+   * descriptors.</p>
+   *
+   * @param readingThreads Number of threads for walking directories and
+   *     reading descriptor files, which must be at least 1.
+   * @throws IllegalArgumentException Thrown if the number of threads is
+   *     smaller than 1.
+   *
+   * @since 2.16.0
+   */
+  void setReadingThreads(int readingThreads);
+
+  /**
+   * Decompress and split up to this number of tarballs concurrently
+   * (default: 1).
+   *
+   * <p>Reading descriptors happens in three stages that run concurrently and
+   * that are connected by bounded queues: walking input directories and
+   * reading descriptor files, decompressing tarballs and splitting them into
+   * entries, and parsing descriptor files and tarball entries. Using more
+   * than one thread for decompressing or parsing may change the order in
+   * which descriptors are returned.</p>
+   *
+   * @param decompressionThreads Number of threads for decompressing
+   *     tarballs, which must be at least 1.
+   * @throws IllegalArgumentException Thrown if the number of threads is
+   *     smaller than 1.
+   *
+   * @since 2.16.0
+   */
+  void setDecompressionThreads(int decompressionThreads);
+
+  /**
+   * Parse up to this number of descriptor files or tarball entries
+   * concurrently (default: 1).
+   *
+   * <p>See {@link #setDecompressionThreads(int)} for the stages of reading
+   * descriptors.</p>
+   *
+   * @param parsingThreads Number of threads for parsing descriptors, which
+   *     must be at least 1.
+   * @throws IllegalArgumentException Thrown if the number of threads is
+   *     smaller than 1.
+   *
+   * @since 2.16.0
+   */
+  void setParsingThreads(int parsingThreads);
+
+  /**
+   * Only parse descriptors of the given types and skip all other descriptor
+   * files and tarball entries without parsing them (default: parse all
+   * descriptors).
+   *
+   * <p>The descriptor type of a file or tarball entry is detected from its
+   * {@code @type} annotation or first few lines, which means that unwanted
+   * files are typically skipped after reading just their first bytes.
+   * Descriptor files whose type cannot be detected are only parsed if
+   * {@link UnparseableDescriptor} is among the given types.</p>
+   *
+   * @param descriptorTypes Descriptor interfaces like
+   *     {@code RelayNetworkStatusConsensus.class} to include, or {@code null}
+   *     to include all descriptors.
+   *
+   * @since 2.16.0
+   */
+  void setDescriptorTypes(Set<Class<? extends Descriptor>> descriptorTypes);
+
+  /**
+   * Only include descriptors and network status entries of relays or bridges
+   * with the given fingerprints (default: include all).
+   *
+   * @param fingerprints Hex-encoded relay or bridge fingerprints, or
+   *     {@code null} to include all descriptors and status entries.
+   *
+   * @see DescriptorParser#setFingerprints(Set)
+   *
+   * @since 2.16.0
+   */
+  void setFingerprints(Set<String> fingerprints);
+
+  /**
+   * Skip descriptor files and tarball entries that are known to contain
+   * descriptors outside of the given time range without parsing them
+   * (default: no time range).
+   *
+   * <p>Network status consensuses, votes, exit lists, and bridge network
+   * statuses are skipped based on the valid-after, download, or publication
+   * time encoded in file names used in CollecTor archives, like
+   * {@code 2015-11-01-00-00-00-consensus}. If a file name does not contain
+   * such a timestamp, the reader looks at the {@code valid-after} or
+   * {@code published} line in the first bytes of network statuses. Any other
+   * descriptor files, including server descriptors and extra-info
+   * descriptors, are always read and parsed, so that applications still need
+   * to check timestamps of returned descriptors themselves.</p>
+   *
+   * @param fromMillis Start of the time range in milliseconds since the epoch,
+   *     inclusive.
+   * @param toMillis End of the time range in milliseconds since the epoch,
+   *     exclusive.
+   *
+   * @since 2.16.0
+   */
+  void setTimeRange(long fromMillis, long toMillis);
+
+  /**
+   * Return the number of descriptor files and tarball entries that have been
+   * skipped without parsing them, either because they contained descriptors
+   * of unwanted types or descriptors outside of the configured time range.
+   *
+   * @since 2.16.0
+   */
+  long getSkippedEntries();
+
+  /**
+   * Return the number of bytes in descriptor files and tarball entries that
+   * have been skipped without parsing them, as reported by the file system or
+   * tarball entry headers.
+   *
+   * @since 2.16.0
+   */
+  long getSkippedBytes();
+
+  /**
+   * Build a sidecar index for the given tarball or directory and write it to
+   * a file next to it, named like the tarball or directory with
+   * {@code .idx} appended.
+   *
+   * <p>The index maps keys of contained server descriptors, extra-info
+   * descriptors, and microdescriptors to the location of their raw bytes,
+   * so that {@link #readIndexedDescriptor(File, String)} can later read and
+   * parse single descriptors without reading the whole tarball or
+   * directory. Descriptors are indexed by their hex-encoded SHA-1 digest,
+   * by their base64-encoded SHA-256 digest without trailing {@code =}
+   * characters, and, except for microdescriptors, by their hex-encoded
+   * fingerprint and publication time separated by a space, like
+   * {@code "D3C5B8A3EE04E59B38D3C69AE3B7C5D60BD6BD05 2020-12-01 12:34:56"}.
+   * Index files are ignored when reading descriptors from a directory that
+   * contains them.</p>
+   *
+   * <p>Uncompressed tarballs, directories, and xz-compressed tarballs
+   * consisting of multiple blocks support reading single descriptors
+   * without decompressing preceding parts of the archive. Other compressed
+   * tarballs can be indexed, too, but reading descriptors from them
+   * requires decompressing everything up to the requested descriptor.
+   * Files in a directory that are compressed with a codec registered for
+   * their file extension are indexed by their decompressed contents, and
+   * reading descriptors from them likewise requires decompressing the file
+   * up to the requested descriptor. Tarballs and index files contained in a
+   * directory are skipped when indexing that directory and need to be
+   * indexed separately.</p>
+   *
+   * <p>This method is independent of {@link #readDescriptors} and can be
+   * called before or after reading descriptors.</p>
+   *
+   * @param archive Tarball or directory containing descriptors.
+   * @return Index file that has been written.
+   * @throws IOException Thrown if the tarball or directory cannot be read or
+   *     the index cannot be written.
+   *
+   * @since 2.16.0
+   */
+  File writeArchiveIndex(File archive) throws IOException;
+
+  /**
+   * Read and parse the descriptor with the given key from the given tarball
+   * or directory using the sidecar index previously written by
+   * {@link #writeArchiveIndex(File)}.
+   *
+   * @param archive Tarball or directory containing descriptors.
+   * @param key Digest or fingerprint and publication time of the descriptor
+   *     as described in {@link #writeArchiveIndex(File)}.
+   * @return Parsed descriptor, or {@code null} if the index does not contain
+   *     the given key.
+   * @throws IOException Thrown if the index is missing, corrupt, or older
+   *     than the archive or than the file in the directory that contains
+   *     the descriptor, or if the descriptor cannot be read.
+   *
+   * @since 2.16.0
+   */
+  Descriptor readIndexedDescriptor(File archive, String key)
+      throws IOException;
+
+  /**
+   * Add digests of server descriptors, extra-info descriptors, and
+   * microdescriptors to the persistent digest index in the given file while
+   * reading descriptors, creating the file if it does not exist yet
+   * (default: don't maintain a digest index).
+   *
+   * <p>The digest index maps digests to the location of the raw descriptor
+   * bytes in descriptor files and tarballs, which makes it possible to look
+   * up descriptors by digest using {@link #readDescriptorByDigest(String)},
+   * for example to find server descriptors referenced from network status
+   * entries or microdescriptors referenced from microdesc consensuses,
+   * without keeping descriptors in memory. The index is kept on disk and
+   * grows incrementally, so that it can be reused and extended by later
+   * readers. Descriptors read from gzip-compressed descriptor files are not
+   * added to the index, and located descriptor files and tarballs must not
+   * be moved or modified afterwards.</p>
+   *
+   * @param digestIndexFile File containing the digest index.
+   *
+   * @since 2.16.0
+   */
+  void setDigestIndexFile(File digestIndexFile);
+
+  /**
+   * Look up the descriptor with the given digest in the digest index
+   * configured with {@link #setDigestIndexFile(File)}, read it from its
+   * descriptor file or tarball, and return it.
+   *
+   * <p>This method can be called before, during, or after reading
+   * descriptors.</p>
+   *
+   * @param digest Hex-encoded SHA-1 digest of a server or extra-info
+   *     descriptor, like the one returned by
+   *     {@link NetworkStatusEntry#getDescriptor()}, or base64-encoded
+   *     SHA-256 digest of a microdescriptor, like the ones returned by
+   *     {@link NetworkStatusEntry#getMicrodescriptorDigestsSha256Base64()}.
+   * @return Parsed descriptor, or {@code null} if the digest is not contained
+   *     in the index.
+   * @throws IOException Thrown if the index or the descriptor cannot be
+   *     read.
+   * @throws IllegalArgumentException Thrown if the digest is neither a
+   *     hex-encoded nor a base64-encoded digest.
+   * @throws IllegalStateException Thrown if no digest index file has been
+   *     configured.
+   *
+   * @since 2.16.0
+   */
+  Descriptor readDescriptorByDigest(String digest) throws IOException;
+
   /**
    * Read descriptors from the given descriptor file(s) and return the parsed
    * descriptors.
@@ -112,6 +402,13 @@ public interface DescriptorReader {
    * more shortly after, it blocks the caller.  This method can only be
    * run once.</p>
    *
+   * <p>Tarballs are recognized by their file name, which ends in
+   * {@code .tar} for uncompressed tarballs and in {@code .tar.bz2},
+   * {@code .tar.gz}, or {@code .tar.xz} for compressed tarballs. Tarballs
+   * compressed with other codecs can be read after registering a codec for
+   * their file extension in
+   * {@link org.torproject.descriptor.internal.CompressionCodecs}.</p>
+   *
    * @param descriptorFiles One or more directories, tarballs, or files
    *     containing descriptors.
    *
@@ -72,6 +72,90 @@ public interface WebServerAccessLog extends LogDescriptor {
   Stream<WebServerAccessLog.Line> logLines()
       throws DescriptorParseException;
 
+  /**
+   * Returns the numbers of valid log lines by request date, method, response
+   * code, and requested resource, which are counted without creating a
+   * {@link Line} object for each log line.
+   *
+   * <p>Counts of multiple logs can be merged, which allows counting requests
+   * in multiple logs in parallel and merging the partial results
+   * afterwards.</p>
+   *
+   * @since 2.16.0
+   */
+  RequestCounts countRequests() throws DescriptorParseException;
+
+  /**
+   * Numbers of valid log lines by request date, method, response code, and
+   * requested resource.
+   *
+   * <p>Instances are not safe for use by multiple threads without external
+   * synchronization.</p>
+   *
+   * @since 2.16.0
+   */
+  interface RequestCounts {
+
+    /**
+     * Returns the number of lines with the given request date, method,
+     * response code, and requested resource, or 0 if there are none.
+     *
+     * @since 2.16.0
+     */
+    long getCount(LocalDate date, Method method, int response,
+        String request);
+
+    /**
+     * Returns the total number of counted lines.
+     *
+     * @since 2.16.0
+     */
+    long getTotal();
+
+    /**
+     * Returns the number of distinct combinations of request date, method,
+     * response code, and requested resource.
+     *
+     * @since 2.16.0
+     */
+    int size();
+
+    /**
+     * Passes each distinct combination of request date, method, response
+     * code, and requested resource together with its number of lines to the
+     * given consumer, in no particular order.
+     *
+     * @since 2.16.0
+     */
+    void forEach(CountConsumer consumer);
+
+    /**
+     * Adds the given counts to these counts and returns these counts.
+     *
+     * @since 2.16.0
+     */
+    RequestCounts merge(RequestCounts other);
+
+    /**
+     * Receives the counts of distinct combinations of request date, method,
+     * response code, and requested resource.
+     *
+     * @since 2.16.0
+     */
+    @FunctionalInterface
+    interface CountConsumer {
+
+      /**
+       * Accepts the number of lines with the given request date, method,
+       * response code, and requested resource.
+       *
+       * @since 2.16.0
+       */
+      void accept(LocalDate date, Method method, int response, String request,
+          long count);
+    }
+  }
+
   /**
    * Facilitates access to all log line fields that don't only contain
    * default values post sanitization.
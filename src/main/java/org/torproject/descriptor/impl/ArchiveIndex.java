@@ -0,0 +1,429 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import org.torproject.descriptor.Descriptor;
+import org.torproject.descriptor.ExtraInfoDescriptor;
+import org.torproject.descriptor.Microdescriptor;
+import org.torproject.descriptor.ServerDescriptor;
+import org.torproject.descriptor.internal.CompressionCodec;
+import org.torproject.descriptor.internal.CompressionCodecs;
+import org.torproject.descriptor.internal.FileType;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* Sidecar index of a descriptor tarball or directory that maps keys of
+ * contained server descriptors, extra-info descriptors, and microdescriptors
+ * to the tarball entry or file, offset, and length of their raw bytes. */
+final class ArchiveIndex {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ArchiveIndex.class);
+
+  /* File name suffix that is appended to the archive file name to obtain the
+   * file name of its sidecar index. */
+  static final String FILE_NAME_SUFFIX = ".idx";
+
+  /* Magic number at the start of index files, "DLIX". */
+  private static final int MAGIC = 0x444c4958;
+
+  private static final int VERSION = 2;
+
+  /* Tarball entry or file in a directory containing indexed descriptors. */
+  private static class Entry {
+
+    /* Tarball entry name or file path relative to the indexed directory. */
+    private final String name;
+
+    /* Position of the first byte of this entry in the uncompressed tarball,
+     * or 0 for files in a directory. */
+    private final long dataStart;
+
+    /* Type annotation line at the start of this entry, which is prepended
+     * to descriptors that don't contain it themselves, or the empty string
+     * if the entry doesn't start with a type annotation. */
+    private final String annotation;
+
+    /* Length and last-modified time of a file in a directory at the time of
+     * indexing, used to detect files that have been changed in place, or -1
+     * for tarball entries. */
+    private final long fileLength;
+
+    private final long fileLastModified;
+
+    private Entry(String name, long dataStart, String annotation,
+        long fileLength, long fileLastModified) {
+      this.name = name;
+      this.dataStart = dataStart;
+      this.annotation = annotation;
+      this.fileLength = fileLength;
+      this.fileLastModified = fileLastModified;
+    }
+  }
+
+  /* Location of a descriptor within an entry. */
+  private static class Location {
+
+    private final int entry;
+
+    private final long offset;
+
+    private final int length;
+
+    private Location(int entry, long offset, int length) {
+      this.entry = entry;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /* Length and last-modified time of the archive at the time of indexing,
+   * used to detect outdated indexes. */
+  private final long archiveLength;
+
+  private final long archiveLastModified;
+
+  private final List<Entry> entries = new ArrayList<>();
+
+  private final Map<String, Location> locations = new HashMap<>();
+
+  private ArchiveIndex(long archiveLength, long archiveLastModified) {
+    this.archiveLength = archiveLength;
+    this.archiveLastModified = archiveLastModified;
+  }
+
+  /* Return the sidecar index file for the given archive. */
+  static File indexFile(File archive) {
+    return new File(archive.getPath() + FILE_NAME_SUFFIX);
+  }
+
+  /* Build an index by reading and parsing all descriptors in the given
+   * tarball or directory, including files in the directory that are
+   * compressed with a registered codec, but excluding tarballs and index
+   * files in the directory. */
+  static ArchiveIndex build(File archive) throws IOException {
+    ArchiveIndex index = new ArchiveIndex(archive.length(),
+        archive.lastModified());
+    DescriptorParserImpl descriptorParser = new DescriptorParserImpl();
+    if (archive.isDirectory()) {
+      Path root = archive.toPath();
+      List<Path> files;
+      try (Stream<Path> paths = Files.walk(root)) {
+        files = paths.filter(Files::isRegularFile).sorted()
+            .collect(Collectors.toList());
+      }
+      for (Path file : files) {
+        String name = root.relativize(file).toString()
+            .replace(File.separatorChar, '/');
+        if (name.endsWith(FILE_NAME_SUFFIX)
+            || null != CompressionCodecs.forTarball(name)) {
+          logger.info("Not indexing tarball or index file {} in directory {}. "
+              + "Index tarballs separately.", name, archive);
+          continue;
+        }
+        long fileLength = file.toFile().length();
+        long fileLastModified = file.toFile().lastModified();
+        CompressionCodec codec = codecForFile(name);
+        byte[] bytes;
+        if (null == codec) {
+          bytes = Files.readAllBytes(file);
+        } else {
+          try (InputStream is = codec.inputStream(Files.newInputStream(
+              file))) {
+            bytes = IOUtils.toByteArray(is);
+          }
+        }
+        index.addEntry(name, 0L, bytes, fileLength, fileLastModified,
+            descriptorParser);
+      }
+      return index;
+    }
+    CompressionCodec codec = CompressionCodecs.forTarball(archive.getName());
+    if (null == codec) {
+      throw new IOException("Unable to index " + archive + ", which is "
+          + "neither a directory nor a tarball.");
+    }
+    try (TarArchiveInputStream tais = new TarArchiveInputStream(
+        codec.inputStream(new FileInputStream(archive)))) {
+      TarArchiveEntry tae;
+      while ((tae = tais.getNextTarEntry()) != null) {
+        if (tae.isDirectory()) {
+          continue;
+        }
+        long dataStart = tais.getBytesRead();
+        index.addEntry(tae.getName(), dataStart, IOUtils.toByteArray(tais),
+            -1L, -1L, descriptorParser);
+      }
+    }
+    return index;
+  }
+
+  private void addEntry(String name, long dataStart, byte[] bytes,
+      long fileLength, long fileLastModified,
+      DescriptorParserImpl descriptorParser) {
+    int entry = this.entries.size();
+    this.entries.add(new Entry(name, dataStart, findAnnotation(bytes),
+        fileLength, fileLastModified));
+    for (Descriptor descriptor : descriptorParser.parseDescriptors(bytes,
+        null, name.substring(name.lastIndexOf('/') + 1))) {
+      if (!(descriptor instanceof DescriptorImpl)) {
+        continue;
+      }
+      DescriptorImpl descriptorImpl = (DescriptorImpl) descriptor;
+      Location location = new Location(entry, descriptorImpl.offset,
+          descriptorImpl.length);
+      for (String key : keys(descriptor)) {
+        this.locations.putIfAbsent(normalizeKey(key), location);
+      }
+    }
+  }
+
+  /* Return the codec registered for the file extension of the given file in
+   * a directory, or null if the file is uncompressed. */
+  private static CompressionCodec codecForFile(String name) {
+    int extensionStart = name.lastIndexOf('.');
+    return extensionStart < 0 ? null
+        : CompressionCodecs.forFileExtension(name.substring(
+        extensionStart + 1));
+  }
+
+  /* Return the type annotation line at the start of the given bytes, or the
+   * empty string if the bytes don't start with a type annotation. */
+  static String findAnnotation(byte[] bytes) {
+    String firstLine = new String(bytes, 0, Math.min(bytes.length, 100),
+        StandardCharsets.US_ASCII);
+    if (firstLine.startsWith("@type ") && firstLine.contains("\n")) {
+      return firstLine.substring(0, firstLine.indexOf('\n') + 1);
+    }
+    return "";
+  }
+
+  /* Return the keys under which the given descriptor is indexed. */
+  private static List<String> keys(Descriptor descriptor) {
+    List<String> keys = new ArrayList<>();
+    if (descriptor instanceof ServerDescriptor) {
+      ServerDescriptor serverDescriptor = (ServerDescriptor) descriptor;
+      keys.add(serverDescriptor.getDigestSha1Hex());
+      keys.add(serverDescriptor.getDigestSha256Base64());
+      keys.add(fingerprintPublishedKey(serverDescriptor.getFingerprint(),
+          serverDescriptor.getPublishedMillis()));
+    } else if (descriptor instanceof ExtraInfoDescriptor) {
+      ExtraInfoDescriptor extraInfoDescriptor
+          = (ExtraInfoDescriptor) descriptor;
+      keys.add(extraInfoDescriptor.getDigestSha1Hex());
+      keys.add(extraInfoDescriptor.getDigestSha256Base64());
+      keys.add(fingerprintPublishedKey(extraInfoDescriptor.getFingerprint(),
+          extraInfoDescriptor.getPublishedMillis()));
+    } else if (descriptor instanceof Microdescriptor) {
+      keys.add(((Microdescriptor) descriptor).getDigestSha256Base64());
+    }
+    keys.removeIf(key -> null == key);
+    return keys;
+  }
+
+  private static String fingerprintPublishedKey(String fingerprint,
+      long publishedMillis) {
+    return null == fingerprint ? null : fingerprint + " "
+        + ParseHelper.getDateFormat("yyyy-MM-dd HH:mm:ss")
+        .format(new Date(publishedMillis));
+  }
+
+  /* Return the given key with a leading hex-encoded digest or fingerprint
+   * converted to upper case, leaving base64-encoded digests unchanged. */
+  static String normalizeKey(String key) {
+    if (key.length() >= 40 && (key.length() == 40 || key.charAt(40) == ' ')
+        && key.substring(0, 40).matches("[0-9a-fA-F]{40}")) {
+      return key.substring(0, 40).toUpperCase() + key.substring(40);
+    }
+    return key;
+  }
+
+  /* Return the number of indexed keys. */
+  int size() {
+    return this.locations.size();
+  }
+
+  /* Write this index to the given file. */
+  void write(File indexFile) throws IOException {
+    try (DataOutputStream dos = new DataOutputStream(
+        FileType.GZ.outputStream(new BufferedOutputStream(
+        new FileOutputStream(indexFile))))) {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeLong(this.archiveLength);
+      dos.writeLong(this.archiveLastModified);
+      dos.writeInt(this.entries.size());
+      for (Entry entry : this.entries) {
+        dos.writeUTF(entry.name);
+        dos.writeLong(entry.dataStart);
+        dos.writeUTF(entry.annotation);
+        dos.writeLong(entry.fileLength);
+        dos.writeLong(entry.fileLastModified);
+      }
+      dos.writeInt(this.locations.size());
+      for (Map.Entry<String, Location> e : this.locations.entrySet()) {
+        dos.writeUTF(e.getKey());
+        dos.writeInt(e.getValue().entry);
+        dos.writeLong(e.getValue().offset);
+        dos.writeInt(e.getValue().length);
+      }
+    }
+  }
+
+  /* Read the sidecar index of the given archive and make sure that it is
+   * not outdated. */
+  static ArchiveIndex read(File archive) throws IOException {
+    File indexFile = indexFile(archive);
+    try (DataInputStream dis = new DataInputStream(FileType.GZ.inputStream(
+        new BufferedInputStream(new FileInputStream(indexFile))))) {
+      if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+        throw new IOException("Unsupported index file format in "
+            + indexFile + ".");
+      }
+      ArchiveIndex index = new ArchiveIndex(dis.readLong(), dis.readLong());
+      if (index.archiveLength != archive.length()
+          || index.archiveLastModified != archive.lastModified()) {
+        throw new IOException("Index file " + indexFile + " is outdated.");
+      }
+      int entries = dis.readInt();
+      for (int i = 0; i < entries; i++) {
+        index.entries.add(new Entry(dis.readUTF(), dis.readLong(),
+            dis.readUTF(), dis.readLong(), dis.readLong()));
+      }
+      int locations = dis.readInt();
+      for (int i = 0; i < locations; i++) {
+        String key = dis.readUTF();
+        Location location = new Location(dis.readInt(), dis.readLong(),
+            dis.readInt());
+        if (location.entry < 0 || location.entry >= entries) {
+          throw new IOException("Corrupt index file " + indexFile + ".");
+        }
+        index.locations.put(key, location);
+      }
+      return index;
+    }
+  }
+
+  /* Read and parse the descriptor with the given key from the given archive,
+   * or return null if this index doesn't contain the key. */
+  Descriptor readDescriptor(File archive, String key) throws IOException {
+    Location location = this.locations.get(normalizeKey(key));
+    if (null == location) {
+      return null;
+    }
+    Entry entry = this.entries.get(location.entry);
+    this.checkUnchanged(archive, entry);
+    return readDescriptor(archive, entry.name,
+        entry.dataStart + location.offset, location.length,
+        location.offset > 0L ? entry.annotation : "");
+  }
+
+  /* Make sure that the given tarball, or the file of the given entry in the
+   * given directory, has not changed since indexing, because a directory's
+   * last-modified time does not change when a file in it is rewritten in
+   * place. */
+  private void checkUnchanged(File archive, Entry entry) throws IOException {
+    File file = archive.isDirectory() ? new File(archive, entry.name)
+        : archive;
+    long length = archive.isDirectory() ? entry.fileLength
+        : this.archiveLength;
+    long lastModified = archive.isDirectory() ? entry.fileLastModified
+        : this.archiveLastModified;
+    if (file.length() != length || file.lastModified() != lastModified) {
+      throw new IOException("File " + file + " has changed since indexing "
+          + archive + ".");
+    }
+  }
+
+  /* Read and parse a single descriptor at the given position and with the
+   * given length from a file in the given directory, from the given
+   * tarball, or from the given descriptor file.
+   *
+   * Descriptors after the first one in a file or tarball entry don't contain
+   * the type annotation, so that callers need to provide it for detecting
+   * the descriptor type. */
+  static Descriptor readDescriptor(File archive, String entryName,
+      long position, int length, String annotation) throws IOException {
+    byte[] annotationBytes = annotation.getBytes(StandardCharsets.US_ASCII);
+    byte[] bytes = new byte[annotationBytes.length + length];
+    System.arraycopy(annotationBytes, 0, bytes, 0, annotationBytes.length);
+    readBytes(archive, entryName, position, bytes, annotationBytes.length,
+        length);
+    String fileName = entryName.isEmpty() ? archive.getName()
+        : entryName.substring(entryName.lastIndexOf('/') + 1);
+    Iterator<Descriptor> descriptors = new DescriptorParserImpl()
+        .parseDescriptors(bytes, archive, fileName).iterator();
+    return descriptors.hasNext() ? descriptors.next() : null;
+  }
+
+  private static void readBytes(File archive, String entryName,
+      long position, byte[] bytes, int offset, int length)
+      throws IOException {
+    File file = archive;
+    CompressionCodec codec;
+    if (archive.isDirectory()) {
+      file = new File(archive, entryName);
+      codec = codecForFile(entryName);
+    } else {
+      codec = CompressionCodecs.forTarball(archive.getName());
+    }
+    if (null == codec || FileType.PLAIN == codec) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        raf.seek(position);
+        raf.readFully(bytes, offset, length);
+      }
+    } else if (FileType.XZ == codec) {
+      /* Seek to the block containing the descriptor, so that only that block
+       * needs to be decompressed. */
+      try (SeekableXZInputStream sxis = new SeekableXZInputStream(
+          new SeekableFileInputStream(file))) {
+        sxis.seek(position);
+        readFully(sxis, bytes, offset, length);
+      }
+    } else {
+      try (InputStream is = codec.inputStream(new FileInputStream(file))) {
+        if (IOUtils.skip(is, position) < position) {
+          throw new EOFException("Unexpected end of " + file + ".");
+        }
+        readFully(is, bytes, offset, length);
+      }
+    }
+  }
+
+  private static void readFully(InputStream is, byte[] bytes, int offset,
+      int length) throws IOException {
+    if (IOUtils.readFully(is, bytes, offset, length) < length) {
+      throw new EOFException("Unexpected end of indexed archive.");
+    }
+  }
+}
@@ -26,7 +26,14 @@ public class BridgeNetworkStatusImpl extends NetworkStatusImpl
   protected BridgeNetworkStatusImpl(byte[] rawDescriptorBytes,
       int[] offsetAndLength, File descriptorFile, String fileName)
       throws DescriptorParseException {
-    super(rawDescriptorBytes, offsetAndLength, descriptorFile, false);
+    this(rawDescriptorBytes, offsetAndLength, descriptorFile, fileName, null);
+  }
+
+  protected BridgeNetworkStatusImpl(byte[] rawDescriptorBytes,
+      int[] offsetAndLength, File descriptorFile, String fileName,
+      Set<String> identities) throws DescriptorParseException {
+    super(rawDescriptorBytes, offsetAndLength, descriptorFile, false,
+        identities);
     this.splitAndParseParts(false);
     Set<Key> atMostOnceKeys = EnumSet.of(Key.PUBLISHED, Key.FLAG_THRESHOLDS,
         Key.FINGERPRINT);
@@ -10,8 +10,13 @@ import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorParseException;
 import org.torproject.descriptor.DescriptorParser;
 import org.torproject.descriptor.log.LogDescriptorImpl;
+import org.torproject.descriptor.log.WebServerAccessLogImpl;
 import org.torproject.descriptor.onionperf.OnionPerfAnalysisConverter;
 
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,13 +25,56 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class DescriptorParserImpl implements DescriptorParser {
 
   private static final Logger logger
       = LoggerFactory.getLogger(DescriptorParserImpl.class);
 
+  /**
+   * Upper-case, hex-encoded fingerprints of relays or bridges to include
+   * descriptors and status entries for, or {@code null} to include all.
+   */
+  private Set<String> fingerprints;
+
+  /**
+   * Base64-encoded identities without trailing padding, as found in status
+   * entry {@code r} lines, that correspond to {@link #fingerprints}, or
+   * {@code null} to include all.
+   */
+  private Set<String> identities;
+
+  @Override
+  public void setFingerprints(Set<String> fingerprints) {
+    if (null == fingerprints) {
+      this.fingerprints = null;
+      this.identities = null;
+      return;
+    }
+    Set<String> upperCaseFingerprints = new HashSet<>();
+    Set<String> base64Identities = new HashSet<>();
+    for (String fingerprint : fingerprints) {
+      if (null == fingerprint || !fingerprint.matches("^[0-9a-fA-F]{40}$")) {
+        throw new IllegalArgumentException("Illegal fingerprint '"
+            + fingerprint + "'.");
+      }
+      String upperCaseFingerprint = fingerprint.toUpperCase();
+      upperCaseFingerprints.add(upperCaseFingerprint);
+      try {
+        base64Identities.add(Base64.encodeBase64String(Hex.decodeHex(
+            upperCaseFingerprint.toCharArray())).replaceAll("=", ""));
+      } catch (DecoderException e) {
+        throw new IllegalArgumentException("Illegal fingerprint '"
+            + fingerprint + "'.", e);
+      }
+    }
+    this.fingerprints = upperCaseFingerprints;
+    this.identities = base64Identities;
+  }
+
   @Override
   public Iterable<Descriptor> parseDescriptors(byte[] rawDescriptorBytes,
       File sourceFile, String fileName) {
@@ -42,14 +90,123 @@ public class DescriptorParserImpl implements DescriptorParser {
     }
   }
 
+  /**
+   * Number of bytes at the start of a descriptor file that are used for
+   * detecting the descriptor type.
+   */
+  static final int DETECTION_PREFIX_LENGTH = 100;
+
   private List<Descriptor> detectTypeAndParseDescriptors(
       byte[] rawDescriptorBytes, File sourceFile, String fileName)
       throws DescriptorParseException {
-    byte[] first100Chars = new byte[Math.min(100,
-        rawDescriptorBytes.length)];
-    System.arraycopy(rawDescriptorBytes, 0, first100Chars, 0,
-        first100Chars.length);
-    String firstLines = new String(first100Chars);
+    Class<? extends Descriptor> descriptorClass = detectDescriptorClass(
+        rawDescriptorBytes, rawDescriptorBytes.length, fileName);
+    if (RelayNetworkStatusConsensusImpl.class == descriptorClass
+        || RelayNetworkStatusVoteImpl.class == descriptorClass
+        || RelayNetworkStatusImpl.class == descriptorClass) {
+      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
+          Key.NETWORK_STATUS_VERSION,
+          descriptorClass.asSubclass(DescriptorImpl.class));
+    } else if (BridgeNetworkStatusImpl.class == descriptorClass) {
+      List<Descriptor> parsedDescriptors = new ArrayList<>();
+      parsedDescriptors.add(new BridgeNetworkStatusImpl(
+          rawDescriptorBytes, new int[] { 0, rawDescriptorBytes.length },
+          sourceFile, fileName, this.identities));
+      return parsedDescriptors;
+    } else if (BridgeServerDescriptorImpl.class == descriptorClass
+        || RelayServerDescriptorImpl.class == descriptorClass) {
+      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
+          Key.ROUTER, descriptorClass.asSubclass(DescriptorImpl.class));
+    } else if (BridgeExtraInfoDescriptorImpl.class == descriptorClass
+        || RelayExtraInfoDescriptorImpl.class == descriptorClass) {
+      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
+          Key.EXTRA_INFO, descriptorClass.asSubclass(DescriptorImpl.class));
+    } else if (MicrodescriptorImpl.class == descriptorClass) {
+      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
+          Key.ONION_KEY, MicrodescriptorImpl.class);
+    } else if (BridgePoolAssignmentImpl.class == descriptorClass) {
+      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
+          Key.BRIDGE_POOL_ASSIGNMENT, BridgePoolAssignmentImpl.class);
+    } else if (DirectoryKeyCertificateImpl.class == descriptorClass) {
+      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
+          Key.DIR_KEY_CERTIFICATE_VERSION, DirectoryKeyCertificateImpl.class);
+    } else if (ExitListImpl.class == descriptorClass) {
+      List<Descriptor> parsedDescriptors = new ArrayList<>();
+      parsedDescriptors.add(new ExitListImpl(rawDescriptorBytes, sourceFile,
+          fileName));
+      return parsedDescriptors;
+    } else if (RelayDirectoryImpl.class == descriptorClass) {
+      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
+          Key.SIGNED_DIRECTORY, RelayDirectoryImpl.class);
+    } else if (TorperfResultImpl.class == descriptorClass) {
+      if (null != fileName
+          && fileName.endsWith(".onionperf.analysis.json.xz")
+          && !startsWithTorperfAnnotation(rawDescriptorBytes)) {
+        return new OnionPerfAnalysisConverter(rawDescriptorBytes, sourceFile)
+            .asTorperfResults();
+      }
+      return TorperfResultImpl.parseTorperfResults(rawDescriptorBytes,
+          sourceFile);
+    } else if (SnowflakeStatsImpl.class == descriptorClass) {
+      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
+          Key.SNOWFLAKE_STATS_END, SnowflakeStatsImpl.class);
+    } else if (BridgedbMetricsImpl.class == descriptorClass) {
+      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
+          Key.BRIDGEDB_METRICS_END, BridgedbMetricsImpl.class);
+    } else if (BandwidthFileImpl.class == descriptorClass) {
+      List<Descriptor> parsedDescriptors = new ArrayList<>();
+      parsedDescriptors.add(new BandwidthFileImpl(rawDescriptorBytes,
+          sourceFile));
+      return parsedDescriptors;
+    } else if (WebServerAccessLogImpl.class == descriptorClass
+        || LogDescriptorImpl.class == descriptorClass) {
+      return LogDescriptorImpl.parse(rawDescriptorBytes, sourceFile,
+          fileName);
+    } else {
+      byte[] first100Chars = new byte[Math.min(DETECTION_PREFIX_LENGTH,
+          rawDescriptorBytes.length)];
+      System.arraycopy(rawDescriptorBytes, 0, first100Chars, 0,
+          first100Chars.length);
+      throw new DescriptorParseException("Could not detect descriptor "
+          + "type in descriptor starting with '" + new String(first100Chars)
+          + "'.");
+    }
+  }
+
+  private static boolean startsWithTorperfAnnotation(
+      byte[] rawDescriptorBytes) {
+    byte[] annotation = "@type torperf 1.".getBytes(StandardCharsets.US_ASCII);
+    if (rawDescriptorBytes.length < annotation.length) {
+      return false;
+    }
+    for (int i = 0; i < annotation.length; i++) {
+      if (rawDescriptorBytes[i] != annotation[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Detects the type of descriptors contained in the given bytes by looking
+   * at the first {@link #DETECTION_PREFIX_LENGTH} bytes only and, if that is
+   * not sufficient, at the file name.
+   *
+   * <p>This allows callers to decide whether they are interested in a
+   * descriptor file before reading it completely and parsing it.</p>
+   *
+   * @param firstBytes The first bytes of the descriptor file, possibly
+   *     followed by more bytes that are ignored.
+   * @param length The number of valid bytes in {@code firstBytes}.
+   * @param fileName Optional file name used as a parser hint.
+   * @return Descriptor implementation class that would be used for parsing
+   *     contained descriptors, or {@code null} if the type cannot be
+   *     detected.
+   */
+  public static Class<? extends Descriptor> detectDescriptorClass(
+      byte[] firstBytes, int length, String fileName) {
+    String firstLines = new String(firstBytes, 0,
+        Math.min(DETECTION_PREFIX_LENGTH, length));
     if (firstLines.startsWith("@type network-status-consensus-3 1.")
         || firstLines.startsWith(
         "@type network-status-microdesc-consensus-3 1.")
@@ -59,8 +216,7 @@ public class DescriptorParserImpl implements DescriptorParser {
         NL + Key.NETWORK_STATUS_VERSION.keyword + SP + "3"))
         && firstLines.contains(
         NL + Key.VOTE_STATUS.keyword + SP + "consensus" + NL))) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.NETWORK_STATUS_VERSION, RelayNetworkStatusConsensusImpl.class);
+      return RelayNetworkStatusConsensusImpl.class;
     } else if (firstLines.startsWith("@type network-status-vote-3 1.")
         || ((firstLines.startsWith(
         Key.NETWORK_STATUS_VERSION.keyword + SP + "3" + NL)
@@ -68,100 +224,78 @@ public class DescriptorParserImpl implements DescriptorParser {
         NL + Key.NETWORK_STATUS_VERSION.keyword + SP + "3" + NL))
         && firstLines.contains(
         NL + Key.VOTE_STATUS.keyword + SP + "vote" + NL))) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.NETWORK_STATUS_VERSION, RelayNetworkStatusVoteImpl.class);
+      return RelayNetworkStatusVoteImpl.class;
     } else if (firstLines.startsWith("@type bridge-network-status 1.")
         || firstLines.startsWith(Key.R.keyword + SP)) {
-      List<Descriptor> parsedDescriptors = new ArrayList<>();
-      parsedDescriptors.add(new BridgeNetworkStatusImpl(
-          rawDescriptorBytes, new int[] { 0, rawDescriptorBytes.length },
-          sourceFile, fileName));
-      return parsedDescriptors;
+      return BridgeNetworkStatusImpl.class;
     } else if (firstLines.startsWith("@type bridge-server-descriptor 1.")) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.ROUTER, BridgeServerDescriptorImpl.class);
+      return BridgeServerDescriptorImpl.class;
     } else if (firstLines.startsWith("@type server-descriptor 1.")
         || firstLines.startsWith(Key.ROUTER.keyword + SP)
         || firstLines.contains(NL + Key.ROUTER.keyword + SP)) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.ROUTER, RelayServerDescriptorImpl.class);
+      return RelayServerDescriptorImpl.class;
     } else if (firstLines.startsWith("@type bridge-extra-info 1.")) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.EXTRA_INFO, BridgeExtraInfoDescriptorImpl.class);
+      return BridgeExtraInfoDescriptorImpl.class;
     } else if (firstLines.startsWith("@type extra-info 1.")
         || firstLines.startsWith(Key.EXTRA_INFO.keyword + SP)
         || firstLines.contains(NL + Key.EXTRA_INFO.keyword + SP)) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.EXTRA_INFO, RelayExtraInfoDescriptorImpl.class);
+      return RelayExtraInfoDescriptorImpl.class;
     } else if (firstLines.startsWith("@type microdescriptor 1.")
         || firstLines.startsWith(Key.ONION_KEY.keyword + NL)
         || firstLines.contains(NL + Key.ONION_KEY.keyword + NL)) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.ONION_KEY, MicrodescriptorImpl.class);
+      return MicrodescriptorImpl.class;
     } else if (firstLines.startsWith("@type bridge-pool-assignment 1.")
         || firstLines.startsWith(Key.BRIDGE_POOL_ASSIGNMENT.keyword + SP)
         || firstLines.contains(NL + Key.BRIDGE_POOL_ASSIGNMENT.keyword + SP)) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.BRIDGE_POOL_ASSIGNMENT, BridgePoolAssignmentImpl.class);
+      return BridgePoolAssignmentImpl.class;
     } else if (firstLines.startsWith("@type dir-key-certificate-3 1.")
         || firstLines.startsWith(Key.DIR_KEY_CERTIFICATE_VERSION.keyword + SP)
         || firstLines.contains(
         NL + Key.DIR_KEY_CERTIFICATE_VERSION.keyword + SP)) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.DIR_KEY_CERTIFICATE_VERSION, DirectoryKeyCertificateImpl.class);
+      return DirectoryKeyCertificateImpl.class;
     } else if (firstLines.startsWith("@type tordnsel 1.")
         || firstLines.startsWith("ExitNode" + SP)
         || firstLines.contains(NL + "ExitNode" + SP)) {
-      List<Descriptor> parsedDescriptors = new ArrayList<>();
-      parsedDescriptors.add(new ExitListImpl(rawDescriptorBytes, sourceFile,
-          fileName));
-      return parsedDescriptors;
+      return ExitListImpl.class;
     } else if (firstLines.startsWith("@type network-status-2 1.")
         || firstLines.startsWith(
         Key.NETWORK_STATUS_VERSION.keyword + SP + "2" + NL)
         || firstLines.contains(
         NL + Key.NETWORK_STATUS_VERSION.keyword + SP + "2" + NL)) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.NETWORK_STATUS_VERSION, RelayNetworkStatusImpl.class);
+      return RelayNetworkStatusImpl.class;
     } else if (firstLines.startsWith("@type directory 1.")
         || firstLines.startsWith(Key.SIGNED_DIRECTORY.keyword + NL)
         || firstLines.contains(NL + Key.SIGNED_DIRECTORY.keyword + NL)) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.SIGNED_DIRECTORY, RelayDirectoryImpl.class);
+      return RelayDirectoryImpl.class;
     } else if (firstLines.startsWith("@type torperf 1.")) {
-      return TorperfResultImpl.parseTorperfResults(rawDescriptorBytes,
-          sourceFile);
+      return TorperfResultImpl.class;
     } else if (firstLines.startsWith("@type snowflake-stats 1.")
         || firstLines.startsWith(Key.SNOWFLAKE_STATS_END.keyword + SP)
         || firstLines.contains(NL + Key.SNOWFLAKE_STATS_END.keyword + SP)) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.SNOWFLAKE_STATS_END, SnowflakeStatsImpl.class);
+      return SnowflakeStatsImpl.class;
     } else if (firstLines.startsWith("@type bridgedb-metrics 1.")
         || firstLines.startsWith(Key.BRIDGEDB_METRICS_END.keyword + SP)
         || firstLines.contains(NL + Key.BRIDGEDB_METRICS_END.keyword + SP)) {
-      return this.parseOneOrMoreDescriptors(rawDescriptorBytes, sourceFile,
-          Key.BRIDGEDB_METRICS_END, BridgedbMetricsImpl.class);
+      return BridgedbMetricsImpl.class;
     } else if (firstLines.startsWith("@type bandwidth-file 1.")
         || firstLines.matches("(?s)[0-9]{10}\\n.*")) {
       /* Identifying bandwidth files by a 10-digit timestamp in the first line
        * breaks with files generated before 2002 or after 2286 and when the next
        * descriptor identifier starts with just a timestamp in the first line
        * rather than a document type identifier. */
-      List<Descriptor> parsedDescriptors = new ArrayList<>();
-      parsedDescriptors.add(new BandwidthFileImpl(rawDescriptorBytes,
-          sourceFile));
-      return parsedDescriptors;
+      return BandwidthFileImpl.class;
+    } else if (null != fileName
+        && fileName.contains(WebServerAccessLogImpl.MARKER)) {
+      return WebServerAccessLogImpl.class;
     } else if (null != fileName
         && fileName.contains(LogDescriptorImpl.MARKER)) {
-      return LogDescriptorImpl.parse(rawDescriptorBytes, sourceFile,
-          fileName);
+      return LogDescriptorImpl.class;
     } else if (null != fileName
         && fileName.endsWith(".onionperf.analysis.json.xz")) {
-      return new OnionPerfAnalysisConverter(rawDescriptorBytes, sourceFile)
-          .asTorperfResults();
+      /* OnionPerf analysis files are converted to Torperf results. */
+      return TorperfResultImpl.class;
     } else {
-      throw new DescriptorParseException("Could not detect descriptor "
-          + "type in descriptor starting with '" + firstLines + "'.");
+      return null;
     }
   }
 
@@ -171,8 +305,14 @@ public class DescriptorParserImpl implements DescriptorParser {
     List<Descriptor> parsedDescriptors = new ArrayList<>();
     Constructor<? extends DescriptorImpl> constructor;
     try {
-      constructor = descriptorClass.getDeclaredConstructor(byte[].class,
-          int[].class, File.class);
+      if (null != this.identities
+          && NetworkStatusImpl.class.isAssignableFrom(descriptorClass)) {
+        constructor = descriptorClass.getDeclaredConstructor(byte[].class,
+            int[].class, File.class, Set.class);
+      } else {
+        constructor = descriptorClass.getDeclaredConstructor(byte[].class,
+            int[].class, File.class);
+      }
     } catch (NoSuchMethodException e) {
       throw new RuntimeException(e);
     }
@@ -225,6 +365,11 @@ public class DescriptorParserImpl implements DescriptorParser {
       endDescriptor += 1;
       int[] offsetAndLength = new int[] { startAnnotations,
           endDescriptor - startAnnotations };
+      if (null != this.fingerprints && !this.isWantedFingerprint(
+          key, ascii, startDescriptor, endDescriptor)) {
+        startAnnotations = endDescriptor;
+        continue;
+      }
       try {
         parsedDescriptors.add(this.parseOneDescriptor(rawDescriptorBytes,
             offsetAndLength, sourceFile, constructor));
@@ -237,11 +382,36 @@ public class DescriptorParserImpl implements DescriptorParser {
     return parsedDescriptors;
   }
 
+  /**
+   * Checks the fingerprint of a server or extra-info descriptor against the
+   * configured fingerprints without parsing the descriptor, and returns
+   * {@code true} for any other descriptor types or if the fingerprint cannot
+   * be found.
+   */
+  private boolean isWantedFingerprint(Key key, String ascii,
+      int startDescriptor, int endDescriptor) {
+    String fingerprint;
+    if (Key.ROUTER == key) {
+      fingerprint = ServerDescriptorImpl.findFingerprint(ascii,
+          startDescriptor, endDescriptor);
+    } else if (Key.EXTRA_INFO == key) {
+      fingerprint = ExtraInfoDescriptorImpl.findFingerprint(ascii,
+          startDescriptor, endDescriptor);
+    } else {
+      return true;
+    }
+    return null == fingerprint || this.fingerprints.contains(fingerprint);
+  }
+
   Descriptor parseOneDescriptor(byte[] rawDescriptorBytes,
       int[] offsetAndLength, File sourceFile,
       Constructor<? extends DescriptorImpl> constructor)
       throws DescriptorParseException {
     try {
+      if (constructor.getParameterCount() > 3) {
+        return constructor.newInstance(rawDescriptorBytes, offsetAndLength,
+            sourceFile, this.identities);
+      }
       return constructor.newInstance(rawDescriptorBytes, offsetAndLength,
           sourceFile);
     } catch (InvocationTargetException e) {
@@ -3,36 +3,61 @@
 
 package org.torproject.descriptor.impl;
 
+import static org.torproject.descriptor.impl.DescriptorImpl.NL;
+import static org.torproject.descriptor.impl.DescriptorImpl.SP;
+
 import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorParser;
 import org.torproject.descriptor.DescriptorReader;
+import org.torproject.descriptor.ExtraInfoDescriptor;
+import org.torproject.descriptor.Microdescriptor;
+import org.torproject.descriptor.ServerDescriptor;
+import org.torproject.descriptor.internal.CompressionCodec;
+import org.torproject.descriptor.internal.CompressionCodecs;
+import org.torproject.descriptor.internal.FileType;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
 import org.apache.commons.compress.utils.IOUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
-import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class DescriptorReaderImpl implements DescriptorReader {
 
@@ -52,6 +77,59 @@ public class DescriptorReaderImpl implements DescriptorReader {
     this.manualSaveHistoryFile = historyFile;
   }
 
+  private File historyStoreFile;
+
+  @Override
+  public void setHistoryStoreFile(File historyStoreFile) {
+    if (this.hasStartedReading) {
+      throw new IllegalStateException("Reconfiguration is not permitted "
+          + "after starting to read.");
+    }
+    this.historyStoreFile = historyStoreFile;
+  }
+
+  private File checkpointFile;
+
+  @Override
+  public void setCheckpointFile(File checkpointFile) {
+    if (this.hasStartedReading) {
+      throw new IllegalStateException("Reconfiguration is not permitted "
+          + "after starting to read.");
+    }
+    this.checkpointFile = checkpointFile;
+  }
+
+  /* Descriptor queue that records returned descriptors in tarball
+   * checkpoints, and that writes checkpoints once all descriptors have been
+   * returned. */
+  private static class CheckpointingIterator
+      extends BlockingIteratorImpl<Descriptor> {
+
+    private final TarballCheckpoints checkpoints;
+
+    private CheckpointingIterator(int maxQueueSize,
+        TarballCheckpoints checkpoints) {
+      super(maxQueueSize);
+      this.checkpoints = checkpoints;
+    }
+
+    @Override
+    public boolean hasNext() {
+      boolean hasNext = super.hasNext();
+      if (!hasNext) {
+        this.checkpoints.write();
+      }
+      return hasNext;
+    }
+
+    @Override
+    public Descriptor next() {
+      Descriptor descriptor = super.next();
+      this.checkpoints.consumed(descriptor);
+      return descriptor;
+    }
+  }
+
   private SortedMap<String, Long> excludedFiles;
 
   @Override
@@ -92,6 +170,143 @@ public class DescriptorReaderImpl implements DescriptorReader {
     this.maxDescriptorsInQueue = maxDescriptorsInQueue;
   }
 
+  private int readingThreads = 1;
+
+  @Override
+  public void setReadingThreads(int readingThreads) {
+    if (this.hasStartedReading) {
+      throw new IllegalStateException("Reconfiguration is not permitted "
+          + "after starting to read.");
+    }
+    if (readingThreads < 1) {
+      throw new IllegalArgumentException("Number of reading threads must be "
+          + "at least 1.");
+    }
+    this.readingThreads = readingThreads;
+  }
+
+  private int decompressionThreads = 1;
+
+  @Override
+  public void setDecompressionThreads(int decompressionThreads) {
+    if (this.hasStartedReading) {
+      throw new IllegalStateException("Reconfiguration is not permitted "
+          + "after starting to read.");
+    }
+    if (decompressionThreads < 1) {
+      throw new IllegalArgumentException("Number of decompression threads "
+          + "must be at least 1.");
+    }
+    this.decompressionThreads = decompressionThreads;
+  }
+
+  private int parsingThreads = 1;
+
+  @Override
+  public void setParsingThreads(int parsingThreads) {
+    if (this.hasStartedReading) {
+      throw new IllegalStateException("Reconfiguration is not permitted "
+          + "after starting to read.");
+    }
+    if (parsingThreads < 1) {
+      throw new IllegalArgumentException("Number of parsing threads must be "
+          + "at least 1.");
+    }
+    this.parsingThreads = parsingThreads;
+  }
+
+  private Set<Class<? extends Descriptor>> descriptorTypes;
+
+  @Override
+  public void setDescriptorTypes(
+      Set<Class<? extends Descriptor>> descriptorTypes) {
+    if (this.hasStartedReading) {
+      throw new IllegalStateException("Reconfiguration is not permitted "
+          + "after starting to read.");
+    }
+    this.descriptorTypes = descriptorTypes == null ? null
+        : new HashSet<>(descriptorTypes);
+  }
+
+  private Set<String> fingerprints;
+
+  @Override
+  public void setFingerprints(Set<String> fingerprints) {
+    if (this.hasStartedReading) {
+      throw new IllegalStateException("Reconfiguration is not permitted "
+          + "after starting to read.");
+    }
+    this.fingerprints = fingerprints == null ? null
+        : new HashSet<>(fingerprints);
+  }
+
+  private File digestIndexFile;
+
+  /* Digest index opened for reading descriptors or looking up digests, or
+   * null if it has not been opened yet. */
+  private DigestIndex digestIndex;
+
+  @Override
+  public void setDigestIndexFile(File digestIndexFile) {
+    if (this.hasStartedReading) {
+      throw new IllegalStateException("Reconfiguration is not permitted "
+          + "after starting to read.");
+    }
+    this.digestIndexFile = digestIndexFile;
+  }
+
+  private synchronized DigestIndex openDigestIndex() throws IOException {
+    if (null == this.digestIndex) {
+      this.digestIndex = DigestIndex.open(this.digestIndexFile);
+    }
+    return this.digestIndex;
+  }
+
+  @Override
+  public Descriptor readDescriptorByDigest(String digest) throws IOException {
+    if (null == this.digestIndexFile) {
+      throw new IllegalStateException("Operation is not permitted without "
+          + "setting a digest index file.");
+    }
+    return this.openDigestIndex().readDescriptor(digest);
+  }
+
+  private long fromMillis = Long.MIN_VALUE;
+
+  private long toMillis = Long.MAX_VALUE;
+
+  @Override
+  public void setTimeRange(long fromMillis, long toMillis) {
+    if (this.hasStartedReading) {
+      throw new IllegalStateException("Reconfiguration is not permitted "
+          + "after starting to read.");
+    }
+    if (fromMillis > toMillis) {
+      throw new IllegalArgumentException("Start of time range must not be "
+          + "after end of time range.");
+    }
+    this.fromMillis = fromMillis;
+    this.toMillis = toMillis;
+  }
+
+  @Override
+  public long getSkippedEntries() {
+    if (this.reader == null || !this.reader.hasFinishedReading) {
+      throw new IllegalStateException("Operation is not permitted before "
+          + "finishing to read.");
+    }
+    return this.reader.skippedEntries;
+  }
+
+  @Override
+  public long getSkippedBytes() {
+    if (this.reader == null || !this.reader.hasFinishedReading) {
+      throw new IllegalStateException("Operation is not permitted before "
+          + "finishing to read.");
+    }
+    return this.reader.skippedBytes;
+  }
+
   private DescriptorReaderRunnable reader;
 
   @Override
@@ -101,16 +316,80 @@ public class DescriptorReaderImpl implements DescriptorReader {
           + "permitted once.");
     }
     this.hasStartedReading = true;
-    BlockingIteratorImpl<Descriptor> descriptorQueue =
-        new BlockingIteratorImpl<>(this.maxDescriptorsInQueue);
+    TarballCheckpoints checkpoints = null;
+    if (null != this.checkpointFile) {
+      try {
+        checkpoints = TarballCheckpoints.open(this.checkpointFile);
+      } catch (IOException e) {
+        logger.warn("Unable to read checkpoint file {}. Reading tarballs "
+            + "from the start without writing checkpoints.",
+            this.checkpointFile, e);
+      }
+    }
+    BlockingIteratorImpl<Descriptor> descriptorQueue = null == checkpoints
+        ? new BlockingIteratorImpl<>(this.maxDescriptorsInQueue)
+        : new CheckpointingIterator(this.maxDescriptorsInQueue, checkpoints);
+    DigestIndex readerDigestIndex = null;
+    if (null != this.digestIndexFile) {
+      try {
+        readerDigestIndex = this.openDigestIndex();
+      } catch (IOException e) {
+        logger.warn("Unable to open digest index {}. Reading descriptors "
+            + "without adding them to the index.", this.digestIndexFile, e);
+      }
+    }
+    HistoryStore historyStore = null;
+    if (null != this.historyStoreFile) {
+      try {
+        historyStore = HistoryStore.open(this.historyStoreFile);
+      } catch (IOException e) {
+        logger.warn("Unable to open history store {}. Reading descriptors "
+            + "without excluding files or updating the history store.",
+            this.historyStoreFile, e);
+      }
+    }
     this.reader = new DescriptorReaderRunnable(descriptorFiles, descriptorQueue,
-        this.manualSaveHistoryFile, this.excludedFiles);
+        this.manualSaveHistoryFile, this.excludedFiles, this.descriptorTypes,
+        this.fingerprints, this.fromMillis, this.toMillis,
+        readerDigestIndex, historyStore, checkpoints, this.readingThreads,
+        this.decompressionThreads, this.parsingThreads);
     Thread readerThread = new Thread(this.reader);
     readerThread.setDaemon(true);
     readerThread.start();
     return descriptorQueue;
   }
 
+  /* Sidecar indexes that have been written or read before, by absolute
+   * archive path. */
+  private final Map<String, ArchiveIndex> archiveIndexes = new HashMap<>();
+
+  @Override
+  public File writeArchiveIndex(File archive) throws IOException {
+    ArchiveIndex archiveIndex = ArchiveIndex.build(archive);
+    File indexFile = ArchiveIndex.indexFile(archive);
+    archiveIndex.write(indexFile);
+    logger.info("Wrote index of {} keys in {} to {}.", archiveIndex.size(),
+        archive, indexFile);
+    synchronized (this.archiveIndexes) {
+      this.archiveIndexes.put(archive.getAbsolutePath(), archiveIndex);
+    }
+    return indexFile;
+  }
+
+  @Override
+  public Descriptor readIndexedDescriptor(File archive, String key)
+      throws IOException {
+    ArchiveIndex archiveIndex;
+    synchronized (this.archiveIndexes) {
+      archiveIndex = this.archiveIndexes.get(archive.getAbsolutePath());
+      if (null == archiveIndex) {
+        archiveIndex = ArchiveIndex.read(archive);
+        this.archiveIndexes.put(archive.getAbsolutePath(), archiveIndex);
+      }
+    }
+    return archiveIndex.readDescriptor(archive, key);
+  }
+
   @Override
   public void saveHistoryFile(File historyFile) {
     if (!this.reader.hasFinishedReading) {
@@ -122,45 +401,162 @@ public class DescriptorReaderImpl implements DescriptorReader {
 
   private static class DescriptorReaderRunnable implements Runnable {
 
+    /* Entry that tells a parsing thread to stop. */
+    private static final RawEntry END_OF_ENTRIES = new RawEntry(null, null,
+        null, null, -1L, null, null, -1);
+
     private File[] descriptorFiles;
 
     private BlockingIteratorImpl<Descriptor> descriptorQueue;
 
     private File manualSaveHistoryFile;
 
-    private List<File> tarballs = new ArrayList<>();
+    private Map<String, Long> excludedFilesBefore = new HashMap<>();
+
+    private HistoryStore historyStore;
+
+    private Map<String, Long> excludedFilesAfter = new ConcurrentHashMap<>();
 
-    private SortedMap<String, Long> excludedFilesBefore = new TreeMap<>();
+    /* Parsed files, which are added by parsing threads after parsing the
+     * last descriptor file or tarball entry contained in them. */
+    private Map<String, Long> parsedFilesAfter = new ConcurrentHashMap<>();
 
-    private SortedMap<String, Long> excludedFilesAfter = new TreeMap<>();
+    private Set<String> fingerprints;
 
-    private SortedMap<String, Long> parsedFilesAfter = new TreeMap<>();
+    private Set<Class<? extends Descriptor>> descriptorTypes;
 
-    private DescriptorParser descriptorParser;
+    private long fromMillis;
+
+    private long toMillis;
+
+    private boolean hasTimeRange;
+
+    private long skippedEntries = 0L;
+
+    private long skippedBytes = 0L;
+
+    private volatile DigestIndex digestIndex;
+
+    private TarballCheckpoints checkpoints;
+
+    private int readingThreads;
+
+    private int decompressionThreads;
+
+    private int parsingThreads;
+
+    /* Descriptor files and tarball entries read by the reading and
+     * decompression stages and waiting to be parsed. */
+    private BlockingQueue<RawEntry> rawEntries;
+
+    private final StageStats readingStats = new StageStats("reading");
+
+    private final StageStats decompressionStats = new StageStats(
+        "decompression");
+
+    private final StageStats parsingStats = new StageStats("parsing");
+
+    /* Threads decompressing tarballs, which are handed over by the reading
+     * stage as soon as they are found while walking input directories. */
+    private ExecutorService tarballExecutor;
+
+    /* Bytes of tarballs found so far and of tarballs read so far, for
+     * logging the progress of the decompression stage. */
+    private final AtomicLong foundTarballBytes = new AtomicLong();
+
+    private final AtomicLong readTarballBytes = new AtomicLong();
+
+    private final AtomicLong loggedTarballPercent = new AtomicLong();
 
     private boolean hasFinishedReading = false;
 
     private DescriptorReaderRunnable(File[] descriptorFiles,
         BlockingIteratorImpl<Descriptor> descriptorQueue,
-        File manualSaveHistoryFile, SortedMap<String, Long> excludedFiles) {
+        File manualSaveHistoryFile, SortedMap<String, Long> excludedFiles,
+        Set<Class<? extends Descriptor>> descriptorTypes,
+        Set<String> fingerprints, long fromMillis, long toMillis,
+        DigestIndex digestIndex, HistoryStore historyStore,
+        TarballCheckpoints checkpoints, int readingThreads,
+        int decompressionThreads, int parsingThreads) {
       this.descriptorFiles = descriptorFiles;
       this.descriptorQueue = descriptorQueue;
       this.manualSaveHistoryFile = manualSaveHistoryFile;
       if (excludedFiles != null) {
         this.excludedFilesBefore = excludedFiles;
       }
-      this.descriptorParser = new DescriptorParserImpl();
+      this.descriptorTypes = descriptorTypes;
+      this.fromMillis = fromMillis;
+      this.toMillis = toMillis;
+      this.hasTimeRange = fromMillis > Long.MIN_VALUE
+          || toMillis < Long.MAX_VALUE;
+      this.fingerprints = fingerprints;
+      this.digestIndex = digestIndex;
+      this.historyStore = historyStore;
+      this.checkpoints = checkpoints;
+      this.readingThreads = readingThreads;
+      this.decompressionThreads = decompressionThreads;
+      this.parsingThreads = parsingThreads;
+      this.rawEntries = new ArrayBlockingQueue<>(
+          RAW_ENTRIES_PER_PARSING_THREAD * parsingThreads);
     }
 
     public void run() {
+      List<Thread> parsingThreads = new ArrayList<>();
       try {
+        for (int i = 0; i < this.parsingThreads; i++) {
+          Thread parsingThread = new Thread(this::parseRawEntries,
+              "DescriptorParser-" + i);
+          parsingThread.setDaemon(true);
+          parsingThread.start();
+          parsingThreads.add(parsingThread);
+        }
+        this.tarballExecutor = Executors.newFixedThreadPool(
+            this.decompressionThreads, runnable -> {
+              Thread thread = new Thread(runnable);
+              thread.setName("TarballDecompressor-" + thread.getId());
+              thread.setDaemon(true);
+              return thread;
+            });
         this.readOldHistory(this.manualSaveHistoryFile);
         this.readDescriptorFiles();
-        this.readTarballs();
+        this.tarballExecutor.shutdown();
+        while (!this.tarballExecutor.awaitTermination(1L, TimeUnit.MINUTES)) {
+          /* Keep waiting until all tarballs have been read. */
+        }
+        for (int i = 0; i < parsingThreads.size(); i++) {
+          this.putRawEntry(END_OF_ENTRIES, this.readingStats);
+        }
+        for (Thread parsingThread : parsingThreads) {
+          parsingThread.join();
+        }
+        if (this.skippedEntries > 0L) {
+          logger.info("Skipped {} files or tarball entries with {} bytes "
+              + "without parsing them.", this.skippedEntries,
+              this.skippedBytes);
+        }
+        this.readingStats.log();
+        this.decompressionStats.log();
+        this.parsingStats.log();
+        if (null != this.historyStore) {
+          Map<String, Long> history = new HashMap<>(this.excludedFilesAfter);
+          history.putAll(this.parsedFilesAfter);
+          this.historyStore.update(history);
+        }
+        if (null != this.digestIndex) {
+          this.digestIndex.flush();
+          logger.info("Digest index contains {} digests.",
+              this.digestIndex.size());
+        }
         this.hasFinishedReading = true;
       } catch (Throwable t) {
         logger.error("Bug: uncaught exception or error while reading "
             + "descriptors.", t);
+        if (null != this.tarballExecutor) {
+          this.tarballExecutor.shutdownNow();
+        }
+        for (Thread parsingThread : parsingThreads) {
+          parsingThread.interrupt();
+        }
       } finally {
         if (null != this.descriptorQueue) {
           this.descriptorQueue.setOutOfDescriptors();
@@ -215,131 +611,638 @@ public class DescriptorReaderImpl implements DescriptorReader {
       }
     }
 
-    private void readDescriptorFiles() {
+    private void readDescriptorFiles() throws IOException {
       if (null == this.descriptorFiles) {
         return;
       }
-      Stack<File> files = new Stack<>();
+      FileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir,
+            BasicFileAttributes attrs) {
+          return isExcluded(dir, attrs) ? FileVisitResult.SKIP_SUBTREE
+              : FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file,
+            BasicFileAttributes attrs) throws IOException {
+          readFile(file, attrs);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+          logger.warn("Unable to read descriptor file {}.", file, exc);
+          return FileVisitResult.CONTINUE;
+        }
+      };
       for (File descriptorFile : this.descriptorFiles) {
         if (!descriptorFile.exists()) {
           continue;
         }
-        files.add(descriptorFile);
-        while (!files.isEmpty()) {
-          File file = files.pop();
-          try {
-            String absolutePath = file.getAbsolutePath();
-            long lastModifiedMillis = file.lastModified();
-            if (this.excludedFilesBefore.getOrDefault(absolutePath, 0L)
-                == lastModifiedMillis) {
-              this.excludedFilesAfter.put(absolutePath, lastModifiedMillis);
-              continue;
-            }
-            if (file.isDirectory()) {
-              files.addAll(Arrays.asList(file.listFiles()));
-              continue;
-            } else if (file.getName().endsWith(".tar")
-                || file.getName().endsWith(".tar.bz2")
-                || file.getName().endsWith(".tar.xz")) {
-              tarballs.add(file);
-              continue;
-            } else {
-              this.readDescriptorFile(file);
-            }
-            this.parsedFilesAfter.put(absolutePath, lastModifiedMillis);
-          } catch (IOException e) {
-            logger.warn("Unable to read descriptor file {}.", file, e);
-          }
-        }
+        FileTreeWalker.walk(descriptorFile.toPath(), this.readingThreads,
+            visitor);
+      }
+    }
+
+    /* Return whether the given file or directory is unchanged since it has
+     * last been read, and add it to excluded files if so. */
+    private boolean isExcluded(Path path, BasicFileAttributes attrs) {
+      String absolutePath = path.toAbsolutePath().toString();
+      long lastModifiedMillis = attrs.lastModifiedTime().toMillis();
+      Long lastModifiedMillisBefore = this.excludedFilesBefore.get(
+          absolutePath);
+      if (null == lastModifiedMillisBefore && null != this.historyStore) {
+        lastModifiedMillisBefore = this.historyStore.get(absolutePath);
+      }
+      if (null != lastModifiedMillisBefore
+          && lastModifiedMillisBefore == lastModifiedMillis) {
+        this.excludedFilesAfter.put(absolutePath, lastModifiedMillis);
+        return true;
       }
+      return false;
     }
 
-    private void readTarballs() {
-      if (this.tarballs.isEmpty()) {
+    private void readFile(Path path, BasicFileAttributes attrs)
+        throws IOException {
+      if (this.isExcluded(path, attrs)) {
         return;
       }
-      long total = 0L;
-      for (File tarball : this.tarballs) {
-        total += tarball.length();
+      File file = path.toFile();
+      if (file.getName().endsWith(ArchiveIndex.FILE_NAME_SUFFIX)) {
+        return;
+      } else if (null != CompressionCodecs.forTarball(file.getName())) {
+        this.submitTarball(file, attrs);
+        return;
+      }
+      FileProgress progress = new FileProgress(
+          path.toAbsolutePath().toString(),
+          attrs.lastModifiedTime().toMillis());
+      long started = System.nanoTime();
+      try {
+        this.readDescriptorFile(file, progress);
+      } catch (IOException e) {
+        logger.warn("Unable to read descriptor file {}.", file, e);
+        progress.fail();
+      } catch (InterruptedException e) {
+        progress.fail();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while reading "
+            + "descriptor file " + file + ".");
       }
-      long progress = 0L;
-      for (File tarball : this.tarballs) {
+      this.readingStats.addBusy(started);
+      progress.done();
+    }
+
+    /* Hand over the given tarball to the decompression stage, which starts
+     * reading it while the reading stage continues walking input
+     * directories. */
+    private void submitTarball(File tarball, BasicFileAttributes attrs) {
+      long tarballBytes = attrs.size();
+      this.foundTarballBytes.addAndGet(tarballBytes);
+      this.tarballExecutor.execute(() -> {
+        FileProgress progress = new FileProgress(tarball.getAbsolutePath(),
+            attrs.lastModifiedTime().toMillis());
+        long started = System.nanoTime();
         try {
-          this.readTarball(tarball);
-          this.parsedFilesAfter.put(tarball.getAbsolutePath(),
-              tarball.lastModified());
+          this.readTarball(tarball, progress);
         } catch (IOException e) {
           logger.warn("Unable to read tarball {}.", tarball, e);
+          progress.fail();
+        } catch (InterruptedException e) {
+          progress.fail();
+          Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+          logger.error("Bug: uncaught exception while reading tarball {}.",
+              tarball, e);
+          progress.fail();
+        } finally {
+          this.decompressionStats.addBusy(started);
+          progress.done();
+          this.logTarballProgress(tarballBytes);
         }
-        long previousPercentDone = 100L * progress / total;
-        progress += tarball.length();
-        long percentDone = 100L * progress / total;
-        if (percentDone > previousPercentDone) {
-          logger.info("Finished reading {}% of tarball bytes.",
-              percentDone);
-        }
+      });
+    }
+
+    /* Log the share of tarball bytes read so far whenever it has grown by
+     * at least one percent, relative to the tarballs found so far. */
+    private void logTarballProgress(long tarballBytes) {
+      long readBytes = this.readTarballBytes.addAndGet(tarballBytes);
+      long foundBytes = this.foundTarballBytes.get();
+      if (foundBytes <= 0L) {
+        return;
+      }
+      long percentDone = 100L * readBytes / foundBytes;
+      long loggedPercent = this.loggedTarballPercent.get();
+      if (percentDone > loggedPercent && this.loggedTarballPercent
+          .compareAndSet(loggedPercent, percentDone)) {
+        logger.info("Finished reading {}% of tarball bytes found so far.",
+            percentDone);
       }
     }
 
-    private void readTarball(File file) throws IOException {
+    private void readTarball(File file, FileProgress progress)
+        throws IOException, InterruptedException {
       try (FileInputStream in = new FileInputStream(file)) {
         if (in.available() <= 0) {
           return;
         }
-        TarArchiveInputStream tais;
-        if (file.getName().endsWith(".tar.bz2")) {
-          tais = new TarArchiveInputStream(new BZip2CompressorInputStream(in));
-        } else if (file.getName().endsWith(".tar.xz")) {
-          tais = new TarArchiveInputStream(new XZCompressorInputStream(in));
-        } else if (file.getName().endsWith(".tar")) {
-          tais = new TarArchiveInputStream(in);
-        } else {
+        CompressionCodec codec = CompressionCodecs.forTarball(
+            file.getName());
+        if (null == codec) {
           return;
         }
-        try (BufferedInputStream bis = new BufferedInputStream(tais)) {
+        InputStream tarIn = null;
+        if (FileType.XZ == codec) {
+          /* Decode multi-block xz files concurrently, and fall back to
+           * sequential decompression for single-block files. Tarballs that
+           * are decompressed at the same time share the available
+           * processors and a quarter of the heap for decoded blocks. */
+          tarIn = ParallelXZInputStream.openIfMultiBlock(file,
+              Runtime.getRuntime().availableProcessors()
+              / this.decompressionThreads,
+              Runtime.getRuntime().maxMemory() / 4L
+              / this.decompressionThreads);
+        }
+        if (null == tarIn) {
+          tarIn = codec.inputStream(in);
+        }
+        TarballCheckpoints.Tarball checkpoint = null == this.checkpoints
+            ? null : this.checkpoints.startTarball(file);
+        int entryIndex = -1;
+        try (TarArchiveInputStream tais = new TarArchiveInputStream(tarIn)) {
           TarArchiveEntry tae;
           while ((tae = tais.getNextTarEntry()) != null) {
-            if (tae.isDirectory()) {
+            entryIndex++;
+            if (null != checkpoint
+                && entryIndex < checkpoint.resumeEntryIndex()) {
+              /* Skip entries that have been consumed before resuming. */
               continue;
             }
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-              int len;
-              byte[] data = new byte[1024];
-              while ((len = bis.read(data, 0, 1024)) >= 0) {
-                baos.write(data, 0, len);
-              }
-              byte[] rawDescriptorBytes = baos.toByteArray();
-              if (rawDescriptorBytes.length < 1) {
-                continue;
-              }
-              String fileName = tae.getName().substring(
-                      tae.getName().lastIndexOf("/") + 1);
-              for (Descriptor descriptor :
-                      this.descriptorParser.parseDescriptors(
-                      rawDescriptorBytes, file, fileName)) {
-                this.descriptorQueue.add(descriptor);
+            byte[] rawDescriptorBytes = null;
+            String fileName = tae.getName().substring(
+                tae.getName().lastIndexOf("/") + 1);
+            long dataStart = tais.getBytesRead();
+            if (!tae.isDirectory()) {
+              rawDescriptorBytes = this.readWantedDescriptorBytes(tais,
+                  fileName, tae.getSize());
+            }
+            if (null == rawDescriptorBytes) {
+              if (null != checkpoint) {
+                this.checkpoints.addEntry(checkpoint, entryIndex,
+                    Collections.emptyList(), 0);
               }
+              continue;
             }
+            progress.enqueue();
+            this.putRawEntry(new RawEntry(rawDescriptorBytes, file, fileName,
+                tae.getName(), dataStart, progress, checkpoint, entryIndex),
+                this.decompressionStats);
           }
         }
+        if (null != checkpoint) {
+          this.checkpoints.finishTarball(checkpoint, entryIndex + 1);
+        }
       }
     }
 
-    private void readDescriptorFile(File file) throws IOException {
+    private void readDescriptorFile(File file, FileProgress progress)
+        throws IOException, InterruptedException {
       try (FileInputStream fis = new FileInputStream(file)) {
         InputStream is = fis;
         if (file.getName().endsWith(".gz")) {
           is = new GzipCompressorInputStream(fis);
         }
-        byte[] rawDescriptorBytes = IOUtils.toByteArray(is);
-        if (rawDescriptorBytes.length > 0) {
-          for (Descriptor descriptor : this.descriptorParser.parseDescriptors(
-              rawDescriptorBytes, file, file.getName())) {
-            this.descriptorQueue.add(descriptor);
+        byte[] rawDescriptorBytes = this.readWantedDescriptorBytes(is,
+            file.getName(), file.length());
+        if (null != rawDescriptorBytes) {
+          /* Positions in compressed files cannot be used for reading
+           * single descriptors later on, so only add uncompressed files to
+           * the digest index. */
+          progress.enqueue();
+          this.putRawEntry(new RawEntry(rawDescriptorBytes, file,
+              file.getName(), "", is == fis ? 0L : -1L, progress, null, -1),
+              this.readingStats);
+        }
+      }
+    }
+
+    /* Hand over a descriptor file or tarball entry to the parsing stage,
+     * and count the time spent waiting for the parsing stage to catch up
+     * towards the given stage. */
+    private void putRawEntry(RawEntry rawEntry, StageStats stats)
+        throws InterruptedException {
+      long started = System.nanoTime();
+      this.rawEntries.put(rawEntry);
+      stats.addOutputWait(started);
+    }
+
+    /* Parse descriptor files and tarball entries until receiving the
+     * end-of-entries marker. */
+    private void parseRawEntries() {
+      DescriptorParser descriptorParser = new DescriptorParserImpl();
+      descriptorParser.setFingerprints(this.fingerprints);
+      try {
+        while (true) {
+          long started = System.nanoTime();
+          RawEntry rawEntry = this.rawEntries.take();
+          this.parsingStats.addInputWait(started);
+          if (END_OF_ENTRIES == rawEntry) {
+            return;
+          }
+          try {
+            started = System.nanoTime();
+            Iterable<Descriptor> descriptors = descriptorParser
+                .parseDescriptors(rawEntry.bytes, rawEntry.file,
+                rawEntry.fileName);
+            if (rawEntry.dataStart >= 0L) {
+              this.addToDigestIndex(descriptors, rawEntry.bytes,
+                  rawEntry.file, rawEntry.entryName, rawEntry.dataStart);
+            }
+            if (null != rawEntry.checkpoint) {
+              descriptors = this.addToCheckpoints(descriptors, rawEntry);
+            }
+            this.parsingStats.addBusy(started);
+            started = System.nanoTime();
+            for (Descriptor descriptor : descriptors) {
+              this.descriptorQueue.add(descriptor);
+            }
+            this.parsingStats.addOutputWait(started);
+          } catch (RuntimeException e) {
+            logger.error("Bug: uncaught exception while parsing {}.",
+                rawEntry.file, e);
+            rawEntry.progress.fail();
+          }
+          rawEntry.progress.done();
+        }
+      } catch (InterruptedException e) {
+        /* Stop parsing, because reading descriptors has failed. */
+      }
+    }
+
+    /* Leave out descriptors of the given tarball entry that have been
+     * consumed before resuming, and add the remaining descriptors to
+     * checkpoints before returning them. */
+    private List<Descriptor> addToCheckpoints(Iterable<Descriptor> parsed,
+        RawEntry rawEntry) {
+      List<Descriptor> descriptors = new ArrayList<>();
+      for (Descriptor descriptor : parsed) {
+        descriptors.add(descriptor);
+      }
+      int skippedDescriptors = Math.min(descriptors.size(),
+          rawEntry.checkpoint.resumeSkippedDescriptors(rawEntry.entryIndex));
+      descriptors = descriptors.subList(skippedDescriptors,
+          descriptors.size());
+      this.checkpoints.addEntry(rawEntry.checkpoint, rawEntry.entryIndex,
+          descriptors, skippedDescriptors);
+      return descriptors;
+    }
+
+    /* Progress of reading and parsing a descriptor file or tarball, which
+     * is added to parsed files only after it has been read without errors
+     * and all its entries have been parsed. */
+    private final class FileProgress {
+
+      private final String absolutePath;
+
+      private final long lastModifiedMillis;
+
+      /* Number of entries that are still waiting to be parsed, plus one
+       * while the file is still being read. */
+      private int pending = 1;
+
+      private boolean failed = false;
+
+      private FileProgress(String absolutePath, long lastModifiedMillis) {
+        this.absolutePath = absolutePath;
+        this.lastModifiedMillis = lastModifiedMillis;
+      }
+
+      private synchronized void enqueue() {
+        this.pending++;
+      }
+
+      private synchronized void fail() {
+        this.failed = true;
+      }
+
+      private void done() {
+        synchronized (this) {
+          if (--this.pending > 0 || this.failed) {
+            return;
+          }
+        }
+        parsedFilesAfter.put(this.absolutePath, this.lastModifiedMillis);
+      }
+    }
+
+    /**
+     * Adds digests of server descriptors, extra-info descriptors, and
+     * microdescriptors among the given descriptors to the digest index, if
+     * one is configured.
+     *
+     * @param descriptors Descriptors parsed from the given raw bytes.
+     * @param rawDescriptorBytes Raw bytes of the descriptor file or tarball
+     *     entry.
+     * @param file Descriptor file or tarball.
+     * @param entryName Tarball entry name, or the empty string for
+     *     descriptor files.
+     * @param dataStart Position of the first byte of the tarball entry in
+     *     the uncompressed tarball, or 0 for descriptor files.
+     */
+    private void addToDigestIndex(Iterable<Descriptor> descriptors,
+        byte[] rawDescriptorBytes, File file, String entryName,
+        long dataStart) {
+      if (null == this.digestIndex) {
+        return;
+      }
+      try {
+        long source = -1L;
+        for (Descriptor descriptor : descriptors) {
+          String digest;
+          if (descriptor instanceof ServerDescriptor) {
+            digest = ((ServerDescriptor) descriptor).getDigestSha1Hex();
+          } else if (descriptor instanceof ExtraInfoDescriptor) {
+            digest = ((ExtraInfoDescriptor) descriptor).getDigestSha1Hex();
+          } else if (descriptor instanceof Microdescriptor) {
+            digest = ((Microdescriptor) descriptor).getDigestSha256Base64();
+          } else {
+            continue;
+          }
+          if (null == digest) {
+            continue;
+          }
+          if (source < 0L) {
+            source = this.digestIndex.addSource(file, entryName, dataStart,
+                ArchiveIndex.findAnnotation(rawDescriptorBytes));
           }
+          DescriptorImpl descriptorImpl = (DescriptorImpl) descriptor;
+          this.digestIndex.put(digest, source, descriptorImpl.offset,
+              descriptorImpl.length);
         }
+      } catch (IOException e) {
+        logger.warn("Unable to add descriptors in {} to digest index. Not "
+            + "adding any further descriptors.", file, e);
+        this.digestIndex = null;
+      }
+    }
+
+    /**
+     * Reads the remaining bytes of a descriptor file or tarball entry, unless
+     * the file name or first bytes indicate that it contains descriptors of
+     * an unwanted type or outside of the configured time range, in which case
+     * reading stops before or right after those first bytes.
+     *
+     * @param is Input stream positioned at the start of the descriptor file or
+     *     tarball entry.
+     * @param fileName File name used as parser hint.
+     * @param size Size of the file or tarball entry, or -1 if unknown.
+     * @return Raw descriptor bytes, or {@code null} if the file or entry is
+     *     empty or has been skipped.
+     */
+    private byte[] readWantedDescriptorBytes(InputStream is, String fileName,
+        long size) throws IOException {
+      if (this.hasTimeRange
+          && !this.isInTimeRange(parseFileNameMillis(fileName))) {
+        this.skip(size);
+        return null;
+      }
+      byte[] prefix = new byte[this.hasTimeRange ? HEADER_PEEK_LENGTH
+          : DescriptorParserImpl.DETECTION_PREFIX_LENGTH];
+      int prefixLength = IOUtils.readFully(is, prefix);
+      if (prefixLength < 1) {
+        return null;
       }
+      if (null != this.descriptorTypes || this.hasTimeRange) {
+        Class<? extends Descriptor> descriptorClass
+            = DescriptorParserImpl.detectDescriptorClass(prefix, prefixLength,
+            fileName);
+        if (null == descriptorClass) {
+          descriptorClass = UnparseableDescriptorImpl.class;
+        }
+        if (!this.isWantedDescriptorClass(descriptorClass)
+            || (this.hasTimeRange && !this.isInTimeRange(parseHeaderMillis(
+            prefix, prefixLength, descriptorClass)))) {
+          this.skip(size);
+          return null;
+        }
+      }
+      if (prefixLength < prefix.length) {
+        return Arrays.copyOf(prefix, prefixLength);
+      }
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(
+          size > 0L && size < Integer.MAX_VALUE ? (int) size : 8192);
+      baos.write(prefix, 0, prefixLength);
+      IOUtils.copy(is, baos);
+      return baos.toByteArray();
+    }
+
+    private synchronized void skip(long size) {
+      this.skippedEntries++;
+      if (size > 0L) {
+        this.skippedBytes += size;
+      }
+    }
+
+    private boolean isWantedDescriptorClass(
+        Class<? extends Descriptor> descriptorClass) {
+      if (null == this.descriptorTypes) {
+        return true;
+      }
+      for (Class<? extends Descriptor> descriptorType : this.descriptorTypes) {
+        if (descriptorType.isAssignableFrom(descriptorClass)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean isInTimeRange(long millis) {
+      return millis < 0L || (millis >= this.fromMillis
+          && millis < this.toMillis);
     }
   }
-}
 
+  /**
+   * Number of descriptor files or tarball entries per parsing thread that
+   * may be waiting to be parsed.
+   */
+  private static final int RAW_ENTRIES_PER_PARSING_THREAD = 16;
+
+  /* Descriptor file or tarball entry that has been read, and decompressed
+   * if necessary, and that is waiting to be parsed. */
+  private static final class RawEntry {
+
+    private final byte[] bytes;
+
+    private final File file;
+
+    /* File name used as parser hint. */
+    private final String fileName;
+
+    /* Tarball entry name, or the empty string for descriptor files. */
+    private final String entryName;
+
+    /* Position of the first entry byte in the uncompressed file or tarball,
+     * or -1 if descriptors must not be added to the digest index. */
+    private final long dataStart;
+
+    private final DescriptorReaderRunnable.FileProgress progress;
+
+    /* Checkpoint state of the tarball containing this entry, or null if
+     * checkpoints are not written or if this is a descriptor file. */
+    private final TarballCheckpoints.Tarball checkpoint;
+
+    /* Index of this entry in the tarball, or -1 for descriptor files. */
+    private final int entryIndex;
+
+    private RawEntry(byte[] bytes, File file, String fileName,
+        String entryName, long dataStart,
+        DescriptorReaderRunnable.FileProgress progress,
+        TarballCheckpoints.Tarball checkpoint, int entryIndex) {
+      this.bytes = bytes;
+      this.file = file;
+      this.fileName = fileName;
+      this.entryName = entryName;
+      this.dataStart = dataStart;
+      this.progress = progress;
+      this.checkpoint = checkpoint;
+      this.entryIndex = entryIndex;
+    }
+  }
+
+  /* Time spent by all threads of a reading stage on doing actual work,
+   * waiting for input from the previous stage, and waiting for the next
+   * stage to accept output. */
+  private static final class StageStats {
+
+    private final String stage;
+
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    private final AtomicLong inputWaitNanos = new AtomicLong();
+
+    private final AtomicLong outputWaitNanos = new AtomicLong();
+
+    private StageStats(String stage) {
+      this.stage = stage;
+    }
+
+    private void addBusy(long startedNanos) {
+      this.busyNanos.addAndGet(System.nanoTime() - startedNanos);
+    }
+
+    private void addInputWait(long startedNanos) {
+      this.inputWaitNanos.addAndGet(System.nanoTime() - startedNanos);
+    }
+
+    private void addOutputWait(long startedNanos) {
+      this.outputWaitNanos.addAndGet(System.nanoTime() - startedNanos);
+    }
+
+    private void log() {
+      long busy = this.busyNanos.get();
+      long inputWait = this.inputWaitNanos.get();
+      long outputWait = this.outputWaitNanos.get();
+      long total = busy + inputWait + outputWait;
+      if (total <= 0L) {
+        return;
+      }
+      logger.info("Descriptor {} stage was busy for {} ms ({}%), waited for "
+          + "input for {} ms, and waited for output for {} ms.", this.stage,
+          TimeUnit.NANOSECONDS.toMillis(busy), 100L * busy / total,
+          TimeUnit.NANOSECONDS.toMillis(inputWait),
+          TimeUnit.NANOSECONDS.toMillis(outputWait));
+    }
+  }
+
+  /**
+   * Number of bytes to read from the start of a descriptor file for looking
+   * up its timestamp in the header.
+   */
+  private static final int HEADER_PEEK_LENGTH = 4096;
+
+  /**
+   * File names of network status consensuses, votes, and exit lists as found
+   * in CollecTor archives, starting with their valid-after or download time.
+   */
+  private static final Pattern RELAY_FILE_NAME_PATTERN = Pattern.compile(
+      "^(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}-\\d{2})"
+      + "(-consensus(-microdesc)?|-vote-[0-9A-F]{40}-[0-9A-F]{40})?$");
+
+  /**
+   * File names of bridge network statuses as found in CollecTor archives,
+   * starting with their publication time.
+   */
+  private static final Pattern BRIDGE_FILE_NAME_PATTERN = Pattern.compile(
+      "^(\\d{8}-\\d{6})-[0-9A-F]{40}$");
+
+  /**
+   * Returns the time encoded in the given file name, or -1 if the file name
+   * does not follow one of the known naming schemes for descriptors that are
+   * stored in separate files per valid-after or publication time.
+   */
+  static long parseFileNameMillis(String fileName) {
+    if (null == fileName) {
+      return -1L;
+    }
+    try {
+      Matcher matcher = RELAY_FILE_NAME_PATTERN.matcher(fileName);
+      if (matcher.matches()) {
+        return ParseHelper.getDateFormat("yyyy-MM-dd-HH-mm-ss")
+            .parse(matcher.group(1)).getTime();
+      }
+      matcher = BRIDGE_FILE_NAME_PATTERN.matcher(fileName);
+      if (matcher.matches()) {
+        return ParseHelper.getDateFormat("yyyyMMdd-HHmmss")
+            .parse(matcher.group(1)).getTime();
+      }
+    } catch (ParseException e) {
+      /* Not a valid timestamp, so don't use it for skipping. */
+    }
+    return -1L;
+  }
+
+  /**
+   * Returns the valid-after or publication time found in the given first
+   * bytes of a descriptor file, or -1 if the descriptor type does not contain
+   * exactly one such timestamp per file or if no such line was found.
+   */
+  static long parseHeaderMillis(byte[] prefix, int prefixLength,
+      Class<? extends Descriptor> descriptorClass) {
+    Key key;
+    if (RelayNetworkStatusConsensusImpl.class == descriptorClass
+        || RelayNetworkStatusVoteImpl.class == descriptorClass) {
+      key = Key.VALID_AFTER;
+    } else if (BridgeNetworkStatusImpl.class == descriptorClass
+        || RelayNetworkStatusImpl.class == descriptorClass) {
+      key = Key.PUBLISHED;
+    } else {
+      return -1L;
+    }
+    String header = new String(prefix, 0, prefixLength,
+        StandardCharsets.US_ASCII);
+    int start;
+    if (header.startsWith(key.keyword + SP)) {
+      start = 0;
+    } else {
+      start = header.indexOf(NL + key.keyword + SP);
+      if (start < 0) {
+        return -1L;
+      }
+      start += 1;
+    }
+    start += key.keyword.length() + 1;
+    int end = start + "yyyy-MM-dd HH:mm:ss".length();
+    if (end > header.length()) {
+      return -1L;
+    }
+    try {
+      return ParseHelper.getDateFormat("yyyy-MM-dd HH:mm:ss")
+          .parse(header.substring(start, end)).getTime();
+    } catch (ParseException e) {
+      return -1L;
+    }
+  }
+}
@@ -0,0 +1,409 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import org.torproject.descriptor.Descriptor;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/* Persistent hash index that maps SHA-1 and SHA-256 digests of descriptors
+ * to the descriptor file or tarball entry, position, and length of their raw
+ * bytes, so that descriptors can be looked up by digest without keeping
+ * them in memory.
+ *
+ * The index file consists of a fixed-size header, a memory-mapped open
+ * addressing hash table with linear probing, and an append-only region of
+ * source records describing descriptor files and tarball entries. The hash
+ * table is doubled in size and rehashed into a new file when it gets too
+ * full. Instances are safe for use by multiple threads.
+ *
+ * Slots are written through the memory mapping right away, whereas the
+ * header is written after appending each source record, so that the header
+ * covers all source records that slots may refer to. In case the header is
+ * stale anyway, for example after a crash, the number of used slots is
+ * counted again when opening the index, and new source records are always
+ * appended after the end of the file, so that they never overwrite source
+ * records that slots still refer to. */
+final class DigestIndex {
+
+  /* Magic number at the start of digest index files, "DLDI". */
+  private static final int MAGIC = 0x444c4449;
+
+  private static final int VERSION = 1;
+
+  /* Header with magic number, version, capacity, size, and length of the
+   * sources region, padded to a fixed length. */
+  private static final int HEADER_LENGTH = 64;
+
+  /* Slot with key length (0 for empty slots), key bytes padded to the
+   * length of a SHA-256 digest, offset of the source record, offset of the
+   * descriptor in the source, and descriptor length, padded to a fixed
+   * length. */
+  private static final int SLOT_LENGTH = 64;
+
+  private static final int MAX_KEY_LENGTH = 32;
+
+  private static final int SOURCE_OFFSET = 1 + MAX_KEY_LENGTH;
+
+  private static final int POSITION_OFFSET = SOURCE_OFFSET + 8;
+
+  private static final int LENGTH_OFFSET = POSITION_OFFSET + 8;
+
+  /* Number of slots per memory-mapped segment, which keeps segments below the
+   * maximum size of a mapped buffer. */
+  private static final int SLOTS_PER_SEGMENT = 1 << 24;
+
+  private static final long INITIAL_CAPACITY = 1L << 16;
+
+  /* Maximum percentage of used slots before growing the hash table. */
+  private static final int MAX_LOAD_PERCENT = 70;
+
+  private final File indexFile;
+
+  private FileChannel channel;
+
+  private MappedByteBuffer[] segments;
+
+  /* Number of slots, always a power of two. */
+  private long capacity;
+
+  /* Number of used slots. */
+  private long size;
+
+  /* Number of bytes in the sources region. */
+  private long sourcesLength;
+
+  private DigestIndex(File indexFile) {
+    this.indexFile = indexFile;
+  }
+
+  /* Open the digest index in the given file, or create a new, empty index
+   * if the file does not exist yet. */
+  static DigestIndex open(File indexFile) throws IOException {
+    DigestIndex digestIndex = new DigestIndex(indexFile);
+    if (indexFile.exists()) {
+      digestIndex.openExisting();
+    } else {
+      if (null != indexFile.getParentFile()) {
+        indexFile.getParentFile().mkdirs();
+      }
+      digestIndex.create(indexFile, INITIAL_CAPACITY);
+    }
+    return digestIndex;
+  }
+
+  private void openExisting() throws IOException {
+    this.channel = FileChannel.open(this.indexFile.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    this.readFully(header, 0L);
+    header.flip();
+    if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+      this.channel.close();
+      throw new IOException("Unsupported digest index file format in "
+          + this.indexFile + ".");
+    }
+    this.capacity = header.getLong();
+    header.getLong();
+    this.sourcesLength = header.getLong();
+    if (Long.bitCount(this.capacity) != 1
+        || this.channel.size() < this.sourcesStart() + this.sourcesLength) {
+      this.channel.close();
+      throw new IOException("Corrupt digest index file " + this.indexFile
+          + ".");
+    }
+    this.sourcesLength = this.channel.size() - this.sourcesStart();
+    this.mapSegments();
+    this.size = this.countUsedSlots();
+  }
+
+  /* Count the used slots, rather than relying on the number stored in the
+   * header, which may be stale. */
+  private long countUsedSlots() {
+    long usedSlots = 0L;
+    for (long slot = 0L; slot < this.capacity; slot++) {
+      ByteBuffer segment = this.segments[(int) (slot / SLOTS_PER_SEGMENT)];
+      if (0 != segment.get((int) (slot % SLOTS_PER_SEGMENT) * SLOT_LENGTH)) {
+        usedSlots++;
+      }
+    }
+    return usedSlots;
+  }
+
+  private void create(File file, long capacity) throws IOException {
+    this.channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.CREATE_NEW);
+    this.capacity = capacity;
+    this.size = 0L;
+    this.sourcesLength = 0L;
+    this.writeHeader();
+    this.mapSegments();
+  }
+
+  private void mapSegments() throws IOException {
+    int segmentCount = (int) ((this.capacity + SLOTS_PER_SEGMENT - 1)
+        / SLOTS_PER_SEGMENT);
+    this.segments = new MappedByteBuffer[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      long slots = Math.min(SLOTS_PER_SEGMENT,
+          this.capacity - (long) i * SLOTS_PER_SEGMENT);
+      this.segments[i] = this.channel.map(FileChannel.MapMode.READ_WRITE,
+          HEADER_LENGTH + (long) i * SLOTS_PER_SEGMENT * SLOT_LENGTH,
+          slots * SLOT_LENGTH);
+    }
+  }
+
+  private long sourcesStart() {
+    return HEADER_LENGTH + this.capacity * SLOT_LENGTH;
+  }
+
+  private void writeHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.putInt(MAGIC).putInt(VERSION).putLong(this.capacity)
+        .putLong(this.size).putLong(this.sourcesLength);
+    header.rewind();
+    while (header.hasRemaining()) {
+      this.channel.write(header, header.position());
+    }
+  }
+
+  private void readFully(ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (this.channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Unexpected end of digest index file "
+            + this.indexFile + ".");
+      }
+    }
+  }
+
+  /* Decode the given hex-encoded or base64-encoded digest. */
+  static byte[] decodeDigest(String digest) {
+    byte[] key = null;
+    if (digest.length() == 40) {
+      try {
+        key = Hex.decodeHex(digest.toCharArray());
+      } catch (DecoderException e) {
+        /* Not hex-encoded, so try base64 below. */
+      }
+    }
+    if (null == key && Base64.isBase64(digest)) {
+      key = Base64.decodeBase64(digest);
+    }
+    if (null == key || (key.length != 20 && key.length != 32)) {
+      throw new IllegalArgumentException("Digest must be a hex-encoded "
+          + "SHA-1 digest or a base64-encoded SHA-1 or SHA-256 digest: "
+          + digest);
+    }
+    return key;
+  }
+
+  /* Append a source record for the given descriptor file or tarball entry
+   * and return its offset for use in subsequent calls to put. */
+  synchronized long addSource(File file, String entryName, long dataStart,
+      String annotation) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (DataOutputStream dos = new DataOutputStream(baos)) {
+      dos.writeInt(0);
+      dos.writeUTF(file.getAbsolutePath());
+      dos.writeUTF(entryName);
+      dos.writeLong(dataStart);
+      dos.writeUTF(annotation);
+    }
+    ByteBuffer record = ByteBuffer.wrap(baos.toByteArray());
+    record.putInt(0, record.capacity() - 4);
+    long offset = this.sourcesLength;
+    long position = this.sourcesStart() + offset;
+    while (record.hasRemaining()) {
+      this.channel.write(record, position + record.position());
+    }
+    this.sourcesLength += record.capacity();
+    this.writeHeader();
+    return offset;
+  }
+
+  /* Add or replace the location of the descriptor with the given digest. */
+  synchronized void put(String digest, long source, long position,
+      int length) throws IOException {
+    if ((this.size + 1) * 100 > this.capacity * MAX_LOAD_PERCENT) {
+      this.grow();
+    }
+    byte[] key = decodeDigest(digest);
+    long slot = this.findSlot(key);
+    ByteBuffer segment = this.segments[(int) (slot / SLOTS_PER_SEGMENT)];
+    int slotStart = (int) (slot % SLOTS_PER_SEGMENT) * SLOT_LENGTH;
+    if (0 == segment.get(slotStart)) {
+      this.size++;
+      segment.put(slotStart, (byte) key.length);
+      for (int i = 0; i < key.length; i++) {
+        segment.put(slotStart + 1 + i, key[i]);
+      }
+    }
+    segment.putLong(slotStart + SOURCE_OFFSET, source);
+    segment.putLong(slotStart + POSITION_OFFSET, position);
+    segment.putInt(slotStart + LENGTH_OFFSET, length);
+  }
+
+  /* Return the slot containing the given key or the empty slot where it
+   * would be inserted, or throw an exception if the hash table is full,
+   * which never happens unless the file is corrupt. */
+  private long findSlot(byte[] key) throws IOException {
+    long hash = 0L;
+    for (int i = 0; i < 8; i++) {
+      hash = (hash << 8) | (key[i] & 0xff);
+    }
+    long mask = this.capacity - 1L;
+    long slot = hash & mask;
+    for (long probes = 0L; probes < this.capacity; probes++,
+        slot = (slot + 1L) & mask) {
+      ByteBuffer segment = this.segments[(int) (slot / SLOTS_PER_SEGMENT)];
+      int slotStart = (int) (slot % SLOTS_PER_SEGMENT) * SLOT_LENGTH;
+      int keyLength = segment.get(slotStart);
+      if (0 == keyLength) {
+        return slot;
+      }
+      if (keyLength == key.length && this.keyEquals(segment, slotStart + 1,
+          key)) {
+        return slot;
+      }
+    }
+    throw new IOException("Corrupt digest index file " + this.indexFile
+        + " without empty slots.");
+  }
+
+  private boolean keyEquals(ByteBuffer segment, int start, byte[] key) {
+    for (int i = 0; i < key.length; i++) {
+      if (segment.get(start + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* Double the capacity by writing a new index file with a larger hash
+   * table and the same sources region, and replace the current file. */
+  private void grow() throws IOException {
+    File tempFile = new File(this.indexFile.getPath() + ".tmp");
+    Files.deleteIfExists(tempFile.toPath());
+    DigestIndex grown = new DigestIndex(tempFile);
+    grown.create(tempFile, this.capacity * 2L);
+    this.channel.position(this.sourcesStart());
+    long transferred = 0L;
+    while (transferred < this.sourcesLength) {
+      long count = grown.channel.transferFrom(this.channel,
+          grown.sourcesStart() + transferred,
+          this.sourcesLength - transferred);
+      if (count <= 0L) {
+        throw new EOFException("Unexpected end of digest index file "
+            + this.indexFile + ".");
+      }
+      transferred += count;
+    }
+    grown.sourcesLength = this.sourcesLength;
+    for (long slot = 0L; slot < this.capacity; slot++) {
+      ByteBuffer segment = this.segments[(int) (slot / SLOTS_PER_SEGMENT)];
+      int slotStart = (int) (slot % SLOTS_PER_SEGMENT) * SLOT_LENGTH;
+      int keyLength = segment.get(slotStart);
+      if (0 == keyLength) {
+        continue;
+      }
+      byte[] key = new byte[keyLength];
+      for (int i = 0; i < keyLength; i++) {
+        key[i] = segment.get(slotStart + 1 + i);
+      }
+      long newSlot = grown.findSlot(key);
+      ByteBuffer newSegment
+          = grown.segments[(int) (newSlot / SLOTS_PER_SEGMENT)];
+      int newSlotStart = (int) (newSlot % SLOTS_PER_SEGMENT) * SLOT_LENGTH;
+      for (int i = 0; i < SLOT_LENGTH; i++) {
+        newSegment.put(newSlotStart + i, segment.get(slotStart + i));
+      }
+    }
+    grown.size = this.size;
+    grown.close();
+    this.channel.close();
+    Files.move(tempFile.toPath(), this.indexFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    this.openExisting();
+  }
+
+  /* Look up and parse the descriptor with the given digest, or return null
+   * if the digest is not contained in this index. */
+  Descriptor readDescriptor(String digest) throws IOException {
+    long source;
+    long position;
+    int length;
+    File file;
+    String entryName;
+    long dataStart;
+    String annotation;
+    synchronized (this) {
+      long slot = this.findSlot(decodeDigest(digest));
+      ByteBuffer segment = this.segments[(int) (slot / SLOTS_PER_SEGMENT)];
+      int slotStart = (int) (slot % SLOTS_PER_SEGMENT) * SLOT_LENGTH;
+      if (0 == segment.get(slotStart)) {
+        return null;
+      }
+      source = segment.getLong(slotStart + SOURCE_OFFSET);
+      position = segment.getLong(slotStart + POSITION_OFFSET);
+      length = segment.getInt(slotStart + LENGTH_OFFSET);
+      if (source < 0L || source + 4L > this.sourcesLength) {
+        throw new IOException("Corrupt digest index file " + this.indexFile
+            + ".");
+      }
+      ByteBuffer recordLength = ByteBuffer.allocate(4);
+      this.readFully(recordLength, this.sourcesStart() + source);
+      ByteBuffer record = ByteBuffer.allocate(recordLength.getInt(0));
+      this.readFully(record, this.sourcesStart() + source + 4L);
+      try (DataInputStream dis = new DataInputStream(
+          new ByteArrayInputStream(record.array()))) {
+        file = new File(dis.readUTF());
+        entryName = dis.readUTF();
+        dataStart = dis.readLong();
+        annotation = dis.readUTF();
+      }
+    }
+    return ArchiveIndex.readDescriptor(file, entryName, dataStart + position,
+        length, position > 0L ? annotation : "");
+  }
+
+  /* Return the number of digests in this index. */
+  synchronized long size() {
+    return this.size;
+  }
+
+  /* Write the header and all changes to disk. */
+  synchronized void flush() throws IOException {
+    this.writeHeader();
+    for (MappedByteBuffer segment : this.segments) {
+      segment.force();
+    }
+    this.channel.force(false);
+  }
+
+  /* Write all changes to disk and close the index file. */
+  synchronized void close() throws IOException {
+    if (this.channel.isOpen()) {
+      this.flush();
+      this.channel.close();
+    }
+  }
+}
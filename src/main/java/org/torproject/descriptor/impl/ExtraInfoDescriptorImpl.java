@@ -303,6 +303,25 @@ public abstract class ExtraInfoDescriptorImpl extends DescriptorImpl
     }
   }
 
+  /**
+   * Returns the upper-case, hex-encoded fingerprint from the extra-info line
+   * of the extra-info descriptor contained in the given string between
+   * {@code start} and {@code end} without parsing the descriptor, or
+   * {@code null} if there is no well-formed extra-info line.
+   */
+  static String findFingerprint(String ascii, int start, int end) {
+    int lineEnd = ascii.indexOf(NL, start);
+    if (lineEnd < 0 || lineEnd > end) {
+      lineEnd = end;
+    }
+    String[] parts = ascii.substring(start, lineEnd).split("[ \t]+");
+    if (parts.length != 3 || !Key.EXTRA_INFO.keyword.equals(parts[0])
+        || parts[2].length() != 40) {
+      return null;
+    }
+    return parts[2].toUpperCase();
+  }
+
   private void parseExtraInfoLine(String line,
       String[] partsNoOpt) throws DescriptorParseException {
     if (partsNoOpt.length != 3) {
@@ -0,0 +1,137 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* Walks file trees following symbolic links, like Files#walkFileTree, and
+ * optionally visits files in different directories concurrently.
+ *
+ * When walking with more than one thread, the visitor must be safe for use
+ * by multiple threads, directories are visited in no particular order, and
+ * FileVisitResult.TERMINATE and SKIP_SIBLINGS are treated like CONTINUE.
+ * Attributes are read once per file and passed to the visitor. */
+final class FileTreeWalker {
+
+  private FileTreeWalker() {
+  }
+
+  static void walk(Path start, int threads, FileVisitor<Path> visitor)
+      throws IOException {
+    if (threads <= 1) {
+      Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+          Integer.MAX_VALUE, visitor);
+      return;
+    }
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(start, BasicFileAttributes.class);
+    } catch (IOException e) {
+      visitor.visitFileFailed(start, e);
+      return;
+    }
+    if (!attrs.isDirectory()) {
+      visitor.visitFile(start, attrs);
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(new DirectoryTask(start, attrs, new HashSet<>(), visitor));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static final class DirectoryTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path dir;
+
+    private final BasicFileAttributes attrs;
+
+    /* File keys of this directory's parent directories, for detecting
+     * cycles caused by symbolic links. */
+    private final Set<Object> ancestors;
+
+    private final FileVisitor<Path> visitor;
+
+    private DirectoryTask(Path dir, BasicFileAttributes attrs,
+        Set<Object> ancestors, FileVisitor<Path> visitor) {
+      this.dir = dir;
+      this.attrs = attrs;
+      this.ancestors = ancestors;
+      this.visitor = visitor;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        this.visitDirectory();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void visitDirectory() throws IOException {
+      Object fileKey = this.attrs.fileKey();
+      if (null != fileKey && this.ancestors.contains(fileKey)) {
+        this.visitor.visitFileFailed(this.dir,
+            new FileSystemLoopException(this.dir.toString()));
+        return;
+      }
+      if (FileVisitResult.CONTINUE
+          != this.visitor.preVisitDirectory(this.dir, this.attrs)) {
+        return;
+      }
+      Set<Object> childAncestors = new HashSet<>(this.ancestors);
+      if (null != fileKey) {
+        childAncestors.add(fileKey);
+      }
+      List<DirectoryTask> subdirectories = new ArrayList<>();
+      IOException failure = null;
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(
+          this.dir)) {
+        for (Path entry : entries) {
+          BasicFileAttributes entryAttrs;
+          try {
+            entryAttrs = Files.readAttributes(entry,
+                BasicFileAttributes.class);
+          } catch (IOException e) {
+            this.visitor.visitFileFailed(entry, e);
+            continue;
+          }
+          if (entryAttrs.isDirectory()) {
+            subdirectories.add(new DirectoryTask(entry, entryAttrs,
+                childAncestors, this.visitor));
+          } else {
+            this.visitor.visitFile(entry, entryAttrs);
+          }
+        }
+      } catch (IOException e) {
+        failure = e;
+      }
+      invokeAll(subdirectories);
+      this.visitor.postVisitDirectory(this.dir, failure);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/* Persistent history of descriptor files and tarballs that have been read
+ * before, together with their last modified times, used for excluding
+ * unchanged files from being read again.
+ *
+ * The store file consists of a short header followed by an append-only log
+ * of records with the UTF-8 encoded absolute path and last modified time of
+ * a file, where later records replace earlier records for the same path and
+ * records with a last modified time of Long.MIN_VALUE remove a path from
+ * the history. The log is read once using a memory-mapped buffer and kept in
+ * a hash map for fast lookups. Changes are appended to the end of the log,
+ * and the log is only rewritten when it would contain at least as many
+ * replaced or removed records as current records. A partially written
+ * record at the end of the log, for example after a crash, is ignored and
+ * overwritten. */
+final class HistoryStore {
+
+  /* Magic number at the start of history store files, "DLHS". */
+  private static final int MAGIC = 0x444c4853;
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_LENGTH = 8;
+
+  /* Last modified time of records that remove a path from the history. */
+  private static final long REMOVED = Long.MIN_VALUE;
+
+  private final File storeFile;
+
+  private final Map<String, Long> lastModifiedMillis = new HashMap<>();
+
+  /* Number of records in the log, including replaced and removed ones. */
+  private long records;
+
+  /* Number of bytes in the store file up to the end of the last complete
+   * record. */
+  private long validLength;
+
+  private HistoryStore(File storeFile) {
+    this.storeFile = storeFile;
+  }
+
+  /* Open the history store in the given file, or create a new, empty store
+   * if the file does not exist yet. */
+  static HistoryStore open(File storeFile) throws IOException {
+    HistoryStore historyStore = new HistoryStore(storeFile);
+    if (storeFile.exists() && storeFile.length() > 0L) {
+      historyStore.readRecords();
+    } else {
+      if (null != storeFile.getParentFile()) {
+        storeFile.getParentFile().mkdirs();
+      }
+      historyStore.writeRecords(storeFile, historyStore.lastModifiedMillis);
+    }
+    return historyStore;
+  }
+
+  private void readRecords() throws IOException {
+    try (FileChannel channel = FileChannel.open(this.storeFile.toPath(),
+        StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+          0L, channel.size());
+      if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+        throw new IOException("File " + this.storeFile + " is not a history "
+            + "store.");
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported history store version "
+            + version + " in " + this.storeFile + ".");
+      }
+      this.validLength = buffer.position();
+      try {
+        while (buffer.hasRemaining()) {
+          byte[] pathBytes = new byte[buffer.getShort() & 0xffff];
+          buffer.get(pathBytes);
+          long millis = buffer.getLong();
+          String path = new String(pathBytes, StandardCharsets.UTF_8);
+          if (REMOVED == millis) {
+            this.lastModifiedMillis.remove(path);
+          } else {
+            this.lastModifiedMillis.put(path, millis);
+          }
+          this.records++;
+          this.validLength = buffer.position();
+        }
+      } catch (BufferUnderflowException e) {
+        /* Ignore the partially written last record. */
+      }
+    }
+  }
+
+  /* Return the last modified time of the given file as recorded in the
+   * history, or null if the file is not contained in the history. */
+  synchronized Long get(String absolutePath) {
+    return this.lastModifiedMillis.get(absolutePath);
+  }
+
+  /* Return the number of files contained in the history. */
+  synchronized int size() {
+    return this.lastModifiedMillis.size();
+  }
+
+  /* Make the history contain exactly the given files and last modified
+   * times, by appending records for new, changed, and removed files, or by
+   * rewriting the store file if that would leave at least as many replaced
+   * or removed records as current records in it. */
+  synchronized void update(Map<String, Long> files) throws IOException {
+    Map<String, Long> changes = new HashMap<>();
+    for (Map.Entry<String, Long> e : files.entrySet()) {
+      if (!e.getValue().equals(this.lastModifiedMillis.get(e.getKey()))) {
+        changes.put(e.getKey(), e.getValue());
+      }
+    }
+    for (String path : this.lastModifiedMillis.keySet()) {
+      if (!files.containsKey(path)) {
+        changes.put(path, REMOVED);
+      }
+    }
+    if (changes.isEmpty()) {
+      return;
+    }
+    if (this.records + changes.size() >= 2L * files.size()) {
+      this.rewrite(files);
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(this.storeFile.toPath(),
+        StandardOpenOption.WRITE)) {
+      channel.truncate(this.validLength);
+      channel.position(this.validLength);
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+          Channels.newOutputStream(channel)));
+      for (Map.Entry<String, Long> e : changes.entrySet()) {
+        writeRecord(dos, e.getKey(), e.getValue());
+        if (REMOVED == e.getValue()) {
+          this.lastModifiedMillis.remove(e.getKey());
+        } else {
+          this.lastModifiedMillis.put(e.getKey(), e.getValue());
+        }
+        this.records++;
+      }
+      dos.flush();
+      this.validLength = channel.position();
+    }
+  }
+
+  private void rewrite(Map<String, Long> files) throws IOException {
+    File tempFile = new File(this.storeFile.getPath() + ".tmp");
+    this.writeRecords(tempFile, files);
+    Files.move(tempFile.toPath(), this.storeFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    this.lastModifiedMillis.clear();
+    this.lastModifiedMillis.putAll(files);
+  }
+
+  private void writeRecords(File file, Map<String, Long> files)
+      throws IOException {
+    try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(file.toPath())))) {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      for (Map.Entry<String, Long> e : files.entrySet()) {
+        writeRecord(dos, e.getKey(), e.getValue());
+      }
+    }
+    this.records = files.size();
+    this.validLength = file.length();
+  }
+
+  private static void writeRecord(DataOutputStream dos, String path,
+      long millis) throws IOException {
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    if (pathBytes.length > 0xffff) {
+      throw new IOException("Path too long for history store: " + path);
+    }
+    dos.writeShort(pathBytes.length);
+    dos.write(pathBytes);
+    dos.writeLong(millis);
+  }
+}
@@ -9,10 +9,12 @@ import org.torproject.descriptor.DirectorySignature;
 import org.torproject.descriptor.NetworkStatusEntry;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -27,11 +29,25 @@ public abstract class NetworkStatusImpl extends DescriptorImpl {
 
   protected Map<Integer, String> flagStrings = new HashMap<>();
 
+  /**
+   * Base64-encoded identities without trailing padding of relays or bridges
+   * to parse status entries for, or {@code null} to parse all status entries.
+   */
+  private transient Set<String> identities;
+
   protected NetworkStatusImpl(byte[] rawDescriptorBytes, int[] offsetAndLength,
       File descriptorFile, boolean blankLinesAllowed)
       throws DescriptorParseException {
+    this(rawDescriptorBytes, offsetAndLength, descriptorFile,
+        blankLinesAllowed, null);
+  }
+
+  protected NetworkStatusImpl(byte[] rawDescriptorBytes, int[] offsetAndLength,
+      File descriptorFile, boolean blankLinesAllowed, Set<String> identities)
+      throws DescriptorParseException {
     super(rawDescriptorBytes, offsetAndLength, descriptorFile,
         blankLinesAllowed);
+    this.identities = identities;
   }
 
   protected final void splitAndParseParts(boolean containsDirSourceEntries)
@@ -89,10 +105,36 @@ public abstract class NetworkStatusImpl extends DescriptorImpl {
     List<int[]> offsetsAndLengths = this.splitByKey(Key.R, offset, length,
         false);
     for (int[] offsetAndLength : offsetsAndLengths) {
+      if (null != this.identities && !this.identities.contains(
+          this.findIdentity(offsetAndLength[0], offsetAndLength[1]))) {
+        continue;
+      }
       this.parseStatusEntry(offsetAndLength[0], offsetAndLength[1]);
     }
   }
 
+  /* Return the base64-encoded identity from the r line at the start of the
+   * given status entry without parsing the status entry, or null if the r
+   * line does not contain an identity. */
+  private String findIdentity(int offset, int length) {
+    int start = -1;
+    int spaces = 0;
+    for (int i = offset; i < offset + length; i++) {
+      byte current = this.rawDescriptorBytes[i];
+      if (current == '\n') {
+        break;
+      } else if (current == ' ') {
+        if (++spaces == 2) {
+          start = i + 1;
+        } else if (spaces == 3) {
+          return new String(this.rawDescriptorBytes, start, i - start,
+              StandardCharsets.US_ASCII);
+        }
+      }
+    }
+    return null;
+  }
+
   private void parseDirectorySignatures(int offset, int length)
       throws DescriptorParseException {
     List<int[]> offsetsAndLengths = this.splitByKey(Key.DIRECTORY_SIGNATURE,
@@ -0,0 +1,244 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import org.apache.commons.compress.utils.IOUtils;
+
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Decompress an xz file consisting of multiple independently compressed
+ * blocks, as written by xz with block splitting or multi-threading, by
+ * decoding blocks concurrently on worker threads and returning decompressed
+ * bytes in their original order. */
+class ParallelXZInputStream extends InputStream {
+
+  /* Compressed file to read blocks from. */
+  private final File file;
+
+  /* Total number of blocks in all streams of the file. */
+  private final int blockCount;
+
+  /* Maximum number of blocks that are being decoded or that have been
+   * decoded but not yet consumed at the same time. */
+  private final int maxPendingBlocks;
+
+  /* Worker threads decoding blocks. */
+  private final ExecutorService executor;
+
+  /* Seekable inputs that are not currently used for decoding a block. Worker
+   * threads share these inputs, so that the index of the file is parsed once
+   * per worker thread rather than once per block. */
+  private final Deque<SeekableXZInputStream> idleInputs = new ArrayDeque<>();
+
+  /* Blocks being decoded in the order in which they need to be returned. */
+  private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+  /* Number of the next block to submit for decoding. */
+  private int nextBlock = 0;
+
+  /* Decoded bytes of the block currently being returned. */
+  private byte[] currentBlock;
+
+  /* Position of the next byte to return from the current block. */
+  private int currentPosition;
+
+  /* Whether this stream has been closed, which is only changed while holding
+   * the lock on the idle inputs. */
+  private volatile boolean closed = false;
+
+  private ParallelXZInputStream(File file, SeekableXZInputStream input,
+      int blockCount, int maxPendingBlocks, int threads) {
+    this.file = file;
+    this.idleInputs.add(input);
+    this.blockCount = blockCount;
+    this.maxPendingBlocks = maxPendingBlocks;
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setName("ParallelXZInputStream-" + thread.getId());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /* Return a stream for decoding the given file using up to the given
+   * number of threads and holding at most the given number of bytes of
+   * decoded blocks in memory, or null if the file contains fewer than two
+   * blocks, if its index cannot be read, or if the memory is not enough to
+   * hold more than one decoded block at a time, in which case the caller
+   * should decompress the file sequentially. */
+  static ParallelXZInputStream openIfMultiBlock(File file, int threads,
+      long maxMemory) {
+    if (threads < 2) {
+      return null;
+    }
+    SeekableXZInputStream sxis = null;
+    try {
+      sxis = new SeekableXZInputStream(new SeekableFileInputStream(file));
+      int blockCount = sxis.getBlockCount();
+      long largestBlockSize = sxis.getLargestBlockSize();
+      long maxPendingBlocks = largestBlockSize <= 0L ? 0L
+          : Math.min(threads + 1, maxMemory / largestBlockSize);
+      if (blockCount >= 2 && largestBlockSize <= Integer.MAX_VALUE - 8
+          && maxPendingBlocks >= 2L) {
+        ParallelXZInputStream pxis = new ParallelXZInputStream(file, sxis,
+            blockCount, (int) maxPendingBlocks, threads);
+        sxis = null;
+        return pxis;
+      }
+    } catch (IOException e) {
+      /* Decompress the file sequentially. */
+    } finally {
+      closeQuietly(sxis);
+    }
+    return null;
+  }
+
+  private static void closeQuietly(SeekableXZInputStream sxis) {
+    if (null != sxis) {
+      try {
+        sxis.close();
+      } catch (IOException e) {
+        /* Nothing to be done. */
+      }
+    }
+  }
+
+  /* Submit further blocks for decoding until reaching the maximum number of
+   * pending blocks or the last block. */
+  private void submitBlocks() {
+    while (this.pendingBlocks.size() < this.maxPendingBlocks
+        && this.nextBlock < this.blockCount) {
+      final int block = this.nextBlock++;
+      this.pendingBlocks.add(this.executor.submit(
+          () -> this.decodeBlock(block)));
+    }
+  }
+
+  /* Decode a single block using an idle seekable input, or a new one if
+   * all inputs are in use by other worker threads. */
+  private byte[] decodeBlock(int block) throws IOException {
+    SeekableXZInputStream sxis;
+    synchronized (this.idleInputs) {
+      if (this.closed) {
+        throw new IOException("Stream closed.");
+      }
+      sxis = this.idleInputs.poll();
+    }
+    if (null == sxis) {
+      sxis = new SeekableXZInputStream(new SeekableFileInputStream(
+          this.file));
+    }
+    boolean reusable = false;
+    try {
+      sxis.seekToBlock(block);
+      byte[] decodedBlock = new byte[(int) sxis.getBlockSize(block)];
+      if (IOUtils.readFully(sxis, decodedBlock) < decodedBlock.length) {
+        throw new EOFException("Unexpected end of block " + block + " in "
+            + this.file + ".");
+      }
+      reusable = true;
+      return decodedBlock;
+    } finally {
+      synchronized (this.idleInputs) {
+        if (reusable && !this.closed) {
+          this.idleInputs.push(sxis);
+          sxis = null;
+        }
+      }
+      closeQuietly(sxis);
+    }
+  }
+
+  /* Wait for the next block to be decoded and make it the current block, or
+   * return false if there are no more blocks. */
+  private boolean nextBlock() throws IOException {
+    this.submitBlocks();
+    Future<byte[]> pendingBlock = this.pendingBlocks.poll();
+    if (null == pendingBlock) {
+      return false;
+    }
+    try {
+      this.currentBlock = pendingBlock.get();
+      this.currentPosition = 0;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for block "
+          + "to be decoded.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Unable to decode block.", e.getCause());
+    }
+    this.submitBlocks();
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] singleByte = new byte[1];
+    return this.read(singleByte, 0, 1) < 0 ? -1 : singleByte[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (this.closed) {
+      throw new IOException("Stream closed.");
+    }
+    if (length == 0) {
+      return 0;
+    }
+    while (null == this.currentBlock
+        || this.currentPosition >= this.currentBlock.length) {
+      if (!this.nextBlock()) {
+        return -1;
+      }
+    }
+    int read = Math.min(length,
+        this.currentBlock.length - this.currentPosition);
+    System.arraycopy(this.currentBlock, this.currentPosition, buffer, offset,
+        read);
+    this.currentPosition += read;
+    return read;
+  }
+
+  @Override
+  public int available() {
+    return null == this.currentBlock ? 0
+        : this.currentBlock.length - this.currentPosition;
+  }
+
+  @Override
+  public void close() {
+    synchronized (this.idleInputs) {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+      for (SeekableXZInputStream sxis : this.idleInputs) {
+        closeQuietly(sxis);
+      }
+      this.idleInputs.clear();
+    }
+    for (Future<byte[]> pendingBlock : this.pendingBlocks) {
+      pendingBlock.cancel(true);
+    }
+    this.pendingBlocks.clear();
+    this.currentBlock = null;
+    this.executor.shutdownNow();
+  }
+}
@@ -27,7 +27,13 @@ public class RelayNetworkStatusConsensusImpl extends NetworkStatusImpl
   protected RelayNetworkStatusConsensusImpl(byte[] consensusBytes,
       int[] offsetAndLimit, File descriptorFile)
       throws DescriptorParseException {
-    super(consensusBytes, offsetAndLimit, descriptorFile, false);
+    this(consensusBytes, offsetAndLimit, descriptorFile, null);
+  }
+
+  protected RelayNetworkStatusConsensusImpl(byte[] consensusBytes,
+      int[] offsetAndLimit, File descriptorFile, Set<String> identities)
+      throws DescriptorParseException {
+    super(consensusBytes, offsetAndLimit, descriptorFile, false, identities);
     this.splitAndParseParts(true);
     Set<Key> exactlyOnceKeys = EnumSet.of(
         Key.VOTE_STATUS, Key.CONSENSUS_METHOD, Key.VALID_AFTER, Key.FRESH_UNTIL,
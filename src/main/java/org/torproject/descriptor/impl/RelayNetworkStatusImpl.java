@@ -23,7 +23,13 @@ public class RelayNetworkStatusImpl extends NetworkStatusImpl
 
   protected RelayNetworkStatusImpl(byte[] statusBytes, int[] offsetAndLength,
       File descriptorFile) throws DescriptorParseException {
-    super(statusBytes, offsetAndLength, descriptorFile, true);
+    this(statusBytes, offsetAndLength, descriptorFile, null);
+  }
+
+  protected RelayNetworkStatusImpl(byte[] statusBytes, int[] offsetAndLength,
+      File descriptorFile, Set<String> identities)
+      throws DescriptorParseException {
+    super(statusBytes, offsetAndLength, descriptorFile, true, identities);
     this.splitAndParseParts(false);
     Set<Key> exactlyOnceKeys = EnumSet.of(
         Key.NETWORK_STATUS_VERSION, Key.DIR_SOURCE, Key.FINGERPRINT,
@@ -28,7 +28,13 @@ public class RelayNetworkStatusVoteImpl extends NetworkStatusImpl
   protected RelayNetworkStatusVoteImpl(byte[] voteBytes, int[] offsetAndLength,
       File descriptorFile)
       throws DescriptorParseException {
-    super(voteBytes, offsetAndLength, descriptorFile, false);
+    this(voteBytes, offsetAndLength, descriptorFile, null);
+  }
+
+  protected RelayNetworkStatusVoteImpl(byte[] voteBytes, int[] offsetAndLength,
+      File descriptorFile, Set<String> identities)
+      throws DescriptorParseException {
+    super(voteBytes, offsetAndLength, descriptorFile, false, identities);
     this.splitAndParseParts(false);
     Set<Key> exactlyOnceKeys = EnumSet.of(
         Key.VOTE_STATUS, Key.PUBLISHED, Key.VALID_AFTER, Key.FRESH_UNTIL,
@@ -53,6 +53,32 @@ public abstract class ServerDescriptorImpl extends DescriptorImpl
     this.clearParsedKeys();
   }
 
+  /**
+   * Returns the upper-case, hex-encoded fingerprint from the fingerprint line
+   * of the server descriptor contained in the given string between
+   * {@code start} and {@code end} without parsing the descriptor, or
+   * {@code null} if there is no well-formed fingerprint line.
+   */
+  static String findFingerprint(String ascii, int start, int end) {
+    int lineStart = ascii.indexOf(NL + Key.FINGERPRINT.keyword + SP, start);
+    if (lineStart < 0 || lineStart >= end) {
+      lineStart = ascii.indexOf(NL + Key.OPT.keyword + SP
+          + Key.FINGERPRINT.keyword + SP, start);
+      if (lineStart < 0 || lineStart >= end) {
+        return null;
+      }
+      lineStart += Key.OPT.keyword.length() + 1;
+    }
+    int fingerprintStart = lineStart + Key.FINGERPRINT.keyword.length() + 2;
+    int fingerprintEnd = fingerprintStart + 5 * 10 - 1;
+    if (fingerprintEnd > end) {
+      return null;
+    }
+    String fingerprint = ascii.substring(fingerprintStart, fingerprintEnd)
+        .replaceAll(SP, "");
+    return fingerprint.length() == 40 ? fingerprint.toUpperCase() : null;
+  }
+
   private void parseDescriptorBytes() throws DescriptorParseException {
     Scanner scanner = this.newScanner().useDelimiter(NL);
     Key nextCrypto = Key.EMPTY;
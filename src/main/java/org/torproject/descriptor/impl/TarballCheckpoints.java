@@ -0,0 +1,278 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import org.torproject.descriptor.Descriptor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Checkpoints of reading tarballs, which record for each partially read
+ * tarball how many of its leading entries have been consumed completely
+ * and how many descriptors of the next entry have been consumed, so that a
+ * restarted reader can resume reading a tarball where the previous reader
+ * stopped.
+ *
+ * A descriptor counts as consumed once it has been returned to the
+ * application. Entries are counted in tarball order, including directories
+ * and entries that were skipped without parsing them. Checkpoints are
+ * written to a text file with one line per partially read tarball,
+ * containing the number of consumed entries, the number of consumed
+ * descriptors in the next entry, the last modified time of the tarball, and
+ * its absolute path, separated by spaces. If entries are parsed
+ * concurrently, descriptors of an entry may be consumed before all
+ * descriptors of previous entries, in which case the checkpoint only covers
+ * the leading entries that have been consumed completely and resuming may
+ * return some descriptors again. Instances are safe for use by multiple
+ * threads. */
+final class TarballCheckpoints {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      TarballCheckpoints.class);
+
+  /* Minimum time between writing checkpoints while consuming
+   * descriptors. */
+  private static final long WRITE_INTERVAL_MILLIS = 10_000L;
+
+  private final File checkpointFile;
+
+  /* Checkpoints read from the checkpoint file, by absolute tarball path. */
+  private final Map<String, Tarball> resumePoints = new HashMap<>();
+
+  /* Tarballs that are currently being read, by absolute path. */
+  private final Map<String, Tarball> tarballs = new LinkedHashMap<>();
+
+  /* Tarball entries of descriptors waiting to be consumed. */
+  private final Map<Descriptor, Entry> pendingDescriptors
+      = new IdentityHashMap<>();
+
+  private long lastWrittenMillis = System.currentTimeMillis();
+
+  private TarballCheckpoints(File checkpointFile) {
+    this.checkpointFile = checkpointFile;
+  }
+
+  /* Read checkpoints from the given file, if it exists, and write future
+   * checkpoints to the same file. */
+  static TarballCheckpoints open(File checkpointFile) throws IOException {
+    TarballCheckpoints checkpoints = new TarballCheckpoints(checkpointFile);
+    if (checkpointFile.exists()) {
+      for (String line : Files.readAllLines(checkpointFile.toPath(),
+          StandardCharsets.UTF_8)) {
+        String[] parts = line.split(" ", 4);
+        if (parts.length < 4) {
+          continue;
+        }
+        try {
+          Tarball tarball = new Tarball(parts[3], Long.parseLong(parts[2]),
+              Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+          checkpoints.resumePoints.put(tarball.absolutePath, tarball);
+        } catch (NumberFormatException e) {
+          logger.warn("Unexpected line structure in checkpoint file {}: {}",
+              checkpointFile, line);
+        }
+      }
+    }
+    return checkpoints;
+  }
+
+  /* Start tracking the given tarball and return its state, which tells
+   * from which entry on and after how many descriptors in that entry to
+   * resume reading if the tarball was partially read before and has not
+   * changed since. */
+  synchronized Tarball startTarball(File file) {
+    String absolutePath = file.getAbsolutePath();
+    long lastModifiedMillis = file.lastModified();
+    Tarball resumePoint = this.resumePoints.remove(absolutePath);
+    Tarball tarball;
+    if (null != resumePoint
+        && resumePoint.lastModifiedMillis == lastModifiedMillis) {
+      tarball = new Tarball(absolutePath, lastModifiedMillis,
+          resumePoint.consumedEntries, resumePoint.consumedDescriptors);
+    } else {
+      tarball = new Tarball(absolutePath, lastModifiedMillis, 0, 0);
+    }
+    this.tarballs.put(absolutePath, tarball);
+    return tarball;
+  }
+
+  /* Record the given descriptors parsed from the tarball entry with the
+   * given index, after leaving out descriptors that were consumed before
+   * resuming, which must happen before handing them to the application. */
+  synchronized void addEntry(Tarball tarball, int entryIndex,
+      List<Descriptor> descriptors, int skippedDescriptors) {
+    Entry entry = new Entry(tarball, descriptors.size(), skippedDescriptors);
+    tarball.entries.put(entryIndex, entry);
+    for (Descriptor descriptor : descriptors) {
+      this.pendingDescriptors.put(descriptor, entry);
+    }
+    tarball.advance();
+  }
+
+  /* Record that the given tarball has been read completely and contains the
+   * given number of entries. */
+  synchronized void finishTarball(Tarball tarball, int totalEntries) {
+    tarball.totalEntries = totalEntries;
+    if (tarball.advance()) {
+      this.tarballs.remove(tarball.absolutePath);
+    }
+  }
+
+  /* Record that the given descriptor has been consumed, and write
+   * checkpoints if they have not been written for some time. */
+  synchronized void consumed(Descriptor descriptor) {
+    Entry entry = this.pendingDescriptors.remove(descriptor);
+    if (null != entry) {
+      entry.consumedDescriptors++;
+      if (entry.tarball.advance()) {
+        this.tarballs.remove(entry.tarball.absolutePath);
+      }
+    }
+    if (System.currentTimeMillis() - this.lastWrittenMillis
+        >= WRITE_INTERVAL_MILLIS) {
+      this.write();
+    }
+  }
+
+  /* Write checkpoints of all partially read tarballs to the checkpoint
+   * file, replacing the previous checkpoints. Checkpoints of tarballs that
+   * were contained in the checkpoint file but that have not been read again
+   * are kept. */
+  synchronized void write() {
+    this.lastWrittenMillis = System.currentTimeMillis();
+    List<Tarball> tarballs = new ArrayList<>(this.resumePoints.values());
+    tarballs.addAll(this.tarballs.values());
+    if (null != this.checkpointFile.getParentFile()) {
+      this.checkpointFile.getParentFile().mkdirs();
+    }
+    File tempFile = new File(this.checkpointFile.getPath() + ".tmp");
+    try {
+      try (BufferedWriter bw = Files.newBufferedWriter(tempFile.toPath(),
+          StandardCharsets.UTF_8)) {
+        for (Tarball tarball : tarballs) {
+          bw.write(String.format("%d %d %d %s", tarball.consumedEntries,
+              tarball.consumedDescriptors, tarball.lastModifiedMillis,
+              tarball.absolutePath));
+          bw.newLine();
+        }
+      }
+      Files.move(tempFile.toPath(), this.checkpointFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      logger.warn("Trouble writing checkpoint file '{}'.",
+          this.checkpointFile, e);
+    }
+  }
+
+  /* Reading state of a single tarball. */
+  static final class Tarball {
+
+    private final String absolutePath;
+
+    private final long lastModifiedMillis;
+
+    /* Index of the first entry to read and number of descriptors to leave
+     * out from that entry when resuming. */
+    private final int resumeEntryIndex;
+
+    private final int resumeDescriptors;
+
+    /* Number of leading entries whose descriptors have all been
+     * consumed. */
+    private int consumedEntries;
+
+    /* Number of consumed descriptors in the entry following the completely
+     * consumed entries. */
+    private int consumedDescriptors;
+
+    /* Total number of entries, or -1 if the tarball is still being
+     * read. */
+    private int totalEntries = -1;
+
+    /* Entries with parsed descriptors that have not been consumed
+     * completely, by entry index. */
+    private final Map<Integer, Entry> entries = new HashMap<>();
+
+    private Tarball(String absolutePath, long lastModifiedMillis,
+        int consumedEntries, int consumedDescriptors) {
+      this.absolutePath = absolutePath;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.consumedEntries = consumedEntries;
+      this.consumedDescriptors = consumedDescriptors;
+      this.resumeEntryIndex = consumedEntries;
+      this.resumeDescriptors = consumedDescriptors;
+    }
+
+    /* Return the index of the first entry to read. */
+    int resumeEntryIndex() {
+      return this.resumeEntryIndex;
+    }
+
+    /* Return the number of descriptors to leave out from the given entry,
+     * which is non-zero only for the entry that was partially consumed
+     * before resuming. */
+    int resumeSkippedDescriptors(int entryIndex) {
+      return entryIndex == this.resumeEntryIndex ? this.resumeDescriptors
+          : 0;
+    }
+
+    /* Move the checkpoint forward past completely consumed entries, treating
+     * entries that were never added, for example because parsing failed, as
+     * consumed if the tarball has been read completely, and return whether
+     * all entries have been consumed. */
+    private boolean advance() {
+      while (true) {
+        Entry entry = this.entries.get(this.consumedEntries);
+        if (null != entry && entry.isConsumed()) {
+          this.entries.remove(this.consumedEntries);
+        } else if (null != entry || this.totalEntries < 0
+            || this.consumedEntries >= this.totalEntries) {
+          break;
+        }
+        this.consumedEntries++;
+      }
+      Entry next = this.entries.get(this.consumedEntries);
+      this.consumedDescriptors = null == next ? 0
+          : next.skippedDescriptors + next.consumedDescriptors;
+      return this.totalEntries >= 0
+          && this.consumedEntries >= this.totalEntries;
+    }
+  }
+
+  /* Consumption state of the descriptors parsed from a tarball entry. */
+  private static final class Entry {
+
+    private final Tarball tarball;
+
+    private final int totalDescriptors;
+
+    private final int skippedDescriptors;
+
+    private int consumedDescriptors;
+
+    private Entry(Tarball tarball, int totalDescriptors,
+        int skippedDescriptors) {
+      this.tarball = tarball;
+      this.totalDescriptors = totalDescriptors;
+      this.skippedDescriptors = skippedDescriptors;
+    }
+
+    private boolean isConsumed() {
+      return this.consumedDescriptors >= this.totalDescriptors;
+    }
+  }
+}
@@ -11,11 +11,14 @@ import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.StringJoiner;
 import java.util.TreeMap;
 
 public class TorperfResultImpl extends DescriptorImpl
@@ -71,6 +74,29 @@ public class TorperfResultImpl extends DescriptorImpl
     return parsedDescriptors;
   }
 
+  /**
+   * Create a Torperf result from the given key-value pairs, with the same
+   * result as parsing a line with these key-value pairs in the iteration
+   * order of the given map, following an {@code @type torperf 1.1}
+   * annotation, but without formatting and parsing that line.
+   *
+   * <p>The raw descriptor bytes are only formatted when requested.</p>
+   *
+   * @param keyValuePairs Key-value pairs, which must not contain spaces,
+   *     equal signs, or line breaks.
+   * @param descriptorFile Descriptor file that the key-value pairs were
+   *     obtained from, or {@code null}.
+   * @return Torperf result.
+   * @throws DescriptorParseException Thrown if any of the key-value pairs
+   *     cannot be parsed.
+   * @since 2.16.0
+   */
+  public static TorperfResult fromKeyValuePairs(
+      SortedMap<String, String> keyValuePairs, File descriptorFile)
+      throws DescriptorParseException {
+    return new TorperfResultImpl(keyValuePairs, descriptorFile);
+  }
+
   protected TorperfResultImpl(byte[] rawDescriptorBytes, File descriptorFile)
       throws DescriptorParseException {
     super(rawDescriptorBytes, new int[] { 0, rawDescriptorBytes.length },
@@ -78,6 +104,84 @@ public class TorperfResultImpl extends DescriptorImpl
     this.parseTorperfResultLine();
   }
 
+  private TorperfResultImpl(SortedMap<String, String> keyValuePairs,
+      File descriptorFile) throws DescriptorParseException {
+    super(new byte[0], new int[] { 0, 0 }, descriptorFile);
+    this.keyValuePairs = keyValuePairs;
+    if (keyValuePairs.isEmpty()) {
+      throw new DescriptorParseException("Blank lines are not allowed.");
+    }
+    for (Map.Entry<String, String> e : keyValuePairs.entrySet()) {
+      if (!isLegalKeyValuePair(e.getKey(), e.getValue())) {
+        throw new DescriptorParseException("Illegal key-value pair in "
+            + "line '" + this.line() + "'.");
+      }
+      this.parseKeyValue(e.getKey(), e.getValue());
+    }
+    this.checkAllRequiredKeysParsed();
+    this.line = null;
+  }
+
+  /* Return whether the given key-value pair would be parsed as a single
+   * key-value pair if it were contained in a line. */
+  private static boolean isLegalKeyValuePair(String key, String value) {
+    if (value.isEmpty()) {
+      return false;
+    }
+    for (String part : new String[] { key, value }) {
+      for (int i = 0; i < part.length(); i++) {
+        char c = part.charAt(i);
+        if (c == ' ' || c == '=' || c == '\r' || c == '\n') {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /* Key-value pairs that this Torperf result was created from, or null if
+   * it was parsed from raw descriptor bytes. */
+  private SortedMap<String, String> keyValuePairs;
+
+  /* Line being parsed, which is only formatted from key-value pairs if
+   * needed for an error message or an unrecognized line. */
+  private transient String line;
+
+  private String line() {
+    if (null == this.line && null != this.keyValuePairs) {
+      this.line = this.formatLine();
+    }
+    return this.line;
+  }
+
+  private String formatLine() {
+    StringJoiner sj = new StringJoiner(" ");
+    for (Map.Entry<String, String> e : this.keyValuePairs.entrySet()) {
+      sj.add(e.getKey() + "=" + e.getValue());
+    }
+    return sj.toString();
+  }
+
+  @Override
+  public byte[] getRawDescriptorBytes() {
+    return null == this.keyValuePairs ? super.getRawDescriptorBytes()
+        : (this.formatLine() + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public int getRawDescriptorLength() {
+    return null == this.keyValuePairs ? super.getRawDescriptorLength()
+        : this.getRawDescriptorBytes().length;
+  }
+
+  @Override
+  public List<String> getAnnotations() {
+    return null == this.keyValuePairs ? super.getAnnotations()
+        : new ArrayList<>(Collections.singletonList(TYPE_ANNOTATION));
+  }
+
+  private static final String TYPE_ANNOTATION = "@type torperf 1.1";
+
   private void parseTorperfResultLine()
       throws DescriptorParseException {
     String line = this.newScanner().nextLine();
@@ -87,6 +191,7 @@ public class TorperfResultImpl extends DescriptorImpl
     if (null == line || line.isEmpty()) {
       throw new DescriptorParseException("Blank lines are not allowed.");
     }
+    this.line = line;
     String[] parts = line.split(" ");
     for (String keyValue : parts) {
       String[] keyValueParts = keyValue.split("=");
@@ -94,117 +199,121 @@ public class TorperfResultImpl extends DescriptorImpl
         throw new DescriptorParseException("Illegal key-value pair in "
             + "line '" + line + "'.");
       }
-      String key = keyValueParts[0];
-      this.markKeyAsParsed(key, line);
-      String value = keyValueParts[1];
-      switch (key) {
-        case "SOURCE":
-          this.parseSource(value);
-          break;
-        case "FILESIZE":
-          this.parseFileSize(value, keyValue, line);
-          break;
-        case "START":
-          this.parseStart(value, keyValue, line);
-          break;
-        case "SOCKET":
-          this.parseSocket(value, keyValue, line);
-          break;
-        case "CONNECT":
-          this.parseConnect(value, keyValue, line);
-          break;
-        case "NEGOTIATE":
-          this.parseNegotiate(value, keyValue, line);
-          break;
-        case "REQUEST":
-          this.parseRequest(value, keyValue, line);
-          break;
-        case "RESPONSE":
-          this.parseResponse(value, keyValue, line);
-          break;
-        case "DATAREQUEST":
-          this.parseDataRequest(value, keyValue, line);
-          break;
-        case "DATARESPONSE":
-          this.parseDataResponse(value, keyValue, line);
-          break;
-        case "DATACOMPLETE":
-          this.parseDataComplete(value, keyValue, line);
-          break;
-        case "WRITEBYTES":
-          this.parseWriteBytes(value, keyValue, line);
-          break;
-        case "READBYTES":
-          this.parseReadBytes(value, keyValue, line);
-          break;
-        case "DIDTIMEOUT":
-          this.parseDidTimeout(value, keyValue, line);
-          break;
-        case "LAUNCH":
-          this.parseLaunch(value, keyValue, line);
-          break;
-        case "USED_AT":
-          this.parseUsedAt(value, keyValue, line);
-          break;
-        case "PATH":
-          this.parsePath(value, keyValue, line);
-          break;
-        case "BUILDTIMES":
-          this.parseBuildTimes(value, keyValue, line);
-          break;
-        case "TIMEOUT":
-          this.parseTimeout(value, keyValue, line);
-          break;
-        case "QUANTILE":
-          this.parseQuantile(value, keyValue, line);
-          break;
-        case "CIRC_ID":
-          this.parseCircId(value, keyValue, line);
-          break;
-        case "USED_BY":
-          this.parseUsedBy(value, keyValue, line);
-          break;
-        case "ENDPOINTLOCAL":
-          this.parseEndpointLocal(value);
-          break;
-        case "ENDPOINTPROXY":
-          this.parseEndpointProxy(value);
-          break;
-        case "ENDPOINTREMOTE":
-          this.parseEndpointRemote(value);
-          break;
-        case "HOSTNAMELOCAL":
-          this.parseHostnameLocal(value);
-          break;
-        case "HOSTNAMEREMOTE":
-          this.parseHostnameRemote(value);
-          break;
-        case "SOURCEADDRESS":
-          this.parseSourceAddress(value);
-          break;
-        case "ERRORCODE":
-          this.parseErrorcode(value);
-          break;
-        default:
-          if (key.startsWith("DATAPERC")) {
-            this.parseDataPercentile(value, keyValue, line);
-          } else if (key.startsWith("PARTIAL")) {
-            this.parsePartial(value, keyValue, line);
-          } else {
-            if (this.unrecognizedKeys == null) {
-              this.unrecognizedKeys = new TreeMap<>();
-            }
-            this.unrecognizedKeys.put(key, value);
-            if (this.unrecognizedLines == null) {
-              this.unrecognizedLines = new ArrayList<>();
-            }
-            if (!this.unrecognizedLines.contains(line)) {
-              this.unrecognizedLines.add(line);
-            }
+      this.parseKeyValue(keyValueParts[0], keyValueParts[1]);
+    }
+    this.checkAllRequiredKeysParsed();
+    this.line = null;
+  }
+
+  private void parseKeyValue(String key, String value)
+      throws DescriptorParseException {
+    this.markKeyAsParsed(key);
+    switch (key) {
+      case "SOURCE":
+        this.parseSource(value);
+        break;
+      case "FILESIZE":
+        this.parseFileSize(key, value);
+        break;
+      case "START":
+        this.parseStart(key, value);
+        break;
+      case "SOCKET":
+        this.parseSocket(key, value);
+        break;
+      case "CONNECT":
+        this.parseConnect(key, value);
+        break;
+      case "NEGOTIATE":
+        this.parseNegotiate(key, value);
+        break;
+      case "REQUEST":
+        this.parseRequest(key, value);
+        break;
+      case "RESPONSE":
+        this.parseResponse(key, value);
+        break;
+      case "DATAREQUEST":
+        this.parseDataRequest(key, value);
+        break;
+      case "DATARESPONSE":
+        this.parseDataResponse(key, value);
+        break;
+      case "DATACOMPLETE":
+        this.parseDataComplete(key, value);
+        break;
+      case "WRITEBYTES":
+        this.parseWriteBytes(key, value);
+        break;
+      case "READBYTES":
+        this.parseReadBytes(key, value);
+        break;
+      case "DIDTIMEOUT":
+        this.parseDidTimeout(key, value);
+        break;
+      case "LAUNCH":
+        this.parseLaunch(key, value);
+        break;
+      case "USED_AT":
+        this.parseUsedAt(key, value);
+        break;
+      case "PATH":
+        this.parsePath(key, value);
+        break;
+      case "BUILDTIMES":
+        this.parseBuildTimes(key, value);
+        break;
+      case "TIMEOUT":
+        this.parseTimeout(key, value);
+        break;
+      case "QUANTILE":
+        this.parseQuantile(key, value);
+        break;
+      case "CIRC_ID":
+        this.parseCircId(key, value);
+        break;
+      case "USED_BY":
+        this.parseUsedBy(key, value);
+        break;
+      case "ENDPOINTLOCAL":
+        this.parseEndpointLocal(value);
+        break;
+      case "ENDPOINTPROXY":
+        this.parseEndpointProxy(value);
+        break;
+      case "ENDPOINTREMOTE":
+        this.parseEndpointRemote(value);
+        break;
+      case "HOSTNAMELOCAL":
+        this.parseHostnameLocal(value);
+        break;
+      case "HOSTNAMEREMOTE":
+        this.parseHostnameRemote(value);
+        break;
+      case "SOURCEADDRESS":
+        this.parseSourceAddress(value);
+        break;
+      case "ERRORCODE":
+        this.parseErrorcode(value);
+        break;
+      default:
+        if (key.startsWith("DATAPERC")) {
+          this.parseDataPercentile(key, value);
+        } else if (key.startsWith("PARTIAL")) {
+          this.parsePartial(key, value);
+        } else {
+          if (this.unrecognizedKeys == null) {
+            this.unrecognizedKeys = new TreeMap<>();
           }
-      }
+          this.unrecognizedKeys.put(key, value);
+          if (this.unrecognizedLines == null) {
+            this.unrecognizedLines = new ArrayList<>();
+          }
+          if (!this.unrecognizedLines.contains(this.line())) {
+            this.unrecognizedLines.add(this.line());
+          }
+        }
     }
-    this.checkAllRequiredKeysParsed(line);
   }
 
   private Set<String> parsedKeys = new HashSet<>();
@@ -214,22 +323,22 @@ public class TorperfResultImpl extends DescriptorImpl
       + "DATAREQUEST,DATARESPONSE,DATACOMPLETE,WRITEBYTES,READBYTES")
       .split(",")));
 
-  private void markKeyAsParsed(String key, String line)
+  private void markKeyAsParsed(String key)
       throws DescriptorParseException {
     if (this.parsedKeys.contains(key)) {
       throw new DescriptorParseException("Key '" + key + "' is contained "
-          + "at least twice in line '" + line + "', but must be "
+          + "at least twice in line '" + this.line() + "', but must be "
           + "contained at most once.");
     }
     this.parsedKeys.add(key);
     this.requiredKeys.remove(key);
   }
 
-  private void checkAllRequiredKeysParsed(String line)
+  private void checkAllRequiredKeysParsed()
       throws DescriptorParseException {
     for (String key : this.requiredKeys) {
       throw new DescriptorParseException("Key '" + key + "' is contained "
-          + "contained 0 times in line '" + line + "', but must be "
+          + "contained 0 times in line '" + this.line() + "', but must be "
           + "contained exactly once.");
     }
   }
@@ -238,72 +347,72 @@ public class TorperfResultImpl extends DescriptorImpl
     this.source = value;
   }
 
-  private void parseFileSize(String value, String keyValue, String line)
+  private void parseFileSize(String key, String value)
       throws DescriptorParseException {
     try {
       this.fileSize = Integer.parseInt(value);
     } catch (NumberFormatException e) {
-      throw new DescriptorParseException("Illegal value in '" + keyValue
-          + "' in line '" + line + "'.");
+      throw new DescriptorParseException("Illegal value in '" + key + "="
+            + value + "' in line '" + this.line() + "'.");
     }
   }
 
-  private void parseStart(String value, String keyValue, String line)
+  private void parseStart(String key, String value)
       throws DescriptorParseException {
-    this.startMillis = this.parseTimestamp(value, keyValue, line);
+    this.startMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseSocket(String value, String keyValue, String line)
+  private void parseSocket(String key, String value)
       throws DescriptorParseException {
-    this.socketMillis = this.parseTimestamp(value, keyValue, line);
+    this.socketMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseConnect(String value, String keyValue, String line)
+  private void parseConnect(String key, String value)
       throws DescriptorParseException {
-    this.connectMillis = this.parseTimestamp(value, keyValue, line);
+    this.connectMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseNegotiate(String value, String keyValue, String line)
+  private void parseNegotiate(String key, String value)
       throws DescriptorParseException {
-    this.negotiateMillis = this.parseTimestamp(value, keyValue, line);
+    this.negotiateMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseRequest(String value, String keyValue, String line)
+  private void parseRequest(String key, String value)
       throws DescriptorParseException {
-    this.requestMillis = this.parseTimestamp(value, keyValue, line);
+    this.requestMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseResponse(String value, String keyValue, String line)
+  private void parseResponse(String key, String value)
       throws DescriptorParseException {
-    this.responseMillis = this.parseTimestamp(value, keyValue, line);
+    this.responseMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseDataRequest(String value, String keyValue,
-      String line) throws DescriptorParseException {
-    this.dataRequestMillis = this.parseTimestamp(value, keyValue, line);
+  private void parseDataRequest(String key, String value)
+      throws DescriptorParseException {
+    this.dataRequestMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseDataResponse(String value, String keyValue,
-      String line) throws DescriptorParseException {
-    this.dataResponseMillis = this.parseTimestamp(value, keyValue, line);
+  private void parseDataResponse(String key, String value)
+      throws DescriptorParseException {
+    this.dataResponseMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseDataComplete(String value, String keyValue,
-      String line) throws DescriptorParseException {
-    this.dataCompleteMillis = this.parseTimestamp(value, keyValue, line);
+  private void parseDataComplete(String key, String value)
+      throws DescriptorParseException {
+    this.dataCompleteMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseWriteBytes(String value, String keyValue, String line)
+  private void parseWriteBytes(String key, String value)
       throws DescriptorParseException {
-    this.writeBytes = parseInt(value, keyValue, line);
+    this.writeBytes = parseInt(key, value);
   }
 
-  private void parseReadBytes(String value, String keyValue, String line)
+  private void parseReadBytes(String key, String value)
       throws DescriptorParseException {
-    this.readBytes = parseInt(value, keyValue, line);
+    this.readBytes = parseInt(key, value);
   }
 
-  private void parseDidTimeout(String value, String keyValue, String line)
+  private void parseDidTimeout(String key, String value)
       throws DescriptorParseException {
     switch (value) {
       case "1":
@@ -313,14 +422,13 @@ public class TorperfResultImpl extends DescriptorImpl
         this.didTimeout = false;
         break;
       default:
-        throw new DescriptorParseException("Illegal value in '" + keyValue
-            + "' in line '" + line + "'.");
+        throw new DescriptorParseException("Illegal value in '" + key + "="
+            + value + "' in line '" + this.line() + "'.");
     }
   }
 
-  private void parsePartial(String value, String keyValue, String line)
+  private void parsePartial(String key, String value)
       throws DescriptorParseException {
-    String key = keyValue.substring(0, keyValue.indexOf("="));
     String bytesString = key.substring("PARTIAL".length());
     int bytes;
     try {
@@ -335,7 +443,7 @@ public class TorperfResultImpl extends DescriptorImpl
       }
       this.unrecognizedKeys.put(key, value);
     } else {
-      long timestamp = this.parseTimestamp(value, keyValue, line);
+      long timestamp = this.parseTimestamp(key, value);
       if (this.partials == null) {
         this.partials = new TreeMap<>();
       }
@@ -343,9 +451,8 @@ public class TorperfResultImpl extends DescriptorImpl
     }
   }
 
-  private void parseDataPercentile(String value, String keyValue,
-      String line) throws DescriptorParseException {
-    String key = keyValue.substring(0, keyValue.indexOf("="));
+  private void parseDataPercentile(String key, String value)
+      throws DescriptorParseException {
     String percentileString = key.substring("DATAPERC".length());
     int percentile;
     try {
@@ -360,7 +467,7 @@ public class TorperfResultImpl extends DescriptorImpl
       }
       this.unrecognizedKeys.put(key, value);
     } else {
-      long timestamp = this.parseTimestamp(value, keyValue, line);
+      long timestamp = this.parseTimestamp(key, value);
       if (this.dataPercentiles == null) {
         this.dataPercentiles = new TreeMap<>();
       }
@@ -368,59 +475,59 @@ public class TorperfResultImpl extends DescriptorImpl
     }
   }
 
-  private void parseLaunch(String value, String keyValue, String line)
+  private void parseLaunch(String key, String value)
       throws DescriptorParseException {
-    this.launchMillis = this.parseTimestamp(value, keyValue, line);
+    this.launchMillis = this.parseTimestamp(key, value);
   }
 
-  private void parseUsedAt(String value, String keyValue, String line)
+  private void parseUsedAt(String key, String value)
       throws DescriptorParseException {
-    this.usedAtMillis = this.parseTimestamp(value, keyValue, line);
+    this.usedAtMillis = this.parseTimestamp(key, value);
   }
 
-  private void parsePath(String value, String keyValue, String line)
+  private void parsePath(String key, String value)
       throws DescriptorParseException {
     String[] valueParts = value.split(",");
     String[] result = new String[valueParts.length];
     for (int i = 0; i < valueParts.length; i++) {
       if (valueParts[i].length() != 41) {
-        throw new DescriptorParseException("Illegal value in '" + keyValue
-            + "' in line '" + line + "'.");
+        throw new DescriptorParseException("Illegal value in '" + key + "="
+            + value + "' in line '" + this.line() + "'.");
       }
-      result[i] = ParseHelper.parseTwentyByteHexString(line,
+      result[i] = ParseHelper.parseTwentyByteHexString(this.line(),
           valueParts[i].substring(1));
     }
     this.path = result;
   }
 
-  private void parseBuildTimes(String value, String keyValue, String line)
+  private void parseBuildTimes(String key, String value)
       throws DescriptorParseException {
     String[] valueParts = value.split(",");
     Long[] result = new Long[valueParts.length];
     for (int i = 0; i < valueParts.length; i++) {
-      result[i] = this.parseTimestamp(valueParts[i], keyValue, line);
+      result[i] = this.parseTimestamp(key, value, valueParts[i]);
     }
     this.buildTimes = result;
   }
 
-  private void parseTimeout(String value, String keyValue, String line)
+  private void parseTimeout(String key, String value)
       throws DescriptorParseException {
-    this.timeout = this.parseInt(value, keyValue, line);
+    this.timeout = this.parseInt(key, value);
   }
 
-  private void parseQuantile(String value, String keyValue, String line)
+  private void parseQuantile(String key, String value)
       throws DescriptorParseException {
-    this.quantile = this.parseDouble(value, keyValue, line);
+    this.quantile = this.parseDouble(key, value);
   }
 
-  private void parseCircId(String value, String keyValue, String line)
+  private void parseCircId(String key, String value)
       throws DescriptorParseException {
-    this.circId = this.parseInt(value, keyValue, line);
+    this.circId = this.parseInt(key, value);
   }
 
-  private void parseUsedBy(String value, String keyValue, String line)
+  private void parseUsedBy(String key, String value)
       throws DescriptorParseException {
-    this.usedBy = this.parseInt(value, keyValue, line);
+    this.usedBy = this.parseInt(key, value);
   }
 
   private void parseEndpointLocal(String value) {
@@ -451,11 +558,17 @@ public class TorperfResultImpl extends DescriptorImpl
     this.errorCode = value;
   }
 
-  private long parseTimestamp(String value, String keyValue, String line)
+  private long parseTimestamp(String key, String value)
       throws DescriptorParseException {
+    return this.parseTimestamp(key, value, value);
+  }
+
+  private long parseTimestamp(String key, String value,
+      String timestampString) throws DescriptorParseException {
     long timestamp = -1L;
-    if (value.contains(".") && value.split("\\.").length == 2) {
-      String zeroPaddedValue = (value + "000");
+    if (timestampString.contains(".")
+        && timestampString.split("\\.").length == 2) {
+      String zeroPaddedValue = (timestampString + "000");
       String threeDecimalPlaces = zeroPaddedValue.substring(0,
           zeroPaddedValue.indexOf(".") + 4);
       String millisString = threeDecimalPlaces.replaceAll("\\.", "");
@@ -466,29 +579,30 @@ public class TorperfResultImpl extends DescriptorImpl
       }
     }
     if (timestamp < 0L) {
-      throw new DescriptorParseException("Illegal timestamp '" + value
-          + "' in '" + keyValue + "' in line '" + line + "'.");
+      throw new DescriptorParseException("Illegal timestamp '"
+          + timestampString + "' in '" + key + "=" + value + "' in line '"
+          + this.line() + "'.");
     }
     return timestamp;
   }
 
-  private int parseInt(String value, String keyValue, String line)
+  private int parseInt(String key, String value)
       throws DescriptorParseException {
     try {
       return Integer.parseInt(value);
     } catch (NumberFormatException e) {
-      throw new DescriptorParseException("Illegal value in '" + keyValue
-          + "' in line '" + line + "'.");
+      throw new DescriptorParseException("Illegal value in '" + key + "="
+            + value + "' in line '" + this.line() + "'.");
     }
   }
 
-  private double parseDouble(String value, String keyValue, String line)
+  private double parseDouble(String key, String value)
       throws DescriptorParseException {
     try {
       return Double.parseDouble(value);
     } catch (NumberFormatException e) {
-      throw new DescriptorParseException("Illegal value in '" + keyValue
-          + "' in line '" + line + "'.");
+      throw new DescriptorParseException("Illegal value in '" + key + "="
+            + value + "' in line '" + this.line() + "'.");
     }
   }
 
@@ -3,29 +3,63 @@
 
 package org.torproject.descriptor.index;
 
+import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorCollector;
+import org.torproject.descriptor.DescriptorSourceFactory;
+import org.torproject.descriptor.impl.BlockingIteratorImpl;
+import org.torproject.descriptor.internal.CompressionCodecs;
+import org.torproject.descriptor.internal.FileType;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.nio.file.FileVisitResult;
+import java.net.URLConnection;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Download files from a CollecTor instance based on the remote
  * instance's index.json.
  *
+ * <p>When fetching from an HTTP server, a copy of the last fetched index can
+ * be kept in an index cache directory outside of the local directory and
+ * reused if the remote index has not changed, and downloads that were
+ * interrupted are resumed using range requests.</p>
+ *
+ * <p>Fetched files are only stored if they have the size given in the
+ * index and, if the index contains a SHA-256 digest of a file, if they
+ * have that digest, which is computed while writing the file.</p>
+ *
+ * <p>A manifest of local files is kept in the same index cache directory
+ * and updated whenever files are fetched or deleted, so that only local
+ * directories that have changed since the previous run need to be listed
+ * again.</p>
+ *
  * @since 1.4.0
  */
 public class DescriptorIndexCollector implements DescriptorCollector {
@@ -33,6 +67,12 @@ public class DescriptorIndexCollector implements DescriptorCollector {
   private static final Logger logger = LoggerFactory
       .getLogger(DescriptorIndexCollector.class);
 
+  private static final int READ_TIMEOUT = Integer.parseInt(System
+      .getProperty("sun.net.client.defaultReadTimeout", "60000"));
+
+  private static final int CONNECT_TIMEOUT = Integer.parseInt(System
+      .getProperty("sun.net.client.defaultConnectTimeout", "60000"));
+
   /**
    * If {@code collecTorIndexUrlString} contains just the
    * base url, e.g. https://some.host.org, the path
@@ -45,6 +85,47 @@ public class DescriptorIndexCollector implements DescriptorCollector {
       String[] remoteDirectories, long minLastModified,
       File localDirectory, boolean deleteExtraneousLocalFiles) {
     logger.info("Starting descriptor collection.");
+    this.checkArguments(collecTorIndexUrlString, remoteDirectories,
+        minLastModified, localDirectory);
+    this.collect(collecTorIndexUrlString, remoteDirectories, minLastModified,
+        localDirectory, deleteExtraneousLocalFiles, null);
+  }
+
+  /**
+   * Same as {@link #collectDescriptors(String, String[], long, File,
+   * boolean)}, but also parses descriptors contained in fetched files while
+   * other files are still being fetched.
+   */
+  @Override
+  public Iterable<Descriptor> collectAndParseDescriptors(
+      String collecTorIndexUrlString, String[] remoteDirectories,
+      long minLastModified, File localDirectory,
+      boolean deleteExtraneousLocalFiles) {
+    logger.info("Starting descriptor collection and parsing.");
+    this.checkArguments(collecTorIndexUrlString, remoteDirectories,
+        minLastModified, localDirectory);
+    ParsedDescriptors descriptors = new ParsedDescriptors();
+    Thread collectorThread = new Thread(() -> {
+      try {
+        this.collect(collecTorIndexUrlString, remoteDirectories,
+            minLastModified, localDirectory, deleteExtraneousLocalFiles,
+            descriptors);
+      } catch (RuntimeException e) {
+        logger.error("Bug: uncaught exception or error while collecting "
+            + "descriptors.", e);
+      } finally {
+        descriptors.finishParsing();
+      }
+    });
+    collectorThread.setName("DescriptorCollector");
+    collectorThread.setDaemon(true);
+    collectorThread.start();
+    return descriptors;
+  }
+
+  private void checkArguments(String collecTorIndexUrlString,
+      String[] remoteDirectories, long minLastModified,
+      File localDirectory) {
     if (minLastModified < 0) {
       throw new IllegalArgumentException("A negative minimum "
           + "last-modified time is not permitted.");
@@ -60,9 +141,35 @@ public class DescriptorIndexCollector implements DescriptorCollector {
           + "fetched files.  Move this file away or delete it.  Aborting "
           + "descriptor collection.");
     }
-    logger.info("Indexing local directory {}.",
-        localDirectory.getAbsolutePath());
-    SortedMap<String, Long> localFiles = statLocalDirectory(localDirectory);
+    if (null != this.indexCacheDirectory
+        && this.indexCacheDirectory.getAbsoluteFile().toPath().normalize()
+        .startsWith(localDirectory.getAbsoluteFile().toPath().normalize())) {
+      throw new IllegalArgumentException("The index cache directory must not "
+          + "be located inside the local directory, where it would be read "
+          + "together with collected descriptors.");
+    }
+  }
+
+  /* Collect descriptors, and hand over fetched files to the given queue for
+   * parsing if it is not null, without waiting for them to be parsed. */
+  private void collect(String collecTorIndexUrlString,
+      String[] remoteDirectories, long minLastModified,
+      File localDirectory, boolean deleteExtraneousLocalFiles,
+      ParsedDescriptors descriptors) {
+    File manifestFile = null == this.indexCacheDirectory ? null
+        : LocalManifest.manifestFile(this.indexCacheDirectory);
+    LocalManifest manifest;
+    if (null == manifestFile || this.scanLocalDirectory
+        || !manifestFile.exists()) {
+      logger.info("Indexing local directory {}.",
+          localDirectory.getAbsolutePath());
+      manifest = LocalManifest.scan(localDirectory);
+    } else {
+      logger.info("Reading manifest of local directory {}.",
+          localDirectory.getAbsolutePath());
+      manifest = LocalManifest.open(localDirectory, manifestFile);
+    }
+    SortedMap<String, Long> localFiles = manifest.files();
     SortedMap<String, FileNode> remoteFiles;
     IndexNode index;
     String indexUrlString = "";
@@ -73,7 +180,8 @@ public class DescriptorIndexCollector implements DescriptorCollector {
         indexUrlString += "/index/index.json";
       }
       logger.info("Fetching remote index file {}.", indexUrlString);
-      index = IndexNode.fetchIndex(indexUrlString);
+      index = fetchIndex(indexUrlString, this.indexCacheDirectory,
+          remoteDirectories);
       remoteFiles = index.retrieveFilesIn(remoteDirectories);
     } catch (Exception ex) {
       logger.warn("Cannot fetch index file {} and hence cannot determine which "
@@ -83,7 +191,10 @@ public class DescriptorIndexCollector implements DescriptorCollector {
     }
     logger.info("Fetching remote files from {}.", index.path);
     if (!this.fetchRemoteFiles(index.path, remoteFiles, minLastModified,
-        localDirectory, localFiles)) {
+        localDirectory, localFiles, descriptors)) {
+      if (null != manifestFile) {
+        manifest.write(manifestFile);
+      }
       return;
     }
     if (deleteExtraneousLocalFiles) {
@@ -92,11 +203,65 @@ public class DescriptorIndexCollector implements DescriptorCollector {
       deleteExtraneousLocalFiles(remoteDirectories, remoteFiles, localDirectory,
           localFiles);
     }
+    if (null != manifestFile) {
+      manifest.write(manifestFile);
+    }
     logger.info("Finished descriptor collection.");
   }
 
+  private boolean scanLocalDirectory = false;
+
+  @Override
+  public void setScanLocalDirectory(boolean scanLocalDirectory) {
+    this.scanLocalDirectory = scanLocalDirectory;
+  }
+
+  private File indexCacheDirectory = null;
+
+  @Override
+  public void setIndexCacheDirectory(File indexCacheDirectory) {
+    this.indexCacheDirectory = indexCacheDirectory;
+  }
+
+  private int downloadThreads = 1;
+
+  @Override
+  public void setDownloadThreads(int downloadThreads) {
+    if (downloadThreads < 1) {
+      throw new IllegalArgumentException("Number of download threads must be "
+          + "at least 1.");
+    }
+    this.downloadThreads = downloadThreads;
+  }
+
+  private int maxDownloadsPerHost = 4;
+
+  @Override
+  public void setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+    if (maxDownloadsPerHost < 1) {
+      throw new IllegalArgumentException("Maximum number of downloads per host "
+          + "must be at least 1.");
+    }
+    this.maxDownloadsPerHost = maxDownloadsPerHost;
+  }
+
+  /* Fetch remote files that are newer than both the given minimum last
+   * modified time and the corresponding local files, and update the given
+   * local files with the fetched files and any temporary files that were
+   * left behind. */
   boolean fetchRemoteFiles(String baseUrl, SortedMap<String, FileNode> remotes,
       long minLastModified, File localDir, SortedMap<String, Long> locals) {
+    return this.fetchRemoteFiles(baseUrl, remotes, minLastModified, localDir,
+        locals, null);
+  }
+
+  /* Fetch remote files like above, and hand over descriptors parsed from
+   * fetched files to the given queue if it is not null. */
+  private boolean fetchRemoteFiles(String baseUrl,
+      SortedMap<String, FileNode> remotes, long minLastModified,
+      File localDir, SortedMap<String, Long> locals,
+      ParsedDescriptors descriptors) {
+    List<Map.Entry<String, FileNode>> fetches = new ArrayList<>();
     for (Map.Entry<String, FileNode> entry : remotes.entrySet()) {
       String filepathname = entry.getKey();
       String filename = entry.getValue().path;
@@ -113,40 +278,486 @@ public class DescriptorIndexCollector implements DescriptorCollector {
             + "Aborting descriptor collection.", filepath, filename);
         return false;
       }
-      File destinationFile = new File(filepath, filename);
-      File tempDestinationFile = new File(filepath, "." + filename);
-      logger.debug("Fetching remote file {} with expected size of {} bytes "
-          + "from {}, storing locally to temporary file {}, then renaming to "
-          + "{}.",
-          filepathname, entry.getValue().size, baseUrl,
-          tempDestinationFile.getAbsolutePath(),
-          destinationFile.getAbsolutePath());
-      try (InputStream is = new URL(baseUrl + "/" + filepathname)
-          .openStream()) {
-        Files.copy(is, tempDestinationFile.toPath(),
-            StandardCopyOption.REPLACE_EXISTING);
-        if (tempDestinationFile.length() == entry.getValue().size) {
-          tempDestinationFile.renameTo(destinationFile);
-          destinationFile.setLastModified(lastModifiedMillis);
+      fetches.add(entry);
+    }
+    if (fetches.isEmpty()) {
+      return true;
+    }
+    long started = System.currentTimeMillis();
+    AtomicLong fetchedFiles = new AtomicLong();
+    AtomicLong fetchedBytes = new AtomicLong();
+    AtomicLong digestMismatches = new AtomicLong();
+    Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(this.downloadThreads, fetches.size()), runnable -> {
+          Thread thread = new Thread(runnable);
+          thread.setName("DescriptorCollector-" + thread.getId());
+          thread.setDaemon(true);
+          return thread;
+        });
+    for (Map.Entry<String, FileNode> entry : fetches) {
+      executor.execute(() -> {
+        long bytes = this.fetchRemoteFile(baseUrl, entry.getKey(),
+            entry.getValue(), localDir, hostPermits, descriptors);
+        if (bytes >= 0L) {
+          fetchedFiles.incrementAndGet();
+          fetchedBytes.addAndGet(bytes);
+        } else if (DIGEST_MISMATCH == bytes) {
+          digestMismatches.incrementAndGet();
+        }
+        updateLocalFiles(locals, localDir, entry.getKey(),
+            entry.getValue().path);
+      });
+    }
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1L, TimeUnit.MINUTES)) {
+        /* Keep waiting until all remote files have been fetched. */
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      logger.warn("Interrupted while fetching remote files from {}. Aborting "
+          + "descriptor collection.", baseUrl);
+      return false;
+    }
+    long millis = Math.max(1L, System.currentTimeMillis() - started);
+    logger.info("Fetched {} of {} remote files with {} bytes from {} in {} ms "
+        + "({} KiB/s).", fetchedFiles.get(), fetches.size(), fetchedBytes.get(),
+        baseUrl, millis, fetchedBytes.get() * 1000L / 1024L / millis);
+    if (digestMismatches.get() > 0L) {
+      logger.warn("{} of {} remote files fetched from {} did not match the "
+          + "SHA-256 digests in the index and were not stored.",
+          digestMismatches.get(), fetches.size(), baseUrl);
+    }
+    return true;
+  }
+
+  /* Return value of fetchRemoteFile for files with a different digest than
+   * the one contained in the index. */
+  private static final long DIGEST_MISMATCH = -2L;
+
+  /* Fetch a single remote file to a temporary file, and move it into place
+   * if it has the expected size and digest, returning its size,
+   * DIGEST_MISMATCH if it has a different digest, or -1 if it could not be
+   * fetched or stored. Concurrent downloads from the same host are limited
+   * by semaphores in the given map. If a queue for parsed descriptors is
+   * given, the fetched bytes of plain descriptor files are kept in memory
+   * and handed over for parsing after storing the file and releasing the
+   * permit, whereas tarballs and compressed files are read from disk. */
+  private long fetchRemoteFile(String baseUrl, String filepathname,
+      FileNode fileNode, File localDir, Map<String, Semaphore> hostPermits,
+      ParsedDescriptors descriptors) {
+    String filename = fileNode.path;
+    File filepath = new File(localDir, filepathname.replace(filename, ""));
+    File destinationFile = new File(filepath, filename);
+    File tempDestinationFile = new File(filepath, "." + filename);
+    logger.debug("Fetching remote file {} with expected size of {} bytes "
+        + "from {}, storing locally to temporary file {}, then renaming to "
+        + "{}.",
+        filepathname, fileNode.size, baseUrl,
+        tempDestinationFile.getAbsolutePath(),
+        destinationFile.getAbsolutePath());
+    Semaphore permits = null;
+    ByteArrayOutputStream fetchedBytes = null;
+    boolean stored = false;
+    try {
+      URL url = new URL(baseUrl + "/" + filepathname);
+      permits = hostPermits.computeIfAbsent(url.getHost(),
+          host -> new Semaphore(this.maxDownloadsPerHost));
+      permits.acquireUninterruptibly();
+      /* Resume a previously interrupted download of the same remote file,
+       * which is recognized by the temporary file's last-modified time
+       * having been set to the remote file's last-modified time. */
+      long offset = tempDestinationFile.length();
+      if (offset >= fileNode.size || tempDestinationFile.lastModified()
+          != fileNode.lastModifiedMillis()) {
+        offset = 0L;
+      }
+      URLConnection connection = url.openConnection();
+      if (offset > 0L && connection instanceof HttpURLConnection) {
+        connection.setRequestProperty("Range", "bytes=" + offset + "-");
+      } else {
+        offset = 0L;
+      }
+      MessageDigest digest = null == fileNode.sha256 ? null
+          : MessageDigest.getInstance("SHA-256");
+      fetchedBytes = null == descriptors
+          || isReadFromDisk(filename) ? null
+          : new ByteArrayOutputStream((int) Math.min(fileNode.size,
+          Integer.MAX_VALUE - 8));
+      try (InputStream is = connection.getInputStream()) {
+        boolean append = offset > 0L
+            && ((HttpURLConnection) connection).getResponseCode()
+            == HttpURLConnection.HTTP_PARTIAL
+            && String.valueOf(connection.getHeaderField("Content-Range"))
+            .startsWith("bytes " + offset + "-");
+        if (append) {
+          logger.debug("Resuming download of remote file {} at byte {}.",
+              filepathname, offset);
+          if (null != digest || null != fetchedBytes) {
+            /* The digest and the bytes to parse cover the whole file,
+             * including the part that was fetched before. */
+            try (InputStream fetched = Files.newInputStream(
+                tempDestinationFile.toPath())) {
+              copy(fetched, fetchedBytes, digest);
+            }
+          }
+        }
+        try (OutputStream os = Files.newOutputStream(
+            tempDestinationFile.toPath(), StandardOpenOption.CREATE,
+            append ? StandardOpenOption.APPEND
+            : StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+          copy(is, null == fetchedBytes ? os
+              : new TeeOutputStream(os, fetchedBytes), digest);
+        } finally {
+          /* Mark the temporary file as belonging to this version of the
+           * remote file, so that an incomplete download can be resumed
+           * later. */
+          tempDestinationFile.setLastModified(fileNode.lastModifiedMillis());
+        }
+      }
+      byte[] fetchedDigest = null == digest ? null : digest.digest();
+      if (tempDestinationFile.length() == fileNode.size && null != digest
+          && !matchesDigest(fetchedDigest, fileNode.sha256)) {
+        logger.warn("Fetched remote file {} from {} has a SHA-256 digest of "
+            + "{} which is different from the expected {}.  Not storing this "
+            + "file.", filename, baseUrl,
+            Base64.getEncoder().encodeToString(fetchedDigest),
+            fileNode.sha256);
+        tempDestinationFile.delete();
+        return DIGEST_MISMATCH;
+      } else if (tempDestinationFile.length() == fileNode.size) {
+        tempDestinationFile.renameTo(destinationFile);
+        destinationFile.setLastModified(fileNode.lastModifiedMillis());
+        stored = true;
+      } else {
+        logger.warn("Fetched remote file {} from {} has a size of {} bytes "
+            + "which is different from the expected {} bytes.  Not storing "
+            + "this file.",
+            filename, baseUrl, tempDestinationFile.length(),
+            fileNode.size);
+      }
+    } catch (IOException e) {
+      logger.warn("Cannot fetch remote file {} from {}.  Skipping that file.",
+          filename, baseUrl, e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported.", e);
+    } finally {
+      if (null != permits) {
+        permits.release();
+      }
+    }
+    if (!stored) {
+      return -1L;
+    }
+    if (null != descriptors) {
+      descriptors.parseLater(destinationFile, fetchedBytes);
+    }
+    return fileNode.size;
+  }
+
+  /* Return whether descriptors in the given file need to be read from disk
+   * by a descriptor reader, rather than being parsed from fetched bytes by
+   * a descriptor parser, which is the case for tarballs and compressed
+   * files. */
+  private static boolean isReadFromDisk(String filename) {
+    return null != CompressionCodecs.forTarball(filename)
+        || filename.endsWith(".gz");
+  }
+
+  /* Parse descriptors in a fetched file and add them to the given queue,
+   * either from the given fetched bytes or, if there are none, by reading
+   * the stored file. */
+  private static void parseFetchedFile(ParsedDescriptors descriptors,
+      File file, ByteArrayOutputStream fetchedBytes) {
+    Iterable<Descriptor> parsed;
+    if (null != fetchedBytes) {
+      parsed = DescriptorSourceFactory.createDescriptorParser()
+          .parseDescriptors(fetchedBytes.toByteArray(), file, file.getName());
+    } else {
+      parsed = DescriptorSourceFactory.createDescriptorReader()
+          .readDescriptors(file);
+    }
+    for (Descriptor descriptor : parsed) {
+      descriptors.add(descriptor);
+    }
+  }
+
+  /* Queue of descriptors parsed from fetched files, which are parsed one
+   * after another by a separate parser thread, so that downloads never wait
+   * for the consumer to make room in the queue. Fetched bytes of plain
+   * descriptor files are only kept in memory for parsing while the total
+   * number of bytes waiting to be parsed stays below a limit, and files are
+   * read from disk again otherwise. If the consumer stops iterating, the
+   * parser thread blocks until the application exits, whereas fetching
+   * files, deleting extraneous files, and writing the manifest still
+   * complete. */
+  private static final class ParsedDescriptors
+      extends BlockingIteratorImpl<Descriptor> {
+
+    /* Maximum number of fetched bytes kept in memory for parsing. */
+    private static final long MAX_PENDING_BYTES = 64L * 1024L * 1024L;
+
+    private final ExecutorService parser = Executors.newSingleThreadExecutor(
+        runnable -> {
+          Thread thread = new Thread(runnable);
+          thread.setName("DescriptorCollector-parser");
+          thread.setDaemon(true);
+          return thread;
+        });
+
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    private ParsedDescriptors() {
+      super(null);
+    }
+
+    /* Parse the given stored file on the parser thread, either from the
+     * given fetched bytes, if there are any and if they fit into memory, or
+     * by reading the stored file. */
+    private void parseLater(File file, ByteArrayOutputStream fetchedBytes) {
+      long size = null == fetchedBytes ? 0L : fetchedBytes.size();
+      ByteArrayOutputStream pending = null;
+      if (size > 0L && this.pendingBytes.addAndGet(size)
+          <= MAX_PENDING_BYTES) {
+        pending = fetchedBytes;
+      } else if (size > 0L) {
+        this.pendingBytes.addAndGet(-size);
+        size = 0L;
+      }
+      final ByteArrayOutputStream bytes = pending;
+      final long bytesSize = size;
+      this.parser.execute(() -> {
+        try {
+          parseFetchedFile(this, file, bytes);
+        } catch (RuntimeException e) {
+          logger.warn("Cannot parse fetched file {}. Skipping that file.",
+              file, e);
+        } finally {
+          this.pendingBytes.addAndGet(-bytesSize);
+        }
+      });
+    }
+
+    /* Wait until all fetched files have been parsed and their descriptors
+     * have been added to the queue, and signal that there won't be any
+     * further descriptors. */
+    private void finishParsing() {
+      this.parser.shutdown();
+      try {
+        while (!this.parser.awaitTermination(1L, TimeUnit.MINUTES)) {
+          /* Keep waiting until the consumer has taken enough descriptors
+           * from the queue for all fetched files to be parsed. */
+        }
+      } catch (InterruptedException e) {
+        this.parser.shutdownNow();
+        Thread.currentThread().interrupt();
+      } finally {
+        this.setOutOfDescriptors();
+      }
+    }
+
+    @Override
+    protected void add(Descriptor descriptor) {
+      super.add(descriptor);
+    }
+
+    @Override
+    protected void setOutOfDescriptors() {
+      super.setOutOfDescriptors();
+    }
+  }
+
+  /* Output stream that writes all bytes to a second output stream, too. */
+  private static final class TeeOutputStream extends FilterOutputStream {
+
+    private final OutputStream branch;
+
+    private TeeOutputStream(OutputStream out, OutputStream branch) {
+      super(out);
+      this.branch = branch;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      this.out.write(b);
+      this.branch.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.out.write(b, off, len);
+      this.branch.write(b, off, len);
+    }
+  }
+
+  /* Update the given local files with the current state of the destination
+   * file and the temporary file of the given remote file. */
+  private static void updateLocalFiles(SortedMap<String, Long> locals,
+      File localDir, String filepathname, String filename) {
+    String directory = filepathname.substring(0,
+        filepathname.length() - filename.length());
+    for (String localPath : new String[] { filepathname,
+        directory + "." + filename }) {
+      File localFile = new File(localDir, localPath);
+      synchronized (locals) {
+        if (localFile.exists()) {
+          locals.put(localPath, localFile.lastModified());
         } else {
-          logger.warn("Fetched remote file {} from {} has a size of {} bytes "
-              + "which is different from the expected {} bytes.  Not storing "
-              + "this file.",
-              filename, baseUrl, tempDestinationFile.length(),
-              entry.getValue().size);
+          locals.remove(localPath);
         }
+      }
+    }
+  }
+
+  private static void copy(InputStream is, OutputStream os)
+      throws IOException {
+    copy(is, os, null);
+  }
+
+  /* Copy all bytes from the given input stream to the given output stream,
+   * if it is not null, and update the given digest, if it is not null, with
+   * the same bytes. */
+  private static void copy(InputStream is, OutputStream os,
+      MessageDigest digest) throws IOException {
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = is.read(buffer)) >= 0) {
+      if (null != os) {
+        os.write(buffer, 0, len);
+      }
+      if (null != digest) {
+        digest.update(buffer, 0, len);
+      }
+    }
+  }
+
+  /* Return whether the given digest equals the given base64-encoded
+   * digest from the index. */
+  private static boolean matchesDigest(byte[] digest, String sha256) {
+    try {
+      return MessageDigest.isEqual(digest, Base64.getDecoder().decode(
+          sha256.trim()));
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Fetch the index from the given URL, and use a copy of the last fetched
+   * index in the given cache directory, if it is not null, if the remote
+   * index has not changed since.
+   *
+   * <p>For HTTP URLs, the request contains the {@code ETag} and
+   * {@code Last-Modified} values of the previous response, if there was
+   * one, and a {@code 304 Not Modified} response makes this method parse the
+   * cached index rather than fetching the index again.</p>
+   *
+   * <p>Only the parts of the index that are needed for retrieving files in
+   * the given remote directories are kept.</p>
+   */
+  static IndexNode fetchIndex(String indexUrlString, File cacheDirectory,
+      String[] remoteDirectories) throws Exception {
+    URL indexUrl = new URL(indexUrlString);
+    if (null == cacheDirectory || !indexUrl.getProtocol().startsWith("http")) {
+      return IndexNode.fetchIndex(indexUrlString, remoteDirectories);
+    }
+    String indexFileName = indexUrl.getPath().substring(
+        indexUrl.getPath().lastIndexOf('/') + 1);
+    File cachedIndex = new File(cacheDirectory, indexFileName);
+    File cachedValidators = new File(cacheDirectory,
+        indexFileName + ".validators");
+    Properties validators = new Properties();
+    if (cachedIndex.exists() && cachedValidators.exists()) {
+      try (InputStream is = Files.newInputStream(cachedValidators.toPath())) {
+        validators.load(is);
+      }
+      if (!indexUrlString.equals(validators.getProperty("url"))) {
+        validators.clear();
+      }
+    }
+    HttpURLConnection connection
+        = (HttpURLConnection) indexUrl.openConnection();
+    connection.setReadTimeout(READ_TIMEOUT);
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    if (validators.containsKey("etag")) {
+      connection.setRequestProperty("If-None-Match",
+          validators.getProperty("etag"));
+    }
+    if (validators.containsKey("last-modified")) {
+      connection.setRequestProperty("If-Modified-Since",
+          validators.getProperty("last-modified"));
+    }
+    byte[] indexBytes;
+    if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED
+        && !validators.isEmpty()) {
+      logger.info("Remote index file {} has not changed since it was last "
+          + "fetched. Using local copy {}.", indexUrlString, cachedIndex);
+      indexBytes = Files.readAllBytes(cachedIndex.toPath());
+    } else {
+      try (InputStream is = connection.getInputStream()) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        copy(is, baos);
+        indexBytes = baos.toByteArray();
+      }
+      validators.clear();
+      validators.setProperty("url", indexUrlString);
+      if (null != connection.getHeaderField("ETag")) {
+        validators.setProperty("etag", connection.getHeaderField("ETag"));
+      }
+      if (null != connection.getHeaderField("Last-Modified")) {
+        validators.setProperty("last-modified",
+            connection.getHeaderField("Last-Modified"));
+      }
+      try {
+        cacheIndex(cacheDirectory, cachedIndex, indexBytes, cachedValidators,
+            validators);
       } catch (IOException e) {
-        logger.warn("Cannot fetch remote file {} from {}.  Skipping that file.",
-            filename, baseUrl, e);
+        logger.warn("Cannot store a local copy of index file {}. Fetching it "
+            + "again next time.", indexUrlString, e);
       }
     }
-    return true;
+    String ending = indexFileName.substring(
+        indexFileName.lastIndexOf('.') + 1);
+    try (InputStream is = FileType.findType(ending).inputStream(
+        new ByteArrayInputStream(indexBytes))) {
+      return IndexNode.fetchIndex(is, remoteDirectories);
+    }
+  }
+
+  private static void cacheIndex(File cacheDirectory, File cachedIndex,
+      byte[] indexBytes, File cachedValidators, Properties validators)
+      throws IOException {
+    if (!cacheDirectory.exists() && !cacheDirectory.mkdirs()) {
+      throw new IOException("Cannot create directory " + cacheDirectory);
+    }
+    /* Remove validators first, so that a partially written copy is never
+     * used. */
+    Files.deleteIfExists(cachedValidators.toPath());
+    Files.write(cachedIndex.toPath(), indexBytes);
+    if (validators.size() > 1) {
+      File tempValidators = new File(cacheDirectory,
+          "." + cachedValidators.getName());
+      try (OutputStream os = Files.newOutputStream(
+          tempValidators.toPath())) {
+        validators.store(os, null);
+      }
+      Files.move(tempValidators.toPath(), cachedValidators.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
   }
 
   static void deleteExtraneousLocalFiles(String[] remoteDirectories,
       SortedMap<String, FileNode> remoteFiles,
       File localDir, SortedMap<String, Long> locals) {
-    for (String localPath : locals.keySet()) {
+    Iterator<String> localPaths = locals.keySet().iterator();
+    while (localPaths.hasNext()) {
+      String localPath = localPaths.next();
+      if (isPartialDownload(localPath, remoteFiles)) {
+        continue;
+      }
       for (String remoteDirectory : remoteDirectories) {
         String remDir = remoteDirectory.charAt(0) == '/'
             ? remoteDirectory.substring(1) : remoteDirectory;
@@ -155,37 +766,26 @@ public class DescriptorIndexCollector implements DescriptorCollector {
             File extraneousLocalFile = new File(localDir, localPath);
             logger.debug("Deleting extraneous local file {}.",
                 extraneousLocalFile.getAbsolutePath());
-            extraneousLocalFile.delete();
+            if (extraneousLocalFile.delete()
+                || !extraneousLocalFile.exists()) {
+              localPaths.remove();
+            }
+            break;
           }
         }
       }
     }
   }
 
-  static SortedMap<String, Long> statLocalDirectory(
-      final File localDir) {
-    final SortedMap<String, Long> locals = new TreeMap<>();
-    if (!localDir.exists()) {
-      return locals;
-    }
-    try {
-      Files.walkFileTree(localDir.toPath(),
-          new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path path,
-                BasicFileAttributes bfa) {
-              locals.put(path.toFile().getAbsolutePath()
-                  .replace(localDir.getAbsolutePath() + "/", ""),
-                      path.toFile().lastModified());
-              return FileVisitResult.CONTINUE;
-            }
-        });
-    } catch (IOException ioe) {
-      logger.warn("Cannot index local directory {} to skip any remote files "
-          + "that already exist locally. Continuing with an either empty or "
-          + "incomplete index of local files.", localDir, ioe);
-    }
-    return locals;
+  /* Return whether the given local path is the temporary file of a remote
+   * file that could not be fetched completely, which is kept for resuming
+   * the download later. */
+  private static boolean isPartialDownload(String localPath,
+      SortedMap<String, FileNode> remoteFiles) {
+    int nameStart = localPath.lastIndexOf('/') + 1;
+    return localPath.startsWith(".", nameStart)
+        && remoteFiles.containsKey(localPath.substring(0, nameStart)
+        + localPath.substring(nameStart + 1));
   }
 }
 
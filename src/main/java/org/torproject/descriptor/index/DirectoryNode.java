@@ -3,6 +3,9 @@
 
 package org.torproject.descriptor.index;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.Map;
 import java.util.SortedSet;
 
 /**
@@ -21,6 +24,10 @@ public class DirectoryNode implements Comparable<DirectoryNode> {
   /** The directory list is exposed in JSON. Sorted according to path. */
   public final SortedSet<DirectoryNode> directories;
 
+  /* Subdirectories by path, built on first lookup. */
+  @JsonIgnore
+  private volatile Map<String, DirectoryNode> directoriesByPath;
+
   /* Added to satisfy Jackson. */
   private DirectoryNode() {
     this.path = null;
@@ -36,6 +43,23 @@ public class DirectoryNode implements Comparable<DirectoryNode> {
     this.directories = directories;
   }
 
+  /**
+   * Returns the subdirectory with the given path, or null if there is no
+   * such subdirectory, using a hash map of subdirectories that is built on
+   * the first lookup.
+   *
+   * @since 2.16.0
+   */
+  public DirectoryNode findDirectory(String path) {
+    Map<String, DirectoryNode> byPath = this.directoriesByPath;
+    if (null == byPath || (null != this.directories
+        && byPath.size() != this.directories.size())) {
+      byPath = IndexNode.indexByPath(this.directories);
+      this.directoriesByPath = byPath;
+    }
+    return byPath.get(path);
+  }
+
   /**
    * This compareTo is not compatible with equals or hash!
    * It simply ensures a path-sorted JSON output.
@@ -32,6 +32,14 @@ public class FileNode implements Comparable<FileNode> {
   /** The last modified date-time string is exposed in JSON. */
   public final String lastModified;
 
+  /**
+   * The base64-encoded SHA-256 digest of the file is exposed in JSON, or
+   * null if the index does not contain it.
+   *
+   * @since 2.16.0
+   */
+  public final String sha256;
+
   @JsonIgnore
   private long lastModifiedMillis;
 
@@ -40,6 +48,7 @@ public class FileNode implements Comparable<FileNode> {
     path = null;
     size = 0;
     lastModified = null;
+    sha256 = null;
   }
 
   /**
@@ -47,9 +56,21 @@ public class FileNode implements Comparable<FileNode> {
    * the last modified date-time string.
    */
   public FileNode(String path, long size, String lastModified) {
+    this(path, size, lastModified, null);
+  }
+
+  /**
+   * A FileNode with the file's base64-encoded SHA-256 digest in addition to
+   * the file name, the file size, and the last modified date-time string.
+   *
+   * @since 2.16.0
+   */
+  public FileNode(String path, long size, String lastModified,
+      String sha256) {
     this.path = path;
     this.size = size;
     this.lastModified = lastModified;
+    this.sha256 = sha256;
   }
 
   /**
@@ -6,10 +6,14 @@ package org.torproject.descriptor.index;
 import org.torproject.descriptor.internal.FileType;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
@@ -21,6 +25,11 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
@@ -70,6 +79,10 @@ public class IndexNode {
   /** The file list is exposed in JSON. Sorted according to path. */
   public final SortedSet<FileNode> files;
 
+  /* Top-level directories by path, built on first lookup. */
+  @JsonIgnore
+  private volatile Map<String, DirectoryNode> directoriesByPath;
+
   /* Added to satisfy Jackson. */
   private IndexNode() {
     this.created = null;
@@ -102,16 +115,34 @@ public class IndexNode {
    * Returns an empty IndexNode in case of an error.
    */
   public static IndexNode fetchIndex(String urlString) throws Exception {
+    try (InputStream is = openIndex(urlString)) {
+      return fetchIndex(is);
+    }
+  }
+
+  /**
+   * Reads JSON from given URL String, but only keeps the parts of the index
+   * that are needed for retrieving files in the given remote directories.
+   *
+   * @see #fetchIndex(InputStream, String...)
+   * @since 2.16.0
+   */
+  public static IndexNode fetchIndex(String urlString,
+      String ... remoteDirectories) throws Exception {
+    try (InputStream is = openIndex(urlString)) {
+      return fetchIndex(is, remoteDirectories);
+    }
+  }
+
+  private static InputStream openIndex(String urlString) throws Exception {
     String ending
         = urlString.substring(urlString.lastIndexOf(".") + 1).toUpperCase();
+    FileType fileType = FileType.valueOf(ending);
     URLConnection connection = (new URL(urlString)).openConnection();
     connection.setReadTimeout(READ_TIMEOUT);
     connection.setConnectTimeout(CONNECT_TIMEOUT);
     connection.connect();
-    try (InputStream is = FileType.valueOf(ending)
-        .inputStream(connection.getInputStream())) {
-      return fetchIndex(is);
-    }
+    return fileType.inputStream(connection.getInputStream());
   }
 
   /**
@@ -122,6 +153,199 @@ public class IndexNode {
     return objectMapper.readValue(is, IndexNode.class);
   }
 
+  /**
+   * Reads JSON from given InputStream, but only keeps the parts of the index
+   * that are needed for retrieving files in the given remote directories.
+   *
+   * <p>The index is parsed token by token, and only directories on the path
+   * to one of the given remote directories are materialized together with
+   * their files, whereas all other directories are skipped without creating
+   * any nodes for them or their contents. Calling
+   * {@link #retrieveFilesIn(String...)} with the same remote directories on
+   * the returned node returns the same files as on a node returned by
+   * {@link #fetchIndex(InputStream)}.</p>
+   *
+   * @since 2.16.0
+   */
+  public static IndexNode fetchIndex(InputStream is,
+      String ... remoteDirectories) throws IOException {
+    List<String[]> wanted = new ArrayList<>();
+    if (null != remoteDirectories) {
+      for (String remote : remoteDirectories) {
+        if (null != remote && !remote.isEmpty()) {
+          wanted.add(remote.replaceAll("/", " ").trim().split(" "));
+        }
+      }
+    }
+    try (JsonParser parser = objectMapper.getFactory().createParser(is)) {
+      expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      String created = null;
+      String revision = null;
+      String path = null;
+      SortedSet<FileNode> files = null;
+      SortedSet<DirectoryNode> directories = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        switch (fieldName) {
+          case "index_created":
+            created = parser.getValueAsString();
+            break;
+          case "build_revision":
+            revision = parser.getValueAsString();
+            break;
+          case "path":
+            path = parser.getValueAsString();
+            break;
+          case "files":
+            files = parseFiles(parser, value);
+            break;
+          case "directories":
+            directories = parseDirectories(parser, value, wanted, 0);
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+      return new IndexNode(created, revision, path, files, directories);
+    }
+  }
+
+  /* Parse an array of directories at the given depth, keeping only
+   * directories whose path matches the path component at that depth of one
+   * of the given remote directories, or all directories if that list is
+   * null. */
+  private static SortedSet<DirectoryNode> parseDirectories(JsonParser parser,
+      JsonToken value, List<String[]> wanted, int depth) throws IOException {
+    if (value == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expect(parser, value, JsonToken.START_ARRAY);
+    SortedSet<DirectoryNode> directories = new TreeSet<>();
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      DirectoryNode directory = parseDirectory(parser, token, wanted, depth);
+      if (null != directory) {
+        directories.add(directory);
+      }
+    }
+    return directories;
+  }
+
+  /* Parse a single directory, or skip it and return null if it is not on
+   * the path to any of the given remote directories. If the directory's
+   * path only follows its contents, those contents are parsed completely,
+   * because it is not yet known whether they will be needed. */
+  private static DirectoryNode parseDirectory(JsonParser parser,
+      JsonToken value, List<String[]> wanted, int depth) throws IOException {
+    expect(parser, value, JsonToken.START_OBJECT);
+    String path = null;
+    List<String[]> matching = null;
+    SortedSet<FileNode> files = null;
+    SortedSet<DirectoryNode> directories = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String fieldName = parser.getCurrentName();
+      JsonToken fieldValue = parser.nextToken();
+      if ("path".equals(fieldName)) {
+        path = parser.getValueAsString();
+        matching = matching(wanted, depth, path);
+        if (null != matching && matching.isEmpty()) {
+          skipRemainingFields(parser);
+          return null;
+        }
+      } else if ("files".equals(fieldName)) {
+        files = parseFiles(parser, fieldValue);
+      } else if ("directories".equals(fieldName)) {
+        directories = parseDirectories(parser, fieldValue, matching,
+            depth + 1);
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (null == path) {
+      return null;
+    }
+    if (null == matching) {
+      matching = matching(wanted, depth, path);
+      if (null != matching && matching.isEmpty()) {
+        return null;
+      }
+    }
+    return new DirectoryNode(path, files, directories);
+  }
+
+  /* Return those of the given remote directories that contain a path
+   * component equal to the given directory path at the given depth, or null
+   * if all directories are wanted. */
+  private static List<String[]> matching(List<String[]> wanted, int depth,
+      String path) {
+    if (null == wanted) {
+      return null;
+    }
+    List<String[]> matching = new ArrayList<>();
+    for (String[] dirs : wanted) {
+      if (dirs.length > depth && dirs[depth].equals(path)) {
+        matching.add(dirs);
+      }
+    }
+    return matching;
+  }
+
+  private static SortedSet<FileNode> parseFiles(JsonParser parser,
+      JsonToken value) throws IOException {
+    if (value == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expect(parser, value, JsonToken.START_ARRAY);
+    SortedSet<FileNode> files = new TreeSet<>();
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      expect(parser, token, JsonToken.START_OBJECT);
+      String path = null;
+      long size = 0L;
+      String lastModified = null;
+      String sha256 = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        parser.nextToken();
+        switch (fieldName) {
+          case "path":
+            path = parser.getValueAsString();
+            break;
+          case "size":
+            size = parser.getValueAsLong();
+            break;
+          case "last_modified":
+            lastModified = parser.getValueAsString();
+            break;
+          case "sha256":
+            sha256 = parser.getValueAsString();
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+      files.add(new FileNode(path, size, lastModified, sha256));
+    }
+    return files;
+  }
+
+  private static void skipRemainingFields(JsonParser parser)
+      throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      parser.nextToken();
+      parser.skipChildren();
+    }
+  }
+
+  private static void expect(JsonParser parser, JsonToken actual,
+      JsonToken expected) throws JsonParseException {
+    if (actual != expected) {
+      throw new JsonParseException(parser, "Expected " + expected
+          + " but found " + actual + ".");
+    }
+  }
+
   /** Return a map of file paths for the given directories. */
   public SortedMap<String, FileNode> retrieveFilesIn(String ... remoteDirs) {
     SortedMap<String, FileNode> map = new TreeMap<>();
@@ -130,13 +354,13 @@ public class IndexNode {
         continue;
       }
       String[] dirs = remote.replaceAll("/", " ").trim().split(" ");
-      DirectoryNode currentDir = findPathIn(dirs[0], this.directories);
+      DirectoryNode currentDir = this.findDirectory(dirs[0]);
       if (null == currentDir) {
         continue;
       }
       StringBuilder currentPath = new StringBuilder(dirs[0] + "/");
       for (int k = 1; k < dirs.length; k++) {
-        DirectoryNode dn = findPathIn(dirs[k], currentDir.directories);
+        DirectoryNode dn = currentDir.findDirectory(dirs[k]);
         if (null == dn) {
           break;
         } else {
@@ -156,14 +380,49 @@ public class IndexNode {
     return map;
   }
 
-  /** Returns the directory nodes with the given path, but no file nodes. */
-  public static DirectoryNode findPathIn(String path,
+  /**
+   * Returns the top-level directory with the given path, or null if there is
+   * no such directory, using a hash map of directories that is built on the
+   * first lookup.
+   *
+   * @since 2.16.0
+   */
+  public DirectoryNode findDirectory(String path) {
+    Map<String, DirectoryNode> byPath = this.directoriesByPath;
+    if (null == byPath || (null != this.directories
+        && byPath.size() != this.directories.size())) {
+      byPath = indexByPath(this.directories);
+      this.directoriesByPath = byPath;
+    }
+    return byPath.get(path);
+  }
+
+  /* Return a hash map of the given directories by path. */
+  static Map<String, DirectoryNode> indexByPath(
       SortedSet<DirectoryNode> dirs) {
+    Map<String, DirectoryNode> byPath = new HashMap<>();
     if (null != dirs) {
       for (DirectoryNode dn : dirs) {
-        if (dn.path.equals(path)) {
-          return dn;
-        }
+        byPath.put(dn.path, dn);
+      }
+    }
+    return byPath;
+  }
+
+  /** Returns the directory nodes with the given path, but no file nodes. */
+  public static DirectoryNode findPathIn(String path,
+      SortedSet<DirectoryNode> dirs) {
+    if (null == dirs || null == path) {
+      return null;
+    }
+    if (dirs instanceof NavigableSet && null == dirs.comparator()) {
+      DirectoryNode dn = ((NavigableSet<DirectoryNode>) dirs).ceiling(
+          new DirectoryNode(path, null, null));
+      return null != dn && path.equals(dn.path) ? dn : null;
+    }
+    for (DirectoryNode dn : dirs) {
+      if (dn.path.equals(path)) {
+        return dn;
       }
     }
     return null;
@@ -0,0 +1,329 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/* Persistent manifest of the files in a local directory and their last
+ * modified times, which saves the descriptor collector from walking the
+ * whole local directory on every run.
+ *
+ * The manifest is stored in the index cache directory, which is located
+ * outside of the local directory, and contains the absolute path of the
+ * local directory followed by one line per file and one line per directory,
+ * each with a type character, the last modified time in milliseconds, and
+ * the path relative to the local directory. When reading the manifest, only
+ * the recorded directories are checked, and only directories with a changed
+ * last modified time are listed again, which detects files that have been
+ * added, removed, or renamed since the manifest was written without looking
+ * at unchanged directories. Files that have been modified in place are not
+ * detected, which is what a full scan of the local directory is for. */
+final class LocalManifest {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      LocalManifest.class);
+
+  static final String MANIFEST_FILE_NAME = "manifest";
+
+  private static final String HEADER = "@manifest 1";
+
+  private static final String DIRECTORY_LINE_PREFIX = "@directory ";
+
+  /* Directories modified less than this time before writing the manifest
+   * are listed again next time, because later changes within the
+   * resolution of the file system's timestamps would go unnoticed. */
+  private static final long RACY_MILLIS = 2_000L;
+
+  /* Last modified time recorded for directories that need to be listed
+   * again next time. */
+  private static final long LIST_AGAIN = -1L;
+
+  private final File localDir;
+
+  private final Path localPath;
+
+  /* Last modified times of files by relative path. */
+  private final SortedMap<String, Long> files = new TreeMap<>();
+
+  /* Last modified times of directories by relative path, with the empty
+   * string standing for the local directory itself. */
+  private final SortedMap<String, Long> directories = new TreeMap<>();
+
+  private LocalManifest(File localDir) {
+    this.localDir = localDir;
+    this.localPath = localDir.toPath();
+  }
+
+  /* Return the file that contains the manifest in the given index cache
+   * directory. */
+  static File manifestFile(File indexCacheDirectory) {
+    return new File(indexCacheDirectory, MANIFEST_FILE_NAME);
+  }
+
+  /* Read the manifest of the given local directory from the given file and
+   * bring it up to date by listing directories that have changed since, or
+   * walk the whole local directory if there is no usable manifest. */
+  static LocalManifest open(File localDir, File manifestFile) {
+    if (manifestFile.exists()) {
+      LocalManifest manifest = new LocalManifest(localDir);
+      try {
+        if (manifest.read(manifestFile)) {
+          manifest.validate();
+          return manifest;
+        }
+        logger.warn("Unknown format of local manifest {}, or manifest of "
+            + "another local directory. Indexing local directory {} instead.",
+            manifestFile, localDir);
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Cannot read local manifest {}. Indexing local directory "
+            + "{} instead.", manifestFile, localDir, e);
+      }
+    }
+    return scan(localDir);
+  }
+
+  /* Walk the whole given local directory and return a new manifest of its
+   * contents. */
+  static LocalManifest scan(File localDir) {
+    LocalManifest manifest = new LocalManifest(localDir);
+    if (localDir.isDirectory()) {
+      manifest.walk(manifest.localPath);
+    }
+    return manifest;
+  }
+
+  /* Return the files in the local directory by relative path, which the
+   * caller updates when adding or deleting files. */
+  SortedMap<String, Long> files() {
+    return this.files;
+  }
+
+  private boolean read(File manifestFile) throws IOException {
+    try (BufferedReader br = Files.newBufferedReader(manifestFile.toPath(),
+        StandardCharsets.UTF_8)) {
+      if (!HEADER.equals(br.readLine()) || !(DIRECTORY_LINE_PREFIX
+          + this.localDir.getAbsolutePath()).equals(br.readLine())) {
+        return false;
+      }
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] parts = line.split(" ", 3);
+        if (parts.length < 3 || parts[0].length() != 1) {
+          return false;
+        }
+        long millis = Long.parseLong(parts[1]);
+        switch (parts[0].charAt(0)) {
+          case 'f':
+            this.files.put(parts[2], millis);
+            break;
+          case 'd':
+            this.directories.put(parts[2], millis);
+            break;
+          default:
+            return false;
+        }
+      }
+    }
+    return this.directories.containsKey("");
+  }
+
+  /* Check all recorded directories and list those again whose last modified
+   * time has changed, walking new subdirectories found in them. */
+  private void validate() {
+    for (String directory : new ArrayList<>(this.directories.keySet())) {
+      if (!this.directories.containsKey(directory)) {
+        continue; /* Removed together with a parent directory. */
+      }
+      Path path = this.resolve(directory);
+      long millis;
+      try {
+        BasicFileAttributes attrs = Files.readAttributes(path,
+            BasicFileAttributes.class);
+        if (!attrs.isDirectory()) {
+          throw new IOException(path + " is not a directory.");
+        }
+        millis = attrs.lastModifiedTime().toMillis();
+      } catch (IOException e) {
+        this.removeTree(directory);
+        continue;
+      }
+      if (millis != this.directories.get(directory)) {
+        logger.debug("Local directory {} has changed since writing the "
+            + "manifest. Listing it again.", path);
+        this.list(directory, path, millis);
+      }
+    }
+  }
+
+  /* List the files and subdirectories of the given directory, replacing
+   * the recorded files, removing subdirectories that have disappeared, and
+   * walking subdirectories that are new. */
+  private void list(String directory, Path path, long millis) {
+    String prefix = directory.isEmpty() ? "" : directory + "/";
+    this.files.keySet().removeIf(file -> file.startsWith(prefix)
+        && file.indexOf('/', prefix.length()) < 0);
+    List<String> subdirectories = new ArrayList<>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+      for (Path entry : entries) {
+        String relative = prefix + entry.getFileName().toString();
+        BasicFileAttributes attrs = Files.readAttributes(entry,
+            BasicFileAttributes.class);
+        if (attrs.isDirectory()) {
+          subdirectories.add(relative);
+          if (!this.directories.containsKey(relative)) {
+            this.walk(entry);
+          }
+        } else {
+          this.files.put(relative, attrs.lastModifiedTime().toMillis());
+        }
+      }
+    } catch (IOException e) {
+      logger.warn("Cannot list local directory {}. Continuing with an "
+          + "incomplete manifest.", path, e);
+    }
+    for (String subdirectory : this.childDirectories(prefix)) {
+      if (!subdirectories.contains(subdirectory)) {
+        this.removeTree(subdirectory);
+      }
+    }
+    this.directories.put(directory, millis);
+  }
+
+  private List<String> childDirectories(String prefix) {
+    List<String> children = new ArrayList<>();
+    for (String directory : this.directories.tailMap(prefix).keySet()) {
+      if (!directory.startsWith(prefix)) {
+        break;
+      }
+      if (directory.length() > prefix.length()
+          && directory.indexOf('/', prefix.length()) < 0) {
+        children.add(directory);
+      }
+    }
+    return children;
+  }
+
+  /* Remove the given directory and everything below it. */
+  private void removeTree(String directory) {
+    String prefix = directory + "/";
+    this.directories.remove(directory);
+    this.directories.keySet().removeIf(dir -> dir.startsWith(prefix));
+    this.files.keySet().removeIf(file -> file.startsWith(prefix));
+  }
+
+  /* Walk the given directory and add all files and directories below
+   * it. */
+  private void walk(Path start) {
+    try {
+      Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir,
+            BasicFileAttributes attrs) {
+          directories.put(relativize(dir),
+              attrs.lastModifiedTime().toMillis());
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file,
+            BasicFileAttributes attrs) {
+          files.put(relativize(file), attrs.lastModifiedTime().toMillis());
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      logger.warn("Cannot index local directory {} to skip any remote files "
+          + "that already exist locally. Continuing with an either empty or "
+          + "incomplete index of local files.", start, e);
+    }
+  }
+
+  /* Write the manifest to the given file, after updating the last modified
+   * times of all directories containing files, so that the next run only
+   * lists directories that have changed after this run or shortly
+   * before. */
+  void write(File manifestFile) {
+    try {
+      Files.createDirectories(manifestFile.getParentFile().toPath());
+    } catch (IOException e) {
+      logger.warn("Cannot write local manifest {}. Indexing local directory "
+          + "{} again next time.", manifestFile, this.localDir, e);
+      return;
+    }
+    for (String file : this.files.keySet()) {
+      for (int slash = file.indexOf('/'); slash >= 0;
+          slash = file.indexOf('/', slash + 1)) {
+        this.directories.putIfAbsent(file.substring(0, slash), 0L);
+      }
+    }
+    this.directories.putIfAbsent("", 0L);
+    long racyAfter = System.currentTimeMillis() - RACY_MILLIS;
+    Iterator<Map.Entry<String, Long>> it
+        = this.directories.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Long> e = it.next();
+      try {
+        long millis = Files.getLastModifiedTime(this.resolve(e.getKey()))
+            .toMillis();
+        e.setValue(millis > racyAfter ? LIST_AGAIN : millis);
+      } catch (IOException ex) {
+        it.remove();
+      }
+    }
+    File tempFile = new File(manifestFile.getParentFile(),
+        "." + MANIFEST_FILE_NAME);
+    try {
+      try (BufferedWriter bw = Files.newBufferedWriter(tempFile.toPath(),
+          StandardCharsets.UTF_8)) {
+        bw.write(HEADER);
+        bw.newLine();
+        bw.write(DIRECTORY_LINE_PREFIX + this.localDir.getAbsolutePath());
+        bw.newLine();
+        for (Map.Entry<String, Long> e : this.directories.entrySet()) {
+          bw.write("d " + e.getValue() + " " + e.getKey());
+          bw.newLine();
+        }
+        for (Map.Entry<String, Long> e : this.files.entrySet()) {
+          bw.write("f " + e.getValue() + " " + e.getKey());
+          bw.newLine();
+        }
+      }
+      Files.move(tempFile.toPath(), manifestFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      logger.warn("Cannot write local manifest {}. Indexing local directory "
+          + "{} again next time.", manifestFile, this.localDir, e);
+    }
+  }
+
+  private Path resolve(String relative) {
+    return relative.isEmpty() ? this.localPath
+        : this.localPath.resolve(relative);
+  }
+
+  private String relativize(Path path) {
+    return this.localPath.relativize(path).toString()
+        .replace(File.separatorChar, '/');
+  }
+}
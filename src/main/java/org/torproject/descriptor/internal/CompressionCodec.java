@@ -0,0 +1,45 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression codec identified by a file extension, which provides streams
+ * for decompressing and compressing data.
+ *
+ * <p>Codecs are looked up in {@link CompressionCodecs}, which contains
+ * built-in codecs for the compressed {@link FileType}s. Further codecs can
+ * be added at runtime or by providing an implementation of this interface
+ * as a {@link java.util.ServiceLoader} service.</p>
+ *
+ * @since 2.16.0
+ */
+public interface CompressionCodec {
+
+  /**
+   * Return the file extension without leading dot, like {@code "gz"} for
+   * gzip-compressed files, that identifies files compressed with this codec.
+   *
+   * @since 2.16.0
+   */
+  String getFileExtension();
+
+  /**
+   * Return a stream that decompresses bytes read from the given stream.
+   *
+   * @since 2.16.0
+   */
+  InputStream inputStream(InputStream is) throws IOException;
+
+  /**
+   * Return a stream that compresses bytes and writes them to the given
+   * stream.
+   *
+   * @since 2.16.0
+   */
+  OutputStream outputStream(OutputStream os) throws IOException;
+}
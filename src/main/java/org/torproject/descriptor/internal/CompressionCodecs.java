@@ -0,0 +1,82 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.internal;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of compression codecs by file extension, used for finding the
+ * codec of compressed descriptor files and tarballs.
+ *
+ * <p>The registry initially contains the compressed {@link FileType}s
+ * {@link FileType#BZ2}, {@link FileType#GZ}, and {@link FileType#XZ}, plus
+ * all {@link CompressionCodec} implementations found by
+ * {@link ServiceLoader}. This makes it possible to read tarballs compressed
+ * with other codecs, like zstd, by putting a codec implementation on the
+ * class path.</p>
+ *
+ * @since 2.16.0
+ */
+public final class CompressionCodecs {
+
+  private static final Map<String, CompressionCodec> codecs
+      = new ConcurrentHashMap<>();
+
+  static {
+    register(FileType.BZ2);
+    register(FileType.GZ);
+    register(FileType.XZ);
+    for (CompressionCodec codec : ServiceLoader.load(CompressionCodec.class)) {
+      register(codec);
+    }
+  }
+
+  private CompressionCodecs() {
+  }
+
+  /**
+   * Register the given codec for its file extension, replacing any codec
+   * that was previously registered for the same extension.
+   *
+   * @since 2.16.0
+   */
+  public static void register(CompressionCodec codec) {
+    codecs.put(codec.getFileExtension().toLowerCase(Locale.US), codec);
+  }
+
+  /**
+   * Return the codec registered for the given file extension without
+   * leading dot, ignoring case, or {@code null} if there is no such codec.
+   *
+   * @since 2.16.0
+   */
+  public static CompressionCodec forFileExtension(String extension) {
+    return null == extension ? null
+        : codecs.get(extension.toLowerCase(Locale.US));
+  }
+
+  /**
+   * Return the codec for reading the tarball with the given file name, which
+   * is {@link FileType#PLAIN} for uncompressed tarballs ending in
+   * {@code .tar} and a registered codec for compressed tarballs ending in
+   * {@code .tar.} followed by that codec's file extension, or {@code null}
+   * if the file name does not belong to a supported tarball.
+   *
+   * @since 2.16.0
+   */
+  public static CompressionCodec forTarball(String fileName) {
+    if (fileName.endsWith(".tar")) {
+      return FileType.PLAIN;
+    }
+    int extensionStart = fileName.lastIndexOf('.');
+    if (extensionStart < 0
+        || !fileName.startsWith(".tar", extensionStart - 4)) {
+      return null;
+    }
+    return forFileExtension(fileName.substring(extensionStart + 1));
+  }
+}
@@ -3,10 +3,10 @@
 
 package org.torproject.descriptor.internal;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
 import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
 import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
 
@@ -14,8 +14,12 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
 
 /**
  * These enums provide compression functionality.
@@ -24,22 +28,60 @@ import java.io.OutputStream;
  * Compression can also be zero-compression, which is currently provided by
  * the PLAIN and JSON enums.</p>
  *
+ * <p>The compressed types are also registered as codecs in
+ * {@link CompressionCodecs}, which may contain further codecs.</p>
+ *
  * @since 1.4.0
  */
-public enum FileType {
+public enum FileType implements CompressionCodec {
+
+  BZ2(ParallelBZip2InputStream::new, BZip2CompressorOutputStream::new,
+      BZip2CompressorOutputStream::new),
+  GZ(GzipCompressorInputStream::new, GzipCompressorOutputStream::new,
+      (os, level) -> {
+        GzipParameters parameters = new GzipParameters();
+        parameters.setCompressionLevel(level);
+        return new GzipCompressorOutputStream(os, parameters);
+      }),
+  JSON(BufferedInputStream::new, BufferedOutputStream::new,
+      (os, level) -> new BufferedOutputStream(os)),
+  PLAIN(BufferedInputStream::new, BufferedOutputStream::new,
+      (os, level) -> new BufferedOutputStream(os)),
+  XZ(XZCompressorInputStream::new, XZCompressorOutputStream::new,
+      XZCompressorOutputStream::new);
+
+  /**
+   * Compression level that stands for the default level of the respective
+   * compression algorithm.
+   *
+   * @since 2.16.0
+   */
+  public static final int DEFAULT_LEVEL = -1;
+
+  @FunctionalInterface
+  private interface InputStreamFactory {
+    InputStream create(InputStream is) throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface OutputStreamFactory {
+    OutputStream create(OutputStream os) throws IOException;
+  }
 
-  BZ2(BZip2CompressorInputStream.class, BZip2CompressorOutputStream.class),
-  GZ(GzipCompressorInputStream.class, GzipCompressorOutputStream.class),
-  JSON(BufferedInputStream.class, BufferedOutputStream.class),
-  PLAIN(BufferedInputStream.class, BufferedOutputStream.class),
-  XZ(XZCompressorInputStream.class, XZCompressorOutputStream.class);
+  @FunctionalInterface
+  private interface LeveledOutputStreamFactory {
+    OutputStream create(OutputStream os, int level) throws IOException;
+  }
 
-  private final Class<? extends InputStream> inClass;
-  private final Class<? extends OutputStream> outClass;
+  private final InputStreamFactory inFactory;
+  private final OutputStreamFactory outFactory;
+  private final LeveledOutputStreamFactory leveledOutFactory;
 
-  FileType(Class<? extends InputStream> in, Class<? extends OutputStream> out) {
-    this.inClass = in;
-    this.outClass = out;
+  FileType(InputStreamFactory in, OutputStreamFactory out,
+      LeveledOutputStreamFactory leveledOut) {
+    this.inFactory = in;
+    this.outFactory = out;
+    this.leveledOutFactory = leveledOut;
   }
 
   /**
@@ -58,14 +100,24 @@ public enum FileType {
     }
   }
 
+  /**
+   * Return the lower-case enum name as file extension.
+   *
+   * @since 2.16.0
+   */
+  @Override
+  public String getFileExtension() {
+    return this.name().toLowerCase(Locale.US);
+  }
+
   /**
    * Return the appropriate input stream.
    *
    * @since 1.4.0
    */
-  public InputStream inputStream(InputStream is) throws Exception {
-    return this.inClass.getConstructor(new Class[]{InputStream.class})
-        .newInstance(is);
+  @Override
+  public InputStream inputStream(InputStream is) throws IOException {
+    return this.inFactory.create(is);
   }
 
   /**
@@ -73,9 +125,24 @@ public enum FileType {
    *
    * @since 1.4.0
    */
-  public OutputStream outputStream(OutputStream os) throws Exception {
-    return this.outClass.getConstructor(new Class[]{OutputStream.class})
-        .newInstance(os);
+  @Override
+  public OutputStream outputStream(OutputStream os) throws IOException {
+    return this.outFactory.create(os);
+  }
+
+  /**
+   * Return an output stream that compresses using the given compression
+   * level, which is the preset from 0 to 9 for XZ, the level from 0 to 9
+   * for GZ, the block size in 100k units from 1 to 9 for BZ2, and ignored
+   * for uncompressed types, or {@link #DEFAULT_LEVEL} for the default of
+   * the respective algorithm.
+   *
+   * @since 2.16.0
+   */
+  public OutputStream outputStream(OutputStream os, int level)
+      throws IOException {
+    return DEFAULT_LEVEL == level ? this.outputStream(os)
+        : this.leveledOutFactory.create(os, level);
   }
 
   /**
@@ -84,12 +151,38 @@ public enum FileType {
    * @since 2.2.0
    */
   public byte[] compress(byte[] bytes) throws Exception {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    try (OutputStream os = this.outputStream(baos)) {
+    return this.compressToBuffer(bytes, DEFAULT_LEVEL).toByteArray();
+  }
+
+  /**
+   * Compresses the given bytes in memory using the given compression level
+   * as defined in {@link #outputStream(OutputStream, int)} and returns the
+   * compressed bytes.
+   *
+   * @since 2.16.0
+   */
+  public byte[] compress(byte[] bytes, int level) throws IOException {
+    return this.compressToBuffer(bytes, level).toByteArray();
+  }
+
+  /**
+   * Compresses the given bytes in memory and returns a buffer wrapping the
+   * compressed bytes without copying them.
+   *
+   * @since 2.16.0
+   */
+  public ByteBuffer compressToByteBuffer(byte[] bytes) throws IOException {
+    return this.compressToBuffer(bytes, DEFAULT_LEVEL).toByteBuffer();
+  }
+
+  private ExposedByteArrayOutputStream compressToBuffer(byte[] bytes,
+      int level) throws IOException {
+    ExposedByteArrayOutputStream baos = new ExposedByteArrayOutputStream(
+        this.isCompressed() ? bytes.length / 4 + 64 : bytes.length);
+    try (OutputStream os = this.outputStream(baos, level)) {
       os.write(bytes);
-      os.flush();
     }
-    return baos.toByteArray();
+    return baos;
   }
 
   /**
@@ -119,16 +212,74 @@ public enum FileType {
     if (0 == bytes.length) {
       return bytes;
     }
-    try (InputStream is
-        = this.inputStream(new ByteArrayInputStream(bytes));
-        ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-      int readByte = is.read();
-      while (readByte > 0) {
-        baos.write(readByte);
-        readByte = is.read();
+    return this.decompressToBuffer(bytes).toByteArray();
+  }
+
+  /**
+   * Decompresses the given bytes in memory and returns a buffer wrapping the
+   * decompressed bytes without copying them.
+   *
+   * @since 2.16.0
+   */
+  public ByteBuffer decompressToByteBuffer(byte[] bytes) throws IOException {
+    if (0 == bytes.length) {
+      return ByteBuffer.wrap(bytes);
+    }
+    return this.decompressToBuffer(bytes).toByteBuffer();
+  }
+
+  private ExposedByteArrayOutputStream decompressToBuffer(byte[] bytes)
+      throws IOException {
+    ExposedByteArrayOutputStream baos = new ExposedByteArrayOutputStream(
+        this.isCompressed() ? bytes.length * 4 : bytes.length);
+    try (InputStream is = this.inputStream(new ByteArrayInputStream(bytes))) {
+      baos.readFrom(is);
+    }
+    return baos;
+  }
+
+  private boolean isCompressed() {
+    return PLAIN != this && JSON != this;
+  }
+
+  /**
+   * Byte array output stream that reads input directly into its internal
+   * buffer and hands out that buffer without copying if possible.
+   */
+  private static class ExposedByteArrayOutputStream
+      extends ByteArrayOutputStream {
+
+    private ExposedByteArrayOutputStream(int initialSize) {
+      super(Math.max(initialSize, 32));
+    }
+
+    /** Read all remaining bytes from the given stream into the buffer. */
+    private void readFrom(InputStream is) throws IOException {
+      while (true) {
+        if (this.count == this.buf.length) {
+          if (this.buf.length > Integer.MAX_VALUE - 8 - this.buf.length) {
+            throw new OutOfMemoryError("Decompressed data is too large.");
+          }
+          this.buf = Arrays.copyOf(this.buf, this.buf.length << 1);
+        }
+        int read = is.read(this.buf, this.count,
+            this.buf.length - this.count);
+        if (read < 0) {
+          return;
+        }
+        this.count += read;
       }
-      baos.flush();
-      return baos.toByteArray();
+    }
+
+    /** Return the written bytes, avoiding a copy if the buffer is full. */
+    @Override
+    public byte[] toByteArray() {
+      return this.count == this.buf.length ? this.buf
+          : Arrays.copyOf(this.buf, this.count);
+    }
+
+    private ByteBuffer toByteBuffer() {
+      return ByteBuffer.wrap(this.buf, 0, this.count);
     }
   }
 
@@ -0,0 +1,509 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.internal;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decompresses a bzip2 stream by decoding its blocks concurrently on worker
+ * threads.
+ *
+ * <p>The compressed stream is scanned for the 48-bit block and end-of-stream
+ * magic numbers at any bit offset. Each block is then wrapped into a
+ * standalone single-block bzip2 stream and decoded by a worker thread, and
+ * decoded blocks are returned in their original order. The result is
+ * byte-identical to decoding the stream with
+ * {@link BZip2CompressorInputStream}: block CRCs and the combined stream CRC
+ * are verified, and decoding stops at the end of the first bzip2 stream.</p>
+ *
+ * <p>A block or end-of-stream magic number can occur by chance inside
+ * compressed data. If a block fails to decode, it is merged with the following
+ * block and decoded again before giving up. If the block was followed by an
+ * end-of-stream magic number, scanning continues after that magic number, and
+ * the block is merged with the compressed data up to the next magic
+ * number.</p>
+ *
+ * <p>Worker threads are taken from a pool shared by all instances, which
+ * creates threads as needed and terminates them after they have been idle for
+ * some time. The number of threads passed to the constructor limits how many
+ * blocks of a single stream are decoded concurrently. Streams that are read
+ * to the end or abandoned without being closed therefore do not leave any
+ * threads behind.</p>
+ *
+ * @since 2.16.0
+ */
+public class ParallelBZip2InputStream extends InputStream {
+
+  private static final long BLOCK_MAGIC = 0x314159265359L;
+
+  private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+
+  private static final long MAGIC_MASK = 0xffffffffffffL;
+
+  /** Maximum number of following blocks to merge a block with that failed
+   * to decode, assuming that it was split at a false block magic number. */
+  private static final int MAX_MERGES = 2;
+
+  /** Daemon worker threads shared by all instances. */
+  private static final ExecutorService executor
+      = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setName("ParallelBZip2InputStream-" + thread.getId());
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /** Compressed bytes of a single block, including its magic number. */
+  private static final class Block {
+
+    private final byte[] bytes;
+
+    private final int firstBit;
+
+    private final long bitLength;
+
+    private Block(byte[] bytes, int firstBit, long bitLength) {
+      this.bytes = bytes;
+      this.firstBit = firstBit;
+      this.bitLength = bitLength;
+    }
+
+    private int crc() {
+      return (int) readBits(this.bytes, this.firstBit + 48L, 32);
+    }
+  }
+
+  /** One or more blocks being decoded together by a worker thread. */
+  private static final class PendingBlock {
+
+    private final List<Block> blocks;
+
+    private final Future<byte[]> decoded;
+
+    private PendingBlock(List<Block> blocks, Future<byte[]> decoded) {
+      this.blocks = blocks;
+      this.decoded = decoded;
+    }
+  }
+
+  private final InputStream in;
+
+  private final int blockSizeLevel;
+
+  private final int maxPendingBlocks;
+
+  private final Deque<PendingBlock> pendingBlocks = new ArrayDeque<>();
+
+  /** Last 64 bits read from the compressed stream. */
+  private long window;
+
+  /** Index of the next byte to be read from the compressed stream. */
+  private long nextByte;
+
+  /** Compressed bytes read since the start of the current block. */
+  private byte[] segment = new byte[1 << 16];
+
+  private int segmentLength;
+
+  /** Index of the first byte in {@link #segment}. */
+  private long segmentFirstByte;
+
+  /** Index of the first bit of the current block, or -1 before the first
+   * block. */
+  private long blockStartBit = -1L;
+
+  private boolean endOfStream = false;
+
+  /** Index of the first bit of the end-of-stream magic number, or -1 before
+   * reaching it. */
+  private long endOfStreamStartBit = -1L;
+
+  private int combinedCrc = 0;
+
+  private byte[] currentBlock;
+
+  private int currentPosition;
+
+  private boolean closed = false;
+
+  /**
+   * Creates a new stream using as many worker threads as there are available
+   * processors.
+   *
+   * @since 2.16.0
+   */
+  public ParallelBZip2InputStream(InputStream in) throws IOException {
+    this(in, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new stream using the given number of worker threads.
+   *
+   * @throws IOException Thrown if the stream does not start with a bzip2
+   *     header.
+   *
+   * @since 2.16.0
+   */
+  public ParallelBZip2InputStream(InputStream in, int threads)
+      throws IOException {
+    this.in = in instanceof BufferedInputStream ? in
+        : new BufferedInputStream(in, 1 << 16);
+    byte[] header = new byte[4];
+    if (IOUtils.readFully(this.in, header) < header.length
+        || header[0] != 'B' || header[1] != 'Z' || header[2] != 'h'
+        || header[3] < '1' || header[3] > '9') {
+      throw new IOException("Stream is not in the BZip2 format");
+    }
+    this.blockSizeLevel = header[3] - '0';
+    for (byte headerByte : header) {
+      this.appendToSegment(headerByte);
+    }
+    this.nextByte = header.length;
+    int workers = Math.max(1, threads);
+    this.maxPendingBlocks = workers;
+  }
+
+  private void appendToSegment(byte value) {
+    if (this.segmentLength == this.segment.length) {
+      this.segment = Arrays.copyOf(this.segment, this.segment.length * 2);
+    }
+    this.segment[this.segmentLength++] = value;
+    this.window = (this.window << 8) | (value & 0xff);
+  }
+
+  private void readByte() throws IOException {
+    int value = this.in.read();
+    if (value < 0) {
+      throw new EOFException("Unexpected end of bzip2 stream.");
+    }
+    this.appendToSegment((byte) value);
+    this.nextByte++;
+  }
+
+  /** Scans the compressed stream up to the next block or end-of-stream magic
+   * number and returns the block that ends there, or {@code null} if the end
+   * of the stream has been reached. */
+  private Block scanBlock() throws IOException {
+    while (!this.endOfStream) {
+      this.readByte();
+      long lastBit = this.nextByte * 8L - 1L;
+      for (int shift = 7; shift >= 0; shift--) {
+        long magicStartBit = lastBit - shift - 47L;
+        if (magicStartBit < 32L) {
+          continue;
+        }
+        long candidate = (this.window >>> shift) & MAGIC_MASK;
+        if (candidate != BLOCK_MAGIC && candidate != END_OF_STREAM_MAGIC) {
+          continue;
+        }
+        Block block = this.cutSegment(magicStartBit);
+        if (candidate == END_OF_STREAM_MAGIC) {
+          /* Only read the stream CRC once all blocks have been decoded, in
+           * case this magic number occurred by chance and scanning needs to
+           * continue right after it. */
+          this.endOfStreamStartBit = magicStartBit;
+          this.endOfStream = true;
+        } else {
+          this.blockStartBit = magicStartBit;
+        }
+        if (null != block) {
+          return block;
+        }
+        break;
+      }
+    }
+    return null;
+  }
+
+  /** Reads the combined stream CRC following the end-of-stream magic
+   * number. */
+  private int readStreamCrc() throws IOException {
+    long crcEndBit = this.endOfStreamStartBit + 48L + 32L;
+    while (this.nextByte * 8L < crcEndBit) {
+      this.readByte();
+    }
+    return (int) readBits(this.segment, (this.endOfStreamStartBit & 7L) + 48L,
+        32);
+  }
+
+  /** Treats the end-of-stream magic number as if it occurred by chance inside
+   * compressed data and continues scanning after it, with the compressed data
+   * up to the next magic number forming a block fragment that needs to be
+   * merged with the preceding block. */
+  private void resumeAfterEndOfStreamMagic() {
+    this.blockStartBit = this.endOfStreamStartBit;
+    this.endOfStreamStartBit = -1L;
+    this.endOfStream = false;
+  }
+
+  /** Ends the current block, if any, right before the given bit, and starts a
+   * new segment with the byte containing that bit. */
+  private Block cutSegment(long magicStartBit) {
+    Block block = null;
+    if (this.blockStartBit >= 0L) {
+      int endByte = (int) (((magicStartBit + 7L) >>> 3)
+          - this.segmentFirstByte);
+      block = new Block(Arrays.copyOf(this.segment, endByte),
+          (int) (this.blockStartBit & 7L),
+          magicStartBit - this.blockStartBit);
+    }
+    int keepFrom = (int) ((magicStartBit >>> 3) - this.segmentFirstByte);
+    System.arraycopy(this.segment, keepFrom, this.segment, 0,
+        this.segmentLength - keepFrom);
+    this.segmentLength -= keepFrom;
+    this.segmentFirstByte = magicStartBit >>> 3;
+    return block;
+  }
+
+  /** Scans further blocks and submits them for decoding until reaching the
+   * maximum number of pending blocks or the end of the stream. */
+  private void submitBlocks() throws IOException {
+    while (this.pendingBlocks.size() < this.maxPendingBlocks) {
+      Block block = this.scanBlock();
+      if (null == block) {
+        return;
+      }
+      final List<Block> blocks = Collections.singletonList(block);
+      this.pendingBlocks.add(new PendingBlock(blocks,
+          executor.submit(() -> this.decode(blocks))));
+    }
+  }
+
+  /** Decodes the given consecutive blocks as a standalone bzip2 stream. */
+  private byte[] decode(List<Block> blocks) throws IOException {
+    long bits = 32L + 48L + 32L;
+    for (Block block : blocks) {
+      bits += block.bitLength;
+    }
+    BitWriter writer = new BitWriter((int) ((bits + 7L) >>> 3));
+    writer.write('B', 8);
+    writer.write('Z', 8);
+    writer.write('h', 8);
+    writer.write('0' + this.blockSizeLevel, 8);
+    for (Block block : blocks) {
+      writer.writeBits(block.bytes, block.firstBit, block.bitLength);
+    }
+    writer.write(END_OF_STREAM_MAGIC, 48);
+    writer.write(blocks.get(0).crc() & 0xffffffffL, 32);
+    try (InputStream bzis = new BZip2CompressorInputStream(
+        new ByteArrayInputStream(writer.toByteArray()))) {
+      return IOUtils.toByteArray(bzis);
+    }
+  }
+
+  private static byte[] await(Future<byte[]> decoded) throws IOException {
+    try {
+      return decoded.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for block "
+          + "to be decoded.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Unable to decode block.", e.getCause());
+    }
+  }
+
+  /** Waits for the next block to be decoded and makes it the current block,
+   * or returns {@code false} after verifying the stream CRC if there are no
+   * more blocks. */
+  private boolean nextBlock() throws IOException {
+    this.submitBlocks();
+    PendingBlock pendingBlock = this.pendingBlocks.poll();
+    if (null == pendingBlock) {
+      if (this.combinedCrc != this.readStreamCrc()) {
+        throw new IOException("BZip2 CRC error");
+      }
+      return false;
+    }
+    byte[] decoded;
+    try {
+      decoded = await(pendingBlock.decoded);
+    } catch (InterruptedIOException e) {
+      throw e;
+    } catch (IOException e) {
+      decoded = this.decodeMerged(pendingBlock.blocks, e);
+    }
+    int crc = pendingBlock.blocks.get(0).crc();
+    this.combinedCrc = ((this.combinedCrc << 1) | (this.combinedCrc >>> 31))
+        ^ crc;
+    this.currentBlock = decoded;
+    this.currentPosition = 0;
+    this.submitBlocks();
+    return true;
+  }
+
+  /** Merges a block that failed to decode with one or more of the following
+   * blocks and decodes them together, or rethrows the original exception if
+   * that fails, too. If the failed block is the last block before the
+   * end-of-stream magic number, that magic number is assumed to have occurred
+   * by chance, and the block is merged with the compressed data following
+   * it. */
+  private byte[] decodeMerged(List<Block> failedBlocks, IOException cause)
+      throws IOException {
+    List<Block> merged = new ArrayList<>(failedBlocks);
+    for (int merges = 0; merges < MAX_MERGES; merges++) {
+      if (this.pendingBlocks.isEmpty()) {
+        if (this.endOfStream) {
+          this.resumeAfterEndOfStreamMagic();
+        }
+        try {
+          this.submitBlocks();
+        } catch (EOFException e) {
+          /* There was no more compressed data after the end-of-stream magic
+           * number, so the block was really corrupt. */
+          throw cause;
+        }
+      }
+      PendingBlock next = this.pendingBlocks.poll();
+      if (null == next) {
+        break;
+      }
+      next.decoded.cancel(true);
+      merged.addAll(next.blocks);
+      try {
+        return this.decode(merged);
+      } catch (IOException e) {
+        /* Try merging with another block. */
+      }
+    }
+    throw cause;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] singleByte = new byte[1];
+    return this.read(singleByte, 0, 1) < 0 ? -1 : singleByte[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (this.closed) {
+      throw new IOException("Stream closed.");
+    }
+    if (length == 0) {
+      return 0;
+    }
+    while (null == this.currentBlock
+        || this.currentPosition >= this.currentBlock.length) {
+      if (!this.nextBlock()) {
+        this.currentBlock = null;
+        return -1;
+      }
+    }
+    int read = Math.min(length,
+        this.currentBlock.length - this.currentPosition);
+    System.arraycopy(this.currentBlock, this.currentPosition, buffer, offset,
+        read);
+    this.currentPosition += read;
+    return read;
+  }
+
+  @Override
+  public int available() {
+    return null == this.currentBlock ? 0
+        : this.currentBlock.length - this.currentPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    for (PendingBlock pendingBlock : this.pendingBlocks) {
+      pendingBlock.decoded.cancel(true);
+    }
+    this.pendingBlocks.clear();
+    this.currentBlock = null;
+    this.in.close();
+  }
+
+  /** Returns up to 32 bits starting at the given bit offset, with the first
+   * bit being the most significant bit of the first byte. */
+  private static long readBits(byte[] data, long bitOffset, int count) {
+    long result = 0L;
+    int read = 0;
+    while (read < count) {
+      long position = bitOffset + read;
+      int value = data[(int) (position >>> 3)] & 0xff;
+      int bitInByte = (int) (position & 7L);
+      int take = Math.min(8 - bitInByte, count - read);
+      result = (result << take)
+          | ((value >>> (8 - bitInByte - take)) & ((1 << take) - 1));
+      read += take;
+    }
+    return result;
+  }
+
+  /** Writes bits to a byte array, starting with the most significant bit of
+   * the first byte. */
+  private static final class BitWriter {
+
+    private byte[] bytes;
+
+    private int length;
+
+    private long buffer;
+
+    private int bufferedBits;
+
+    private BitWriter(int expectedLength) {
+      this.bytes = new byte[Math.max(16, expectedLength + 8)];
+    }
+
+    private void write(long value, int count) {
+      if (count > 32) {
+        this.write(value >>> 32, count - 32);
+        count = 32;
+      }
+      this.buffer = (this.buffer << count) | (value & ((1L << count) - 1L));
+      this.bufferedBits += count;
+      while (this.bufferedBits >= 8) {
+        if (this.length == this.bytes.length) {
+          this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+        }
+        this.bytes[this.length++] =
+            (byte) (this.buffer >>> (this.bufferedBits - 8));
+        this.bufferedBits -= 8;
+      }
+    }
+
+    private void writeBits(byte[] data, long bitOffset, long count) {
+      long written = 0L;
+      while (written < count) {
+        int chunk = (int) Math.min(32L, count - written);
+        this.write(readBits(data, bitOffset + written, chunk), chunk);
+        written += chunk;
+      }
+    }
+
+    private byte[] toByteArray() {
+      if (this.bufferedBits > 0) {
+        this.write(0L, 8 - this.bufferedBits);
+      }
+      return Arrays.copyOf(this.bytes, this.length);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.log;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Bounded cache for interning equal values of a log line field, which can
+ * be used by multiple threads concurrently without locking.
+ *
+ * Values are kept in two generations. Looked up values are added to the
+ * current generation, and once that generation is full, it replaces the
+ * previous generation, which is discarded together with all values that
+ * have not been looked up since. As a result, the cache never holds more
+ * than twice the generation size, and frequently looked up values stay in
+ * the cache. Concurrent lookups of a new value may return different but
+ * equal instances, which only affects how well values are deduplicated. */
+final class InternCache<T> {
+
+  private final String name;
+
+  private final int generationSize;
+
+  private volatile ConcurrentHashMap<T, T> current;
+
+  private volatile ConcurrentHashMap<T, T> previous;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  InternCache(String name, int generationSize) {
+    this.name = name;
+    this.generationSize = generationSize;
+    this.current = new ConcurrentHashMap<>();
+    this.previous = new ConcurrentHashMap<>();
+  }
+
+  /* Return a cached value that is equal to the given value, or add the
+   * given value to the cache and return it if there is no such value. */
+  T intern(T value) {
+    Objects.requireNonNull(value);
+    ConcurrentHashMap<T, T> current = this.current;
+    T cached = current.get(value);
+    if (null != cached) {
+      this.hits.increment();
+      return cached;
+    }
+    cached = this.previous.get(value);
+    if (null != cached) {
+      this.hits.increment();
+    } else {
+      this.misses.increment();
+      cached = value;
+    }
+    T added = current.putIfAbsent(cached, cached);
+    if (null != added) {
+      return added;
+    }
+    if (current.size() >= this.generationSize) {
+      this.startGeneration(current);
+    }
+    return cached;
+  }
+
+  private synchronized void startGeneration(ConcurrentHashMap<T, T> full) {
+    if (this.current == full) {
+      this.previous = full;
+      this.current = new ConcurrentHashMap<>();
+    }
+  }
+
+  /* Return the number of cached values. */
+  int size() {
+    return this.current.size() + this.previous.size();
+  }
+
+  /* Return the number of lookups that returned a cached value. */
+  long hits() {
+    return this.hits.sum();
+  }
+
+  /* Return the number of lookups that added a new value. */
+  long misses() {
+    return this.misses.sum();
+  }
+
+  @Override
+  public String toString() {
+    long hits = this.hits();
+    long lookups = hits + this.misses();
+    return String.format("%s: %d values, %d of %d lookups hit (%.1f%%)",
+        this.name, this.size(), hits, lookups,
+        lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+  }
+}
@@ -5,6 +5,7 @@ package org.torproject.descriptor.log;
 
 import org.torproject.descriptor.DescriptorParseException;
 import org.torproject.descriptor.LogDescriptor;
+import org.torproject.descriptor.internal.FileType;
 
 /**
  * This interface provides methods for internal use only.
@@ -34,12 +35,26 @@ public interface InternalLogDescriptor extends LogDescriptor {
   void setValidator(Validator validator);
 
   /**
-   * Set the descriptor's bytes.
+   * Set the descriptor's bytes, which must be compressed using the
+   * descriptor's compression type (see {@link #getCompressionType}).
    *
    * @since 2.2.0
    */
   void setRawDescriptorBytes(byte[] bytes);
 
+  /**
+   * Set the compression type and level used for compressing an
+   * uncompressed log when its raw descriptor bytes are first requested,
+   * where the level is defined as in
+   * {@link FileType#outputStream(java.io.OutputStream, int)}.
+   *
+   * <p>This has no effect on logs that were compressed originally or whose
+   * raw descriptor bytes have been compressed already.</p>
+   *
+   * @since 2.16.0
+   */
+  void setCompression(FileType compression, int level);
+
   /** Return the descriptor's preferred compression. */
   String getCompressionType();
 
@@ -0,0 +1,93 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/* Spliterator over the lines contained in a range of an uncompressed byte
+ * array, which decodes each line only when it is requested and which
+ * splits at line boundaries for parallel processing.
+ *
+ * Lines are terminated by a line feed, optionally preceded by a carriage
+ * return, or by the end of the range, which is the same as for
+ * BufferedReader#lines, except for lone carriage returns. */
+final class LineSpliterator implements Spliterator<String> {
+
+  /* Minimum number of bytes for splitting off a part of this spliterator's
+   * range, so that parallel streams don't split into tiny tasks. */
+  private static final int MIN_SPLIT_LENGTH = 1 << 16;
+
+  private final byte[] bytes;
+
+  private int position;
+
+  private final int end;
+
+  LineSpliterator(byte[] bytes) {
+    this(bytes, 0, bytes.length);
+  }
+
+  private LineSpliterator(byte[] bytes, int position, int end) {
+    this.bytes = bytes;
+    this.position = position;
+    this.end = end;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super String> action) {
+    if (this.position >= this.end) {
+      return false;
+    }
+    int lineEnd = this.indexOfLineFeed(this.position);
+    int next = lineEnd + 1;
+    if (lineEnd > this.position && this.bytes[lineEnd - 1] == '\r') {
+      lineEnd--;
+    }
+    action.accept(new String(this.bytes, this.position,
+        lineEnd - this.position, StandardCharsets.UTF_8));
+    this.position = next;
+    return true;
+  }
+
+  /* Return the index of the next line feed at or after the given index, or
+   * the end of the range if there is none. */
+  private int indexOfLineFeed(int from) {
+    for (int i = from; i < this.end; i++) {
+      if (this.bytes[i] == '\n') {
+        return i;
+      }
+    }
+    return this.end;
+  }
+
+  @Override
+  public Spliterator<String> trySplit() {
+    if (this.end - this.position < MIN_SPLIT_LENGTH) {
+      return null;
+    }
+    int middle = this.indexOfLineFeed(
+        this.position + (this.end - this.position) / 2) + 1;
+    if (middle >= this.end) {
+      return null;
+    }
+    Spliterator<String> prefix = new LineSpliterator(this.bytes,
+        this.position, middle);
+    this.position = middle;
+    return prefix;
+  }
+
+  /* Return the number of remaining bytes as an upper bound for the number
+   * of remaining lines. */
+  @Override
+  public long estimateSize() {
+    return this.end - this.position;
+  }
+
+  @Override
+  public int characteristics() {
+    return ORDERED | NONNULL | IMMUTABLE;
+  }
+}
@@ -11,8 +11,11 @@ import org.torproject.descriptor.internal.FileType;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -20,6 +23,8 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Base class for log descriptors.
@@ -39,11 +44,17 @@ public abstract class LogDescriptorImpl
 
   private final File descriptorFile;
 
-  /** Byte array for plain, i.e. uncompressed, log data. */
+  /** Byte array for log data, which is compressed using {@code fileType}. */
   private byte[] logBytes;
 
   private FileType fileType;
 
+  /** Compression of the raw descriptor bytes, which differs from
+   * {@code fileType} as long as compressing plain log data is deferred. */
+  private FileType compression;
+
+  private int compressionLevel = FileType.DEFAULT_LEVEL;
+
   private List<String> unrecognizedLines = new ArrayList<>();
 
   private Validator validator = (String line) -> true;
@@ -53,7 +64,8 @@ public abstract class LogDescriptorImpl
    *
    * <p>An unknown compression type (see {@link #getCompressionType})
    * is interpreted as missing compression.  In this case the bytes
-   * will be compressed to the given compression type.</p>
+   * will be compressed to the given compression type, which is deferred
+   * until the raw descriptor bytes are requested.</p>
    *
    * @since 2.2.0
    */
@@ -69,31 +81,74 @@ public abstract class LogDescriptorImpl
             "Log file name doesn't comply to standard: " + logName);
       }
       this.fileType = FileType.findType(mat.group(1).toUpperCase());
-      if (FileType.PLAIN == this.fileType) {
-        this.fileType = defaultCompression;
-        this.logBytes = this.fileType.compress(this.logBytes);
-      }
+      this.compression = FileType.PLAIN == this.fileType ? defaultCompression
+          : this.fileType;
     } catch (Exception ex) {
       throw new DescriptorParseException("Cannot parse file "
           + logName + " from file " + descriptorFile.getName(), ex);
     }
   }
 
+  @Override
+  public synchronized void setCompression(FileType compression, int level) {
+    if (this.compression != this.fileType) {
+      this.compression = compression;
+      this.compressionLevel = level;
+    }
+  }
+
   @Override
   public InputStream decompressedByteStream() throws DescriptorParseException {
+    byte[] bytes;
+    FileType type;
+    synchronized (this) {
+      bytes = this.logBytes;
+      type = this.fileType;
+    }
     try {
-      return this.fileType.decompress(new ByteArrayInputStream(this.logBytes));
+      return type.decompress(new ByteArrayInputStream(bytes));
     } catch (Exception ex) {
       throw new DescriptorParseException("Cannot provide deflated stream of "
           + this.descriptorFile + ".", ex);
     }
   }
 
+  /**
+   * Returns a lazily populated stream of the decompressed log's lines, which
+   * reads and decompresses the log only as far as lines are consumed and
+   * which should be closed after use.
+   *
+   * <p>Lines of uncompressed logs are read directly from the log's bytes,
+   * as long as the raw descriptor bytes have not been compressed, and the
+   * returned stream can be split efficiently for parallel processing.</p>
+   *
+   * @since 2.16.0
+   */
+  protected Stream<String> lines() throws DescriptorParseException {
+    byte[] bytes;
+    FileType type;
+    synchronized (this) {
+      bytes = this.logBytes;
+      type = this.fileType;
+    }
+    if (FileType.PLAIN == type) {
+      return StreamSupport.stream(new LineSpliterator(bytes), false);
+    }
+    BufferedReader br = new BufferedReader(new InputStreamReader(
+        this.decompressedByteStream(), StandardCharsets.UTF_8));
+    return br.lines().onClose(() -> {
+      try {
+        br.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
   @Override
   public void validate() throws DescriptorParseException {
-    try (BufferedReader br = new BufferedReader(
-        new InputStreamReader(decompressedByteStream()))) {
-      this.unrecognizedLines.addAll(br.lines().parallel().filter((line)
+    try (Stream<String> lines = this.lines()) {
+      this.unrecognizedLines.addAll(lines.parallel().filter((line)
           -> null != line && !line.isEmpty() && !validator.validate(line))
           .limit(unrecognizedLinesLimit).collect(Collectors.toList()));
     } catch (Exception ex) {
@@ -123,23 +178,41 @@ public abstract class LogDescriptorImpl
   }
 
   @Override
-  public String getCompressionType() {
-    return this.fileType.name().toLowerCase();
+  public synchronized String getCompressionType() {
+    return this.compression.name().toLowerCase();
   }
 
+  /**
+   * Returns the log's bytes compressed using the compression type (see
+   * {@link #getCompressionType}), which compresses plain log data first if
+   * that has been deferred.
+   *
+   * @since 2.2.0
+   */
   @Override
-  public byte[] getRawDescriptorBytes() {
+  public synchronized byte[] getRawDescriptorBytes() {
+    if (this.compression != this.fileType) {
+      try {
+        this.logBytes = this.compression.compress(this.logBytes,
+            this.compressionLevel);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot compress " + this.descriptorFile
+            + ".", e);
+      }
+      this.fileType = this.compression;
+    }
     return this.logBytes;
   }
 
   @Override
-  public void setRawDescriptorBytes(byte[] bytes) {
+  public synchronized void setRawDescriptorBytes(byte[] bytes) {
     this.logBytes = bytes;
+    this.fileType = this.compression;
   }
 
   @Override
   public int getRawDescriptorLength() {
-    return this.logBytes.length;
+    return this.getRawDescriptorBytes().length;
   }
 
   @Override
@@ -7,15 +7,10 @@ import org.torproject.descriptor.DescriptorParseException;
 import org.torproject.descriptor.WebServerAccessLog;
 import org.torproject.descriptor.internal.FileType;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
 import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -133,36 +128,40 @@ public class WebServerAccessLogImpl extends LogDescriptorImpl
     return this.logDate;
   }
 
-  private static final int LISTLIMIT = Integer.MAX_VALUE / 2;
-
-  /** Returns a stream of all valid log lines. */
+  /**
+   * Returns a stream of all valid log lines, which are read, decompressed,
+   * and parsed only as far as they are consumed.
+   *
+   * <p>The returned stream should be closed after use. Streams of
+   * uncompressed logs can be processed in parallel efficiently.</p>
+   */
   @Override
   public Stream<WebServerAccessLog.Line> logLines()
       throws DescriptorParseException {
-    try (BufferedReader br = new BufferedReader(new InputStreamReader(
-        this.decompressedByteStream()))) {
-      List<List<WebServerAccessLogLine>> lists = new ArrayList<>();
-      List<WebServerAccessLogLine> currentList = new ArrayList<>();
-      lists.add(currentList);
-      String lineStr = br.readLine();
-      int count = 0;
-      while (null != lineStr) {
-        WebServerAccessLogLine wsal = WebServerAccessLogLine.makeLine(lineStr);
-        if (wsal.isValid()) {
-          currentList.add(wsal);
-          count++;
-        }
-        if (count >= LISTLIMIT) {
-          currentList = new ArrayList<>();
-          lists.add(currentList);
-          count = 0;
-        }
-        lineStr = br.readLine();
-      }
-      br.close();
-      return lists.stream().flatMap(Collection::stream);
-    } catch (Exception ex) {
-      throw new DescriptorParseException("Cannot retrieve log lines.", ex);
+    return this.lines().map(WebServerAccessLogLine::makeLine)
+        .filter(WebServerAccessLogLine::isValid)
+        .map(WebServerAccessLog.Line.class::cast);
+  }
+
+  /**
+   * Returns the numbers of valid log lines by request date, method, response
+   * code, and requested resource.
+   *
+   * <p>Lines of uncompressed logs are counted in parallel, with each thread
+   * parsing lines into its own reused line object and counting them in its
+   * own partial counts, which are merged at the end.</p>
+   *
+   * @since 2.16.0
+   */
+  @Override
+  public WebServerAccessLog.RequestCounts countRequests()
+      throws DescriptorParseException {
+    try (Stream<String> lines = this.lines()) {
+      return lines.parallel().collect(WebServerRequestCounts::new,
+          WebServerRequestCounts::addLine, WebServerRequestCounts::merge);
+    } catch (RuntimeException e) {
+      throw new DescriptorParseException("Cannot count requests in "
+          + this.getDescriptorFile() + ".", e);
     }
   }
 
@@ -13,13 +13,9 @@ import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class WebServerAccessLogLine implements WebServerAccessLog.Line {
 
@@ -34,20 +30,14 @@ public class WebServerAccessLogLine implements WebServerAccessLog.Line {
   private static final DateTimeFormatter dateTimeFormatter
       = DateTimeFormatter.ofPattern(DATE_PATTERN + ":HH:mm:ss xxxx");
 
-  private static Pattern logLinePattern = Pattern.compile(
-      "^((?:\\d{1,3}\\.){3}\\d{1,3}) (\\S+) (\\S+) "
-      + "\\[([\\w/]+)([\\w:]+)(\\s[+\\-]\\d{4})\\] "
-      + "\"([A-Z]+) ([^\"]+) ([A-Z]+/\\d\\.\\d)\" "
-      + "(\\d{3}) (\\d+|-)(.*)");
-
-  private static Map<String, String> ipMap
-      = Collections.synchronizedMap(new HashMap<>());
-  private static Map<LocalDate, LocalDate> dateMap
-      = Collections.synchronizedMap(new HashMap<>(500));
-  private static Map<String, String> protocolMap
-      = Collections.synchronizedMap(new HashMap<>());
-  private static Map<String, String> requestMap
-      = Collections.synchronizedMap(new HashMap<>(50_000));
+  private static final InternCache<String> ipCache
+      = new InternCache<>("ip", 1_000);
+  private static final InternCache<LocalDate> dateCache
+      = new InternCache<>("date", 500);
+  private static final InternCache<String> protocolCache
+      = new InternCache<>("protocol", 100);
+  private static final InternCache<String> requestCache
+      = new InternCache<>("request", 50_000);
 
   private String ip;
   private int response;
@@ -87,7 +77,7 @@ public class WebServerAccessLogLine implements WebServerAccessLog.Line {
 
   /** Only used internally during sanitization. */
   public void setIp(String ip) {
-    this.ip = fromMap(ip, ipMap);
+    this.ip = ipCache.intern(ip);
   }
 
   @Override
@@ -117,7 +107,7 @@ public class WebServerAccessLogLine implements WebServerAccessLog.Line {
 
   /** Only used internally during sanitization. */
   public void setRequest(String request) {
-    this.request = fromMap(request, requestMap);
+    this.request = requestCache.intern(request);
   }
 
   @Override
@@ -133,37 +123,247 @@ public class WebServerAccessLogLine implements WebServerAccessLog.Line {
   /** Creates a Line from a string. */
   public static WebServerAccessLogLine makeLine(String line) {
     WebServerAccessLogLine res = new WebServerAccessLogLine();
+    parse(line, res);
+    return res;
+  }
+
+  /* Parse the given line into the given, possibly reused line object and
+   * return whether the line is valid, in which case all fields are
+   * overwritten. The line object is left unchanged if the line is
+   * invalid. */
+  static boolean parse(String line, WebServerAccessLogLine res) {
     try {
-      Matcher mat = logLinePattern.matcher(line);
-      if (mat.find()) {
-        res.response = Integer.valueOf(mat.group(10));
-        res.method = Method.valueOf(mat.group(7));
-        String dateTimeString = mat.group(4) + mat.group(5) + mat.group(6);
-        res.date = fromMap(ZonedDateTime.parse(dateTimeString,
-            dateTimeFormatter).withZoneSameInstant(ZoneOffset.UTC)
-            .toLocalDate(), dateMap);
-        res.ip = fromMap(mat.group(1), ipMap);
-        res.request = fromMap(mat.group(8), requestMap);
-        res.protocol = fromMap(mat.group(9), protocolMap);
-        if (DASH.equals(mat.group(11))) {
-          res.size = -1;
-        } else {
-          res.size = Integer.valueOf(mat.group(11));
-        }
-        res.valid = true;
-      }
+      return parseFields(line, res);
     } catch (Throwable th) {
       logger.debug("Unmatchable line: '{}'.", line, th);
-      return new WebServerAccessLogLine();
+      return false;
     }
-    return res;
   }
 
-  private static <T> T fromMap(T val, Map<T, T> map) {
-    synchronized (map) {
-      map.putIfAbsent(Objects.requireNonNull(val), val);
-      return map.get(val);
+  /* Parse a line in the log format written by the sanitizer in a single
+   * pass, or return false if the line is invalid.
+   *
+   * A line is valid if it matches the regular expression
+   *
+   *   ^((?:\d{1,3}\.){3}\d{1,3}) (\S+) (\S+)
+   *   \[([\w/]+)([\w:]+)(\s[+\-]\d{4})\] "([A-Z]+) ([^"]+)
+   *   ([A-Z]+/\d\.\d)" (\d{3}) (\d+|-)(.*)
+   *
+   * (with single spaces at the line breaks) and if the method, date, and
+   * size can be parsed, which are the same rules as when using that regular
+   * expression for parsing lines. */
+  private static boolean parseFields(String line,
+      WebServerAccessLogLine res) {
+    int len = line.length();
+    int pos = 0;
+    for (int part = 0; part < 4; part++) {
+      int start = pos;
+      while (pos < len && pos - start < 3 && isDigit(line.charAt(pos))) {
+        pos++;
+      }
+      if (pos == start || (part < 3 && !isAt(line, pos++, '.'))) {
+        return false;
+      }
+    }
+    String ip = line.substring(0, pos);
+    for (int token = 0; token < 2; token++) {
+      if (!isAt(line, pos++, ' ')) {
+        return false;
+      }
+      int start = pos;
+      while (pos < len && !isWhitespace(line.charAt(pos))) {
+        pos++;
+      }
+      if (pos == start) {
+        return false;
+      }
+    }
+    if (!isAt(line, pos++, ' ') || !isAt(line, pos++, '[')) {
+      return false;
+    }
+    int dateEnd = line.indexOf(']', pos);
+    if (dateEnd < 0 || !isDateTime(line, pos, dateEnd)) {
+      return false;
+    }
+    LocalDate date = parseDate(line, pos, dateEnd);
+    pos = dateEnd + 1;
+    if (!isAt(line, pos++, ' ') || !isAt(line, pos++, '"')) {
+      return false;
+    }
+    int methodStart = pos;
+    while (pos < len && isUpperCase(line.charAt(pos))) {
+      pos++;
+    }
+    if (pos == methodStart || !isAt(line, pos, ' ')) {
+      return false;
+    }
+    Method method = Method.valueOf(line.substring(methodStart, pos++));
+    int quote = line.indexOf('"', pos);
+    if (quote < 0) {
+      return false;
+    }
+    int protocolStart = line.lastIndexOf(' ', quote - 1) + 1;
+    if (protocolStart <= pos + 1 || !isProtocol(line, protocolStart, quote)) {
+      return false;
+    }
+    String request = line.substring(pos, protocolStart - 1);
+    String protocol = line.substring(protocolStart, quote);
+    pos = quote + 1;
+    if (!isAt(line, pos++, ' ') || pos + 3 >= len
+        || !isDigit(line.charAt(pos)) || !isDigit(line.charAt(pos + 1))
+        || !isDigit(line.charAt(pos + 2)) || line.charAt(pos + 3) != ' ') {
+      return false;
+    }
+    int response = (line.charAt(pos) - '0') * 100
+        + (line.charAt(pos + 1) - '0') * 10 + (line.charAt(pos + 2) - '0');
+    pos += 4;
+    int size;
+    if (isAt(line, pos, '-')) {
+      size = -1;
+    } else if (pos < len && isDigit(line.charAt(pos))) {
+      long value = 0L;
+      while (pos < len && isDigit(line.charAt(pos))) {
+        value = value * 10L + (line.charAt(pos++) - '0');
+        if (value > Integer.MAX_VALUE) {
+          return false;
+        }
+      }
+      size = (int) value;
+    } else {
+      return false;
+    }
+    res.ip = ipCache.intern(ip);
+    res.date = date;
+    res.method = method;
+    res.request = requestCache.intern(request);
+    res.protocol = protocolCache.intern(protocol);
+    res.response = response;
+    res.size = size;
+    res.valid = true;
+    return true;
+  }
+
+  private static boolean isAt(String line, int pos, char c) {
+    return pos < line.length() && line.charAt(pos) == c;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isUpperCase(char c) {
+    return c >= 'A' && c <= 'Z';
+  }
+
+  private static boolean isWordCharacter(char c) {
+    return isDigit(c) || isUpperCase(c) || (c >= 'a' && c <= 'z') || c == '_';
+  }
+
+  /* Return whether the given character is whitespace as defined for \s in
+   * regular expressions. */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f'
+        || c == '\r';
+  }
+
+  /* Return whether the given part of the line matches
+   * ([\w/]+)([\w:]+)(\s[+\-]\d{4}), which requires that there is at least
+   * one character before the first colon and after the last slash, and that
+   * there is no colon before the last slash. */
+  private static boolean isDateTime(String line, int start, int end) {
+    int zoneStart = end - 6;
+    if (zoneStart - start < 2 || !isWhitespace(line.charAt(zoneStart))
+        || (line.charAt(zoneStart + 1) != '+'
+        && line.charAt(zoneStart + 1) != '-')) {
+      return false;
+    }
+    for (int i = zoneStart + 2; i < end; i++) {
+      if (!isDigit(line.charAt(i))) {
+        return false;
+      }
+    }
+    int lastSlash = -1;
+    int firstColon = -1;
+    for (int i = start; i < zoneStart; i++) {
+      char c = line.charAt(i);
+      if (c == '/') {
+        lastSlash = i;
+      } else if (c == ':') {
+        if (firstColon < 0) {
+          firstColon = i;
+        }
+      } else if (!isWordCharacter(c)) {
+        return false;
+      }
+    }
+    int splitFrom = Math.max(start + 1, lastSlash + 1);
+    int splitTo = firstColon < 0 ? zoneStart - 1
+        : Math.min(zoneStart - 1, firstColon);
+    return splitFrom <= splitTo;
+  }
+
+  /* Recently parsed date-time strings and their dates, which avoids parsing
+   * the same date-time string over and over, given that logs typically
+   * contain only one or two distinct date-time strings after
+   * sanitization. */
+  private static final AtomicReferenceArray<ParsedDate> parsedDates
+      = new AtomicReferenceArray<>(4);
+
+  private static final AtomicInteger nextParsedDate = new AtomicInteger();
+
+  private static final class ParsedDate {
+
+    private final String dateTimeString;
+
+    private final LocalDate date;
+
+    private ParsedDate(String dateTimeString, LocalDate date) {
+      this.dateTimeString = dateTimeString;
+      this.date = date;
+    }
+  }
+
+  /* Return the UTC date of the date-time string in the given part of the
+   * line. */
+  private static LocalDate parseDate(String line, int start, int end) {
+    int length = end - start;
+    for (int i = 0; i < parsedDates.length(); i++) {
+      ParsedDate parsed = parsedDates.get(i);
+      if (null != parsed && parsed.dateTimeString.length() == length
+          && line.regionMatches(start, parsed.dateTimeString, 0, length)) {
+        return parsed.date;
+      }
     }
+    String dateTimeString = line.substring(start, end);
+    LocalDate date = dateCache.intern(ZonedDateTime.parse(dateTimeString,
+        dateTimeFormatter).withZoneSameInstant(ZoneOffset.UTC)
+        .toLocalDate());
+    parsedDates.set(nextParsedDate.getAndIncrement() & 3,
+        new ParsedDate(dateTimeString, date));
+    return date;
+  }
+
+  /* Return whether the given part of the line matches
+   * [A-Z]+/\d\.\d. */
+  private static boolean isProtocol(String line, int start, int end) {
+    if (end - start < 5 || line.charAt(end - 4) != '/'
+        || !isDigit(line.charAt(end - 3)) || line.charAt(end - 2) != '.'
+        || !isDigit(line.charAt(end - 1))) {
+      return false;
+    }
+    for (int i = start; i < end - 4; i++) {
+      if (!isUpperCase(line.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Only used internally for monitoring; returns sizes and hit rates of
+   * the caches used for deduplicating field values of parsed lines. */
+  public static String getCacheStatistics() {
+    return String.join("\n", ipCache.toString(), dateCache.toString(),
+        protocolCache.toString(), requestCache.toString());
   }
 
   @Override
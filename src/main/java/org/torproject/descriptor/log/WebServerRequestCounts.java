@@ -0,0 +1,140 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.log;
+
+import org.torproject.descriptor.Method;
+import org.torproject.descriptor.WebServerAccessLog;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/* Numbers of web server access log lines by request date, method, response
+ * code, and requested resource.
+ *
+ * Counters are kept in a hash map with one-element arrays as values, so
+ * that counting a line that has been counted before only updates an
+ * existing counter. Lines are parsed into a reused line object, and
+ * lookups use a reused key object, which is only copied when a new
+ * combination of fields is added. Requested resources are interned by the
+ * line parser, so that keys of different instances share the same
+ * strings. */
+final class WebServerRequestCounts
+    implements WebServerAccessLog.RequestCounts {
+
+  private final Map<Key, long[]> counts = new HashMap<>();
+
+  private long total;
+
+  private final WebServerAccessLogLine line = new WebServerAccessLogLine();
+
+  private final Key probe = new Key();
+
+  /* Parse the given log line and count it if it is valid. */
+  void addLine(String logLine) {
+    if (WebServerAccessLogLine.parse(logLine, this.line)) {
+      this.add(this.line.getDate(), this.line.getMethod(),
+          this.line.getResponse(), this.line.getRequest(), 1L);
+    }
+  }
+
+  private void add(LocalDate date, Method method, int response,
+      String request, long count) {
+    this.probe.set(date, method, response, request);
+    long[] counter = this.counts.get(this.probe);
+    if (null == counter) {
+      counter = new long[1];
+      this.counts.put(this.probe.copy(), counter);
+    }
+    counter[0] += count;
+    this.total += count;
+  }
+
+  @Override
+  public long getCount(LocalDate date, Method method, int response,
+      String request) {
+    this.probe.set(date, method, response, request);
+    long[] counter = this.counts.get(this.probe);
+    return null == counter ? 0L : counter[0];
+  }
+
+  @Override
+  public long getTotal() {
+    return this.total;
+  }
+
+  @Override
+  public int size() {
+    return this.counts.size();
+  }
+
+  @Override
+  public void forEach(CountConsumer consumer) {
+    for (Map.Entry<Key, long[]> e : this.counts.entrySet()) {
+      Key key = e.getKey();
+      consumer.accept(key.date, key.method, key.response, key.request,
+          e.getValue()[0]);
+    }
+  }
+
+  @Override
+  public WebServerAccessLog.RequestCounts merge(
+      WebServerAccessLog.RequestCounts other) {
+    other.forEach(this::add);
+    return this;
+  }
+
+  private static final class Key {
+
+    private LocalDate date;
+
+    private Method method;
+
+    private int response;
+
+    private String request;
+
+    private int hash;
+
+    private void set(LocalDate date, Method method, int response,
+        String request) {
+      this.date = date;
+      this.method = method;
+      this.response = response;
+      this.request = request;
+      this.hash = 31 * (31 * (31 * Objects.hashCode(date)
+          + Objects.hashCode(method)) + response) + Objects.hashCode(request);
+    }
+
+    private Key copy() {
+      Key copy = new Key();
+      copy.date = this.date;
+      copy.method = this.method;
+      copy.response = this.response;
+      copy.request = this.request;
+      copy.hash = this.hash;
+      return copy;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return this.response == key.response && this.method == key.method
+          && Objects.equals(this.date, key.date)
+          && Objects.equals(this.request, key.request);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+  }
+}
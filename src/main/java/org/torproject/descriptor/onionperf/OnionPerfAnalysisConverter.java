@@ -5,10 +5,9 @@ package org.torproject.descriptor.onionperf;
 
 import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorParseException;
-import org.torproject.descriptor.impl.TorperfResultImpl;
+import org.torproject.descriptor.TorperfResult;
 
 import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
-import org.apache.commons.compress.utils.IOUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -18,6 +17,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Converter that takes an OnionPerf analysis document as input and provides one
@@ -69,27 +69,99 @@ public class OnionPerfAnalysisConverter {
    *     Torperf results.
    */
   public List<Descriptor> asTorperfResults() throws DescriptorParseException {
+    List<Descriptor> torperfResults = new ArrayList<>();
+    this.convertTorperfResults(torperfResults::add);
+    if (torperfResults.isEmpty()) {
+      throw new DescriptorParseException("Descriptor is empty.");
+    }
+    this.convertedTorperfResults = torperfResults;
+    return this.convertedTorperfResults;
+  }
+
+  /**
+   * Parse the OnionPerf analysis JSON document, do some basic verification, and
+   * convert its contents to {@link org.torproject.descriptor.TorperfResult}
+   * descriptors, passing each of them to the given consumer as soon as it has
+   * been converted.
+   *
+   * <p>Unlike {@link #asTorperfResults()}, this method does not keep the
+   * document or the converted results in memory. It reads the document in two
+   * passes: the first pass only keeps document type, version, and, for each
+   * measurement as soon as its {@code tor} data has been read, lookups of
+   * those {@code tor} streams and circuits that are needed for matching them
+   * with {@code tgen} transfers or streams, and the second pass converts
+   * {@code tgen} transfers or streams one by one while reading them. Torperf
+   * results are passed to the consumer in document order. If the document
+   * cannot be parsed, verified, or converted, this method throws an exception
+   * after possibly passing some Torperf results to the consumer already.</p>
+   *
+   * @param consumer Consumer of converted Torperf results.
+   * @throws DescriptorParseException Thrown if something goes wrong while
+   *     parsing, verifying, or converting the OnionPerf analysis file to
+   *     Torperf results.
+   * @since 2.16.0
+   */
+  public void convertTorperfResults(Consumer<? super TorperfResult> consumer)
+      throws DescriptorParseException {
+    Map<String, TorLookups> torLookupsByNickname = new HashMap<>();
     ParsedOnionPerfAnalysis parsedOnionPerfAnalysis
-        = this.parseOnionPerfAnalysis();
+        = this.parseOnionPerfAnalysis((nickname, torData)
+        -> torLookupsByNickname.computeIfAbsent(nickname,
+        (key) -> new TorLookups()).add(torData));
     this.verifyDocumentTypeAndVersion(parsedOnionPerfAnalysis);
-    StringBuilder formattedTorperfResults
-        = this.formatTorperfResults(parsedOnionPerfAnalysis);
-    this.parseFormattedTorperfResults(formattedTorperfResults);
-    return this.convertedTorperfResults;
+    for (Map.Entry<String, ParsedOnionPerfAnalysis.MeasurementData> data
+        : parsedOnionPerfAnalysis.data.entrySet()) {
+      torLookupsByNickname.computeIfAbsent(data.getKey(),
+          (key) -> new TorLookups()).measurementIp
+          = data.getValue().measurementIp;
+    }
+    ParsedOnionPerfAnalysis.TgenDataVisitor visitor
+        = new ParsedOnionPerfAnalysis.TgenDataVisitor() {
+          @Override
+          public void visitTransfer(String nickname,
+              ParsedOnionPerfAnalysis.Transfer transfer)
+              throws DescriptorParseException {
+            consumer.accept(convertTransfer(nickname,
+                torLookupsByNickname.get(nickname), transfer));
+          }
+
+          @Override
+          public void visitStream(String nickname,
+              ParsedOnionPerfAnalysis.TgenStream stream)
+              throws DescriptorParseException {
+            consumer.accept(convertTgenStream(nickname,
+                torLookupsByNickname.get(nickname), stream));
+          }
+        };
+    try (InputStream decompressedInputStream
+        = this.openDecompressedInputStream()) {
+      ParsedOnionPerfAnalysis.readTgenData(decompressedInputStream, visitor);
+    } catch (IOException ioException) {
+      throw new DescriptorParseException("Ran into an I/O error while "
+          + "attempting to parse an OnionPerf analysis document.",
+          ioException);
+    }
+  }
+
+  /**
+   * Decompress the OnionPerf analysis file bytes while reading them.
+   */
+  private InputStream openDecompressedInputStream() throws IOException {
+    return new XZCompressorInputStream(new ByteArrayInputStream(
+        this.rawDescriptorBytes));
   }
 
   /**
-   * Parse the OnionPerf analysis JSON document.
+   * Parse the OnionPerf analysis JSON document, except for its {@code tgen}
+   * data, and pass its {@code tor} data to the given visitor.
    */
-  private ParsedOnionPerfAnalysis parseOnionPerfAnalysis()
+  private ParsedOnionPerfAnalysis parseOnionPerfAnalysis(
+      ParsedOnionPerfAnalysis.TorDataVisitor visitor)
       throws DescriptorParseException {
-    try {
-      InputStream compressedInputStream = new ByteArrayInputStream(
-          this.rawDescriptorBytes);
-      InputStream decompressedInputStream = new XZCompressorInputStream(
-          compressedInputStream);
-      byte[] decompressedBytes = IOUtils.toByteArray(decompressedInputStream);
-      return ParsedOnionPerfAnalysis.fromBytes(decompressedBytes);
+    try (InputStream decompressedInputStream
+        = this.openDecompressedInputStream()) {
+      return ParsedOnionPerfAnalysis.readWithoutTgenData(
+          decompressedInputStream, visitor);
     } catch (IOException ioException) {
       throw new DescriptorParseException("Ran into an I/O error while "
           + "attempting to parse an OnionPerf analysis document.",
@@ -126,119 +198,111 @@ public class OnionPerfAnalysisConverter {
   }
 
   /**
-   * Format the parsed OnionPerf analysis file as one or more Torperf result
-   * strings.
-   *
-   * @param parsedOnionPerfAnalysis Parsed OnionPerf analysis document.
+   * {@code tor} streams and circuits of a single measurement source that are
+   * needed for matching them with {@code tgen} transfers or streams.
    */
-  private StringBuilder formatTorperfResults(
-      ParsedOnionPerfAnalysis parsedOnionPerfAnalysis) {
-    StringBuilder formattedTorperfResults = new StringBuilder();
-    for (Map.Entry<String, ParsedOnionPerfAnalysis.MeasurementData> data
-        : parsedOnionPerfAnalysis.data.entrySet()) {
-      String nickname = data.getKey();
-      ParsedOnionPerfAnalysis.MeasurementData measurements = data.getValue();
-      if (null == measurements.tgen) {
-        continue;
-      }
-      String measurementIp = measurements.measurementIp;
-      Map<String, List<ParsedOnionPerfAnalysis.Stream>> streamsBySourcePort
-          = new HashMap<>();
-      Map<String, ParsedOnionPerfAnalysis.Circuit> circuitsByCircuitId
-          = new HashMap<>();
-      if (null != measurements.tor) {
-        circuitsByCircuitId = measurements.tor.circuits;
-        if (null != measurements.tor.streams) {
-          for (ParsedOnionPerfAnalysis.Stream stream
-              : measurements.tor.streams.values()) {
-            if (null != stream.source && stream.source.contains(":")) {
-              String sourcePort = stream.source.split(":")[1];
-              streamsBySourcePort.putIfAbsent(sourcePort, new ArrayList<>());
-              streamsBySourcePort.get(sourcePort).add(stream);
-            }
-          }
-        }
-      }
-      if (null != measurements.tgen.transfers) {
-        for (ParsedOnionPerfAnalysis.Transfer transfer
-            : measurements.tgen.transfers.values()) {
-          TorperfResultsBuilder torperfResultsBuilder
-              = new TorperfResultsBuilder();
-          torperfResultsBuilder.addString("SOURCE", nickname);
-          torperfResultsBuilder.addString("SOURCEADDRESS", measurementIp);
-          this.formatTransferParts(torperfResultsBuilder, transfer);
-          if (null != transfer.endpointLocal) {
-            String[] endpointLocalParts = transfer.endpointLocal.split(":");
-            if (endpointLocalParts.length >= 3) {
-              String sourcePort = endpointLocalParts[2];
-              if (streamsBySourcePort.containsKey(sourcePort)) {
-                for (ParsedOnionPerfAnalysis.Stream stream
-                    : streamsBySourcePort.get(sourcePort)) {
-                  if (Math.abs(transfer.unixTsEnd - stream.unixTsEnd) < 150.0) {
-                    this.formatStreamParts(torperfResultsBuilder, stream);
-                    if (null != stream.circuitId
-                        && circuitsByCircuitId.containsKey(stream.circuitId)) {
-                      ParsedOnionPerfAnalysis.Circuit circuit
-                          = circuitsByCircuitId.get(stream.circuitId);
-                      this.formatCircuitParts(torperfResultsBuilder, circuit);
-                    }
-                  }
-                }
-              }
-            }
-          }
-          formattedTorperfResults.append(torperfResultsBuilder.build());
-        }
+  private static class TorLookups {
+
+    private String measurementIp;
+
+    private final Map<String, List<ParsedOnionPerfAnalysis.Stream>>
+        streamsBySourcePort = new HashMap<>();
+
+    private final Map<String, ParsedOnionPerfAnalysis.Circuit>
+        circuitsByCircuitId = new HashMap<>();
+
+    /**
+     * Add lookups of {@code tor} streams by source port and of circuits used
+     * by those streams by circuit ID, which only contains streams with a
+     * source port and circuits used by them.
+     */
+    private void add(ParsedOnionPerfAnalysis.TorData torData) {
+      if (null == torData.streams) {
+        return;
       }
-      if (null != measurements.tgen.streams) {
-        for (ParsedOnionPerfAnalysis.TgenStream stream
-             : measurements.tgen.streams.values()) {
-          TorperfResultsBuilder torperfResultsBuilder
-              = new TorperfResultsBuilder();
-          torperfResultsBuilder.addString("SOURCE", nickname);
-          torperfResultsBuilder.addString("SOURCEADDRESS", measurementIp);
-          this.formatTgenStreamParts(torperfResultsBuilder, stream);
-          if (null != stream.transportInfo
-              && null != stream.transportInfo.local) {
-            String[] endpointLocalParts = stream.transportInfo.local.split(":");
-            if (endpointLocalParts.length >= 3) {
-              String sourcePort = endpointLocalParts[2];
-              if (streamsBySourcePort.containsKey(sourcePort)) {
-                for (ParsedOnionPerfAnalysis.Stream torStream
-                    : streamsBySourcePort.get(sourcePort)) {
-                  if (Math.abs(stream.unixTsEnd
-                      - torStream.unixTsEnd) < 150.0) {
-                    this.formatStreamParts(torperfResultsBuilder, torStream);
-                    if (null != torStream.circuitId && circuitsByCircuitId
-                        .containsKey(torStream.circuitId)) {
-                      ParsedOnionPerfAnalysis.Circuit circuit
-                          = circuitsByCircuitId.get(torStream.circuitId);
-                      this.formatCircuitParts(torperfResultsBuilder, circuit);
-                    }
-                  }
-                }
-              }
-            }
-          }
-          formattedTorperfResults.append(torperfResultsBuilder.build());
+      for (ParsedOnionPerfAnalysis.Stream stream : torData.streams.values()) {
+        String sourcePort = stream.source.split(":")[1];
+        this.streamsBySourcePort.computeIfAbsent(sourcePort,
+            (key) -> new ArrayList<>()).add(stream);
+        if (null != stream.circuitId && null != torData.circuits
+            && torData.circuits.containsKey(stream.circuitId)) {
+          this.circuitsByCircuitId.put(stream.circuitId,
+              torData.circuits.get(stream.circuitId));
         }
       }
     }
-    return formattedTorperfResults;
   }
 
   /**
-   * Parse the previously formatted Torperf results.
+   * Convert a tgen transfer to a Torperf result, without formatting it as
+   * Torperf results line and parsing that line again.
    *
-   * @param formattedTorperfResults Formatted Torperf result strings.
-   * @throws DescriptorParseException Thrown when an error occurs while parsing
-   *     a previously formatted {@link org.torproject.descriptor.TorperfResult}
-   *     string.
+   * @throws DescriptorParseException Thrown when the data of the transfer does
+   *     not form a valid {@link org.torproject.descriptor.TorperfResult}.
    */
-  private void parseFormattedTorperfResults(
-      StringBuilder formattedTorperfResults) throws DescriptorParseException {
-    this.convertedTorperfResults = TorperfResultImpl.parseTorperfResults(
-        formattedTorperfResults.toString().getBytes(), this.descriptorFile);
+  private TorperfResult convertTransfer(String nickname,
+      TorLookups torLookups, ParsedOnionPerfAnalysis.Transfer transfer)
+      throws DescriptorParseException {
+    TorperfResultsBuilder torperfResultsBuilder = new TorperfResultsBuilder();
+    torperfResultsBuilder.addString("SOURCE", nickname);
+    torperfResultsBuilder.addString("SOURCEADDRESS", torLookups.measurementIp);
+    this.formatTransferParts(torperfResultsBuilder, transfer);
+    if (null != transfer.endpointLocal) {
+      this.formatMatchingStreamAndCircuitParts(torperfResultsBuilder,
+          torLookups, transfer.endpointLocal, transfer.unixTsEnd);
+    }
+    return torperfResultsBuilder.buildTorperfResult(this.descriptorFile);
+  }
+
+  /**
+   * Convert a tgen stream to a Torperf result, without formatting it as
+   * Torperf results line and parsing that line again.
+   *
+   * @throws DescriptorParseException Thrown when the data of the stream does
+   *     not form a valid {@link org.torproject.descriptor.TorperfResult}.
+   */
+  private TorperfResult convertTgenStream(String nickname,
+      TorLookups torLookups, ParsedOnionPerfAnalysis.TgenStream stream)
+      throws DescriptorParseException {
+    TorperfResultsBuilder torperfResultsBuilder = new TorperfResultsBuilder();
+    torperfResultsBuilder.addString("SOURCE", nickname);
+    torperfResultsBuilder.addString("SOURCEADDRESS", torLookups.measurementIp);
+    this.formatTgenStreamParts(torperfResultsBuilder, stream);
+    if (null != stream.transportInfo && null != stream.transportInfo.local) {
+      this.formatMatchingStreamAndCircuitParts(torperfResultsBuilder,
+          torLookups, stream.transportInfo.local, stream.unixTsEnd);
+    }
+    return torperfResultsBuilder.buildTorperfResult(this.descriptorFile);
+  }
+
+  /**
+   * Format data of {@code tor} streams with the source port contained in the
+   * given local endpoint and an end timestamp close to the given one, and of
+   * the circuits used by them, as Torperf result key-value pairs.
+   */
+  private void formatMatchingStreamAndCircuitParts(
+      TorperfResultsBuilder torperfResultsBuilder, TorLookups torLookups,
+      String endpointLocal, Double unixTsEnd) {
+    String[] endpointLocalParts = endpointLocal.split(":");
+    if (endpointLocalParts.length < 3) {
+      return;
+    }
+    String sourcePort = endpointLocalParts[2];
+    if (!torLookups.streamsBySourcePort.containsKey(sourcePort)) {
+      return;
+    }
+    for (ParsedOnionPerfAnalysis.Stream torStream
+        : torLookups.streamsBySourcePort.get(sourcePort)) {
+      if (Math.abs(unixTsEnd - torStream.unixTsEnd) < 150.0) {
+        this.formatStreamParts(torperfResultsBuilder, torStream);
+        if (null != torStream.circuitId && torLookups.circuitsByCircuitId
+            .containsKey(torStream.circuitId)) {
+          ParsedOnionPerfAnalysis.Circuit circuit
+              = torLookups.circuitsByCircuitId.get(torStream.circuitId);
+          this.formatCircuitParts(torperfResultsBuilder, circuit);
+        }
+      }
+    }
   }
 
   /**
@@ -3,15 +3,24 @@
 
 package org.torproject.descriptor.onionperf;
 
+import org.torproject.descriptor.DescriptorParseException;
+
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Parsed OnionPerf analysis document with all relevant fields for
@@ -31,18 +40,250 @@ public class ParsedOnionPerfAnalysis {
       .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
   /**
-   * Deserialize an OnionPerf analysis document from the given uncompressed
-   * bytes.
+   * Read document type, version, and measurement IP addresses from the given
+   * uncompressed OnionPerf analysis document while walking through its JSON
+   * tokens, skipping {@code tgen} data which makes up most of the document,
+   * and pass the {@code tor} circuits and streams of each measurement to the
+   * given visitor as soon as they have been read, without keeping them in
+   * memory.
    *
-   * @param bytes Uncompressed contents of the OnionPerf analysis to
-   *     deserialize.
-   * @return Parsed OnionPerf analysis document.
+   * @param inputStream Uncompressed contents of the OnionPerf analysis to
+   *     read.
+   * @param visitor Visitor to pass {@code tor} data to.
+   * @return Parsed OnionPerf analysis document without {@code tgen} and
+   *     {@code tor} data.
    * @throws IOException Thrown if something goes wrong while deserializing the
    *     given JSON document, but before doing any verification or
    *     postprocessing.
    */
-  static ParsedOnionPerfAnalysis fromBytes(byte[] bytes) throws IOException {
-    return objectMapper.readValue(bytes, ParsedOnionPerfAnalysis.class);
+  static ParsedOnionPerfAnalysis readWithoutTgenData(InputStream inputStream,
+      TorDataVisitor visitor) throws IOException {
+    ParsedOnionPerfAnalysis parsedOnionPerfAnalysis
+        = new ParsedOnionPerfAnalysis();
+    parsedOnionPerfAnalysis.data = new LinkedHashMap<>();
+    try (JsonParser parser = objectMapper.getFactory().createParser(
+        inputStream)) {
+      readDocument(parser, parsedOnionPerfAnalysis,
+          (nickname, fieldName, fieldParser) -> {
+            MeasurementData measurements = parsedOnionPerfAnalysis.data
+                .computeIfAbsent(nickname, (key) -> new MeasurementData());
+            switch (fieldName) {
+              case "measurement_ip":
+                measurements.measurementIp = objectMapper.readValue(
+                    fieldParser, String.class);
+                break;
+              case "tor":
+                visitor.visitTorData(nickname, readTorData(fieldParser));
+                break;
+              default:
+                fieldParser.skipChildren();
+            }
+          });
+    } catch (DescriptorParseException e) {
+      /* Not thrown, because no measurement data is passed to a visitor. */
+      throw new IOException(e);
+    }
+    return parsedOnionPerfAnalysis;
+  }
+
+  /**
+   * Read {@code tgen} transfers and streams from the given uncompressed
+   * OnionPerf analysis document while walking through its JSON tokens, and
+   * pass them to the given visitor one by one in document order, without
+   * keeping them in memory.
+   *
+   * @param inputStream Uncompressed contents of the OnionPerf analysis to
+   *     read.
+   * @param visitor Visitor to pass transfers and streams to.
+   * @throws IOException Thrown if something goes wrong while deserializing the
+   *     given JSON document.
+   * @throws DescriptorParseException Thrown by the visitor.
+   */
+  static void readTgenData(InputStream inputStream, TgenDataVisitor visitor)
+      throws IOException, DescriptorParseException {
+    try (JsonParser parser = objectMapper.getFactory().createParser(
+        inputStream)) {
+      readDocument(parser, null, (nickname, fieldName, fieldParser) -> {
+        if (!"tgen".equals(fieldName)) {
+          fieldParser.skipChildren();
+          return;
+        }
+        readFields(fieldParser, (tgenFieldName, tgenParser) -> {
+          switch (tgenFieldName) {
+            case "transfers":
+              readFields(tgenParser, (transferId, transferParser)
+                  -> visitor.visitTransfer(nickname, objectMapper.readValue(
+                  transferParser, Transfer.class)));
+              break;
+            case "streams":
+              readFields(tgenParser, (streamId, streamParser)
+                  -> visitor.visitStream(nickname, objectMapper.readValue(
+                  streamParser, TgenStream.class)));
+              break;
+            default:
+              tgenParser.skipChildren();
+          }
+        });
+      });
+    }
+  }
+
+  /**
+   * Visitor of {@code tor} circuits and streams.
+   */
+  interface TorDataVisitor {
+
+    /**
+     * Visit the circuits and streams of the measurements with the given
+     * source nickname.
+     */
+    void visitTorData(String nickname, TorData torData);
+  }
+
+  /**
+   * Visitor of {@code tgen} transfers and streams.
+   */
+  interface TgenDataVisitor {
+
+    /**
+     * Visit a transfer of the measurements with the given source nickname.
+     */
+    void visitTransfer(String nickname, Transfer transfer)
+        throws DescriptorParseException;
+
+    /**
+     * Visit a stream of the measurements with the given source nickname.
+     */
+    void visitStream(String nickname, TgenStream stream)
+        throws DescriptorParseException;
+  }
+
+  /**
+   * Reader of a field value, which must consume the value.
+   */
+  @FunctionalInterface
+  private interface FieldReader {
+    void read(String fieldName, JsonParser parser)
+        throws IOException, DescriptorParseException;
+  }
+
+  /**
+   * Reader of a field value of the measurement data with the given source
+   * nickname, which must consume the value.
+   */
+  @FunctionalInterface
+  private interface MeasurementFieldReader {
+    void read(String nickname, String fieldName, JsonParser parser)
+        throws IOException, DescriptorParseException;
+  }
+
+  /**
+   * Read the whole document, storing type and version in the given parsed
+   * document unless it is {@code null}, and passing the fields of all
+   * measurement data to the given reader.
+   */
+  private static void readDocument(JsonParser parser,
+      ParsedOnionPerfAnalysis parsedOnionPerfAnalysis,
+      MeasurementFieldReader measurementFieldReader)
+      throws IOException, DescriptorParseException {
+    parser.nextToken();
+    readFields(parser, (fieldName, fieldParser) -> {
+      if ("data".equals(fieldName)) {
+        readFields(fieldParser, (nickname, measurementParser)
+            -> readFields(measurementParser, (measurementFieldName,
+            measurementFieldParser) -> measurementFieldReader.read(nickname,
+            measurementFieldName, measurementFieldParser)));
+      } else if (null != parsedOnionPerfAnalysis && "type".equals(fieldName)) {
+        parsedOnionPerfAnalysis.type = objectMapper.readValue(fieldParser,
+            String.class);
+      } else if (null != parsedOnionPerfAnalysis
+          && "version".equals(fieldName)) {
+        parsedOnionPerfAnalysis.version = objectMapper.readValue(fieldParser,
+            Object.class);
+      } else {
+        fieldParser.skipChildren();
+      }
+    });
+  }
+
+  /**
+   * Read the fields of the JSON object at the current token, which may also
+   * be {@code null}, by passing them to the given reader, and leave the
+   * parser at the end of the object.
+   */
+  private static void readFields(JsonParser parser, FieldReader fieldReader)
+      throws IOException, DescriptorParseException {
+    if (JsonToken.VALUE_NULL == parser.getCurrentToken()) {
+      return;
+    }
+    if (JsonToken.START_OBJECT != parser.getCurrentToken()) {
+      throw new JsonParseException(parser, "Expected JSON object, but found "
+          + parser.getCurrentToken() + ".");
+    }
+    while (JsonToken.FIELD_NAME == parser.nextToken()) {
+      String fieldName = parser.getCurrentName();
+      parser.nextToken();
+      fieldReader.read(fieldName, parser);
+    }
+  }
+
+  /**
+   * Read {@code tor} circuits and streams, one by one, and only keep streams
+   * with a source port, which are the only ones that can be matched with
+   * {@code tgen} transfers or streams, and circuits used by those streams.
+   */
+  private static TorData readTorData(JsonParser parser)
+      throws IOException, DescriptorParseException {
+    TorData torData = new TorData();
+    readFields(parser, (fieldName, fieldParser) -> {
+      switch (fieldName) {
+        case "circuits": {
+          /* Drop unused circuits right away if streams come first. */
+          Set<String> usedCircuitIds = null == torData.streams ? null
+              : usedCircuitIds(torData.streams);
+          torData.circuits = new LinkedHashMap<>();
+          readFields(fieldParser, (circuitId, circuitParser) -> {
+            Circuit circuit = objectMapper.readValue(circuitParser,
+                Circuit.class);
+            if (null == usedCircuitIds || usedCircuitIds.contains(circuitId)) {
+              torData.circuits.put(circuitId, circuit);
+            }
+          });
+          break;
+        }
+        case "streams":
+          torData.streams = new LinkedHashMap<>();
+          readFields(fieldParser, (streamId, streamParser) -> {
+            Stream stream = objectMapper.readValue(streamParser,
+                Stream.class);
+            if (null != stream.source && stream.source.contains(":")) {
+              torData.streams.put(streamId, stream);
+            }
+          });
+          break;
+        default:
+          fieldParser.skipChildren();
+      }
+    });
+    if (null != torData.circuits) {
+      torData.circuits.keySet().retainAll(usedCircuitIds(torData.streams));
+    }
+    return torData;
+  }
+
+  /**
+   * Return the identifiers of circuits used by the given streams.
+   */
+  private static Set<String> usedCircuitIds(Map<String, Stream> streams) {
+    Set<String> usedCircuitIds = new HashSet<>();
+    if (null != streams) {
+      for (Stream stream : streams.values()) {
+        if (null != stream.circuitId) {
+          usedCircuitIds.add(stream.circuitId);
+        }
+      }
+    }
+    return usedCircuitIds;
   }
 
   /**
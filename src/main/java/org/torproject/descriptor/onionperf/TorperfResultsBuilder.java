@@ -3,6 +3,11 @@
 
 package org.torproject.descriptor.onionperf;
 
+import org.torproject.descriptor.DescriptorParseException;
+import org.torproject.descriptor.TorperfResult;
+import org.torproject.descriptor.impl.TorperfResultImpl;
+
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -123,10 +128,7 @@ public class TorperfResultsBuilder {
     StringBuilder result = new StringBuilder();
     result.append("@type torperf 1.1\r\n");
     List<String> torperfResultsParts = new ArrayList<>();
-    if (null != this.errorCodeParts) {
-      String errorCode = String.join("/", errorCodeParts);
-      this.addString("ERRORCODE", errorCode);
-    }
+    this.addErrorCode();
     for (Map.Entry<String, String> keyValuePairsEntry
         : this.keyValuePairs.entrySet()) {
       torperfResultsParts.add(String.format("%s=%s",
@@ -135,5 +137,30 @@ public class TorperfResultsBuilder {
     result.append(String.join(" ", torperfResultsParts)).append("\r\n");
     return result.toString();
   }
+
+  /**
+   * Build a Torperf result directly from all key-value pairs, which has the
+   * same contents as parsing the Torperf results line returned by
+   * {@link #build()} but which avoids formatting and parsing that line.
+   *
+   * @param descriptorFile Descriptor file that the key-value pairs were
+   *     obtained from, or {@code null}.
+   * @return Torperf result.
+   * @throws DescriptorParseException Thrown if the key-value pairs do not
+   *     form a valid Torperf result.
+   */
+  TorperfResult buildTorperfResult(File descriptorFile)
+      throws DescriptorParseException {
+    this.addErrorCode();
+    return TorperfResultImpl.fromKeyValuePairs(this.keyValuePairs,
+        descriptorFile);
+  }
+
+  private void addErrorCode() {
+    if (null != this.errorCodeParts) {
+      String errorCode = String.join("/", errorCodeParts);
+      this.addString("ERRORCODE", errorCode);
+    }
+  }
 }
 
@@ -0,0 +1,241 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.descriptor.Descriptor;
+import org.torproject.descriptor.DescriptorReader;
+import org.torproject.descriptor.ExtraInfoDescriptor;
+import org.torproject.descriptor.Microdescriptor;
+import org.torproject.descriptor.ServerDescriptor;
+import org.torproject.descriptor.internal.FileType;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ArchiveIndexTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final String[] RESOURCE_NAMES = new String[] {
+      "relay/2017-07-17-17-00-00-consensus",
+      "relay/2017-07-17-17-20-00-server-descriptors",
+      "relay/2017-07-17-17-20-00-extra-infos",
+      "relay/2017-07-17-17-20-00-micro",
+      "bridge/2017-07-17-17-09-00-server-descriptors" };
+
+  /* Uncompressed tarball containing all resources. */
+  private byte[] tarBytes;
+
+  /* Descriptors contained in the tarball by expected key. */
+  private Map<String, Descriptor> expectedDescriptors = new LinkedHashMap<>();
+
+  private DescriptorReader descriptorReader = new DescriptorReaderImpl();
+
+  /** Writes all resources to a tarball and parses them for comparison. */
+  @Before
+  public void createTarball() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DescriptorParserImpl descriptorParser = new DescriptorParserImpl();
+    try (TarArchiveOutputStream taos = new TarArchiveOutputStream(baos)) {
+      for (String resourceName : RESOURCE_NAMES) {
+        byte[] bytes = Files.readAllBytes(Paths.get(getClass()
+            .getClassLoader().getResource(resourceName).toURI()));
+        TarArchiveEntry tae = new TarArchiveEntry(resourceName);
+        tae.setSize(bytes.length);
+        taos.putArchiveEntry(tae);
+        taos.write(bytes);
+        taos.closeArchiveEntry();
+        for (Descriptor descriptor : descriptorParser.parseDescriptors(bytes,
+            null, resourceName.substring(resourceName.indexOf('/') + 1))) {
+          if (descriptor instanceof ServerDescriptor
+              || descriptor instanceof ExtraInfoDescriptor) {
+            this.expectedDescriptors.put(
+                ((DescriptorImpl) descriptor).getDigestSha1Hex(), descriptor);
+          } else if (descriptor instanceof Microdescriptor) {
+            this.expectedDescriptors.put(
+                ((DescriptorImpl) descriptor).getDigestSha256Base64(),
+                descriptor);
+          }
+        }
+      }
+    }
+    this.tarBytes = baos.toByteArray();
+    assertEquals(8 + 6 + 14 + 9, this.expectedDescriptors.size());
+  }
+
+  private File writeFile(String fileName, byte[] bytes) throws IOException {
+    File file = new File(this.temporaryFolder.getRoot(), fileName);
+    Files.write(file.toPath(), bytes);
+    return file;
+  }
+
+  private void assertAllDescriptorsFound(File archive) throws IOException {
+    File indexFile = this.descriptorReader.writeArchiveIndex(archive);
+    assertEquals(archive.getPath() + ".idx", indexFile.getPath());
+    /* Use a new reader to make sure that the index is read from disk. */
+    DescriptorReader otherReader = new DescriptorReaderImpl();
+    for (Map.Entry<String, Descriptor> e
+        : this.expectedDescriptors.entrySet()) {
+      DescriptorImpl expected = (DescriptorImpl) e.getValue();
+      DescriptorImpl found = (DescriptorImpl) otherReader
+          .readIndexedDescriptor(archive, e.getKey());
+      assertNotNull(e.getKey(), found);
+      assertEquals(expected.getClass(), found.getClass());
+      assertEquals(expected.getDigestSha1Hex(), found.getDigestSha1Hex());
+      assertEquals(expected.getDigestSha256Base64(),
+          found.getDigestSha256Base64());
+      assertEquals(archive, found.getDescriptorFile());
+    }
+  }
+
+  @Test
+  public void testPlainTarball() throws IOException {
+    this.assertAllDescriptorsFound(this.writeFile("descriptors.tar",
+        this.tarBytes));
+  }
+
+  @Test
+  public void testMultiBlockXzTarball() throws IOException {
+    File archive = new File(this.temporaryFolder.getRoot(),
+        "descriptors.tar.xz");
+    try (XZOutputStream xzos = new XZOutputStream(
+        new FileOutputStream(archive), new LZMA2Options())) {
+      for (int offset = 0; offset < this.tarBytes.length; offset += 4096) {
+        xzos.write(this.tarBytes, offset,
+            Math.min(4096, this.tarBytes.length - offset));
+        xzos.endBlock();
+      }
+    }
+    this.assertAllDescriptorsFound(archive);
+  }
+
+  @Test
+  public void testGzipTarball() throws Exception {
+    this.assertAllDescriptorsFound(this.writeFile("descriptors.tar.gz",
+        FileType.GZ.compress(this.tarBytes)));
+  }
+
+  @Test
+  public void testDirectory() throws Exception {
+    File directory = this.temporaryFolder.newFolder("descriptors");
+    for (String resourceName : RESOURCE_NAMES) {
+      File file = new File(directory, resourceName);
+      file.getParentFile().mkdirs();
+      Files.copy(Paths.get(getClass().getClassLoader()
+          .getResource(resourceName).toURI()), file.toPath());
+    }
+    this.assertAllDescriptorsFound(directory);
+  }
+
+  @Test
+  public void testDirectoryWithCompressedFiles() throws Exception {
+    File directory = this.temporaryFolder.newFolder("descriptors");
+    for (int i = 0; i < RESOURCE_NAMES.length; i++) {
+      FileType fileType = i % 3 == 0 ? FileType.PLAIN
+          : i % 3 == 1 ? FileType.GZ : FileType.XZ;
+      File file = new File(directory, RESOURCE_NAMES[i]
+          + (FileType.PLAIN == fileType ? ""
+          : "." + fileType.getFileExtension()));
+      file.getParentFile().mkdirs();
+      Files.write(file.toPath(), fileType.compress(Files.readAllBytes(
+          Paths.get(getClass().getClassLoader().getResource(
+          RESOURCE_NAMES[i]).toURI()))));
+    }
+    Files.write(new File(directory, "descriptors.tar").toPath(),
+        this.tarBytes);
+    this.assertAllDescriptorsFound(directory);
+  }
+
+  @Test(expected = IOException.class)
+  public void testDirectoryFileChangedInPlace() throws Exception {
+    File directory = this.temporaryFolder.newFolder("descriptors");
+    for (String resourceName : RESOURCE_NAMES) {
+      File file = new File(directory, resourceName);
+      file.getParentFile().mkdirs();
+      Files.copy(Paths.get(getClass().getClassLoader()
+          .getResource(resourceName).toURI()), file.toPath());
+    }
+    this.descriptorReader.writeArchiveIndex(directory);
+    File file = new File(directory, RESOURCE_NAMES[1]);
+    long directoryLastModified = file.getParentFile().lastModified();
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    bytes[bytes.length / 2] ^= 1;
+    Files.write(file.toPath(), bytes);
+    assertTrue(file.setLastModified(file.lastModified() + 10_000L));
+    assertEquals(directoryLastModified, file.getParentFile().lastModified());
+    for (String key : this.expectedDescriptors.keySet()) {
+      this.descriptorReader.readIndexedDescriptor(directory, key);
+    }
+  }
+
+  @Test
+  public void testFingerprintPublishedKey() throws IOException {
+    File archive = this.writeFile("descriptors.tar", this.tarBytes);
+    this.descriptorReader.writeArchiveIndex(archive);
+    Descriptor descriptor = this.descriptorReader.readIndexedDescriptor(
+        archive,
+        "5e68aab7880aec84dc00ca45bdcd0704f6b7d02d 2017-07-17 16:47:16");
+    assertTrue(descriptor instanceof ServerDescriptor);
+    assertEquals("tortomofterelay",
+        ((ServerDescriptor) descriptor).getNickname());
+    assertNull(this.descriptorReader.readIndexedDescriptor(archive,
+        "5E68AAB7880AEC84DC00CA45BDCD0704F6B7D02D 2017-07-17 16:47:17"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingIndex() throws IOException {
+    this.descriptorReader.readIndexedDescriptor(
+        this.writeFile("descriptors.tar", this.tarBytes),
+        this.expectedDescriptors.keySet().iterator().next());
+  }
+
+  @Test(expected = IOException.class)
+  public void testOutdatedIndex() throws IOException {
+    File archive = this.writeFile("descriptors.tar", this.tarBytes);
+    this.descriptorReader.writeArchiveIndex(archive);
+    try (OutputStream os = new FileOutputStream(archive, true)) {
+      os.write(new byte[512]);
+    }
+    new DescriptorReaderImpl().readIndexedDescriptor(archive,
+        this.expectedDescriptors.keySet().iterator().next());
+  }
+
+  @Test
+  public void testReadDescriptorsIgnoresIndexFile() throws IOException {
+    File archive = this.writeFile("descriptors.tar", this.tarBytes);
+    this.descriptorReader.writeArchiveIndex(archive);
+    List<Descriptor> descriptors = new ArrayList<>();
+    for (Descriptor descriptor : new DescriptorReaderImpl().readDescriptors(
+        this.temporaryFolder.getRoot())) {
+      descriptors.add(descriptor);
+    }
+    for (Descriptor descriptor : descriptors) {
+      assertEquals(archive, descriptor.getDescriptorFile());
+    }
+  }
+}
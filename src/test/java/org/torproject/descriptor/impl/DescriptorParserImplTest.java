@@ -10,6 +10,9 @@ import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorParseException;
 import org.torproject.descriptor.DescriptorReader;
 import org.torproject.descriptor.DescriptorSourceFactory;
+import org.torproject.descriptor.ExtraInfoDescriptor;
+import org.torproject.descriptor.RelayNetworkStatusConsensus;
+import org.torproject.descriptor.ServerDescriptor;
 import org.torproject.descriptor.WebServerAccessLog;
 
 import org.junit.Rule;
@@ -18,6 +21,10 @@ import org.junit.rules.ExpectedException;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
 
 public class DescriptorParserImplTest {
 
@@ -82,6 +89,65 @@ public class DescriptorParserImplTest {
         new int[]{0, DEFECT.getBytes().length}, null, constructor);
   }
 
+  private byte[] readResource(String resourceName) throws Exception {
+    return Files.readAllBytes(Paths.get(getClass().getClassLoader()
+        .getResource(resourceName).toURI()));
+  }
+
+  @Test
+  public void testFingerprintsConsensus() throws Exception {
+    DescriptorParserImpl dpi = new DescriptorParserImpl();
+    dpi.setFingerprints(Collections.singleton(
+        "ff821e78043ec2159fc82316b75496153c5ff47b"));
+    Iterator<Descriptor> descriptors = dpi.parseDescriptors(
+        this.readResource("relay/2017-07-17-17-00-00-consensus"), null,
+        "2017-07-17-17-00-00-consensus").iterator();
+    RelayNetworkStatusConsensus consensus =
+        (RelayNetworkStatusConsensus) descriptors.next();
+    assertEquals(1, consensus.getStatusEntries().size());
+    assertTrue(consensus.containsStatusEntry(
+        "FF821E78043EC2159FC82316B75496153C5FF47B"));
+  }
+
+  @Test
+  public void testFingerprintsServerDescriptors() throws Exception {
+    DescriptorParserImpl dpi = new DescriptorParserImpl();
+    dpi.setFingerprints(Collections.singleton(
+        "08ACEB59484AEC8F77A94EF8F73388309531B7DB"));
+    int count = 0;
+    for (Descriptor descriptor : dpi.parseDescriptors(
+        this.readResource("relay/2017-07-17-17-20-00-server-descriptors"),
+        null, "2017-07-17-17-20-00-server-descriptors")) {
+      assertEquals("08ACEB59484AEC8F77A94EF8F73388309531B7DB",
+          ((ServerDescriptor) descriptor).getFingerprint());
+      count++;
+    }
+    assertEquals(1, count);
+  }
+
+  @Test
+  public void testFingerprintsExtraInfoDescriptors() throws Exception {
+    DescriptorParserImpl dpi = new DescriptorParserImpl();
+    dpi.setFingerprints(Collections.singleton(
+        "a9eb7f7dab0eb59be2af0c1677bad40c4bca1936"));
+    int count = 0;
+    for (Descriptor descriptor : dpi.parseDescriptors(
+        this.readResource("relay/2017-07-17-17-20-00-extra-infos"),
+        null, "2017-07-17-17-20-00-extra-infos")) {
+      assertEquals("A9EB7F7DAB0EB59BE2AF0C1677BAD40C4BCA1936",
+          ((ExtraInfoDescriptor) descriptor).getFingerprint());
+      count++;
+    }
+    assertEquals(1, count);
+  }
+
+  @Test
+  public void testFingerprintsIllegal() {
+    this.thrown.expect(IllegalArgumentException.class);
+    new DescriptorParserImpl().setFingerprints(
+        Collections.singleton("08ACEB59"));
+  }
+
   private static final String DEFECT =
       "@type server-descriptor 1.0\n"
       + "router UbuntuCore169 176x.158.53.63 44583 0 0\n"
@@ -4,9 +4,17 @@
 package org.torproject.descriptor.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorReader;
+import org.torproject.descriptor.RelayNetworkStatusConsensus;
+import org.torproject.descriptor.ServerDescriptor;
+import org.torproject.descriptor.WebServerAccessLog;
+import org.torproject.descriptor.internal.CompressionCodec;
+import org.torproject.descriptor.internal.CompressionCodecs;
+import org.torproject.descriptor.internal.FileType;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -14,12 +22,19 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /** Tests the descriptor reader by preparing a temporary folder with two input
  * descriptor files and a parse history file, running the reader with different
@@ -147,5 +162,227 @@ public class DescriptorReaderImplTest {
     this.assertExcludedFilesParsedFilesAndHistoryFileLines(0, 2, 2);
   }
 
-}
+  @Test
+  public void testSetDescriptorTypesWanted() throws IOException {
+    this.descriptorReader.setDescriptorTypes(
+        Collections.singleton(ServerDescriptor.class));
+    int count = this.readAllDescriptors(this.inputDirectory);
+    assertEquals("Two server descriptors should have been parsed.", 2, count);
+    this.assertExcludedFilesParsedFilesAndHistoryFileLines(0, 2, 1);
+  }
+
+  @Test
+  public void testSetDescriptorTypesUnwanted() throws IOException {
+    this.descriptorReader.setDescriptorTypes(
+        Collections.singleton(RelayNetworkStatusConsensus.class));
+    int count = this.readAllDescriptors(this.inputDirectory);
+    assertEquals("No descriptors should have been parsed.", 0, count);
+    this.assertExcludedFilesParsedFilesAndHistoryFileLines(0, 2, 1);
+  }
+
+  @Test
+  public void testSetDescriptorTypesTarball() throws IOException {
+    File tarball = new File(this.inputDirectory, "webstats-2015-02.tar");
+    Files.copy(getClass().getClassLoader().getResource(
+        "webstats-2015-02.tar").openStream(), tarball.toPath());
+    this.descriptorReader.setDescriptorTypes(
+        Collections.singleton(ServerDescriptor.class));
+    int count = this.readAllDescriptors(this.inputDirectory);
+    assertEquals("Only the two server descriptors should have been parsed.",
+        2, count);
+    this.assertExcludedFilesParsedFilesAndHistoryFileLines(0, 3, 1);
+  }
+
+  @Test
+  public void testSetDescriptorTypesWebServerAccessLog() throws IOException {
+    File tarball = new File(this.inputDirectory, "webstats-2015-02.tar");
+    Files.copy(getClass().getClassLoader().getResource(
+        "webstats-2015-02.tar").openStream(), tarball.toPath());
+    this.descriptorReader.setDescriptorTypes(
+        Collections.singleton(WebServerAccessLog.class));
+    int count = this.readAllDescriptors(this.inputDirectory);
+    assertEquals("Only the seven web server access logs should have been "
+        + "parsed.", 7, count);
+    this.assertExcludedFilesParsedFilesAndHistoryFileLines(0, 3, 1);
+  }
+
+  private File compressWebstatsTarball(CompressionCodec codec)
+      throws IOException {
+    File tarball = new File(this.temporaryFolder.getRoot(),
+        "webstats-2015-02.tar." + codec.getFileExtension());
+    try (OutputStream os = codec.outputStream(
+        new FileOutputStream(tarball))) {
+      Files.copy(Paths.get(getClass().getClassLoader().getResource(
+          "webstats-2015-02.tar").getPath()), os);
+    }
+    return tarball;
+  }
+
+  @Test
+  public void testReadGzipTarball() throws IOException {
+    File tarball = this.compressWebstatsTarball(FileType.GZ);
+    assertEquals(7, this.readAllDescriptors(tarball));
+  }
+
+  @Test
+  public void testReadTarballWithRegisteredCodec() throws IOException {
+    CompressionCodec deflateCodec = new CompressionCodec() {
+      @Override
+      public String getFileExtension() {
+        return "deflate";
+      }
+
+      @Override
+      public InputStream inputStream(InputStream is) {
+        return new InflaterInputStream(is);
+      }
+
+      @Override
+      public OutputStream outputStream(OutputStream os) {
+        return new DeflaterOutputStream(os);
+      }
+    };
+    CompressionCodecs.register(deflateCodec);
+    File tarball = this.compressWebstatsTarball(deflateCodec);
+    assertEquals(7, this.readAllDescriptors(tarball));
+  }
+
+  @Test
+  public void testBrokenAndEmptyTarballs() throws IOException {
+    CompressionCodecs.register(new CompressionCodec() {
+      @Override
+      public String getFileExtension() {
+        return "broken";
+      }
+
+      @Override
+      public InputStream inputStream(InputStream is) {
+        throw new IllegalStateException("Broken codec.");
+      }
+
+      @Override
+      public OutputStream outputStream(OutputStream os) {
+        throw new IllegalStateException("Broken codec.");
+      }
+    });
+    Files.write(new File(this.inputDirectory, "broken.tar.broken").toPath(),
+        new byte[] { 1 });
+    assertTrue(new File(this.inputDirectory, "empty.tar").createNewFile());
+    this.descriptorReader.setDecompressionThreads(2);
+    assertEquals(2, this.readAllDescriptors(this.inputDirectory));
+    assertTrue(this.descriptorReader.getParsedFiles().containsKey(
+        new File(this.inputDirectory, "empty.tar").getAbsolutePath()));
+    assertEquals(3, this.descriptorReader.getParsedFiles().size());
+  }
+
+  @Test
+  public void testMultipleThreads() throws IOException {
+    File tarball = new File(this.inputDirectory, "webstats-2015-02.tar");
+    Files.copy(getClass().getClassLoader().getResource(
+        "webstats-2015-02.tar").openStream(), tarball.toPath());
+    this.compressWebstatsTarball(FileType.GZ).renameTo(
+        new File(this.inputDirectory, "webstats-2015-02.tar.gz"));
+    this.descriptorReader.setHistoryFile(this.historyFile);
+    this.descriptorReader.setDecompressionThreads(2);
+    this.descriptorReader.setParsingThreads(4);
+    assertEquals(1 + 7 + 7, this.readAllDescriptors(this.inputDirectory));
+    this.descriptorReader.saveHistoryFile(this.historyFile);
+    this.assertExcludedFilesParsedFilesAndHistoryFileLines(1, 3, 4);
+  }
+
+  @Test
+  public void testHistoryStore() throws IOException {
+    File historyStoreFile = new File(this.temporaryFolder.getRoot(),
+        "history-store");
+    this.descriptorReader.setHistoryStoreFile(historyStoreFile);
+    assertEquals(2, this.readAllDescriptors(this.inputDirectory));
+    assertEquals(2, this.descriptorReader.getParsedFiles().size());
+    DescriptorReader secondReader = new DescriptorReaderImpl();
+    secondReader.setHistoryStoreFile(historyStoreFile);
+    assertFalse(secondReader.readDescriptors(this.inputDirectory).iterator()
+        .hasNext());
+    assertEquals(2, secondReader.getExcludedFiles().size());
+    assertEquals(0, secondReader.getParsedFiles().size());
+  }
+
+  @Test
+  public void testMultipleReadingThreads() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      File directory = this.temporaryFolder.newFolder("in", "dir" + i);
+      Files.copy(getClass().getClassLoader().getResource(
+          "fafaa9366f010db805de13a4b7348aba2acb6f17").openStream(),
+          new File(directory, "fafa").toPath());
+    }
+    this.descriptorReader.setReadingThreads(4);
+    this.descriptorReader.setParsingThreads(2);
+    assertEquals(12, this.readAllDescriptors(this.inputDirectory));
+    assertEquals(12, this.descriptorReader.getParsedFiles().size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetParsingThreadsZero() {
+    this.descriptorReader.setParsingThreads(0);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSetDecompressionThreadsAfterReading() {
+    this.readAllDescriptors(this.inputDirectory);
+    this.descriptorReader.setDecompressionThreads(2);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSetDescriptorTypesAfterReading() {
+    this.readAllDescriptors(this.inputDirectory);
+    this.descriptorReader.setDescriptorTypes(null);
+  }
 
+  private File copyConsensus(String fileName) throws IOException {
+    File consensusFile = new File(this.inputDirectory, fileName);
+    Files.copy(getClass().getClassLoader().getResource(
+        "relay/2017-07-17-17-00-00-consensus").openStream(),
+        consensusFile.toPath());
+    return consensusFile;
+  }
+
+  @Test
+  public void testSetTimeRangeFileNameInRange() throws IOException {
+    this.copyConsensus("2017-07-17-17-00-00-consensus");
+    this.descriptorReader.setTimeRange(1500249600000L, 1500336000000L);
+    int count = this.readAllDescriptors(this.inputDirectory);
+    assertEquals(3, count);
+    assertEquals(0L, this.descriptorReader.getSkippedEntries());
+    assertEquals(0L, this.descriptorReader.getSkippedBytes());
+  }
+
+  @Test
+  public void testSetTimeRangeFileNameOutOfRange() throws IOException {
+    File consensusFile = this.copyConsensus("2017-07-17-17-00-00-consensus");
+    this.descriptorReader.setTimeRange(1500249600000L, 1500310800000L);
+    int count = this.readAllDescriptors(this.inputDirectory);
+    assertEquals("Only the two server descriptors should have been parsed.",
+        2, count);
+    assertEquals(1L, this.descriptorReader.getSkippedEntries());
+    assertEquals(consensusFile.length(),
+        this.descriptorReader.getSkippedBytes());
+  }
+
+  @Test
+  public void testSetTimeRangeHeaderOutOfRange() throws IOException {
+    this.copyConsensus("consensus");
+    this.descriptorReader.setTimeRange(1500310800001L, 1500336000000L);
+    int count = this.readAllDescriptors(this.inputDirectory);
+    assertEquals("Only the two server descriptors should have been parsed.",
+        2, count);
+    assertEquals(1L, this.descriptorReader.getSkippedEntries());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetTimeRangeReversed() {
+    this.descriptorReader.setTimeRange(1500336000000L, 1500249600000L);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testGetSkippedEntriesBeforeReading() {
+    this.descriptorReader.getSkippedEntries();
+  }
+}
@@ -0,0 +1,260 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.descriptor.Descriptor;
+import org.torproject.descriptor.DescriptorReader;
+import org.torproject.descriptor.ExtraInfoDescriptor;
+import org.torproject.descriptor.Microdescriptor;
+import org.torproject.descriptor.ServerDescriptor;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class DigestIndexTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final String[] RESOURCE_NAMES = new String[] {
+      "2017-07-17-17-00-00-consensus-microdesc",
+      "2017-07-17-17-20-00-server-descriptors",
+      "2017-07-17-17-20-00-extra-infos",
+      "2017-07-17-17-20-00-micro" };
+
+  private File inputDirectory;
+
+  private File digestIndexFile;
+
+  /** Copies relay descriptors to the input directory. */
+  @Before
+  public void copyDescriptors() throws Exception {
+    this.inputDirectory = this.temporaryFolder.newFolder("in");
+    for (String resourceName : RESOURCE_NAMES) {
+      Files.copy(Paths.get(getClass().getClassLoader()
+          .getResource("relay/" + resourceName).toURI()),
+          new File(this.inputDirectory, resourceName).toPath());
+    }
+    this.digestIndexFile = new File(this.temporaryFolder.getRoot(),
+        "index/digests");
+  }
+
+  /* Read all descriptors with a digest index and return them by digest. */
+  private Map<String, Descriptor> readAndIndex(File... files) {
+    DescriptorReader descriptorReader = new DescriptorReaderImpl();
+    descriptorReader.setDigestIndexFile(this.digestIndexFile);
+    Map<String, Descriptor> descriptors = new HashMap<>();
+    for (Descriptor descriptor : descriptorReader.readDescriptors(files)) {
+      if (descriptor instanceof ServerDescriptor) {
+        descriptors.put(((ServerDescriptor) descriptor).getDigestSha1Hex(),
+            descriptor);
+      } else if (descriptor instanceof ExtraInfoDescriptor) {
+        descriptors.put(((ExtraInfoDescriptor) descriptor).getDigestSha1Hex(),
+            descriptor);
+      } else if (descriptor instanceof Microdescriptor) {
+        descriptors.put(
+            ((Microdescriptor) descriptor).getDigestSha256Base64(),
+            descriptor);
+      } else {
+        descriptors.put(descriptor.getClass().getName(), descriptor);
+      }
+    }
+    return descriptors;
+  }
+
+  private void assertAllFound(Map<String, Descriptor> expected) {
+    DescriptorReader descriptorReader = new DescriptorReaderImpl();
+    descriptorReader.setDigestIndexFile(this.digestIndexFile);
+    int found = 0;
+    for (Map.Entry<String, Descriptor> e : expected.entrySet()) {
+      if (e.getKey().startsWith(RelayNetworkStatusConsensusImpl.class
+          .getName())) {
+        continue;
+      }
+      Descriptor descriptor;
+      try {
+        descriptor = descriptorReader.readDescriptorByDigest(e.getKey());
+      } catch (IOException ex) {
+        throw new AssertionError(ex);
+      }
+      assertNotNull(e.getKey(), descriptor);
+      assertEquals(e.getValue().getClass(), descriptor.getClass());
+      assertEquals(e.getValue().getDescriptorFile(),
+          descriptor.getDescriptorFile());
+      assertEquals(((DescriptorImpl) e.getValue()).getDigestSha256Base64(),
+          ((DescriptorImpl) descriptor).getDigestSha256Base64());
+      found++;
+    }
+    assertEquals(expected.size() - 1, found);
+  }
+
+  @Test
+  public void testDescriptorFiles() {
+    this.assertAllFound(this.readAndIndex(this.inputDirectory));
+  }
+
+  @Test
+  public void testXzTarball() throws Exception {
+    File tarball = new File(this.temporaryFolder.getRoot(),
+        "relay-descriptors.tar.xz");
+    try (TarArchiveOutputStream taos = new TarArchiveOutputStream(
+        new XZCompressorOutputStream(new FileOutputStream(tarball)))) {
+      for (String resourceName : RESOURCE_NAMES) {
+        byte[] bytes = Files.readAllBytes(
+            new File(this.inputDirectory, resourceName).toPath());
+        TarArchiveEntry tae = new TarArchiveEntry("relay/" + resourceName);
+        tae.setSize(bytes.length);
+        taos.putArchiveEntry(tae);
+        taos.write(bytes);
+        taos.closeArchiveEntry();
+      }
+    }
+    this.assertAllFound(this.readAndIndex(tarball));
+  }
+
+  @Test
+  public void testIncrementalAndGrowing() throws IOException {
+    Map<String, Descriptor> serverDescriptors = this.readAndIndex(
+        new File(this.inputDirectory,
+        "2017-07-17-17-20-00-server-descriptors"));
+    /* Add enough digests to make the hash table grow at least once. */
+    File extraInfos = new File(this.inputDirectory,
+        "2017-07-17-17-20-00-extra-infos");
+    DigestIndex digestIndex = DigestIndex.open(this.digestIndexFile);
+    long source = digestIndex.addSource(extraInfos, "", 0L, "");
+    Random random = new Random(42L);
+    byte[] digest = new byte[20];
+    for (int i = 0; i < 100_000; i++) {
+      random.nextBytes(digest);
+      digestIndex.put(Hex.encodeHexString(digest), source, 0L, 1);
+    }
+    digestIndex.close();
+    Map<String, Descriptor> extraInfoDescriptors = this.readAndIndex(
+        extraInfos);
+    DigestIndex reopened = DigestIndex.open(this.digestIndexFile);
+    assertEquals(serverDescriptors.size() + 100_000
+        + extraInfoDescriptors.size(), reopened.size());
+    reopened.close();
+    DescriptorReader descriptorReader = new DescriptorReaderImpl();
+    descriptorReader.setDigestIndexFile(this.digestIndexFile);
+    for (String key : serverDescriptors.keySet()) {
+      assertTrue(descriptorReader.readDescriptorByDigest(key)
+          instanceof ServerDescriptor);
+    }
+    for (String key : extraInfoDescriptors.keySet()) {
+      assertTrue(descriptorReader.readDescriptorByDigest(key)
+          instanceof ExtraInfoDescriptor);
+    }
+  }
+
+  /* Overwrite the number of used slots and the length of the sources region
+   * in the header with zeros, as if the header had not been written before
+   * a crash. */
+  private void writeStaleHeader() throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(this.digestIndexFile,
+        "rw")) {
+      raf.seek(16L);
+      raf.writeLong(0L);
+      raf.writeLong(0L);
+    }
+  }
+
+  @Test
+  public void testStaleHeaderSources() throws IOException {
+    Map<String, Descriptor> serverDescriptors = this.readAndIndex(
+        new File(this.inputDirectory,
+        "2017-07-17-17-20-00-server-descriptors"));
+    this.writeStaleHeader();
+    /* Source records appended after reopening must not overwrite the
+     * source records of previously added descriptors. */
+    Map<String, Descriptor> extraInfoDescriptors = this.readAndIndex(
+        new File(this.inputDirectory, "2017-07-17-17-20-00-extra-infos"));
+    DigestIndex reopened = DigestIndex.open(this.digestIndexFile);
+    assertEquals(serverDescriptors.size() + extraInfoDescriptors.size(),
+        reopened.size());
+    reopened.close();
+    DescriptorReader descriptorReader = new DescriptorReaderImpl();
+    descriptorReader.setDigestIndexFile(this.digestIndexFile);
+    for (String key : serverDescriptors.keySet()) {
+      assertTrue(descriptorReader.readDescriptorByDigest(key)
+          instanceof ServerDescriptor);
+    }
+    for (String key : extraInfoDescriptors.keySet()) {
+      assertTrue(descriptorReader.readDescriptorByDigest(key)
+          instanceof ExtraInfoDescriptor);
+    }
+  }
+
+  @Test(timeout = 60_000L)
+  public void testStaleHeaderSize() throws IOException {
+    File extraInfos = new File(this.inputDirectory,
+        "2017-07-17-17-20-00-extra-infos");
+    Random random = new Random(42L);
+    byte[] digest = new byte[20];
+    DigestIndex digestIndex = DigestIndex.open(this.digestIndexFile);
+    long source = digestIndex.addSource(extraInfos, "", 0L, "");
+    for (int i = 0; i < 40_000; i++) {
+      random.nextBytes(digest);
+      digestIndex.put(Hex.encodeHexString(digest), source, 0L, 1);
+    }
+    digestIndex.close();
+    this.writeStaleHeader();
+    /* Adding more digests than fit into the hash table with the stale
+     * number of used slots must make it grow rather than fill up. */
+    DigestIndex reopened = DigestIndex.open(this.digestIndexFile);
+    assertEquals(40_000L, reopened.size());
+    source = reopened.addSource(extraInfos, "", 0L, "");
+    for (int i = 0; i < 40_000; i++) {
+      random.nextBytes(digest);
+      reopened.put(Hex.encodeHexString(digest), source, 0L, 1);
+    }
+    assertEquals(80_000L, reopened.size());
+    assertNull(reopened.readDescriptor(
+        "0000000000000000000000000000000000000000"));
+    reopened.close();
+  }
+
+  @Test
+  public void testUnknownDigest() throws IOException {
+    this.readAndIndex(this.inputDirectory);
+    DescriptorReader descriptorReader = new DescriptorReaderImpl();
+    descriptorReader.setDigestIndexFile(this.digestIndexFile);
+    assertNull(descriptorReader.readDescriptorByDigest(
+        "0000000000000000000000000000000000000000"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidDigest() throws IOException {
+    DescriptorReader descriptorReader = new DescriptorReaderImpl();
+    descriptorReader.setDigestIndexFile(this.digestIndexFile);
+    descriptorReader.readDescriptorByDigest("not a digest");
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNoDigestIndexFile() throws IOException {
+    new DescriptorReaderImpl().readDescriptorByDigest(
+        "0000000000000000000000000000000000000000");
+  }
+}
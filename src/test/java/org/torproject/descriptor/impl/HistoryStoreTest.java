@@ -0,0 +1,109 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+public class HistoryStoreTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File storeFile;
+
+  @Before
+  public void createStoreFile() {
+    this.storeFile = new File(this.temporaryFolder.getRoot(),
+        "history/store");
+  }
+
+  private Map<String, Long> files(int count, long lastModifiedMillis) {
+    Map<String, Long> files = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      files.put("/srv/descriptors/" + i, lastModifiedMillis + i);
+    }
+    return files;
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    HistoryStore historyStore = HistoryStore.open(this.storeFile);
+    assertEquals(0, historyStore.size());
+    assertNull(historyStore.get("/srv/descriptors/0"));
+    assertEquals(0, HistoryStore.open(this.storeFile).size());
+  }
+
+  @Test
+  public void testAppendChangesOnly() throws IOException {
+    HistoryStore historyStore = HistoryStore.open(this.storeFile);
+    Map<String, Long> files = this.files(100, 1000L);
+    historyStore.update(files);
+    long lengthBefore = this.storeFile.length();
+    files.put("/srv/descriptors/0", 2000L);
+    files.remove("/srv/descriptors/1");
+    historyStore.update(files);
+    assertEquals(99, historyStore.size());
+    assertEquals(Long.valueOf(2000L), historyStore.get("/srv/descriptors/0"));
+    assertNull(historyStore.get("/srv/descriptors/1"));
+    /* Two records were appended without rewriting the file. */
+    assertEquals(2 * (2 + "/srv/descriptors/0".length() + 8),
+        this.storeFile.length() - lengthBefore);
+    HistoryStore reopened = HistoryStore.open(this.storeFile);
+    assertEquals(99, reopened.size());
+    assertEquals(Long.valueOf(2000L), reopened.get("/srv/descriptors/0"));
+    assertNull(reopened.get("/srv/descriptors/1"));
+    assertEquals(Long.valueOf(1002L), reopened.get("/srv/descriptors/2"));
+  }
+
+  @Test
+  public void testRewriteOutdatedRecords() throws IOException {
+    HistoryStore historyStore = HistoryStore.open(this.storeFile);
+    historyStore.update(this.files(100, 1000L));
+    long lengthBefore = this.storeFile.length();
+    historyStore.update(this.files(100, 2000L));
+    assertEquals(lengthBefore, this.storeFile.length());
+    HistoryStore reopened = HistoryStore.open(this.storeFile);
+    assertEquals(100, reopened.size());
+    assertEquals(Long.valueOf(2099L), reopened.get("/srv/descriptors/99"));
+  }
+
+  @Test
+  public void testPartialRecord() throws IOException {
+    HistoryStore.open(this.storeFile).update(this.files(10, 1000L));
+    try (OutputStream os = Files.newOutputStream(this.storeFile.toPath(),
+        StandardOpenOption.APPEND)) {
+      os.write(new byte[] { 0, 42, '/' });
+    }
+    HistoryStore historyStore = HistoryStore.open(this.storeFile);
+    assertEquals(10, historyStore.size());
+    Map<String, Long> files = this.files(10, 1000L);
+    files.put("/srv/descriptors/10", 3000L);
+    historyStore.update(files);
+    HistoryStore reopened = HistoryStore.open(this.storeFile);
+    assertEquals(11, reopened.size());
+    assertEquals(Long.valueOf(3000L), reopened.get("/srv/descriptors/10"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotAHistoryStore() throws IOException {
+    File historyFile = this.temporaryFolder.newFile("history");
+    Files.write(historyFile.toPath(),
+        "1293145200000 /srv/descriptors/0\n".getBytes());
+    HistoryStore.open(historyFile);
+  }
+}
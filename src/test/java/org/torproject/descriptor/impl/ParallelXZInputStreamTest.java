@@ -0,0 +1,146 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.torproject.descriptor.Descriptor;
+import org.torproject.descriptor.DescriptorReader;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+public class ParallelXZInputStreamTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final long MAX_MEMORY = 64L * 1024L * 1024L;
+
+  /* Write the given bytes to an xz file, starting a new block after each
+   * chunk of the given size. */
+  private File writeXzFile(byte[] bytes, int chunkSize, String fileName)
+      throws IOException {
+    File file = new File(this.temporaryFolder.getRoot(), fileName);
+    try (XZOutputStream xzos = new XZOutputStream(
+        new FileOutputStream(file), new LZMA2Options())) {
+      for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+        xzos.write(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+        xzos.endBlock();
+      }
+    }
+    return file;
+  }
+
+  private byte[] readAll(InputStream is) throws IOException {
+    try (InputStream closeable = is) {
+      return IOUtils.toByteArray(closeable);
+    }
+  }
+
+  @Test
+  public void testMultiBlockIdenticalToSequential() throws IOException {
+    byte[] bytes = new byte[1_000_000];
+    new Random(42L).nextBytes(bytes);
+    File file = this.writeXzFile(bytes, 65_536, "random.xz");
+    ParallelXZInputStream pxis = ParallelXZInputStream.openIfMultiBlock(file,
+        4, MAX_MEMORY);
+    assertNotNull(pxis);
+    byte[] parallel = this.readAll(pxis);
+    byte[] sequential = this.readAll(new XZCompressorInputStream(
+        new FileInputStream(file)));
+    assertArrayEquals(bytes, parallel);
+    assertArrayEquals(sequential, parallel);
+  }
+
+  @Test
+  public void testSingleBlockFallsBack() throws IOException {
+    File file = this.writeXzFile(new byte[1000], 1000, "single.xz");
+    assertNull(ParallelXZInputStream.openIfMultiBlock(file, 4,
+        MAX_MEMORY));
+  }
+
+  @Test
+  public void testSingleThreadFallsBack() throws IOException {
+    File file = this.writeXzFile(new byte[1000], 100, "multi.xz");
+    assertNull(ParallelXZInputStream.openIfMultiBlock(file, 1,
+        MAX_MEMORY));
+  }
+
+  @Test
+  public void testNotEnoughMemoryFallsBack() throws IOException {
+    File file = this.writeXzFile(new byte[1000], 100, "multi.xz");
+    assertNull(ParallelXZInputStream.openIfMultiBlock(file, 4, 199L));
+    ParallelXZInputStream pxis = ParallelXZInputStream.openIfMultiBlock(file,
+        4, 200L);
+    assertNotNull(pxis);
+    pxis.close();
+  }
+
+  @Test
+  public void testNotXzFallsBack() throws IOException {
+    File file = this.temporaryFolder.newFile("plain.xz");
+    Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+    assertNull(ParallelXZInputStream.openIfMultiBlock(file, 4,
+        MAX_MEMORY));
+  }
+
+  @Test
+  public void testReadMultiBlockTarball() throws Exception {
+    ByteArrayOutputStream tarBytes = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream taos = new TarArchiveOutputStream(tarBytes)) {
+      for (String resourceName : new String[] {
+          "fafaa9366f010db805de13a4b7348aba2acb6f17",
+          "ffe08f10c0ca5198f7cfa8787651bee538f4f7e0" }) {
+        byte[] descriptorBytes = Files.readAllBytes(Paths.get(getClass()
+            .getClassLoader().getResource(resourceName).toURI()));
+        TarArchiveEntry tae = new TarArchiveEntry(resourceName);
+        tae.setSize(descriptorBytes.length);
+        taos.putArchiveEntry(tae);
+        taos.write(descriptorBytes);
+        taos.closeArchiveEntry();
+      }
+    }
+    File tarball = this.writeXzFile(tarBytes.toByteArray(), 1024,
+        "server-descriptors.tar.xz");
+    DescriptorReader descriptorReader = new DescriptorReaderImpl();
+    int count = 0;
+    for (Descriptor descriptor : descriptorReader.readDescriptors(tarball)) {
+      assertEquals(tarball, descriptor.getDescriptorFile());
+      assertEquals(RelayServerDescriptorImpl.class, descriptor.getClass());
+      count++;
+    }
+    assertEquals(2, count);
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadAfterClose() throws IOException {
+    File file = this.writeXzFile(new byte[1000], 100, "closed.xz");
+    ParallelXZInputStream pxis = ParallelXZInputStream.openIfMultiBlock(file,
+        2, MAX_MEMORY);
+    assertNotNull(pxis);
+    pxis.close();
+    pxis.read();
+  }
+}
@@ -0,0 +1,157 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.descriptor.Descriptor;
+import org.torproject.descriptor.DescriptorReader;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TarballCheckpointsTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final String[] RESOURCE_NAMES = new String[] {
+      "relay/2017-07-17-17-20-00-server-descriptors",
+      "relay/2017-07-17-17-20-00-extra-infos",
+      "relay/2017-07-17-17-20-00-micro" };
+
+  private File tarball;
+
+  private File checkpointFile;
+
+  /* Digests of all descriptors in the tarball, in tarball order. */
+  private List<String> expectedDigests = new ArrayList<>();
+
+  /* Number of descriptors per tarball entry, in tarball order, including a
+   * directory entry at the start. */
+  private List<Integer> descriptorsPerEntry = new ArrayList<>();
+
+  /** Writes a tarball with a directory entry and relay descriptors. */
+  @Before
+  public void createTarball() throws Exception {
+    this.tarball = new File(this.temporaryFolder.getRoot(), "relay.tar");
+    this.checkpointFile = new File(this.temporaryFolder.getRoot(),
+        "checkpoints");
+    DescriptorParserImpl descriptorParser = new DescriptorParserImpl();
+    try (TarArchiveOutputStream taos = new TarArchiveOutputStream(
+        new FileOutputStream(this.tarball))) {
+      taos.putArchiveEntry(new TarArchiveEntry("relay/"));
+      taos.closeArchiveEntry();
+      this.descriptorsPerEntry.add(0);
+      for (String resourceName : RESOURCE_NAMES) {
+        byte[] bytes = Files.readAllBytes(Paths.get(getClass()
+            .getClassLoader().getResource(resourceName).toURI()));
+        TarArchiveEntry tae = new TarArchiveEntry(resourceName);
+        tae.setSize(bytes.length);
+        taos.putArchiveEntry(tae);
+        taos.write(bytes);
+        taos.closeArchiveEntry();
+        int descriptors = 0;
+        for (Descriptor descriptor : descriptorParser.parseDescriptors(bytes,
+            null, resourceName.substring(resourceName.indexOf('/') + 1))) {
+          this.expectedDigests.add(
+              ((DescriptorImpl) descriptor).getDigestSha256Base64());
+          descriptors++;
+        }
+        this.descriptorsPerEntry.add(descriptors);
+      }
+    }
+  }
+
+  private List<String> readDigests() {
+    DescriptorReader descriptorReader = new DescriptorReaderImpl();
+    descriptorReader.setCheckpointFile(this.checkpointFile);
+    List<String> digests = new ArrayList<>();
+    for (Descriptor descriptor
+        : descriptorReader.readDescriptors(this.tarball)) {
+      digests.add(((DescriptorImpl) descriptor).getDigestSha256Base64());
+    }
+    return digests;
+  }
+
+  private void writeCheckpoint(int consumedEntries, int consumedDescriptors)
+      throws IOException {
+    Files.write(this.checkpointFile.toPath(), Arrays.asList(String.format(
+        "%d %d %d %s", consumedEntries, consumedDescriptors,
+        this.tarball.lastModified(), this.tarball.getAbsolutePath())),
+        StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testNoCheckpoint() throws IOException {
+    assertEquals(this.expectedDigests, this.readDigests());
+    assertTrue(Files.readAllLines(this.checkpointFile.toPath()).isEmpty());
+  }
+
+  @Test
+  public void testResumeWithinEntry() throws IOException {
+    this.writeCheckpoint(2, 3);
+    int consumed = this.descriptorsPerEntry.get(1) + 3;
+    assertEquals(this.expectedDigests.subList(consumed,
+        this.expectedDigests.size()), this.readDigests());
+    assertTrue(Files.readAllLines(this.checkpointFile.toPath()).isEmpty());
+  }
+
+  @Test
+  public void testResumeAfterLastEntry() throws IOException {
+    this.writeCheckpoint(4, 0);
+    assertTrue(this.readDigests().isEmpty());
+  }
+
+  @Test
+  public void testModifiedTarball() throws IOException {
+    this.writeCheckpoint(2, 3);
+    assertTrue(this.tarball.setLastModified(
+        this.tarball.lastModified() - 60_000L));
+    assertEquals(this.expectedDigests, this.readDigests());
+  }
+
+  @Test
+  public void testPartialConsumption() throws IOException {
+    TarballCheckpoints checkpoints = TarballCheckpoints.open(
+        this.checkpointFile);
+    TarballCheckpoints.Tarball checkpoint = checkpoints.startTarball(
+        this.tarball);
+    List<Descriptor> first = new ArrayList<>();
+    for (Descriptor descriptor : new DescriptorParserImpl().parseDescriptors(
+        Files.readAllBytes(Paths.get(getClass().getClassLoader()
+        .getResource(RESOURCE_NAMES[0]).getPath())), null, "")) {
+      first.add(descriptor);
+    }
+    checkpoints.addEntry(checkpoint, 0, new ArrayList<>(), 0);
+    checkpoints.addEntry(checkpoint, 1, first, 0);
+    checkpoints.consumed(first.get(0));
+    checkpoints.consumed(first.get(1));
+    checkpoints.write();
+    assertEquals(Arrays.asList(String.format("1 2 %d %s",
+        this.tarball.lastModified(), this.tarball.getAbsolutePath())),
+        Files.readAllLines(this.checkpointFile.toPath()));
+    for (Descriptor descriptor : first.subList(2, first.size())) {
+      checkpoints.consumed(descriptor);
+    }
+    checkpoints.finishTarball(checkpoint, 2);
+    checkpoints.write();
+    assertTrue(Files.readAllLines(this.checkpointFile.toPath()).isEmpty());
+  }
+}
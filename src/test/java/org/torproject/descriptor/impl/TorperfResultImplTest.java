@@ -3,18 +3,23 @@
 
 package org.torproject.descriptor.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorParseException;
+import org.torproject.descriptor.TorperfResult;
 
 import org.junit.Test;
 
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 public class TorperfResultImplTest {
 
@@ -179,5 +184,103 @@ public class TorperfResultImplTest {
     assertNull(torperfResult.getUnrecognizedKeys());
     assertEquals("TGEN/READ", torperfResult.getErrorCode());
   }
+  private static SortedMap<String, String> keyValuePairs(String line) {
+    SortedMap<String, String> keyValuePairs = new TreeMap<>();
+    for (String keyValue : line.split(" ")) {
+      String[] parts = keyValue.split("=");
+      keyValuePairs.put(parts[0], parts[1]);
+    }
+    return keyValuePairs;
+  }
+
+  private static void assertSameResult(TorperfResult expected,
+      TorperfResult actual) {
+    assertArrayEquals(expected.getRawDescriptorBytes(),
+        actual.getRawDescriptorBytes());
+    assertEquals(expected.getRawDescriptorLength(),
+        actual.getRawDescriptorLength());
+    assertEquals(expected.getAnnotations(), actual.getAnnotations());
+    assertEquals(expected.getUnrecognizedLines(),
+        actual.getUnrecognizedLines());
+    assertEquals(expected.getUnrecognizedKeys(), actual.getUnrecognizedKeys());
+    assertEquals(expected.getSource(), actual.getSource());
+    assertEquals(expected.getFileSize(), actual.getFileSize());
+    assertEquals(expected.getStartMillis(), actual.getStartMillis());
+    assertEquals(expected.getSocketMillis(), actual.getSocketMillis());
+    assertEquals(expected.getConnectMillis(), actual.getConnectMillis());
+    assertEquals(expected.getNegotiateMillis(), actual.getNegotiateMillis());
+    assertEquals(expected.getRequestMillis(), actual.getRequestMillis());
+    assertEquals(expected.getResponseMillis(), actual.getResponseMillis());
+    assertEquals(expected.getDataRequestMillis(),
+        actual.getDataRequestMillis());
+    assertEquals(expected.getDataResponseMillis(),
+        actual.getDataResponseMillis());
+    assertEquals(expected.getDataCompleteMillis(),
+        actual.getDataCompleteMillis());
+    assertEquals(expected.getWriteBytes(), actual.getWriteBytes());
+    assertEquals(expected.getReadBytes(), actual.getReadBytes());
+    assertEquals(expected.didTimeout(), actual.didTimeout());
+    assertEquals(expected.getPartials(), actual.getPartials());
+    assertEquals(expected.getDataPercentiles(), actual.getDataPercentiles());
+    assertEquals(expected.getLaunchMillis(), actual.getLaunchMillis());
+    assertEquals(expected.getUsedAtMillis(), actual.getUsedAtMillis());
+    assertEquals(expected.getPath(), actual.getPath());
+    assertEquals(expected.getBuildTimes(), actual.getBuildTimes());
+    assertEquals(expected.getTimeout(), actual.getTimeout());
+    assertEquals(expected.getQuantile(), actual.getQuantile(), 0.0);
+    assertEquals(expected.getCircId(), actual.getCircId());
+    assertEquals(expected.getUsedBy(), actual.getUsedBy());
+    assertEquals(expected.getEndpointLocal(), actual.getEndpointLocal());
+    assertEquals(expected.getEndpointProxy(), actual.getEndpointProxy());
+    assertEquals(expected.getEndpointRemote(), actual.getEndpointRemote());
+    assertEquals(expected.getHostnameLocal(), actual.getHostnameLocal());
+    assertEquals(expected.getHostnameRemote(), actual.getHostnameRemote());
+    assertEquals(expected.getSourceAddress(), actual.getSourceAddress());
+    assertEquals(expected.getErrorCode(), actual.getErrorCode());
+  }
+
+  @Test
+  public void testFromKeyValuePairs() throws DescriptorParseException {
+    for (String line : new String[] { input.trim(), input2,
+        inputWithErrorcode, "DATAPERMILLE=2.0 " + input.trim() }) {
+      SortedMap<String, String> keyValuePairs = keyValuePairs(line);
+      StringBuilder sortedLine = new StringBuilder("@type torperf 1.1\n");
+      keyValuePairs.forEach((key, value)
+          -> sortedLine.append(key).append('=').append(value).append(' '));
+      sortedLine.setCharAt(sortedLine.length() - 1, '\n');
+      TorperfResult parsed = (TorperfResult) TorperfResultImpl
+          .parseTorperfResults(sortedLine.toString().getBytes(), null).get(0);
+      TorperfResult converted = TorperfResultImpl.fromKeyValuePairs(
+          keyValuePairs, null);
+      assertSameResult(parsed, converted);
+    }
+  }
+
+  @Test
+  public void testFromKeyValuePairsIllegalValue() {
+    SortedMap<String, String> keyValuePairs = keyValuePairs(input2);
+    keyValuePairs.put("HOSTNAMELOCAL", "op us");
+    try {
+      TorperfResultImpl.fromKeyValuePairs(keyValuePairs, null);
+      fail("Expected exception.");
+    } catch (DescriptorParseException e) {
+      assertTrue(e.getMessage().startsWith("Illegal key-value pair in line "
+          + "'BUILDTIMES="));
+    }
+  }
+
+  @Test
+  public void testFromKeyValuePairsMissingKey() {
+    SortedMap<String, String> keyValuePairs = keyValuePairs(input2);
+    keyValuePairs.remove("START");
+    try {
+      TorperfResultImpl.fromKeyValuePairs(keyValuePairs, null);
+      fail("Expected exception.");
+    } catch (DescriptorParseException e) {
+      assertTrue(e.getMessage().startsWith("Key 'START' is contained "
+          + "contained 0 times in line 'BUILDTIMES="));
+    }
+  }
+
 }
 
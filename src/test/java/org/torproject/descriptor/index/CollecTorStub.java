@@ -0,0 +1,147 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.index;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Local HTTP server that serves an index.json file and remote files like a
+ * CollecTor instance, and that records requests for later inspection. */
+class CollecTorStub implements AutoCloseable {
+
+  private final HttpServer server;
+
+  /* Served files by path, including the index. */
+  final Map<String, byte[]> files = new ConcurrentHashMap<>();
+
+  /* Requested paths in the order of requests. */
+  final List<String> requests = new CopyOnWriteArrayList<>();
+
+  /* Number of bytes after which responses for the given paths are cut off,
+   * once per path. */
+  final Map<String, Integer> truncateAfter = new ConcurrentHashMap<>();
+
+  /* Range request headers of requests, in the order of requests. */
+  final List<String> ranges = new CopyOnWriteArrayList<>();
+
+  /* Entity tag and last-modified time sent with the index, or null. */
+  volatile String indexEtag = null;
+
+  volatile String indexLastModified = null;
+
+  /* Number of responses with status code 304 Not Modified. */
+  final AtomicInteger notModified = new AtomicInteger();
+
+  /* Delay in milliseconds before responding to requests for remote files
+   * other than the index. */
+  volatile long delayMillis = 0L;
+
+  private final AtomicInteger concurrentRequests = new AtomicInteger();
+
+  /* Maximum number of concurrently processed requests. */
+  final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+
+  CollecTorStub() throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(
+        InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/", this::handle);
+    this.server.setExecutor(Executors.newCachedThreadPool());
+    this.server.start();
+  }
+
+  /* Return the base URL of this server without trailing slash. */
+  String baseUrl() {
+    return "http://localhost:" + this.server.getAddress().getPort();
+  }
+
+  /* Serve the given index as /index/index.json. */
+  void putIndex(IndexNode index) throws IOException {
+    this.files.put("/index/index.json", IndexNode.makeJsonString(index)
+        .getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    this.requests.add(path);
+    int concurrent = this.concurrentRequests.incrementAndGet();
+    this.maxConcurrentRequests.accumulateAndGet(concurrent, Math::max);
+    try {
+      if (this.delayMillis > 0L && !path.startsWith("/index/")) {
+        Thread.sleep(this.delayMillis);
+      }
+      byte[] body = this.files.get(path);
+      if (null == body) {
+        exchange.sendResponseHeaders(404, -1L);
+        return;
+      }
+      if (path.startsWith("/index/") && this.handleIndexValidators(exchange)) {
+        return;
+      }
+      int offset = 0;
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      if (null != range) {
+        this.ranges.add(range);
+        offset = Integer.parseInt(range.substring("bytes=".length(),
+            range.indexOf('-')));
+        exchange.getResponseHeaders().set("Content-Range", String.format(
+            "bytes %d-%d/%d", offset, body.length - 1, body.length));
+        exchange.sendResponseHeaders(206, body.length - offset);
+      } else {
+        exchange.sendResponseHeaders(200, body.length);
+      }
+      Integer truncate = this.truncateAfter.remove(path);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body, offset, null == truncate ? body.length - offset
+            : truncate);
+      }
+    } catch (InterruptedException e) {
+      exchange.sendResponseHeaders(500, -1L);
+    } finally {
+      this.concurrentRequests.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  /* Add validators to an index response, and send a 304 Not Modified
+   * response if the request contains matching validators. */
+  private boolean handleIndexValidators(HttpExchange exchange)
+      throws IOException {
+    if (null != this.indexEtag) {
+      exchange.getResponseHeaders().set("ETag", this.indexEtag);
+    }
+    if (null != this.indexLastModified) {
+      exchange.getResponseHeaders().set("Last-Modified",
+          this.indexLastModified);
+    }
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst(
+        "If-None-Match");
+    String ifModifiedSince = exchange.getRequestHeaders().getFirst(
+        "If-Modified-Since");
+    if ((null != this.indexEtag && this.indexEtag.equals(ifNoneMatch))
+        || (null == ifNoneMatch && null != this.indexLastModified
+        && this.indexLastModified.equals(ifModifiedSince))) {
+      this.notModified.incrementAndGet();
+      exchange.sendResponseHeaders(304, -1L);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void close() {
+    this.server.stop(0);
+  }
+}
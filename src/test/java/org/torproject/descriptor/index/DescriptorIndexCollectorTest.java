@@ -3,22 +3,36 @@
 
 package org.torproject.descriptor.index;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorCollector;
+import org.torproject.descriptor.DescriptorReader;
+import org.torproject.descriptor.DescriptorSourceFactory;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
@@ -47,10 +61,10 @@ public class DescriptorIndexCollectorTest {
 
     // verify precondition for test.
     checkContains(true,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/x1", "a/b/y1", "a/b/c/w1", "a/b/c/z1", "a/b/c/u1");
     checkContains(false,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/y2","a/b/x2");
 
     DescriptorCollector dc = new DescriptorIndexCollector();
@@ -59,12 +73,12 @@ public class DescriptorIndexCollectorTest {
 
     // verify that files in 'a/b' were fetched
     checkContains(true,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/x1", "a/b/y1", "a/b/y2","a/b/x2", "a/b/c/w1", "a/b/c/z1");
 
     // verify that files in 'a/b/c' were not fetched.
     checkContains(false,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/c/u2");
   }
 
@@ -73,8 +87,7 @@ public class DescriptorIndexCollectorTest {
     makeFiles(dir, "x" + suffix, "y" + suffix);
     File subdir = makeDirs(dir.toString(), "c");
     makeFiles(subdir, "u" + suffix, "w" + suffix, "z" + suffix);
-    SortedMap<String, Long> local = DescriptorIndexCollector
-        .statLocalDirectory(folder);
+    SortedMap<String, Long> local = LocalManifest.scan(folder).files();
     assertEquals("found " + local, 5, local.size());
   }
 
@@ -135,6 +148,332 @@ public class DescriptorIndexCollectorTest {
     return indexFile;
   }
 
+  /* Add the given number of files to the stub and return an index listing
+   * them in directory recent/relay-descriptors/consensuses. */
+  private IndexNode putRecentFiles(CollecTorStub stub, int count)
+      throws NoSuchAlgorithmException {
+    SortedSet<FileNode> files = new TreeSet<>();
+    for (int i = 0; i < count; i++) {
+      String name = String.format("2020-01-01-%02d-00-00-consensus", i);
+      byte[] bytes = ("network-status-version 3\n" + name + "\n")
+          .getBytes(StandardCharsets.US_ASCII);
+      stub.files.put("/recent/relay-descriptors/consensuses/" + name, bytes);
+      files.add(new FileNode(name, bytes.length, "2020-01-01 01:00",
+          Base64.getEncoder().encodeToString(
+          MessageDigest.getInstance("SHA-256").digest(bytes))));
+    }
+    SortedSet<DirectoryNode> consensuses = new TreeSet<>();
+    consensuses.add(new DirectoryNode("consensuses", files, null));
+    SortedSet<DirectoryNode> relayDescriptors = new TreeSet<>();
+    relayDescriptors.add(new DirectoryNode("relay-descriptors", null,
+        consensuses));
+    SortedSet<DirectoryNode> recent = new TreeSet<>();
+    recent.add(new DirectoryNode("recent", null, relayDescriptors));
+    return new IndexNode("2020-01-01 01:00", stub.baseUrl(), null, recent);
+  }
+
+  @Test
+  public void testConcurrentDownloads() throws Exception {
+    File localFolder = tmpf.newFolder();
+    try (CollecTorStub stub = new CollecTorStub()) {
+      stub.putIndex(this.putRecentFiles(stub, 20));
+      stub.delayMillis = 100L;
+      DescriptorCollector dc = new DescriptorIndexCollector();
+      dc.setDownloadThreads(8);
+      dc.setMaxDownloadsPerHost(4);
+      dc.collectDescriptors(stub.baseUrl(),
+          new String[] { "/recent/relay-descriptors/consensuses/" }, 0L,
+          localFolder, false);
+      assertEquals(21, stub.requests.size());
+      assertTrue(stub.maxConcurrentRequests.get() > 1);
+      assertTrue(stub.maxConcurrentRequests.get() <= 4);
+      SortedMap<String, Long> local = LocalManifest.scan(localFolder).files();
+      assertEquals(20, local.size());
+      for (Map.Entry<String, Long> e : local.entrySet()) {
+        assertEquals(1577840400000L, (long) e.getValue());
+        assertArrayEquals(stub.files.get("/" + e.getKey()),
+            Files.readAllBytes(new File(localFolder, e.getKey()).toPath()));
+      }
+    }
+  }
+
+  @Test
+  public void testResumeInterruptedDownload() throws Exception {
+    File localFolder = tmpf.newFolder();
+    String[] remoteDirectories = new String[] {
+        "recent/relay-descriptors/consensuses" };
+    try (CollecTorStub stub = new CollecTorStub()) {
+      stub.putIndex(this.putRecentFiles(stub, 1));
+      String path = "/recent/relay-descriptors/consensuses/"
+          + "2020-01-01-00-00-00-consensus";
+      stub.truncateAfter.put(path, 10);
+      DescriptorCollector dc = new DescriptorIndexCollector();
+      dc.collectDescriptors(stub.baseUrl(), remoteDirectories, 0L,
+          localFolder, true);
+      File destinationFile = new File(localFolder, path);
+      File tempFile = new File(destinationFile.getParentFile(),
+          "." + destinationFile.getName());
+      assertFalse(destinationFile.exists());
+      assertEquals(10L, tempFile.length());
+      new DescriptorIndexCollector().collectDescriptors(stub.baseUrl(),
+          remoteDirectories, 0L, localFolder, true);
+      assertEquals(Collections.singletonList("bytes=10-"), stub.ranges);
+      assertArrayEquals(stub.files.get(path),
+          Files.readAllBytes(destinationFile.toPath()));
+      assertFalse(tempFile.exists());
+    }
+  }
+
+  @Test
+  public void testConditionalIndexFetch() throws Exception {
+    File localFolder = tmpf.newFolder();
+    File cacheFolder = tmpf.newFolder();
+    String[] remoteDirectories = new String[] {
+        "recent/relay-descriptors/consensuses" };
+    try (CollecTorStub stub = new CollecTorStub()) {
+      stub.putIndex(this.putRecentFiles(stub, 3));
+      stub.indexEtag = "\"abc\"";
+      stub.indexLastModified = "Wed, 01 Jan 2020 01:00:00 GMT";
+      DescriptorCollector dc = new DescriptorIndexCollector();
+      dc.setIndexCacheDirectory(cacheFolder);
+      dc.collectDescriptors(stub.baseUrl(), remoteDirectories, 0L,
+          localFolder, true);
+      assertEquals(0, stub.notModified.get());
+      assertEquals(4, stub.requests.size());
+      assertTrue(new File(cacheFolder, "index.json").exists());
+      /* Remove a local file, which is fetched again using the cached
+       * index. */
+      File consensus = new File(localFolder,
+          "recent/relay-descriptors/consensuses/"
+          + "2020-01-01-01-00-00-consensus");
+      assertTrue(consensus.delete());
+      dc.collectDescriptors(stub.baseUrl(), remoteDirectories, 0L,
+          localFolder, true);
+      assertEquals(1, stub.notModified.get());
+      assertEquals(6, stub.requests.size());
+      assertTrue(consensus.exists());
+      /* A changed index is fetched again. */
+      stub.indexEtag = "\"def\"";
+      dc.collectDescriptors(stub.baseUrl(), remoteDirectories, 0L,
+          localFolder, true);
+      assertEquals(1, stub.notModified.get());
+      assertEquals(7, stub.requests.size());
+      assertEquals(3, LocalManifest.scan(
+          new File(localFolder, "recent")).files().size());
+      /* Without an index cache directory, the index is fetched
+       * unconditionally. */
+      new DescriptorIndexCollector().collectDescriptors(stub.baseUrl(),
+          remoteDirectories, 0L, localFolder, true);
+      assertEquals(1, stub.notModified.get());
+      assertEquals(8, stub.requests.size());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIndexCacheDirectoryInsideLocalDirectory()
+      throws IOException {
+    File localFolder = tmpf.newFolder();
+    DescriptorCollector dc = new DescriptorIndexCollector();
+    dc.setIndexCacheDirectory(new File(localFolder, ".index"));
+    dc.collectDescriptors("http://localhost", new String[] { "recent" }, 0L,
+        localFolder, false);
+  }
+
+  @Test
+  public void testDigestMismatch() throws Exception {
+    File localFolder = tmpf.newFolder();
+    String directory = "/recent/relay-descriptors/consensuses/";
+    try (CollecTorStub stub = new CollecTorStub()) {
+      stub.putIndex(this.putRecentFiles(stub, 2));
+      /* Corrupt one file without changing its size. */
+      byte[] bytes = stub.files.get(directory
+          + "2020-01-01-01-00-00-consensus");
+      bytes[0] = (byte) 'N';
+      new DescriptorIndexCollector().collectDescriptors(stub.baseUrl(),
+          new String[] { directory }, 0L, localFolder, true);
+      File corrupt = new File(localFolder, directory
+          + "2020-01-01-01-00-00-consensus");
+      assertFalse(corrupt.exists());
+      assertFalse(new File(corrupt.getParentFile(),
+          "." + corrupt.getName()).exists());
+      assertTrue(new File(localFolder, directory
+          + "2020-01-01-00-00-00-consensus").exists());
+    }
+  }
+
+  @Test
+  public void testCollectAndParseDescriptors() throws Exception {
+    File localFolder = tmpf.newFolder();
+    String[] remoteDirectories = new String[] {
+        "recent/relay-descriptors/consensuses" };
+    try (CollecTorStub stub = new CollecTorStub()) {
+      stub.putIndex(this.putRecentFiles(stub, 3));
+      SortedSet<String> parsedFiles = new TreeSet<>();
+      for (Descriptor descriptor : new DescriptorIndexCollector()
+          .collectAndParseDescriptors(stub.baseUrl(), remoteDirectories, 0L,
+          localFolder, true)) {
+        assertTrue(descriptor.getDescriptorFile().exists());
+        assertArrayEquals(Files.readAllBytes(
+            descriptor.getDescriptorFile().toPath()),
+            descriptor.getRawDescriptorBytes());
+        parsedFiles.add(descriptor.getDescriptorFile().getName());
+      }
+      assertEquals(3, parsedFiles.size());
+      /* Files that exist locally are not fetched and parsed again. */
+      assertFalse(new DescriptorIndexCollector().collectAndParseDescriptors(
+          stub.baseUrl(), remoteDirectories, 0L, localFolder, true)
+          .iterator().hasNext());
+    }
+  }
+
+  @Test
+  public void testCollectAndParseDescriptorsStopIterating() throws Exception {
+    File localFolder = tmpf.newFolder();
+    File cacheFolder = tmpf.newFolder();
+    String[] remoteDirectories = new String[] {
+        "recent/relay-descriptors/consensuses" };
+    File extraneous = new File(localFolder,
+        "recent/relay-descriptors/consensuses/2019-12-31-23-00-00-consensus");
+    assertTrue(extraneous.getParentFile().mkdirs());
+    assertTrue(extraneous.createNewFile());
+    try (CollecTorStub stub = new CollecTorStub()) {
+      /* Fetch more files than fit into the queue of parsed descriptors. */
+      stub.putIndex(this.putRecentFiles(stub, 150));
+      DescriptorCollector dc = new DescriptorIndexCollector();
+      dc.setIndexCacheDirectory(cacheFolder);
+      Iterator<Descriptor> descriptors = dc.collectAndParseDescriptors(
+          stub.baseUrl(), remoteDirectories, 0L, localFolder, true)
+          .iterator();
+      assertTrue(descriptors.hasNext());
+      assertNotNull(descriptors.next());
+      /* Stop iterating, which must not keep the collector from fetching all
+       * files, deleting extraneous files, and writing the manifest. */
+      File manifestFile = LocalManifest.manifestFile(cacheFolder);
+      long deadline = System.currentTimeMillis() + 30_000L;
+      while (!manifestFile.exists()
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50L);
+      }
+      assertTrue(manifestFile.exists());
+      assertEquals(151, stub.requests.size());
+      assertFalse(extraneous.exists());
+      assertEquals(150, LocalManifest.scan(new File(localFolder, "recent"))
+          .files().size());
+    }
+  }
+
+  @Test
+  public void testCollectAndParseTarball() throws Exception {
+    File localFolder = tmpf.newFolder();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream taos = new TarArchiveOutputStream(baos)) {
+      for (int i = 0; i < 2; i++) {
+        byte[] bytes = String.format("@type network-status-consensus-3 1.0\n"
+            + "network-status-version 3\n%d\n", i)
+            .getBytes(StandardCharsets.US_ASCII);
+        TarArchiveEntry entry = new TarArchiveEntry("consensus-" + i);
+        entry.setSize(bytes.length);
+        taos.putArchiveEntry(entry);
+        taos.write(bytes);
+        taos.closeArchiveEntry();
+      }
+    }
+    try (CollecTorStub stub = new CollecTorStub()) {
+      byte[] tarball = baos.toByteArray();
+      stub.files.put("/archive/consensuses.tar", tarball);
+      SortedSet<FileNode> files = new TreeSet<>();
+      files.add(new FileNode("consensuses.tar", tarball.length,
+          "2020-01-01 01:00"));
+      SortedSet<DirectoryNode> archive = new TreeSet<>();
+      archive.add(new DirectoryNode("archive", files, null));
+      stub.putIndex(new IndexNode("2020-01-01 01:00", stub.baseUrl(), null,
+          archive));
+      int parsed = 0;
+      for (Descriptor descriptor : new DescriptorIndexCollector()
+          .collectAndParseDescriptors(stub.baseUrl(),
+          new String[] { "archive" }, 0L, localFolder, false)) {
+        assertEquals(new File(localFolder, "archive/consensuses.tar"),
+            descriptor.getDescriptorFile());
+        parsed++;
+      }
+      assertEquals(2, parsed);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCollectAndParseNullDirectory() {
+    new DescriptorIndexCollector().collectAndParseDescriptors(
+        "http://localhost", new String[]{}, 100L, null, false);
+  }
+
+  @Test
+  public void testLocalManifest() throws Exception {
+    File localFolder = tmpf.newFolder();
+    File cacheFolder = tmpf.newFolder();
+    File manifestFile = LocalManifest.manifestFile(cacheFolder);
+    String[] remoteDirectories = new String[] {
+        "recent/relay-descriptors/consensuses" };
+    try (CollecTorStub stub = new CollecTorStub()) {
+      stub.putIndex(this.putRecentFiles(stub, 3));
+      DescriptorCollector dc = new DescriptorIndexCollector();
+      dc.setIndexCacheDirectory(cacheFolder);
+      dc.collectDescriptors(stub.baseUrl(), remoteDirectories, 0L,
+          localFolder, true);
+      assertTrue(manifestFile.exists());
+      SortedMap<String, Long> local = LocalManifest.scan(localFolder).files();
+      assertEquals(3, local.size());
+      assertEquals(local,
+          LocalManifest.open(localFolder, manifestFile).files());
+      /* The manifest of another local directory is not used. */
+      assertTrue(LocalManifest.open(tmpf.newFolder(), manifestFile).files()
+          .isEmpty());
+      /* Remove one file remotely, which deletes it locally and from the
+       * manifest. */
+      stub.putIndex(this.putRecentFiles(stub, 2));
+      dc.setScanLocalDirectory(true);
+      dc.collectDescriptors(stub.baseUrl(), remoteDirectories, 0L,
+          localFolder, true);
+      /* Only the index was fetched again. */
+      assertEquals(5, stub.requests.size());
+      assertEquals(2,
+          LocalManifest.open(localFolder, manifestFile).files().size());
+    }
+  }
+
+  @Test
+  public void testReadCollectedDirectory() throws Exception {
+    File localFolder = tmpf.newFolder();
+    File cacheFolder = tmpf.newFolder();
+    String[] remoteDirectories = new String[] {
+        "recent/relay-descriptors/consensuses" };
+    try (CollecTorStub stub = new CollecTorStub()) {
+      stub.putIndex(this.putRecentFiles(stub, 3));
+      stub.indexEtag = "\"abc\"";
+      DescriptorCollector dc = new DescriptorIndexCollector();
+      dc.setIndexCacheDirectory(cacheFolder);
+      dc.collectDescriptors(stub.baseUrl(), remoteDirectories, 0L,
+          localFolder, true);
+      dc.collectDescriptors(stub.baseUrl(), remoteDirectories, 0L,
+          localFolder, true);
+      assertEquals(1, stub.notModified.get());
+    }
+    /* Only collected files are read back, but neither the cached index nor
+     * the manifest. */
+    DescriptorReader reader = DescriptorSourceFactory.createDescriptorReader();
+    int read = 0;
+    for (Descriptor descriptor : reader.readDescriptors(localFolder)) {
+      assertTrue(descriptor.getDescriptorFile().getName()
+          .endsWith("-consensus"));
+      read++;
+    }
+    assertEquals(3, read);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroDownloadThreads() {
+    new DescriptorIndexCollector().setDownloadThreads(0);
+  }
+
   @Test
   public void testNormalCollectingWithDeletion() throws Exception {
     File localFolder = tmpf.newFolder();
@@ -150,10 +489,10 @@ public class DescriptorIndexCollectorTest {
 
     // verify precondition for test.
     checkContains(true,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/x1", "a/b/y1", "a/b/c/w1", "a/b/c/z1", "a/b/c/u1");
     checkContains(false,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/y2","a/b/x2");
 
     new DescriptorIndexCollector()
@@ -162,17 +501,17 @@ public class DescriptorIndexCollectorTest {
 
     // verify file addition, including that the non-synced dir is not touched.
     checkContains(true,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/y2", "a/b/x2", "a/b/c/u2", "d/p1");
 
     // verify that invalid files weren't fetched.
     checkContains(false,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/c/w2", "a/b/c/z2");
 
     // verify file deletion.
     checkContains(false,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/x1", "a/b/y1", "a/b/c/w1", "a/b/c/z1", "a/b/c/u1");
   }
 
@@ -191,10 +530,10 @@ public class DescriptorIndexCollectorTest {
 
     // verify precondition for test.
     checkContains(true,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/x1", "a/b/y1", "a/b/c/w1", "a/b/c/z1", "a/b/c/u1");
     checkContains(false,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/y2","a/b/x2");
 
     new DescriptorIndexCollector()
@@ -204,53 +543,51 @@ public class DescriptorIndexCollectorTest {
 
     // verify file addition, including that the non-synced dir is not touched.
     checkContains(true,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/y2", "a/b/x2", "a/b/c/u2", "d/p1");
 
     // verify that invalid files weren't fetched.
     checkContains(false,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/c/w2", "a/b/c/z2");
 
     // verify file deletion.
     checkContains(false,
-        DescriptorIndexCollector.statLocalDirectory(localFolder).toString(),
+        LocalManifest.scan(localFolder).files().toString(),
         "a/b/x1", "a/b/y1", "a/b/c/w1", "a/b/c/z1", "a/b/c/u1");
   }
 
   @Test
-  public void testNormalStatLocalDirectory() throws IOException {
+  public void testNormalScanLocalDirectory() throws IOException {
     // create local file structure
     File dir = tmpf.newFolder();
     File ab = makeDirs(dir.toString(), "a", "b");
-    SortedMap<String, Long> res = DescriptorIndexCollector
-        .statLocalDirectory(dir);
+    SortedMap<String, Long> res = LocalManifest.scan(dir).files();
     assertTrue("found " + res, res.isEmpty());
     makeFiles(ab, "x");
-    res = DescriptorIndexCollector.statLocalDirectory(dir);
+    res = LocalManifest.scan(dir).files();
     assertFalse("found " + res, res.isEmpty());
     assertEquals("found " + res, 1, res.size());
     assertNotNull("found " + res, res.get("a/b/x"));
     File subdir = makeDirs(ab.toString(), "c");
     makeFiles(subdir, "y");
-    res = DescriptorIndexCollector.statLocalDirectory(dir);
+    res = LocalManifest.scan(dir).files();
     assertFalse("found " + res, res.isEmpty());
     assertEquals("found " + res, 2, res.size());
     assertNotNull("found " + res, res.get("a/b/x"));
     assertNotNull("found " + res, res.get("a/b/c/y"));
-    res = DescriptorIndexCollector.statLocalDirectory(new File(subdir, "y"));
-    assertFalse("found " + res, res.isEmpty());
-    assertEquals("found " + res, 1, res.size());
+    res = LocalManifest.scan(new File(subdir, "y")).files();
+    assertTrue("found " + res, res.isEmpty());
   }
 
   @Test
-  public void testWrongInputStatLocalDirectory() throws IOException {
+  public void testWrongInputScanLocalDirectory() throws IOException {
     File dir = makeDirs(tmpf.newFolder().toString(), "a", "b");
-    SortedMap<String, Long> res = DescriptorIndexCollector
-        .statLocalDirectory(new File(dir, "not-there"));
+    SortedMap<String, Long> res
+        = LocalManifest.scan(new File(dir, "not-there")).files();
     assertTrue("found " + res, res.isEmpty());
     dir.setReadable(false);
-    res = DescriptorIndexCollector.statLocalDirectory(dir);
+    res = LocalManifest.scan(dir).files();
     assertTrue("found " + res, res.isEmpty());
   }
 
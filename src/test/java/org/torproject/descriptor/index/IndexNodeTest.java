@@ -5,6 +5,8 @@ package org.torproject.descriptor.index;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.fasterxml.jackson.core.JsonParseException;
@@ -13,12 +15,14 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Map;
+import java.nio.charset.StandardCharsets;
 import java.util.SortedMap;
 
 public class IndexNodeTest {
@@ -139,5 +143,87 @@ public class IndexNodeTest {
     map = index.retrieveFilesIn("a1/p3");
     assertTrue("map was " + map, map.isEmpty());
   }
-}
 
+  @Test
+  public void testFilteredIndexRead() throws Exception {
+    URL indexUrl = getClass().getClassLoader().getResource("index2.json");
+    IndexNode full = IndexNode.fetchIndex(indexUrl.toString());
+    String[][] requests = new String[][] {
+        {"b2"}, {"a1"}, {"a1/p2"}, {"y", "a1/x", "a1/p1"}, {"/a1/p1/"},
+        {"a1/p1", "a1/p2"}, {}};
+    for (String[] remoteDirs : requests) {
+      IndexNode filtered = IndexNode.fetchIndex(indexUrl.toString(),
+          remoteDirs);
+      SortedMap<String, FileNode> expected = full.retrieveFilesIn(remoteDirs);
+      SortedMap<String, FileNode> actual
+          = filtered.retrieveFilesIn(remoteDirs);
+      assertEquals(expected.keySet(), actual.keySet());
+      for (Map.Entry<String, FileNode> e : expected.entrySet()) {
+        assertEquals(e.getValue().size, actual.get(e.getKey()).size);
+        assertEquals(e.getValue().lastModified,
+            actual.get(e.getKey()).lastModified);
+      }
+    }
+    IndexNode filtered = IndexNode.fetchIndex(indexUrl.toString(), "a1/p2");
+    assertEquals("2016-02-02 00:02", filtered.created);
+    assertEquals("https://some.collector.url", filtered.path);
+    DirectoryNode a1 = filtered.findDirectory("a1");
+    assertNotNull(a1);
+    assertEquals(1, a1.directories.size());
+    assertNull(a1.findDirectory("p1"));
+    assertNotNull(a1.findDirectory("p2"));
+    assertTrue(IndexNode.fetchIndex(indexUrl.toString(), "b2")
+        .directories.isEmpty());
+  }
+
+  @Test
+  public void testFilteredIndexReadPathLast() throws Exception {
+    String json = "{\"directories\":[{\"files\":[{\"size\":1,"
+        + "\"sha256\":\"x\",\"last_modified\":\"2012-01-01 13:13\","
+        + "\"path\":\"f1\"}],\"directories\":[{\"path\":\"q\"}],"
+        + "\"path\":\"d1\"},{\"directories\":[{\"path\":\"q\"}],"
+        + "\"path\":\"d2\"}],\"path\":\"https://some.collector.url\"}";
+    IndexNode index = IndexNode.fetchIndex(new ByteArrayInputStream(
+        json.getBytes(StandardCharsets.UTF_8)), "d1");
+    assertEquals(1, index.directories.size());
+    SortedMap<String, FileNode> files = index.retrieveFilesIn("d1");
+    assertEquals(1, files.size());
+    assertEquals(1L, files.get("d1/f1").size);
+    assertEquals("x", files.get("d1/f1").sha256);
+  }
+
+  @Test
+  public void testSha256() throws Exception {
+    String json = "{\"path\":\"https://some.collector.url\","
+        + "\"directories\":[{\"path\":\"d1\",\"files\":[{\"path\":"
+        + "\"f1\",\"size\":1,\"last_modified\":\"2012-01-01 13:13\","
+        + "\"sha256\":\"x\"},{\"path\":\"f2\",\"size\":1,"
+        + "\"last_modified\":\"2012-01-01 13:13\"}]}]}";
+    IndexNode index = IndexNode.fetchIndex(new ByteArrayInputStream(
+        json.getBytes(StandardCharsets.UTF_8)));
+    SortedMap<String, FileNode> files = index.retrieveFilesIn("d1");
+    assertEquals("x", files.get("d1/f1").sha256);
+    assertNull(files.get("d1/f2").sha256);
+    assertEquals(json, IndexNode.makeJsonString(index));
+  }
+
+  @Test(expected = JsonParseException.class)
+  public void testFilteredWrongJson() throws Exception {
+    URL indexUrl = getClass().getClassLoader().getResource("index1.json.gz");
+    IndexNode.fetchIndex(indexUrl.openStream(), "archive");
+  }
+
+  @Test
+  public void testFindDirectory() throws Exception {
+    URL indexUrl = getClass().getClassLoader().getResource("index1.json");
+    IndexNode index = IndexNode.fetchIndex(indexUrl.toString());
+    DirectoryNode archive = index.findDirectory("archive");
+    assertNotNull(archive);
+    assertEquals("path-two", archive.findDirectory("path-two").path);
+    assertNull(archive.findDirectory("path-three"));
+    assertNull(index.findDirectory("recent"));
+    assertEquals("path-one",
+        IndexNode.findPathIn("path-one", archive.directories).path);
+    assertNull(IndexNode.findPathIn("path-0", archive.directories));
+  }
+}
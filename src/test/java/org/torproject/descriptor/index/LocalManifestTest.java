@@ -0,0 +1,135 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.SortedMap;
+
+public class LocalManifestTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private File createFile(File localDir, String path) throws IOException {
+    File file = new File(localDir, path);
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), path.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  /* Move the last modified time of the given directory into the past, as
+   * if it had been modified some time before or after writing the
+   * manifest. */
+  private void age(File directory) throws IOException {
+    Files.setLastModifiedTime(directory.toPath(),
+        FileTime.fromMillis(directory.lastModified() - 60_000L));
+  }
+
+  @Test
+  public void testScanWriteOpen() throws Exception {
+    File localDir = tmpf.newFolder();
+    createFile(localDir, "a/b/x");
+    createFile(localDir, "a/b/c/y");
+    createFile(localDir, "z");
+    File manifestFile = LocalManifest.manifestFile(tmpf.newFolder());
+    LocalManifest scanned = LocalManifest.scan(localDir);
+    assertEquals("[a/b/c/y, a/b/x, z]",
+        scanned.files().keySet().toString());
+    scanned.write(manifestFile);
+    assertTrue(manifestFile.exists());
+    assertEquals(scanned.files(),
+        LocalManifest.open(localDir, manifestFile).files());
+  }
+
+  @Test
+  public void testOpenDetectsChanges() throws Exception {
+    File localDir = tmpf.newFolder();
+    createFile(localDir, "a/b/x");
+    createFile(localDir, "a/b/y");
+    createFile(localDir, "d/e/f/w");
+    File manifestFile = LocalManifest.manifestFile(tmpf.newFolder());
+    LocalManifest.scan(localDir).write(manifestFile);
+    File ab = new File(localDir, "a/b");
+    assertTrue(new File(ab, "y").delete());
+    createFile(localDir, "a/b/v");
+    createFile(localDir, "a/b/n/u");
+    File de = new File(localDir, "d/e");
+    for (String name : new String[] { "f/w", "f" }) {
+      assertTrue(new File(de, name).delete());
+    }
+    SortedMap<String, Long> files
+        = LocalManifest.open(localDir, manifestFile).files();
+    assertEquals("[a/b/n/u, a/b/v, a/b/x]", files.keySet().toString());
+    assertEquals(LocalManifest.scan(localDir).files(), files);
+  }
+
+  @Test
+  public void testOpenUnchangedDirectories() throws Exception {
+    File localDir = tmpf.newFolder();
+    createFile(localDir, "a/x");
+    age(localDir);
+    age(new File(localDir, "a"));
+    File manifestFile = LocalManifest.manifestFile(tmpf.newFolder());
+    LocalManifest manifest = LocalManifest.scan(localDir);
+    manifest.files().put("a/not-listed", 1L);
+    manifest.write(manifestFile);
+    /* Directories with an unchanged last modified time are not listed
+     * again, so that the manifest entry remains. */
+    assertTrue(LocalManifest.open(localDir, manifestFile).files()
+        .containsKey("a/not-listed"));
+    age(new File(localDir, "a"));
+    age(new File(localDir, "a"));
+    assertFalse(LocalManifest.open(localDir, manifestFile).files()
+        .containsKey("a/not-listed"));
+  }
+
+  @Test
+  public void testOpenCorruptManifest() throws Exception {
+    File localDir = tmpf.newFolder();
+    createFile(localDir, "a/x");
+    File manifestFile = LocalManifest.manifestFile(tmpf.newFolder());
+    Files.write(manifestFile.toPath(), ("@manifest 1\n@directory "
+        + localDir.getAbsolutePath() + "\nf xyz a/y\n")
+        .getBytes(StandardCharsets.UTF_8));
+    assertEquals("[a/x]",
+        LocalManifest.open(localDir, manifestFile).files().keySet()
+        .toString());
+    Files.write(manifestFile.toPath(),
+        "something else\n".getBytes(StandardCharsets.UTF_8));
+    assertEquals("[a/x]",
+        LocalManifest.open(localDir, manifestFile).files().keySet()
+        .toString());
+  }
+
+  @Test
+  public void testScanMissingDirectory() throws Exception {
+    File localDir = new File(tmpf.getRoot(), "not-there");
+    assertTrue(LocalManifest.open(localDir,
+        LocalManifest.manifestFile(tmpf.newFolder())).files().isEmpty());
+  }
+
+  @Test
+  public void testRecentlyModifiedDirectoryListedAgain() throws Exception {
+    File localDir = tmpf.newFolder();
+    createFile(localDir, "a/x");
+    File manifestFile = LocalManifest.manifestFile(tmpf.newFolder());
+    LocalManifest.scan(localDir).write(manifestFile);
+    /* Changing a directory right after writing the manifest may not change
+     * its last modified time, which is why it is listed again anyway. */
+    assertTrue(new File(localDir, "a/x").delete());
+    assertTrue(LocalManifest.open(localDir, manifestFile).files().isEmpty());
+  }
+}
@@ -0,0 +1,87 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class CompressionCodecsTest {
+
+  @Test
+  public void testBuiltInCodecs() {
+    assertEquals(FileType.BZ2, CompressionCodecs.forFileExtension("bz2"));
+    assertEquals(FileType.GZ, CompressionCodecs.forFileExtension("GZ"));
+    assertEquals(FileType.XZ, CompressionCodecs.forFileExtension("xz"));
+    assertNull(CompressionCodecs.forFileExtension("json"));
+    assertNull(CompressionCodecs.forFileExtension("plain"));
+    assertNull(CompressionCodecs.forFileExtension(null));
+  }
+
+  @Test
+  public void testTarballFileNames() {
+    assertEquals(FileType.PLAIN,
+        CompressionCodecs.forTarball("server-descriptors-2020-12.tar"));
+    assertEquals(FileType.BZ2,
+        CompressionCodecs.forTarball("consensuses-2020-12.tar.bz2"));
+    assertEquals(FileType.GZ,
+        CompressionCodecs.forTarball("consensuses-2020-12.tar.gz"));
+    assertEquals(FileType.XZ,
+        CompressionCodecs.forTarball("consensuses-2020-12.tar.xz"));
+    assertNull(CompressionCodecs.forTarball("consensuses-2020-12.tar.json"));
+    assertNull(CompressionCodecs.forTarball("index.json.gz"));
+    assertNull(CompressionCodecs.forTarball("gz"));
+    assertNull(CompressionCodecs.forTarball("tar.gz"));
+  }
+
+  @Test
+  public void testRegisterCodec() {
+    CompressionCodec codec = new CompressionCodec() {
+      @Override
+      public String getFileExtension() {
+        return "Identity";
+      }
+
+      @Override
+      public InputStream inputStream(InputStream is) {
+        return is;
+      }
+
+      @Override
+      public OutputStream outputStream(OutputStream os) {
+        return os;
+      }
+    };
+    String fileName = "consensuses-2020-12.tar.identity";
+    assertNull(CompressionCodecs.forTarball(fileName));
+    CompressionCodecs.register(codec);
+    assertEquals(codec, CompressionCodecs.forTarball(fileName));
+  }
+
+  @Test
+  public void testFileTypeRoundTrip() throws IOException {
+    byte[] bytes = "@type bridge-extra-info 1.3\n"
+        .getBytes(StandardCharsets.US_ASCII);
+    for (FileType fileType : FileType.values()) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try (OutputStream os = fileType.outputStream(baos)) {
+        os.write(bytes);
+      }
+      try (InputStream is = fileType.inputStream(
+          new ByteArrayInputStream(baos.toByteArray()))) {
+        assertArrayEquals(fileType.name(), bytes, IOUtils.toByteArray(is));
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileTypeTest {
+
+  private static byte[] remaining(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void testBinaryRoundTrip() throws Exception {
+    byte[] bytes = new byte[300_000];
+    new Random(42L).nextBytes(bytes);
+    Arrays.fill(bytes, 1000, 2000, (byte) 0);
+    for (FileType fileType : FileType.values()) {
+      assertArrayEquals(fileType.name(), bytes,
+          fileType.decompress(fileType.compress(bytes)));
+    }
+  }
+
+  @Test
+  public void testLeadingZeroByte() throws Exception {
+    byte[] bytes = new byte[] { 0, 1, 2, 0, 3 };
+    for (FileType fileType : FileType.values()) {
+      assertArrayEquals(fileType.name(), bytes,
+          fileType.decompress(fileType.compress(bytes)));
+    }
+  }
+
+  @Test
+  public void testCompressionLevels() throws Exception {
+    byte[] bytes = new byte[300_000];
+    new Random(42L).nextBytes(bytes);
+    Arrays.fill(bytes, 1000, 200_000, (byte) 'a');
+    for (FileType fileType : FileType.values()) {
+      for (int level : new int[] { FileType.DEFAULT_LEVEL, 1, 9 }) {
+        assertArrayEquals(fileType.name() + " " + level, bytes,
+            fileType.decompress(fileType.compress(bytes, level)));
+      }
+    }
+  }
+
+  @Test
+  public void testHighlyCompressibleRoundTrip() throws Exception {
+    byte[] bytes = new byte[5_000_000];
+    Arrays.fill(bytes, (byte) 'a');
+    for (FileType fileType : new FileType[] { FileType.BZ2, FileType.GZ,
+        FileType.XZ }) {
+      byte[] compressed = fileType.compress(bytes);
+      assertArrayEquals(fileType.name(), bytes,
+          fileType.decompress(compressed));
+    }
+  }
+
+  @Test
+  public void testByteBufferRoundTrip() throws Exception {
+    byte[] bytes = "@type torperf 1.1\n0\n".getBytes(
+        StandardCharsets.US_ASCII);
+    for (FileType fileType : FileType.values()) {
+      ByteBuffer compressed = fileType.compressToByteBuffer(bytes);
+      assertArrayEquals(fileType.name(), fileType.compress(bytes),
+          remaining(compressed.duplicate()));
+      ByteBuffer decompressed = fileType.decompressToByteBuffer(
+          remaining(compressed));
+      assertArrayEquals(fileType.name(), bytes, remaining(decompressed));
+    }
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    for (FileType fileType : FileType.values()) {
+      assertEquals(0, fileType.decompress(new byte[0]).length);
+      assertEquals(0, fileType.decompressToByteBuffer(new byte[0])
+          .remaining());
+    }
+  }
+}
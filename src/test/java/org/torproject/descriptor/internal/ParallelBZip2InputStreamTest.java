@@ -0,0 +1,155 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class ParallelBZip2InputStreamTest {
+
+  private static byte[] compress(byte[] bytes, int blockSize)
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (BZip2CompressorOutputStream bzos = new BZip2CompressorOutputStream(
+        baos, blockSize)) {
+      bzos.write(bytes);
+    }
+    return baos.toByteArray();
+  }
+
+  private static byte[] decompressSequentially(byte[] compressed)
+      throws IOException {
+    try (InputStream is = new BZip2CompressorInputStream(
+        new ByteArrayInputStream(compressed))) {
+      return IOUtils.toByteArray(is);
+    }
+  }
+
+  private static byte[] decompressInParallel(byte[] compressed, int threads)
+      throws IOException {
+    try (InputStream is = new ParallelBZip2InputStream(
+        new ByteArrayInputStream(compressed), threads)) {
+      return IOUtils.toByteArray(is);
+    }
+  }
+
+  /* Create text-like content that compresses into many small blocks. */
+  private static byte[] createText(int length) {
+    String[] words = new String[] { "router", "published", "bandwidth",
+        "accept", "reject", "onion-key", "family", "platform", "Tor" };
+    Random random = new Random(23L);
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < length) {
+      sb.append(words[random.nextInt(words.length)]).append(' ')
+          .append(random.nextInt(100000)).append('\n');
+    }
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  public void testMultipleBlocks() throws IOException {
+    byte[] bytes = createText(2_000_000);
+    byte[] compressed = compress(bytes, 1);
+    assertArrayEquals(bytes, decompressInParallel(compressed, 4));
+    assertArrayEquals(decompressSequentially(compressed),
+        decompressInParallel(compressed, 4));
+  }
+
+  @Test
+  public void testSingleThread() throws IOException {
+    byte[] bytes = createText(300_000);
+    assertArrayEquals(bytes, decompressInParallel(compress(bytes, 1), 1));
+  }
+
+  @Test
+  public void testRandomBytes() throws IOException {
+    byte[] bytes = new byte[500_000];
+    new Random(42L).nextBytes(bytes);
+    assertArrayEquals(bytes, decompressInParallel(compress(bytes, 1), 3));
+  }
+
+  @Test
+  public void testResources() throws IOException {
+    for (String resourceName : new String[] { "test.json.bz2",
+        "index1.json.bz2" }) {
+      byte[] compressed = IOUtils.toByteArray(getClass().getClassLoader()
+          .getResourceAsStream(resourceName));
+      assertArrayEquals(decompressSequentially(compressed),
+          decompressInParallel(compressed, 2));
+    }
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    assertEquals(0, decompressInParallel(compress(new byte[0], 9), 2).length);
+  }
+
+  @Test
+  public void testConcatenatedStreamsStopAfterFirst() throws IOException {
+    byte[] first = createText(1000);
+    ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+    concatenated.write(compress(first, 9));
+    concatenated.write(compress(createText(2000), 9));
+    assertArrayEquals(decompressSequentially(concatenated.toByteArray()),
+        decompressInParallel(concatenated.toByteArray(), 2));
+    assertArrayEquals(first,
+        decompressInParallel(concatenated.toByteArray(), 2));
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotBzip2() throws IOException {
+    decompressInParallel("BZx9 no bzip2".getBytes(StandardCharsets.US_ASCII),
+        2);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncated() throws IOException {
+    byte[] compressed = compress(createText(300_000), 1);
+    byte[] truncated = new byte[compressed.length / 2];
+    System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+    decompressInParallel(truncated, 2);
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorruptedStreamCrc() throws IOException {
+    byte[] compressed = compress(createText(300_000), 1);
+    /* The last byte contains the last bits of the combined stream CRC and
+     * padding. */
+    compressed[compressed.length - 2] ^= 0x01;
+    decompressInParallel(compressed, 2);
+  }
+
+  private static long countWorkerThreads() {
+    return Thread.getAllStackTraces().keySet().stream().filter(
+        thread -> thread.getName().startsWith("ParallelBZip2InputStream-"))
+        .count();
+  }
+
+  @Test
+  public void testStreamsReadToEndWithoutClosing() throws IOException {
+    byte[] bytes = createText(300_000);
+    byte[] compressed = compress(bytes, 1);
+    for (int i = 0; i < 20; i++) {
+      InputStream is = new ParallelBZip2InputStream(
+          new ByteArrayInputStream(compressed), 2);
+      assertArrayEquals(bytes, IOUtils.toByteArray(is));
+    }
+    /* Worker threads are shared by all streams, rather than two threads being
+     * started for each stream and kept alive until it gets closed. */
+    assertTrue(countWorkerThreads() < 20);
+  }
+}
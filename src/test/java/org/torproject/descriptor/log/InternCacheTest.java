@@ -0,0 +1,87 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class InternCacheTest {
+
+  @Test
+  public void testIntern() {
+    InternCache<String> cache = new InternCache<>("test", 10);
+    String first = new String("abc");
+    String second = new String("abc");
+    assertSame(first, cache.intern(first));
+    assertSame(first, cache.intern(second));
+    assertEquals(1L, cache.hits());
+    assertEquals(1L, cache.misses());
+    assertEquals(1, cache.size());
+    assertEquals("test: 1 values, 1 of 2 lookups hit (50.0%)",
+        cache.toString());
+  }
+
+  @Test
+  public void testBounded() {
+    InternCache<Integer> cache = new InternCache<>("test", 100);
+    for (int i = 0; i < 10_000; i++) {
+      cache.intern(i);
+      assertTrue(cache.size() <= 200);
+    }
+    assertEquals(10_000L, cache.misses());
+  }
+
+  @Test
+  public void testFrequentValuesKept() {
+    InternCache<String> cache = new InternCache<>("test", 10);
+    String frequent = new String("frequent");
+    cache.intern(frequent);
+    for (int i = 0; i < 1_000; i++) {
+      cache.intern("value" + i);
+      assertSame(frequent, cache.intern(new String("frequent")));
+    }
+  }
+
+  @Test
+  public void testEviction() {
+    InternCache<String> cache = new InternCache<>("test", 10);
+    String evicted = new String("evicted");
+    cache.intern(evicted);
+    for (int i = 0; i < 20; i++) {
+      cache.intern("value" + i);
+    }
+    assertNotSame(evicted, cache.intern(new String("evicted")));
+  }
+
+  @Test
+  public void testConcurrentLookups() throws Exception {
+    InternCache<String> cache = new InternCache<>("test", 1_000);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 100_000; i++) {
+          String value = "value" + (i % 500);
+          assertEquals(value, cache.intern(value));
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertEquals(400_000L, cache.hits() + cache.misses());
+    assertTrue(cache.size() <= 2_000);
+  }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.log;
+
+import static java.util.stream.Collectors.toList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.StreamSupport;
+
+public class LineSpliteratorTest {
+
+  private List<String> lines(String text) {
+    return StreamSupport.stream(new LineSpliterator(
+        text.getBytes(StandardCharsets.UTF_8)), false).collect(toList());
+  }
+
+  @Test
+  public void testLineTerminators() {
+    for (String text : new String[] { "", "\n", "a", "a\n", "a\r\nb",
+        "a\n\nb\n", "\r\n\r\n", "\u00e4\n\u00f6\r\n" }) {
+      assertEquals("Splitting '" + text + "'",
+          new BufferedReader(new StringReader(text)).lines()
+          .collect(toList()), this.lines(text));
+    }
+  }
+
+  @Test
+  public void testSplitAtLineBoundaries() {
+    List<String> expected = new ArrayList<>();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100_000; i++) {
+      String line = "line " + i;
+      expected.add(line);
+      sb.append(line).append('\n');
+    }
+    byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+    Spliterator<String> suffix = new LineSpliterator(bytes);
+    Spliterator<String> prefix = suffix.trySplit();
+    assertNotNull(prefix);
+    List<String> lines = new ArrayList<>();
+    prefix.forEachRemaining(lines::add);
+    suffix.forEachRemaining(lines::add);
+    assertEquals(expected, lines);
+    assertEquals(expected, StreamSupport.stream(new LineSpliterator(bytes),
+        true).collect(toList()));
+  }
+
+  @Test
+  public void testNoSplitOfSmallRanges() {
+    assertNull(new LineSpliterator(String.join("\n", Arrays.asList("a", "b",
+        "c")).getBytes(StandardCharsets.UTF_8)).trySplit());
+  }
+}
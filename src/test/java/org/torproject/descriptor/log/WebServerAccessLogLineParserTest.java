@@ -0,0 +1,117 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.descriptor.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.descriptor.Method;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class WebServerAccessLogLineParserTest {
+
+  /* Regular expression that was used for parsing lines before, which
+   * defines which lines are valid. */
+  private static final Pattern logLinePattern = Pattern.compile(
+      "^((?:\\d{1,3}\\.){3}\\d{1,3}) (\\S+) (\\S+) "
+      + "\\[([\\w/]+)([\\w:]+)(\\s[+\\-]\\d{4})\\] "
+      + "\"([A-Z]+) ([^\"]+) ([A-Z]+/\\d\\.\\d)\" "
+      + "(\\d{3}) (\\d+|-)(.*)");
+
+  private static final DateTimeFormatter dateTimeFormatter
+      = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss xxxx");
+
+  private static final String[] validLines = new String[] {
+      "0.0.0.0 - - [22/Jan/2018:00:00:00 +0000] \"GET "
+      + "/collector/archive HTTP/1.1\" 301 -",
+      "127.0.0.1 abc xyz [03/May/2017:06:07:08 +0000] "
+      + "\"GET /server-status?auto HTTP/1.1\" 303 294 "
+      + "\"-\" \"munin/2.0.25-1+deb8u3 (libwww-perl/6.08)\"",
+      "0.0.0.1 - - [07/Dec/2016:20:16:18 -1000] "
+      + "\"HEAD http://t3.torproject.org/?query=what HTTP/1.1\" 200 777" };
+
+  /* Characters that are inserted into or replaced in valid lines, which
+   * are mostly characters with special meaning in the log format. */
+  private static final String mutations = " \t\"[]/:.-+0129AZaz_?\u00e4";
+
+  @Test
+  public void testSameValidityAsRegularExpression() {
+    Random random = new Random(20200101L);
+    for (int i = 0; i < 100_000; i++) {
+      StringBuilder sb = new StringBuilder(
+          validLines[random.nextInt(validLines.length)]);
+      int changes = 1 + random.nextInt(3);
+      for (int j = 0; j < changes; j++) {
+        int pos = random.nextInt(sb.length());
+        char c = mutations.charAt(random.nextInt(mutations.length()));
+        switch (random.nextInt(3)) {
+          case 0:
+            sb.insert(pos, c);
+            break;
+          case 1:
+            sb.setCharAt(pos, c);
+            break;
+          default:
+            sb.deleteCharAt(pos);
+            break;
+        }
+      }
+      String line = sb.toString();
+      assertEquals("Failed on line: " + line,
+          parseWithRegularExpression(line),
+          describe(WebServerAccessLogLine.makeLine(line)));
+    }
+  }
+
+  @Test
+  public void testSameDateInstance() {
+    String line = "0.0.0.0 - - [22/Jan/2018:12:34:56 +0000] \"GET "
+        + "/collector/archive HTTP/1.1\" 301 -";
+    WebServerAccessLogLine first = WebServerAccessLogLine.makeLine(line);
+    WebServerAccessLogLine second = WebServerAccessLogLine.makeLine(
+        new String(line.toCharArray()));
+    assertTrue(first.isValid());
+    assertSame(first.getDate(), second.getDate());
+  }
+
+  /* Parse the given line using the regular expression and return a
+   * description of its fields, or null if the line is invalid. */
+  private static String parseWithRegularExpression(String line) {
+    try {
+      Matcher mat = logLinePattern.matcher(line);
+      if (!mat.find()) {
+        return null;
+      }
+      LocalDate date = ZonedDateTime.parse(mat.group(4) + mat.group(5)
+          + mat.group(6), dateTimeFormatter)
+          .withZoneSameInstant(ZoneOffset.UTC).toLocalDate();
+      return String.join("|", mat.group(1), date.toString(),
+          Method.valueOf(mat.group(7)).name(), mat.group(8), mat.group(9),
+          Integer.valueOf(mat.group(10)).toString(), "-".equals(mat.group(11))
+          ? "-1" : Integer.valueOf(mat.group(11)).toString());
+    } catch (Throwable th) {
+      return null;
+    }
+  }
+
+  private static String describe(WebServerAccessLogLine line) {
+    if (!line.isValid()) {
+      return null;
+    }
+    return String.join("|", line.getIp(), line.getDate().toString(),
+        line.getMethod().name(), line.getRequest(), line.getProtocol(),
+        String.valueOf(line.getResponse()),
+        String.valueOf(line.getSize().orElse(-1)));
+  }
+}
@@ -112,7 +112,29 @@ public class WebServerAccessLogLineTest {
         { "0.0.0.0 - - [08/May/2017:00:00:00 +0000] "
           + "\"GET /server-status HTTP/1.1\" 200 1294",
           "0.0.0.0 - - [08/May/2017:00:00:00 +0000] \"GET "
-          + "/server-status HTTP/1.1\" 200 1294", Boolean.TRUE}
+          + "/server-status HTTP/1.1\" 200 1294", Boolean.TRUE},
+        { "0.0.0.0 - - [08/May/2017:00:00:00\t+0000] "
+          + "\"GET /server-status HTTP/1.1\" 200 1294",
+          "", Boolean.FALSE},
+        { "0.0.0.0 - - [08/May/2017:00:00:00 +0000] "
+          + "\"GET /server-status HTTP/1.1\" 200 2147483648",
+          "", Boolean.FALSE},
+        { "0.0.0.0 - - [08/May/2017:00:00:00 +0000] "
+          + "\"FETCH /server-status HTTP/1.1\" 200 1294",
+          "", Boolean.FALSE},
+        { "0.0.0.0 - - [08/May/2017:00:00:00 +0000] "
+          + "\"GET /server-status\" 200 1294",
+          "", Boolean.FALSE},
+        { "0.0.0.0 - - [08/May/2017:00:00:00 +0000] "
+          + "\"GET /server-\"status HTTP/1.1\" 200 1294",
+          "", Boolean.FALSE},
+        { "0.0.0.0 - - [08/May/2017:00:00:00 +0000] "
+          + "\"GET /server status HTTP/1.1\" 200 1294",
+          "0.0.0.0 - - [08/May/2017:00:00:00 +0000] \"GET "
+          + "/server status HTTP/1.1\" 200 1294", Boolean.TRUE},
+        { "0.0.0.0 - - [08/May/2017:00:00:00 +0000] "
+          + "\"GET /server-status HTTP/1.1\" 2000 1294",
+          "", Boolean.FALSE}
         });
   }
 
@@ -4,8 +4,11 @@
 package org.torproject.descriptor.log;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import org.torproject.descriptor.DescriptorParseException;
+import org.torproject.descriptor.Method;
+import org.torproject.descriptor.WebServerAccessLog;
 import org.torproject.descriptor.internal.FileType;
 
 import org.hamcrest.Matchers;
@@ -14,7 +17,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.time.LocalDate;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 /** This class contains various tests for the webstats module. */
@@ -105,5 +112,90 @@ public class WebServerModuleTest {
     assertEquals("vhost", wsal.getVirtualHost());
   }
 
+  @Test
+  public void testDeferredCompression() throws Exception {
+    WebServerAccessLogImpl wsal = new WebServerAccessLogImpl(logText.getBytes(),
+        null, "vhost_host7_access.log_20170530");
+    wsal.setCompression(FileType.GZ, 1);
+    assertEquals("gz", wsal.getCompressionType());
+    assertEquals(logLines.length, wsal.logLines().count());
+    byte[] raw = wsal.getRawDescriptorBytes();
+    assertEquals(logText, new String(FileType.GZ.decompress(raw)));
+    assertEquals(raw.length, wsal.getRawDescriptorLength());
+    assertEquals(logLines.length, wsal.logLines().count());
+    wsal.setCompression(FileType.BZ2, 9);
+    assertEquals("gz", wsal.getCompressionType());
+    assertSame(raw, wsal.getRawDescriptorBytes());
+  }
+
+  private static String generatedLogText(int lines, long seed) {
+    Random random = new Random(seed);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      if (i % 100 == 99) {
+        sb.append("invalid line\n");
+        continue;
+      }
+      sb.append(String.format("0.0.0.0 - - [%02d/May/2017:00:00:00 +0000] "
+          + "\"%s /page%d HTTP/1.1\" %d %d\n", 29 + random.nextInt(3),
+          random.nextBoolean() ? "GET" : "HEAD", random.nextInt(50),
+          random.nextBoolean() ? 200 : 404, random.nextInt(10_000)));
+    }
+    return sb.toString();
+  }
+
+  private static Map<String, Long> countLines(WebServerAccessLog log)
+      throws Exception {
+    return log.logLines().collect(Collectors.groupingBy((line) ->
+        line.getDate() + " " + line.getMethod() + " " + line.getResponse()
+        + " " + line.getRequest(), Collectors.counting()));
+  }
+
+  private static Map<String, Long> toMap(
+      WebServerAccessLog.RequestCounts counts) {
+    Map<String, Long> map = new HashMap<>();
+    counts.forEach((date, method, response, request, count) ->
+        map.put(date + " " + method + " " + response + " " + request, count));
+    return map;
+  }
+
+  @Test
+  public void testCountRequests() throws Exception {
+    String text = generatedLogText(20_000, 1L);
+    WebServerAccessLogImpl plain = new WebServerAccessLogImpl(
+        text.getBytes(), null, "vhost_host7_access.log_20170530");
+    WebServerAccessLogImpl compressed = new WebServerAccessLogImpl(
+        FileType.XZ.compress(text.getBytes()), null,
+        "vhost_host7_access.log_20170530.xz");
+    Map<String, Long> expected = countLines(plain);
+    for (WebServerAccessLog log : new WebServerAccessLog[] { plain,
+        compressed }) {
+      WebServerAccessLog.RequestCounts counts = log.countRequests();
+      assertEquals(expected, toMap(counts));
+      assertEquals(expected.size(), counts.size());
+      assertEquals(19_800L, counts.getTotal());
+      assertEquals((long) expected.get("2017-05-30 GET 200 /page7"),
+          counts.getCount(LocalDate.of(2017, 5, 30), Method.GET, 200,
+          "/page7"));
+      assertEquals(0L, counts.getCount(LocalDate.of(2017, 5, 30),
+          Method.GET, 500, "/page7"));
+    }
+  }
+
+  @Test
+  public void testMergeRequestCounts() throws Exception {
+    String first = generatedLogText(1_000, 2L);
+    String second = generatedLogText(1_000, 3L);
+    WebServerAccessLog.RequestCounts merged = new WebServerAccessLogImpl(
+        first.getBytes(), null, "vhost_host7_access.log_20170530")
+        .countRequests().merge(new WebServerAccessLogImpl(second.getBytes(),
+        null, "vhost_host8_access.log_20170530").countRequests());
+    WebServerAccessLog.RequestCounts expected = new WebServerAccessLogImpl(
+        (first + second).getBytes(), null, "vhost_host7_access.log_20170530")
+        .countRequests();
+    assertEquals(toMap(expected), toMap(merged));
+    assertEquals(expected.getTotal(), merged.getTotal());
+  }
+
 }
 
@@ -6,19 +6,28 @@ package org.torproject.descriptor.onionperf;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorParseException;
 import org.torproject.descriptor.TorperfResult;
 
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class OnionPerfAnalysisConverterTest {
 
@@ -107,6 +116,8 @@ public class OnionPerfAnalysisConverterTest {
     for (Descriptor descriptor
         : onionPerfAnalysisConverter.asTorperfResults()) {
       assertTrue(descriptor instanceof TorperfResult);
+      assertEquals(Collections.singletonList("@type torperf 1.1"),
+          descriptor.getAnnotations());
       String formattedTorperfResult
           = new String(descriptor.getRawDescriptorBytes()).trim();
       assertNotNull(formattedTorperfResult);
@@ -180,5 +191,108 @@ public class OnionPerfAnalysisConverterTest {
     }
     assertTrue(expectedTorperfResults.isEmpty());
   }
-}
 
+  @Test
+  public void testConvertTorperfResults() throws IOException,
+      DescriptorParseException {
+    List<String> expectedTorperfResults = new ArrayList<>();
+    expectedTorperfResults.add(torperfResultStream155);
+    expectedTorperfResults.add(torperfResultStream156);
+    URL resouce = getClass().getClassLoader().getResource(
+        "onionperf/2020-07-13.op-nl-test1.onionperf.analysis.json.xz");
+    assertNotNull(resouce);
+    byte[] rawDescriptorBytes = IOUtils.toByteArray(resouce.openStream());
+    OnionPerfAnalysisConverter onionPerfAnalysisConverter
+        = new OnionPerfAnalysisConverter(rawDescriptorBytes, null);
+    List<String> formattedTorperfResults = new ArrayList<>();
+    onionPerfAnalysisConverter.convertTorperfResults((torperfResult)
+        -> formattedTorperfResults.add(new String(
+        torperfResult.getRawDescriptorBytes()).trim()));
+    assertEquals(expectedTorperfResults, formattedTorperfResults);
+  }
+
+  private static byte[] compress(String json) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (OutputStream os = new XZCompressorOutputStream(baos)) {
+      os.write(json.getBytes(StandardCharsets.UTF_8));
+    }
+    return baos.toByteArray();
+  }
+
+  @Test
+  public void testConvertTorperfResultsTorBeforeTgen() throws IOException,
+      DescriptorParseException {
+    String json = "{\"type\": \"onionperf\", \"version\": \"3.0\", "
+        + "\"data\": {\"op-test\": {\"tor\": {\"streams\": {\"7\": "
+        + "{\"circuit_id\": \"5\", \"source\": \"127.0.0.1:4000\", "
+        + "\"stream_id\": \"7\", \"unix_ts_end\": 1594633145.46}}, "
+        + "\"circuits\": {\"5\": {\"circuit_id\": 5, "
+        + "\"unix_ts_start\": 1594633119.06, \"path\": "
+        + "[[\"$65888719E2F619E6198F1045A93AF0176C05354D~a\", 0.5]]}, "
+        + "\"6\": {\"circuit_id\": 6}}}, "
+        + "\"measurement_ip\": \"unknown\", \"tgen\": {\"streams\": "
+        + "{\"s1\": {\"unix_ts_start\": 1594633118.41, "
+        + "\"unix_ts_end\": 1594633145.46, \"stream_info\": "
+        + "{\"recvsize\": \"5242880\"}, \"transport_info\": "
+        + "{\"local\": \"localhost:127.0.0.1:4000\"}}}}}}}";
+    List<TorperfResult> torperfResults = new ArrayList<>();
+    new OnionPerfAnalysisConverter(compress(json), null)
+        .convertTorperfResults(torperfResults::add);
+    assertEquals(1, torperfResults.size());
+    TorperfResult torperfResult = torperfResults.get(0);
+    assertEquals("op-test", torperfResult.getSource());
+    assertEquals("unknown", torperfResult.getSourceAddress());
+    assertEquals(7, torperfResult.getUsedBy());
+    assertEquals(5, torperfResult.getCircId());
+    assertEquals(Collections.singletonList(
+        "65888719E2F619E6198F1045A93AF0176C05354D"), torperfResult.getPath());
+  }
+
+  @Test
+  public void testReadTorDataKeepsOnlyMatchableStreams() throws IOException {
+    String streams = "\"streams\": {\"7\": {\"circuit_id\": \"5\", "
+        + "\"source\": \"127.0.0.1:4000\"}, \"8\": {\"circuit_id\": \"6\"}}";
+    String circuits = "\"circuits\": {\"5\": {\"circuit_id\": 5}, "
+        + "\"6\": {\"circuit_id\": 6}, \"9\": {\"circuit_id\": 9}}";
+    String json = "{\"data\": {\"op-a\": {\"tor\": {" + circuits + ", "
+        + streams + "}}, \"op-b\": {\"tor\": {" + streams + ", " + circuits
+        + "}}}, \"type\": \"onionperf\", \"version\": \"3.0\"}";
+    Map<String, ParsedOnionPerfAnalysis.TorData> torDataByNickname
+        = new LinkedHashMap<>();
+    ParsedOnionPerfAnalysis.readWithoutTgenData(new ByteArrayInputStream(
+        json.getBytes(StandardCharsets.UTF_8)), torDataByNickname::put);
+    assertEquals("[op-a, op-b]", torDataByNickname.keySet().toString());
+    for (ParsedOnionPerfAnalysis.TorData torData
+        : torDataByNickname.values()) {
+      assertEquals("[7]", torData.streams.keySet().toString());
+      assertEquals("[5]", torData.circuits.keySet().toString());
+    }
+  }
+
+  @Test
+  public void testConvertTorperfResultsUnsupportedVersion()
+      throws IOException {
+    String json = "{\"data\": {\"op-test\": {\"tgen\": {\"streams\": "
+        + "{\"s1\": {\"unix_ts_start\": 1594633118.41}}}}}, "
+        + "\"type\": \"onionperf\", \"version\": 4.0}";
+    List<TorperfResult> torperfResults = new ArrayList<>();
+    try {
+      new OnionPerfAnalysisConverter(compress(json), null)
+          .convertTorperfResults(torperfResults::add);
+      fail("Expected DescriptorParseException.");
+    } catch (DescriptorParseException e) {
+      assertEquals("Parsed OnionPerf analysis file contains unsupported "
+          + "version 4.0.", e.getMessage());
+    }
+    assertTrue(torperfResults.isEmpty());
+  }
+
+  @Test(expected = DescriptorParseException.class)
+  public void testConvertTorperfResultsTruncated() throws IOException,
+      DescriptorParseException {
+    String json = "{\"type\": \"onionperf\", \"version\": \"3.0\", "
+        + "\"data\": {\"op-test\": {\"tgen\": {\"streams\": {";
+    new OnionPerfAnalysisConverter(compress(json), null)
+        .convertTorperfResults((torperfResult) -> { });
+  }
+}